@@ -62,6 +62,16 @@ android {
         buildConfig = true
         viewBinding = true
     }
+    testOptions {
+        unitTests {
+            // Lets plain JVM tests touch android.util.Log and friends without Robolectric.
+            isReturnDefaultValues = true
+            all {
+                // Benchmarks are skipped unless run with -Pbenchmarks=true.
+                it.systemProperty("benchmarks", project.findProperty("benchmarks") ?: "false")
+            }
+        }
+    }
 }
 
 flutter {
@@ -120,5 +130,20 @@ dependencies {
     implementation("com.github.PhilJay:MPAndroidChart:v3.1.0")
 }
 
+// Fits the IRT item parameters from exported enrollments and courses on the JVM, on the
+// classpath the unit tests run with:
+// ./gradlew :app:calibrateIrtItems -PirtEnrollments=enrollments.json -PirtCourses=courses.json -PirtOutput=irt_item_parameters.json
+tasks.register<JavaExec>("calibrateIrtItems") {
+    group = "application"
+    description = "Calibrates IRT item parameters from COURSE_ENROLLMENTS and COURSES exports."
+    classpath(tasks.named<Test>("testDebugUnitTest").map { it.classpath })
+    mainClass.set("com.choicecrafter.students.utils.IrtItemCalibrator")
+    args(
+        providers.gradleProperty("irtEnrollments").getOrElse("enrollments.json"),
+        providers.gradleProperty("irtCourses").getOrElse("courses.json"),
+        providers.gradleProperty("irtOutput").getOrElse("irt_item_parameters.json"),
+    )
+}
+
 apply(plugin = "com.google.gms.google-services")
 
@@ -38,6 +38,7 @@ import com.choicecrafter.students.models.User;
 import com.choicecrafter.students.notifications.ChatNotificationListener;
 import com.choicecrafter.students.notifications.MessagingTokenManager;
 import com.choicecrafter.students.notifications.MotivationalReminderWorker;
+import com.choicecrafter.students.repositories.LeaderboardRebuildWorker;
 import com.choicecrafter.students.repositories.FirestoreListener;
 import com.choicecrafter.students.repositories.NudgePreferencesRepository;
 import com.choicecrafter.students.ui.auth.LoginActivity;
@@ -221,8 +222,10 @@ public class MainActivity extends FragmentActivity {
             // It's safe to schedule workers here
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 WeeklyUsageExportWorker.schedule(getApplicationContext());
+                WeeklyUsageExportWorker.scheduleHistoryBackfill(getApplicationContext());
                 MotivationalReminderWorker.schedule(getApplicationContext());
             }
+            LeaderboardRebuildWorker.schedule(getApplicationContext());
             requestNotificationPermissionIfNeeded();
 
             setContentView(R.layout.activity_main);
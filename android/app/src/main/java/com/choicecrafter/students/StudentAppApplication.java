@@ -14,6 +14,11 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatDelegate;
 
 import com.choicecrafter.students.notifications.MessagingTokenManager;
+import com.choicecrafter.students.repositories.CourseCatalogStore;
+import com.choicecrafter.students.repositories.DailyScoreRepository;
+import com.choicecrafter.students.repositories.TaskStatsWriteQueue;
+import com.choicecrafter.students.utils.IrtItemParameters;
+import com.choicecrafter.students.utils.IrtSmartScoreAdjuster;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
@@ -24,6 +29,11 @@ import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.messaging.FirebaseMessaging;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -32,6 +42,7 @@ public class StudentAppApplication extends Application implements Application.Ac
 
     private static final String TAG = "StudentAppApp";
     private static final long BACKGROUND_PRESENCE_GRACE_PERIOD_MS = 30_000;
+    private static final String IRT_ITEM_PARAMETERS_ASSET = "irt_item_parameters.json";
     private int activityReferences = 0;
     private DocumentReference cachedUserDocument;
     private Boolean lastPresenceState = null;
@@ -43,6 +54,10 @@ public class StudentAppApplication extends Application implements Application.Ac
         super.onCreate();
         applySavedThemePreference();
         applySavedFontScale();
+        CourseCatalogStore.getInstance().attach(getFilesDir());
+        DailyScoreRepository.getInstance().attach(getFilesDir());
+        TaskStatsWriteQueue.getInstance().attach(getFilesDir());
+        loadIrtItemParameters();
         registerActivityLifecycleCallbacks(this);
         initializeMessagingToken();
     }
@@ -80,6 +95,7 @@ public class StudentAppApplication extends Application implements Application.Ac
         activityReferences = Math.max(0, activityReferences - 1);
         if (activityReferences == 0) {
             scheduleOfflineUpdate();
+            TaskStatsWriteQueue.getInstance().flush();
         }
     }
 
@@ -178,6 +194,22 @@ public class StudentAppApplication extends Application implements Application.Ac
         getResources().updateConfiguration(configuration, getResources().getDisplayMetrics());
     }
 
+    /**
+     * Installs the calibrated IRT item parameters when the build bundles them as an asset.
+     */
+    private void loadIrtItemParameters() {
+        new Thread(() -> {
+            try (Reader reader = new InputStreamReader(getAssets().open(IRT_ITEM_PARAMETERS_ASSET),
+                    StandardCharsets.UTF_8)) {
+                IrtSmartScoreAdjuster.setItemParameters(IrtItemParameters.read(reader));
+            } catch (FileNotFoundException e) {
+                Log.d(TAG, "No calibrated IRT item parameters bundled");
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to load calibrated IRT item parameters", e);
+            }
+        }, "irt-item-parameters").start();
+    }
+
     private void initializeMessagingToken() {
         Log.d(TAG, "Initializing firebase messaging token");
         FirebaseApp.initializeApp(this);
@@ -488,16 +488,7 @@ public class ActivityAdapter extends RecyclerView.Adapter<ActivityAdapter.Activi
                 if (stats == null) {
                     continue;
                 }
-                String timeSpent = stats.getTimeSpent();
-                if (timeSpent != null && timeSpent.contains(":")) {
-                    String[] parts = timeSpent.split(":");
-                    try {
-                        int minutes = Integer.parseInt(parts[0]);
-                        int seconds = Integer.parseInt(parts[1]);
-                        totalSeconds += minutes * 60 + seconds;
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
+                totalSeconds += Math.max(0, stats.getTimeSpentSeconds());
                 if (!hintsUsed && Boolean.TRUE.equals(stats.getHintsUsed())) {
                     hintsUsed = true;
                 }
@@ -508,8 +499,9 @@ public class ActivityAdapter extends RecyclerView.Adapter<ActivityAdapter.Activi
         int seconds = totalSeconds % 60;
         String timeFormatted = String.format(Locale.getDefault(), "%02d:%02d", minutes, seconds);
         List<Task> tasks = activityItem.getTasks();
-        int earnedXp = ActivityScoreCalculator.calculateEarnedXp(tasks, statsMap);
-        int totalXp = ActivityScoreCalculator.calculateTotalXp(tasks, statsMap);
+        ActivityScoreCalculator.ActivityScore score = ActivityScoreCalculator.score(tasks, statsMap);
+        int earnedXp = score.getEarnedXp();
+        int totalXp = score.getTotalXp();
         int highestScore = extractHighestScore(progressSnapshot);
         if (highestScore > earnedXp) {
             earnedXp = highestScore;
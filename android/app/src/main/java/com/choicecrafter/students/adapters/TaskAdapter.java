@@ -557,7 +557,23 @@ public class TaskAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         if (isActivityCompleted() && !completionHandled) {
             completionHandled = true;
             int score = calculateEarnedXp();
-            activityRepository.updateHighestScoreIfGreater(activityProgress.getUserId(), activityProgress.getCourseId(), activityProgress.getActivityId(), score);
+            activityRepository.updateHighestScoreIfGreater(activityProgress.getUserId(), activityProgress.getCourseId(), activityProgress.getActivityId(), score,
+                    new ActivityRepository.HighScoreCallback() {
+                        @Override
+                        public void onResult(boolean updated, int highestScore) {
+                            // Another device may have stored a higher score in the meantime.
+                            Integer shown = activityProgress.getHighestScore();
+                            if (shown == null || shown != highestScore) {
+                                activityProgress.setHighestScore(highestScore);
+                                notifyStatisticsCardChanged();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            Log.w("TaskAdapter", "Failed to store highest score " + score + " for activity " + activityProgress.getActivityId(), e);
+                        }
+                    });
             Integer currentHighest = activityProgress.getHighestScore();
             if (currentHighest == null || score > currentHighest) {
                 activityProgress.setHighestScore(score);
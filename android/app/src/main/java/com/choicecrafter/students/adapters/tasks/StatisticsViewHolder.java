@@ -24,6 +24,7 @@ import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
 import com.choicecrafter.students.models.tasks.Task;
 import com.choicecrafter.students.models.tasks.TrueFalseTask;
 import com.choicecrafter.students.utils.ActivityScoreCalculator;
+import com.choicecrafter.students.utils.ActivityScoreCalculator.ActivityScore;
 import com.choicecrafter.students.utils.ActivityScoreCalculator.LossReason;
 import com.choicecrafter.students.utils.ActivityScoreCalculator.TaskScoreBreakdown;
 import com.choicecrafter.students.utils.MotivationalPromptType;
@@ -90,6 +91,9 @@ public class StatisticsViewHolder extends RecyclerView.ViewHolder {
         }
 
         Map<String, TaskStats> taskStatsMap = userActivity != null ? userActivity.getTaskStats() : null;
+        ActivityScore score = userActivity != null
+                ? ActivityScoreCalculator.score(userActivity.getUserId(), userActivity.getActivityId(), tasks, taskStatsMap)
+                : ActivityScoreCalculator.score(tasks, taskStatsMap);
         Context context = itemView.getContext();
         String motivationalPrompt = showMotivationalPrompt
                 ? MotivationalPrompts.getRandomPrompt(context, MotivationalPromptType.COMPLETED_ACTIVITY)
@@ -101,17 +105,7 @@ public class StatisticsViewHolder extends RecyclerView.ViewHolder {
             int completionSamples = 0;
             boolean anyHintsUsed = false;
             for (TaskStats taskStats : taskStatsMap.values()) {
-                String timeSpent = taskStats.getTimeSpent();
-                if (timeSpent != null && timeSpent.contains(":")) {
-                    String[] parts = timeSpent.split(":");
-                    try {
-                        int minutes = Integer.parseInt(parts[0]);
-                        int seconds = Integer.parseInt(parts[1]);
-                        totalSeconds += minutes * 60 + seconds;
-                    } catch (NumberFormatException e) {
-                        Log.w("StatisticsViewHolder", "Invalid time format: " + timeSpent, e);
-                    }
-                }
+                totalSeconds += Math.max(0, taskStats.getTimeSpentSeconds());
                 completionAccumulator += clampRatio(taskStats.resolveCompletionRatio());
                 completionSamples++;
                 if (!anyHintsUsed && Boolean.TRUE.equals(taskStats.getHintsUsed())) {
@@ -123,8 +117,8 @@ public class StatisticsViewHolder extends RecyclerView.ViewHolder {
             String formattedTime = String.format(java.util.Locale.getDefault(), "%02d:%02d", minutes, seconds);
             timeTaken.setText(context.getString(R.string.statistics_card_time_value, formattedTime));
 
-            int totalXp = tasks != null ? ActivityScoreCalculator.calculateTotalXp(tasks, taskStatsMap) : 0;
-            int earnedXp = tasks != null ? ActivityScoreCalculator.calculateEarnedXp(tasks, taskStatsMap) : 0;
+            int totalXp = score.getTotalXp();
+            int earnedXp = score.getEarnedXp();
             int scoreValue = 0;
             if (userActivity != null && userActivity.getHighestScore() != null) {
                 scoreValue = userActivity.getHighestScore();
@@ -181,7 +175,7 @@ public class StatisticsViewHolder extends RecyclerView.ViewHolder {
             }
         }
 
-        renderTaskBreakdown(context, tasks, taskStatsMap);
+        renderTaskBreakdown(context, score);
 
         if (completionActionsContainer != null) {
             completionActionsContainer.setVisibility(isActivityCompleted ? View.VISIBLE : View.GONE);
@@ -207,16 +201,14 @@ public class StatisticsViewHolder extends RecyclerView.ViewHolder {
         return Math.max(0.0, Math.min(1.0, ratio));
     }
 
-    private void renderTaskBreakdown(Context context,
-                                     List<Task> tasks,
-                                     Map<String, TaskStats> taskStatsMap) {
+    private void renderTaskBreakdown(Context context, ActivityScore score) {
         if (taskBreakdownContainer == null || taskBreakdownHeader == null) {
             return;
         }
 
         taskBreakdownContainer.removeAllViews();
 
-        List<TaskScoreBreakdown> breakdowns = ActivityScoreCalculator.buildTaskScoreBreakdown(tasks, taskStatsMap);
+        List<TaskScoreBreakdown> breakdowns = score.getTaskBreakdowns();
         if (breakdowns.isEmpty()) {
             taskBreakdownContainer.setVisibility(View.GONE);
             taskBreakdownHeader.setVisibility(View.GONE);
@@ -0,0 +1,309 @@
+package com.choicecrafter.students.analytics;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Daily usage of one user, kept as dense primitive arrays indexed by epoch day: the points
+ * earned, the attempts made and the seconds spent on each day.
+ * <p>
+ * The series is built from {@link WeeklyUsageRollup}s rather than the attempt history:
+ * {@link #addRollup} adds the rollups of results that were just written and
+ * {@link #mergeRollup} takes over the stored totals of a week read back from Firestore.
+ * {@link #getSyncedWeekStart()} remembers the newest week that was read, so a refresh only
+ * has to read the rollups from that week on. Range queries copy or sum a slice of the
+ * arrays and never look at more days than were asked for.
+ * <p>
+ * All methods are synchronized; the series is shared between the write queue and readers.
+ */
+public final class DailyScoreSeries {
+
+    /**
+     * {@link #getSyncedWeekStart()} of a series that was never read from Firestore.
+     */
+    public static final int NOT_SYNCED = Integer.MIN_VALUE;
+
+    private static final int MAGIC = 0x44534352; // "DSCR"
+    private static final int FORMAT_VERSION = 1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int DAYS_PER_WEEK = 7;
+
+    private final String userId;
+    private int firstDay;
+    private int length;
+    private long[] points = new long[0];
+    private int[] attempts = new int[0];
+    private int[] seconds = new int[0];
+    private int syncedWeekStart = NOT_SYNCED;
+
+    public DailyScoreSeries(@NonNull String userId) {
+        this.userId = userId;
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Epoch day of the Monday of the newest week read from Firestore, or {@link #NOT_SYNCED}.
+     */
+    public synchronized int getSyncedWeekStart() {
+        return syncedWeekStart;
+    }
+
+    public synchronized boolean isSynced() {
+        return syncedWeekStart != NOT_SYNCED;
+    }
+
+    /**
+     * Records that every stored rollup up to the week starting on {@code weekStartEpochDay}
+     * has been read.
+     */
+    public synchronized void markSynced(int weekStartEpochDay) {
+        syncedWeekStart = Math.max(syncedWeekStart, weekStartEpochDay);
+    }
+
+    /**
+     * Adds the counters of a rollup of newly written results. The counters may be negative
+     * where a written result replaced an earlier one of the same task.
+     */
+    public synchronized void addRollup(@NonNull WeeklyUsageRollup rollup) {
+        int weekStart = (int) rollup.getWeekStart().toEpochDay();
+        for (int dayIndex = 0; dayIndex < DAYS_PER_WEEK; dayIndex++) {
+            if (rollup.getDailyAttempts(dayIndex) == 0
+                    && rollup.getDailyPoints(dayIndex) == 0
+                    && rollup.getDailySeconds(dayIndex) == 0) {
+                continue;
+            }
+            int index = indexFor(weekStart + dayIndex);
+            points[index] += rollup.getDailyPoints(dayIndex);
+            attempts[index] = saturatedAdd(attempts[index], rollup.getDailyAttempts(dayIndex));
+            seconds[index] = saturatedAdd(seconds[index], rollup.getDailySeconds(dayIndex));
+        }
+    }
+
+    /**
+     * Replaces the days of the rollup's week with its stored totals. The stored totals always
+     * win; the caller makes sure a rollup read before a write is not merged after that
+     * write was added here.
+     */
+    public synchronized void mergeRollup(@NonNull WeeklyUsageRollup rollup) {
+        int weekStart = (int) rollup.getWeekStart().toEpochDay();
+        for (int dayIndex = 0; dayIndex < DAYS_PER_WEEK; dayIndex++) {
+            int day = weekStart + dayIndex;
+            int storedAttempts = rollup.getDailyAttempts(dayIndex);
+            if (storedAttempts == 0 && !contains(day)) {
+                continue;
+            }
+            int index = indexFor(day);
+            points[index] = rollup.getDailyPoints(dayIndex);
+            attempts[index] = storedAttempts;
+            seconds[index] = saturatedAdd(0, rollup.getDailySeconds(dayIndex));
+        }
+    }
+
+    public synchronized long getPoints(long epochDay) {
+        return contains(epochDay) ? points[(int) (epochDay - firstDay)] : 0L;
+    }
+
+    public synchronized int getAttempts(long epochDay) {
+        return contains(epochDay) ? attempts[(int) (epochDay - firstDay)] : 0;
+    }
+
+    public synchronized int getSeconds(long epochDay) {
+        return contains(epochDay) ? seconds[(int) (epochDay - firstDay)] : 0;
+    }
+
+    /**
+     * Sums the points of the days from {@code fromEpochDay} up to, but excluding,
+     * {@code toEpochDay}.
+     */
+    public synchronized long sumPoints(long fromEpochDay, long toEpochDay) {
+        long total = 0L;
+        int from = clampIndex(fromEpochDay);
+        int to = clampIndex(toEpochDay);
+        for (int index = from; index < to; index++) {
+            total += points[index];
+        }
+        return total;
+    }
+
+    /**
+     * Points of {@code days} consecutive days starting at {@code fromEpochDay}; days without
+     * usage are {@code 0}.
+     */
+    @NonNull
+    public synchronized long[] copyPoints(long fromEpochDay, int days) {
+        long[] copy = new long[days];
+        int offset = overlap(fromEpochDay, days);
+        for (int i = Math.max(0, -offset); i < days && offset + i < length; i++) {
+            copy[i] = points[offset + i];
+        }
+        return copy;
+    }
+
+    /**
+     * Attempts of {@code days} consecutive days starting at {@code fromEpochDay}.
+     */
+    @NonNull
+    public synchronized int[] copyAttempts(long fromEpochDay, int days) {
+        return copyInts(attempts, fromEpochDay, days);
+    }
+
+    /**
+     * Seconds spent on {@code days} consecutive days starting at {@code fromEpochDay}.
+     */
+    @NonNull
+    public synchronized int[] copySeconds(long fromEpochDay, int days) {
+        return copyInts(seconds, fromEpochDay, days);
+    }
+
+    /**
+     * Points per {@code uuuu-MM-dd} day of every day with at least one attempt, the format
+     * of {@link com.choicecrafter.students.models.User#getScores()}.
+     */
+    @NonNull
+    public synchronized Map<String, Long> toDayKeyedScores() {
+        Map<String, Long> scores = new TreeMap<>();
+        for (int index = 0; index < length; index++) {
+            if (attempts[index] > 0) {
+                scores.put(LocalDate.ofEpochDay(firstDay + index).toString(), points[index]);
+            }
+        }
+        return scores;
+    }
+
+    public synchronized void writeTo(@NonNull DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(userId);
+        out.writeInt(syncedWeekStart);
+        out.writeInt(firstDay);
+        out.writeInt(length);
+        for (int index = 0; index < length; index++) {
+            out.writeLong(points[index]);
+            out.writeInt(attempts[index]);
+            out.writeInt(seconds[index]);
+        }
+    }
+
+    /**
+     * Reads a series written by {@link #writeTo}; fails for another format or another user.
+     */
+    @NonNull
+    public static DailyScoreSeries readFrom(@NonNull DataInputStream in, @NonNull String userId) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown daily score format");
+        }
+        if (!userId.equals(in.readUTF())) {
+            throw new IOException("Daily scores of another user");
+        }
+        DailyScoreSeries series = new DailyScoreSeries(userId);
+        series.syncedWeekStart = in.readInt();
+        series.firstDay = in.readInt();
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt daily score length " + length);
+        }
+        series.points = new long[length];
+        series.attempts = new int[length];
+        series.seconds = new int[length];
+        for (int index = 0; index < length; index++) {
+            series.points[index] = in.readLong();
+            series.attempts[index] = in.readInt();
+            series.seconds[index] = in.readInt();
+        }
+        series.length = length;
+        return series;
+    }
+
+    private boolean contains(long epochDay) {
+        return length > 0 && epochDay >= firstDay && epochDay < (long) firstDay + length;
+    }
+
+    private int clampIndex(long epochDay) {
+        return (int) Math.max(0L, Math.min(length, epochDay - firstDay));
+    }
+
+    private int overlap(long fromEpochDay, int days) {
+        long offset = fromEpochDay - firstDay;
+        return (int) Math.max(-days, Math.min(length, offset));
+    }
+
+    private int[] copyInts(int[] values, long fromEpochDay, int days) {
+        int[] copy = new int[days];
+        int offset = overlap(fromEpochDay, days);
+        for (int i = Math.max(0, -offset); i < days && offset + i < length; i++) {
+            copy[i] = values[offset + i];
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the index of {@code epochDay}, growing the arrays at either end when the day
+     * lies outside the covered range.
+     */
+    private int indexFor(int epochDay) {
+        if (length == 0) {
+            ensureCapacity(INITIAL_CAPACITY, 0);
+            firstDay = epochDay;
+            length = 1;
+            return 0;
+        }
+        if (epochDay < firstDay) {
+            int shift = firstDay - epochDay;
+            ensureCapacity(length + shift, shift);
+            firstDay = epochDay;
+            length += shift;
+            return 0;
+        }
+        int index = epochDay - firstDay;
+        if (index >= length) {
+            ensureCapacity(index + 1, 0);
+            length = index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Makes room for {@code required} days and moves the current days {@code shift} places
+     * to the right, clearing the days in front of them.
+     */
+    private void ensureCapacity(int required, int shift) {
+        if (required <= points.length && shift == 0) {
+            return;
+        }
+        int capacity = required <= points.length ? points.length
+                : Math.max(required, Math.max(INITIAL_CAPACITY, points.length * 2));
+        long[] newPoints = new long[capacity];
+        int[] newAttempts = new int[capacity];
+        int[] newSeconds = new int[capacity];
+        System.arraycopy(points, 0, newPoints, shift, length);
+        System.arraycopy(attempts, 0, newAttempts, shift, length);
+        System.arraycopy(seconds, 0, newSeconds, shift, length);
+        points = newPoints;
+        attempts = newAttempts;
+        seconds = newSeconds;
+    }
+
+    private static int saturatedAdd(int current, long delta) {
+        return (int) Math.max(0L, Math.min(Integer.MAX_VALUE, current + delta));
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "DailyScoreSeries{userId=" + userId
+                + ", firstDay=" + (length > 0 ? LocalDate.ofEpochDay(firstDay) : null)
+                + ", days=" + length
+                + ", syncedWeekStart=" + (syncedWeekStart != NOT_SYNCED ? LocalDate.ofEpochDay(syncedWeekStart) : null)
+                + '}';
+    }
+}
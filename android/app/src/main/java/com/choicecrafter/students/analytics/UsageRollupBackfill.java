@@ -0,0 +1,203 @@
+package com.choicecrafter.students.analytics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.choicecrafter.students.repositories.EnrollmentProgressSnapshots;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Builds the {@link WeeklyUsageRollup}s of the task results that were stored before the
+ * rollups were maintained, and marks the user as backfilled in the rollup index.
+ * <p>
+ * A backfilled rollup counts the stored result of every task, the same rule
+ * {@link com.choicecrafter.students.repositories.TaskStatsWriteQueue} follows when it adjusts
+ * the rollups, so both produce the same totals. The rollups of a user are replaced with what
+ * the enrollment documents contain, so results written between reading the enrollments and
+ * writing the rollups are not counted; backfilling is meant to run once per user.
+ * {@link #backfillAllUsersOnce()} runs before the weekly export and records in
+ * {@link #STATUS_COLLECTION} that every user was backfilled.
+ */
+public class UsageRollupBackfill {
+
+    private static final String TAG = "UsageRollupBackfill";
+    private static final String ENROLLMENTS_COLLECTION = "COURSE_ENROLLMENTS";
+    static final String STATUS_COLLECTION = "USAGE_ROLLUP_BACKFILL";
+    private static final String STATUS_DOCUMENT = "allUsers";
+    private static final int PAGE_SIZE = 500;
+    /**
+     * Firestore accepts at most 500 writes per batch; one is kept for the index.
+     */
+    private static final int MAX_ROLLUPS_PER_BATCH = 499;
+
+    private final FirebaseFirestore firestore;
+
+    public UsageRollupBackfill() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public UsageRollupBackfill(@NonNull FirebaseFirestore firestore) {
+        this.firestore = Objects.requireNonNull(firestore, "firestore == null");
+    }
+
+    /**
+     * Rebuilds the rollups of one user. The task resolves to the rollups that were written.
+     */
+    @NonNull
+    public Task<List<WeeklyUsageRollup>> backfillUser(@NonNull String userId) {
+        return firestore.collection(ENROLLMENTS_COLLECTION)
+                .whereEqualTo("userId", userId)
+                .get()
+                .onSuccessTask(snapshot -> {
+                    List<WeeklyUsageRollup> rollups = fromEnrollments(userId, snapshot.getDocuments());
+                    return write(userId, rollups).continueWith(task -> {
+                        if (!task.isSuccessful()) {
+                            throw Objects.requireNonNull(task.getException());
+                        }
+                        return rollups;
+                    });
+                });
+    }
+
+    /**
+     * Backfills every user that was not backfilled yet, unless that already happened once.
+     * Returns the number of users backfilled. Blocks the calling thread, so it must not run
+     * on the main thread.
+     */
+    public int backfillAllUsersOnce() throws Exception {
+        DocumentReference status = firestore.collection(STATUS_COLLECTION).document(STATUS_DOCUMENT);
+        if (Tasks.await(status.get()).exists()) {
+            return 0;
+        }
+        int users = backfillAllUsers();
+        Map<String, Object> data = new HashMap<>();
+        data.put("users", users);
+        data.put("completedAt", FieldValue.serverTimestamp());
+        Tasks.await(status.set(data));
+        return users;
+    }
+
+    /**
+     * Rebuilds the rollups of every user that was not backfilled yet and returns the number
+     * of users. Blocks the calling thread, so it must not run on the main thread.
+     */
+    public int backfillAllUsers() throws Exception {
+        Query baseQuery = firestore.collection(ENROLLMENTS_COLLECTION)
+                .orderBy("userId")
+                .limit(PAGE_SIZE);
+        DocumentSnapshot cursor = null;
+        String currentUser = null;
+        List<DocumentSnapshot> currentEnrollments = new ArrayList<>();
+        int users = 0;
+
+        while (true) {
+            Query pageQuery = cursor == null ? baseQuery : baseQuery.startAfter(cursor);
+            List<DocumentSnapshot> page = Tasks.await(pageQuery.get()).getDocuments();
+            for (DocumentSnapshot enrollment : page) {
+                String userId = enrollment.getString("userId");
+                if (userId == null || userId.trim().isEmpty()) {
+                    continue;
+                }
+                if (!userId.equals(currentUser)) {
+                    users += backfillBlocking(currentUser, currentEnrollments);
+                    currentUser = userId;
+                    currentEnrollments.clear();
+                }
+                currentEnrollments.add(enrollment);
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+            cursor = page.get(page.size() - 1);
+        }
+        users += backfillBlocking(currentUser, currentEnrollments);
+        Log.i(TAG, "Backfilled usage rollups of " + users + " users");
+        return users;
+    }
+
+    private int backfillBlocking(String userId, List<DocumentSnapshot> enrollments) throws Exception {
+        if (userId == null) {
+            return 0;
+        }
+        DocumentSnapshot index = Tasks.await(firestore.collection(WeeklyUsageRollup.INDEX_COLLECTION)
+                .document(userId)
+                .get());
+        if (WeeklyUsageRollup.isBackfilled(index)) {
+            // Already rebuilt, e.g. by the user's daily scores; the live rollups are complete.
+            return 0;
+        }
+        Tasks.await(write(userId, fromEnrollments(userId, enrollments)));
+        return 1;
+    }
+
+    @NonNull
+    static List<WeeklyUsageRollup> fromEnrollments(@NonNull String userId,
+                                                   @NonNull List<DocumentSnapshot> enrollments) {
+        Map<String, WeeklyUsageRollup> rollupsById = new LinkedHashMap<>();
+        for (DocumentSnapshot enrollment : enrollments) {
+            addSnapshots(rollupsById, userId, enrollment.getString("courseId"),
+                    EnrollmentProgressSnapshots.read(enrollment));
+        }
+        return new ArrayList<>(rollupsById.values());
+    }
+
+    /**
+     * Adds the stored result of every task of the activity snapshots of one enrollment.
+     */
+    static void addSnapshots(@NonNull Map<String, WeeklyUsageRollup> rollupsById,
+                             @NonNull String userId,
+                             String enrollmentCourseId,
+                             @NonNull List<Map<String, Object>> snapshots) {
+        for (Map<String, Object> snapshot : snapshots) {
+            if (!(snapshot.get("taskStats") instanceof Map<?, ?> taskStats)) {
+                continue;
+            }
+            Object courseId = snapshot.get("courseId");
+            Object activityId = snapshot.get("activityId");
+            for (Object attempt : taskStats.values()) {
+                if (attempt instanceof Map<?, ?> attemptMap) {
+                    WeeklyUsageRollup.addAttempt(rollupsById, userId,
+                            courseId != null ? courseId.toString() : enrollmentCourseId,
+                            activityId != null ? activityId.toString() : null,
+                            attemptMap);
+                }
+            }
+        }
+    }
+
+    private Task<Void> write(String userId, List<WeeklyUsageRollup> rollups) {
+        List<Task<?>> commits = new ArrayList<>();
+        WriteBatch batch = firestore.batch();
+        int batchSize = 0;
+        for (WeeklyUsageRollup rollup : rollups) {
+            if (batchSize == MAX_ROLLUPS_PER_BATCH) {
+                commits.add(batch.commit());
+                batch = firestore.batch();
+                batchSize = 0;
+            }
+            batch.set(firestore.collection(WeeklyUsageRollup.COLLECTION).document(rollup.getDocumentId()),
+                    rollup.toReplacementData());
+            batchSize++;
+        }
+        batch.set(firestore.collection(WeeklyUsageRollup.INDEX_COLLECTION).document(userId),
+                WeeklyUsageRollup.indexData(userId, rollups, true), SetOptions.merge());
+        commits.add(batch.commit());
+        return Tasks.whenAll(commits);
+    }
+}
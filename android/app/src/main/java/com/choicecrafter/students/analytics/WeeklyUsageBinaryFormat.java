@@ -0,0 +1,307 @@
+package com.choicecrafter.students.analytics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.ActivityUsage;
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.UserWeeklyUsage;
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.WeeklyUsageSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact binary encoding of a {@link WeeklyUsageSummary}, written next to the JSON export.
+ * <p>
+ * The stream is gzip-framed and starts with the magic {@code CCWU}, a format version and the
+ * week it covers, followed by one record per user and an end marker. Integers are written
+ * as unsigned varints, active days as a bit mask of their offset from the week start, and
+ * user, course, activity, phase and group ids through a dictionary that is built while
+ * writing: the first occurrence of a string carries its value and later ones only its
+ * index. The aggregates are not stored since {@link #read(InputStream)} recomputes them
+ * from the users.
+ */
+public final class WeeklyUsageBinaryFormat {
+
+    private static final int MAGIC = 0x43435755; // "CCWU"
+    private static final int FORMAT_VERSION = 1;
+    private static final int RECORD_USER = 1;
+    private static final int RECORD_END = 0;
+
+    private static final int FLAG_NUDGED = 1;
+    private static final int FLAG_GROUP_ASSIGNMENT_MISSING = 1 << 1;
+    private static final int FLAG_NEW_CONTENT = 1;
+
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+    private static final int STRING_REFERENCE_OFFSET = 2;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private WeeklyUsageBinaryFormat() {
+        // Utility class
+    }
+
+    /**
+     * Reads a summary written by {@link Writer}.
+     */
+    @NonNull
+    public static WeeklyUsageSummary read(@NonNull InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a weekly usage export");
+        }
+        int version = readVarInt(in);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported weekly usage export version " + version);
+        }
+        List<String> dictionary = new ArrayList<>();
+        String summaryVersion = in.readUTF();
+        Instant generatedAt = Instant.parse(in.readUTF());
+        LocalDate weekStart = LocalDate.ofEpochDay(readVarLong(in));
+        LocalDate weekEnd = LocalDate.ofEpochDay(readVarLong(in));
+
+        List<UserWeeklyUsage> users = new ArrayList<>();
+        int record;
+        while ((record = readVarInt(in)) == RECORD_USER) {
+            users.add(readUser(in, dictionary, weekStart));
+        }
+        if (record != RECORD_END) {
+            throw new IOException("Unexpected record type " + record);
+        }
+        WeeklyUsageSummary summary = WeeklyUsageExportWorker.buildSummary(weekStart, weekEnd, users, generatedAt);
+        if (!summaryVersion.equals(summary.getVersion())) {
+            throw new IOException("Export was written with summary version " + summaryVersion
+                    + " but this reader produces " + summary.getVersion());
+        }
+        return summary;
+    }
+
+    private static UserWeeklyUsage readUser(DataInputStream in, List<String> dictionary, LocalDate weekStart)
+            throws IOException {
+        String userId = readString(in, dictionary);
+        String experimentPhase = readString(in, dictionary);
+        String group = readString(in, dictionary);
+        int flags = readVarInt(in);
+        List<String> activeDays = readDays(in, weekStart);
+        int courseCount = readVarInt(in);
+        int areaCount = readVarInt(in);
+        List<ActivityUsage> areas = new ArrayList<>(areaCount);
+        for (int i = 0; i < areaCount; i++) {
+            String courseId = readString(in, dictionary);
+            String activityId = readString(in, dictionary);
+            int tasksAttempted = readVarInt(in);
+            int successfulTasks = readVarInt(in);
+            double successRate = in.readDouble();
+            double averageRetries = in.readDouble();
+            long totalTimeSpentSeconds = readVarLong(in);
+            int hintsUsed = readVarInt(in);
+            boolean newContent = (readVarInt(in) & FLAG_NEW_CONTENT) != 0;
+            List<String> areaDays = readDays(in, weekStart);
+            areas.add(new ActivityUsage(courseId, activityId, tasksAttempted, successfulTasks, successRate,
+                    averageRetries, totalTimeSpentSeconds, hintsUsed, newContent, areaDays));
+        }
+        int tasksAttempted = readVarInt(in);
+        int successfulTasks = readVarInt(in);
+        double successRate = in.readDouble();
+        double averageRetries = in.readDouble();
+        long totalTimeSpentSeconds = readVarLong(in);
+        int hintsUsed = readVarInt(in);
+        int newActivitiesExplored = readVarInt(in);
+        long totalRetries = readVarLong(in);
+        int retrySamples = readVarInt(in);
+        return new UserWeeklyUsage(
+                userId,
+                experimentPhase,
+                group,
+                (flags & FLAG_NUDGED) != 0,
+                (flags & FLAG_GROUP_ASSIGNMENT_MISSING) != 0 ? Boolean.TRUE : null,
+                activeDays,
+                courseCount,
+                areas,
+                tasksAttempted,
+                successfulTasks,
+                successRate,
+                averageRetries,
+                totalTimeSpentSeconds,
+                hintsUsed,
+                newActivitiesExplored,
+                totalRetries,
+                retrySamples
+        );
+    }
+
+    private static String readString(DataInputStream in, List<String> dictionary) throws IOException {
+        int code = readVarInt(in);
+        if (code == STRING_NULL) {
+            return null;
+        }
+        if (code == STRING_NEW) {
+            String value = in.readUTF();
+            dictionary.add(value);
+            return value;
+        }
+        int index = code - STRING_REFERENCE_OFFSET;
+        if (index >= dictionary.size()) {
+            throw new IOException("Dictionary reference " + index + " out of range");
+        }
+        return dictionary.get(index);
+    }
+
+    private static List<String> readDays(DataInputStream in, LocalDate weekStart) throws IOException {
+        long mask = readVarLong(in);
+        List<String> days = new ArrayList<>(Long.bitCount(mask));
+        while (mask != 0) {
+            int offset = Long.numberOfTrailingZeros(mask);
+            days.add(DATE_FORMAT.format(weekStart.plusDays(offset)));
+            mask &= mask - 1;
+        }
+        return days;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Varint out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Streams users into the binary format. {@link #close()} writes the end marker and
+     * finishes the gzip frame.
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final LocalDate weekStart;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private int userCount;
+
+        public Writer(@NonNull OutputStream output,
+                      @NonNull String summaryVersion,
+                      @NonNull Instant generatedAt,
+                      @NonNull LocalDate weekStart,
+                      @NonNull LocalDate weekEnd) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output)));
+            this.weekStart = weekStart;
+            out.writeInt(MAGIC);
+            writeVarLong(FORMAT_VERSION);
+            out.writeUTF(summaryVersion);
+            out.writeUTF(generatedAt.toString());
+            writeVarLong(weekStart.toEpochDay());
+            writeVarLong(weekEnd.toEpochDay());
+        }
+
+        public void write(@NonNull UserWeeklyUsage usage) throws IOException {
+            writeVarLong(RECORD_USER);
+            writeString(usage.getUserId());
+            writeString(usage.getExperimentPhase());
+            writeString(usage.getGroup());
+            int flags = (usage.isNudged() ? FLAG_NUDGED : 0)
+                    | (Boolean.TRUE.equals(usage.getGroupAssignmentMissing()) ? FLAG_GROUP_ASSIGNMENT_MISSING : 0);
+            writeVarLong(flags);
+            writeDays(usage.getActiveDays());
+            writeVarLong(usage.getCourseCount());
+            List<ActivityUsage> areas = usage.getAreas();
+            writeVarLong(areas.size());
+            for (ActivityUsage area : areas) {
+                writeString(area.getCourseId());
+                writeString(area.getActivityId());
+                writeVarLong(area.getTasksAttempted());
+                writeVarLong(area.getSuccessfulTasks());
+                out.writeDouble(area.getSuccessRate());
+                out.writeDouble(area.getAverageRetries());
+                writeVarLong(area.getTotalTimeSpentSeconds());
+                writeVarLong(area.getHintsUsed());
+                writeVarLong(area.isNewContent() ? FLAG_NEW_CONTENT : 0);
+                writeDays(area.getActiveDays());
+            }
+            writeVarLong(usage.getTasksAttempted());
+            writeVarLong(usage.getSuccessfulTasks());
+            out.writeDouble(usage.getSuccessRate());
+            out.writeDouble(usage.getAverageRetries());
+            writeVarLong(usage.getTotalTimeSpentSeconds());
+            writeVarLong(usage.getHintsUsed());
+            writeVarLong(usage.getNewActivitiesExplored());
+            writeVarLong(usage.getTotalRetries());
+            writeVarLong(usage.getRetrySamples());
+            userCount++;
+        }
+
+        public int getUserCount() {
+            return userCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeVarLong(RECORD_END);
+            out.close();
+        }
+
+        private void writeString(@Nullable String value) throws IOException {
+            if (value == null) {
+                writeVarLong(STRING_NULL);
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                writeVarLong(index + STRING_REFERENCE_OFFSET);
+                return;
+            }
+            dictionary.put(value, dictionary.size());
+            writeVarLong(STRING_NEW);
+            out.writeUTF(value);
+        }
+
+        private void writeDays(List<String> days) throws IOException {
+            long mask = 0;
+            for (String day : days) {
+                long offset = LocalDate.parse(day, DATE_FORMAT).toEpochDay() - weekStart.toEpochDay();
+                if (offset < 0 || offset >= Long.SIZE) {
+                    throw new IOException("Active day " + day + " is outside the exported week");
+                }
+                mask |= 1L << offset;
+            }
+            writeVarLong(mask);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+}
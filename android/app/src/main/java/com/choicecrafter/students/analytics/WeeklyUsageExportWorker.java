@@ -1,62 +1,106 @@
 package com.choicecrafter.students.analytics;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
 import com.google.firebase.storage.UploadTask;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.DayOfWeek;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.temporal.ChronoField;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Worker responsible for collecting weekly usage insights and exporting them as JSON files to
- * Firebase Storage.
+ * Firebase Storage, each accompanied by a compact {@link WeeklyUsageBinaryFormat} copy.
+ * <p>
+ * The week is read from the {@link WeeklyUsageRollup}s of its active users rather than from
+ * the attempt history, and the summary is streamed to a file in the cache directory before
+ * it is uploaded, so neither time nor memory grows with the history or the total number of
+ * enrollments.
  */
 @RequiresApi(api = Build.VERSION_CODES.O)
 public class WeeklyUsageExportWorker extends Worker {
 
     public static final String WORK_NAME = "weekly_usage_export";
+    public static final String BACKFILL_WORK_NAME_PREFIX = "weekly_usage_backfill_";
+    public static final String HISTORY_WORK_NAME = "weekly_usage_history";
+    private static final String KEY_BACKFILL_FROM = "backfillFrom";
+    private static final String KEY_BACKFILL_TO = "backfillTo";
+    private static final String KEY_BACKFILL_HISTORY = "backfillHistory";
+    private static final String HISTORY_CHECKPOINT_KEY = "backfill_history";
+    private static final String HISTORY_EXPORTED_KEY = "history_exported";
+    private static final String CHECKPOINT_PREFERENCES = "weekly_usage_export";
     private static final String TAG = "WeeklyUsageWorker";
+    private static final int PAGE_SIZE = 500;
+    private static final int WHERE_IN_LIMIT = 10;
+    private static final String JSON_EXTENSION = ".json";
+    /**
+     * Extension of the {@link WeeklyUsageBinaryFormat} export uploaded next to the JSON.
+     */
+    private static final String BINARY_EXTENSION = ".ccwu.gz";
     private static final String EXPERIMENT_ASSIGNMENTS_COLLECTION = "EXPERIMENT_ASSIGNMENTS";
     private static final String EXPERIMENT_METADATA_COLLECTION = "EXPERIMENT_METADATA";
     private static final String EXPERIMENT_METADATA_DOCUMENT = "config";
@@ -64,13 +108,12 @@ public class WeeklyUsageExportWorker extends Worker {
     private static final String[] PHASE_SEQUENCE = new String[]{"phase1", "phase2", "phase3", "phase4"};
     private static final String[] EXPERIMENT_GROUPS = new String[]{"A", "B"};
 
-    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final Type COUNTS_BY_CONDITION_TYPE =
+            new TypeToken<Map<String, AggregateMetrics>>() { }.getType();
+    private static final Type COUNTS_BY_PHASE_AND_GROUP_TYPE =
+            new TypeToken<Map<String, Map<String, AggregateMetrics>>>() { }.getType();
+
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
-    private static final DateTimeFormatter FLEXIBLE_TIMESTAMP_PARSER = new DateTimeFormatterBuilder()
-            .appendPattern("uuuu-MM-dd'T'HH:mm:ss")
-            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
-            .optionalStart().appendOffsetId().optionalEnd()
-            .toFormatter(Locale.US);
 
     private final FirebaseFirestore firestore;
     private final FirebaseStorage storage;
@@ -107,114 +150,125 @@ public class WeeklyUsageExportWorker extends Worker {
         );
     }
 
-    @NonNull
-    @Override
-    public Result doWork() {
-        LocalDate referenceDate = LocalDate.now(ZONE).minusDays(1); // previous full day
-        LocalDate weekStart = referenceDate.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
-        LocalDate weekEnd = weekStart.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
-
-        Instant weekStartInstant = weekStart.atStartOfDay(ZONE).toInstant();
-        Instant weekEndInstant = weekEnd.plusDays(1).atStartOfDay(ZONE).minusNanos(1).toInstant();
-
-        try {
-            QuerySnapshot snapshot = Tasks.await(firestore.collection("COURSE_ENROLLMENTS").get());
-            Map<String, UserUsageAccumulator> usageByUser = new HashMap<>();
-
-            for (DocumentSnapshot doc : snapshot.getDocuments()) {
-                String userId = doc.getString("userId");
-                if (userId == null || userId.trim().isEmpty()) {
-                    continue;
-                }
-                Object progressSummaryObj = doc.get("progressSummary");
-                if (!(progressSummaryObj instanceof Map<?, ?> progressSummary)) {
-                    continue;
-                }
-                Object activitySnapshotsObj = progressSummary.get("activitySnapshots");
-                if (!(activitySnapshotsObj instanceof List<?> snapshots)) {
-                    continue;
-                }
-
-                UserUsageAccumulator accumulator = usageByUser.computeIfAbsent(userId, UserUsageAccumulator::new);
-
-                for (Object entry : snapshots) {
-                    if (!(entry instanceof Map<?, ?> snapshotMapRaw)) {
-                        continue;
-                    }
-                    Map<String, Object> snapshotMap = new HashMap<>();
-                    for (Map.Entry<?, ?> mapEntry : snapshotMapRaw.entrySet()) {
-                        snapshotMap.put(String.valueOf(mapEntry.getKey()), mapEntry.getValue());
-                    }
-                    String courseId = asString(snapshotMap.get("courseId"));
-                    String activityId = asString(snapshotMap.get("activityId"));
-                    Object taskStatsObj = snapshotMap.get("taskStats");
-                    if (!(taskStatsObj instanceof Map<?, ?> taskStatsMap)) {
-                        continue;
-                    }
-
-                    ActivityUsageAccumulator activityAccumulator = null;
-                    Instant earliestAttempt = null;
-
-                    for (Object value : taskStatsMap.values()) {
-                        if (!(value instanceof Map<?, ?> attemptMap)) {
-                            continue;
-                        }
-
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> attempt = (Map<String, Object>) attemptMap;
+    /**
+     * Enqueues a one-off export of every ISO week overlapping {@code from} to {@code to}. The
+     * weeks are computed in a single pass over their rollups and one summary is uploaded per
+     * week. Every uploaded week is checkpointed, so a backfill that is interrupted continues
+     * with the next week when WorkManager runs it again.
+     */
+    public static void scheduleBackfill(@NonNull Context context, @NonNull LocalDate from, @NonNull LocalDate to) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("Backfill range ends before it starts: " + from + " - " + to);
+        }
+        Data input = new Data.Builder()
+                .putString(KEY_BACKFILL_FROM, DATE_FORMAT.format(from))
+                .putString(KEY_BACKFILL_TO, DATE_FORMAT.format(to))
+                .build();
+        enqueueOneTime(context, BACKFILL_WORK_NAME_PREFIX + DATE_FORMAT.format(from) + "_" + DATE_FORMAT.format(to),
+                input);
+    }
 
-                        Instant attemptInstant = parseAttemptInstant(asString(attempt.get("attemptDateTime")));
-                        if (attemptInstant == null) {
-                            continue;
-                        }
+    /**
+     * Enqueues the export of every week from the experiment start up to the last full week,
+     * unless it already completed on this device. The weekly export only covers the previous
+     * week, so this fills in the weeks before it was scheduled.
+     */
+    public static void scheduleHistoryBackfill(@NonNull Context context) {
+        SharedPreferences checkpoints = context.getSharedPreferences(CHECKPOINT_PREFERENCES, Context.MODE_PRIVATE);
+        if (checkpoints.getBoolean(HISTORY_EXPORTED_KEY, false)) {
+            return;
+        }
+        Data input = new Data.Builder()
+                .putBoolean(KEY_BACKFILL_HISTORY, true)
+                .build();
+        enqueueOneTime(context, HISTORY_WORK_NAME, input);
+    }
 
-                        if (earliestAttempt == null || attemptInstant.isBefore(earliestAttempt)) {
-                            earliestAttempt = attemptInstant;
-                        }
+    private static void enqueueOneTime(Context context, String uniqueName, Data input) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
 
-                        if (attemptInstant.isBefore(weekStartInstant) || attemptInstant.isAfter(weekEndInstant)) {
-                            continue;
-                        }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(WeeklyUsageExportWorker.class)
+                .setConstraints(constraints)
+                .setInputData(input)
+                .addTag(WORK_NAME)
+                .build();
 
-                        if (activityAccumulator == null) {
-                            activityAccumulator = accumulator.ensureActivityAccumulator(courseId, activityId);
-                            accumulator.registerActivityParticipation(courseId);
-                        }
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                uniqueName,
+                ExistingWorkPolicy.KEEP,
+                request
+        );
+    }
 
-                        accumulator.registerAttempt(attemptInstant, attempt);
-                        activityAccumulator.registerAttempt(attemptInstant, attempt);
-                    }
+    @NonNull
+    @Override
+    public Result doWork() {
+        LocalDate firstWeek;
+        LocalDate lastWeek;
+        String checkpointKey = null;
+        String backfillFrom = getInputData().getString(KEY_BACKFILL_FROM);
+        String backfillTo = getInputData().getString(KEY_BACKFILL_TO);
+        boolean history = getInputData().getBoolean(KEY_BACKFILL_HISTORY, false);
+        SharedPreferences checkpoints = getApplicationContext()
+                .getSharedPreferences(CHECKPOINT_PREFERENCES, Context.MODE_PRIVATE);
+        if (history) {
+            if (checkpoints.getBoolean(HISTORY_EXPORTED_KEY, false)) {
+                return Result.success();
+            }
+            LocalDate experimentStartDate = resolveExperimentStartDate(null);
+            if (experimentStartDate == null) {
+                // Not marked as exported, so the next app start enqueues the history again.
+                Log.w(TAG, "No experiment start date; the weekly usage history is exported on a later run");
+                return Result.success();
+            }
+            LocalDate referenceDate = LocalDate.now(WeeklyUsageRollup.ZONE).minusDays(1);
+            firstWeek = WeeklyUsageRollup.weekStartOf(experimentStartDate);
+            lastWeek = WeeklyUsageRollup.weekStartOf(referenceDate);
+            checkpointKey = HISTORY_CHECKPOINT_KEY;
+        } else if (backfillFrom != null && backfillTo != null) {
+            firstWeek = WeeklyUsageRollup.weekStartOf(LocalDate.parse(backfillFrom));
+            lastWeek = WeeklyUsageRollup.weekStartOf(LocalDate.parse(backfillTo));
+            checkpointKey = "backfill_" + backfillFrom + "_" + backfillTo;
+        } else {
+            LocalDate referenceDate = LocalDate.now(WeeklyUsageRollup.ZONE).minusDays(1); // previous full day
+            firstWeek = referenceDate.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            lastWeek = firstWeek;
+        }
+
+        if (checkpointKey != null) {
+            String lastExportedWeek = checkpoints.getString(checkpointKey, null);
+            if (lastExportedWeek != null) {
+                firstWeek = LocalDate.parse(lastExportedWeek).plusWeeks(1);
+                Log.i(TAG, "Resuming weekly usage backfill at " + firstWeek);
+            }
+        }
 
-                    if (activityAccumulator != null) {
-                        boolean isNewContent = isWithinWeek(earliestAttempt, weekStartInstant, weekEndInstant);
-                        activityAccumulator.setNewContent(isNewContent);
+        try {
+            // Weeks from before the rollups were maintained are empty until the history is
+            // backfilled; that only has to happen once.
+            int backfilledUsers = new UsageRollupBackfill(firestore).backfillAllUsersOnce();
+            if (backfilledUsers > 0) {
+                Log.i(TAG, "Backfilled the usage rollups of " + backfilledUsers + " users before exporting");
+            }
+            if (!firstWeek.isAfter(lastWeek)) {
+                Map<String, String> userGroupAssignments = fetchUserGroupAssignments();
+                LocalDate experimentStartDate = resolveExperimentStartDate(null);
+                String key = checkpointKey;
+                exportWeeks(firstWeek, lastWeek, experimentStartDate, userGroupAssignments, week -> {
+                    if (key != null) {
+                        checkpoints.edit().putString(key, DATE_FORMAT.format(week)).commit();
                     }
-                }
+                });
             }
-
-            Map<String, String> userGroupAssignments = fetchUserGroupAssignments();
-            LocalDate experimentStartDate = resolveExperimentStartDate(weekStart);
-
-            List<UserWeeklyUsage> users = new ArrayList<>();
-            for (UserUsageAccumulator accumulator : usageByUser.values()) {
-                if (accumulator.hasData()) {
-                    UserWeekMetadata metadata = buildMetadata(
-                            accumulator.getUserId(),
-                            weekStart,
-                            experimentStartDate,
-                            userGroupAssignments
-                    );
-                    users.add(accumulator.toWeeklyUsage(metadata));
+            if (checkpointKey != null) {
+                SharedPreferences.Editor editor = checkpoints.edit().remove(checkpointKey);
+                if (history) {
+                    editor.putBoolean(HISTORY_EXPORTED_KEY, true);
                 }
+                editor.apply();
             }
-
-            users.sort(Comparator.comparing(UserWeeklyUsage::getUserId));
-
-            WeeklyUsageSummary summary = buildSummary(weekStart, weekEnd, users);
-
-            String jsonPayload = gson.toJson(summary);
-            uploadJson(jsonPayload, weekStart, weekEnd, users.size());
-
             return Result.success();
         } catch (ExecutionException e) {
             Log.e(TAG, "Failed to gather weekly usage", e);
@@ -229,30 +283,193 @@ public class WeeklyUsageExportWorker extends Worker {
         }
     }
 
-    private void uploadJson(String jsonPayload, LocalDate weekStart, LocalDate weekEnd, int userCount)
+    /**
+     * Exports every week from {@code firstWeek} to {@code lastWeek} with an {@link Exporter}
+     * reading their usage rollups page by page, ordered by week and user id. The query needs
+     * a composite index on {@code weekStart} and {@code userId}.
+     */
+    private void exportWeeks(LocalDate firstWeek,
+                             LocalDate lastWeek,
+                             LocalDate experimentStartDate,
+                             Map<String, String> userGroupAssignments,
+                             Consumer<LocalDate> onWeekExported)
+            throws ExecutionException, InterruptedException, IOException {
+        Query baseQuery = firestore.collection(WeeklyUsageRollup.COLLECTION)
+                .whereGreaterThanOrEqualTo(WeeklyUsageRollup.FIELD_WEEK_START,
+                        WeeklyUsageRollup.formatWeekStart(firstWeek))
+                .whereLessThan(WeeklyUsageRollup.FIELD_WEEK_START,
+                        WeeklyUsageRollup.formatWeekStart(lastWeek.plusWeeks(1)))
+                .orderBy(WeeklyUsageRollup.FIELD_WEEK_START)
+                .orderBy(WeeklyUsageRollup.FIELD_USER_ID)
+                .limit(PAGE_SIZE);
+        new Exporter(new FirestoreRollupSource(baseQuery), getApplicationContext().getCacheDir(), this::uploadFile,
+                gson, ForkJoinPool.commonPool(), Clock.systemUTC())
+                .exportWeeks(firstWeek, lastWeek, experimentStartDate, userGroupAssignments, onWeekExported);
+    }
+
+    /**
+     * Reads the rollup pages of a query. The next page is requested as soon as one is handed
+     * out, so it loads while that one is aggregated.
+     */
+    private final class FirestoreRollupSource implements RollupSource {
+        private final Query baseQuery;
+        private Task<QuerySnapshot> pending;
+
+        FirestoreRollupSource(Query baseQuery) {
+            this.baseQuery = baseQuery;
+            this.pending = baseQuery.get();
+        }
+
+        @Nullable
+        @Override
+        public RollupPage nextPage() throws ExecutionException, InterruptedException {
+            if (pending == null) {
+                return null;
+            }
+            List<DocumentSnapshot> page = Tasks.await(pending).getDocuments();
+            pending = page.size() < PAGE_SIZE ? null : baseQuery.startAfter(page.get(page.size() - 1)).get();
+
+            List<WeeklyUsageRollup> rollups = new ArrayList<>(page.size());
+            for (DocumentSnapshot doc : page) {
+                rollups.add(WeeklyUsageRollup.fromSnapshot(doc));
+            }
+            return new RollupPage(rollups, fetchActivityWeeks(rollups));
+        }
+    }
+
+    /**
+     * Fetches the activity weeks of the rollup index of every user of the page, keyed by user
+     * id. They tell whether an activity was attempted in an earlier week.
+     */
+    private Map<String, Map<?, ?>> fetchActivityWeeks(List<WeeklyUsageRollup> rollups)
+            throws ExecutionException, InterruptedException {
+        // A backfill page can hold several weeks of the same user.
+        Set<String> uniqueUserIds = new LinkedHashSet<>();
+        for (WeeklyUsageRollup rollup : rollups) {
+            if (!rollup.getUserId().trim().isEmpty()) {
+                uniqueUserIds.add(rollup.getUserId());
+            }
+        }
+        List<String> userIds = new ArrayList<>(uniqueUserIds);
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (int start = 0; start < userIds.size(); start += WHERE_IN_LIMIT) {
+            List<String> chunk = userIds.subList(start, Math.min(start + WHERE_IN_LIMIT, userIds.size()));
+            queries.add(firestore.collection(WeeklyUsageRollup.INDEX_COLLECTION)
+                    .whereIn(FieldPath.documentId(), new ArrayList<>(chunk))
+                    .get());
+        }
+        Map<String, Map<?, ?>> activityWeeks = new HashMap<>();
+        for (Task<QuerySnapshot> query : queries) {
+            for (DocumentSnapshot index : Tasks.await(query).getDocuments()) {
+                Map<?, ?> weeks = WeeklyUsageRollup.activityWeeksOf(index);
+                if (weeks != null) {
+                    activityWeeks.put(index.getId(), weeks);
+                }
+            }
+        }
+        return activityWeeks;
+    }
+
+    private static UserWeeklyUsage toWeeklyUsage(WeeklyUsageRollup rollup,
+                                                 @Nullable Map<?, ?> activityWeeks,
+                                                 LocalDate weekStart,
+                                                 LocalDate experimentStartDate,
+                                                 Map<String, String> userGroupAssignments) {
+        UserUsageAccumulator accumulator = new UserUsageAccumulator(rollup.getUserId(), weekStart);
+        accumulator.include(rollup, activityWeeks);
+        if (!accumulator.hasData()) {
+            return null;
+        }
+        UserWeekMetadata metadata = buildMetadata(
+                accumulator.getUserId(),
+                weekStart,
+                experimentStartDate,
+                userGroupAssignments
+        );
+        return accumulator.toWeeklyUsage(metadata);
+    }
+
+    private static JsonWriter openJsonWriter(File file) throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8)));
+        writer.setIndent("  ");
+        return writer;
+    }
+
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY -> {
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+            }
+            case BEGIN_OBJECT -> {
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+            }
+            case STRING -> writer.value(reader.nextString());
+            // Numbers are copied verbatim so they keep the formatting Gson gave them.
+            case NUMBER -> writer.jsonValue(reader.nextString());
+            case BOOLEAN -> writer.value(reader.nextBoolean());
+            case NULL -> {
+                reader.nextNull();
+                writer.nullValue();
+            }
+            default -> throw new IOException("Unexpected token while copying users: " + reader.peek());
+        }
+    }
+
+    private void uploadFile(File exportFile, LocalDate weekStart, LocalDate weekEnd, int userCount, String extension)
             throws ExecutionException, InterruptedException {
-        String fileName = DATE_FORMAT.format(weekStart) + "_" + DATE_FORMAT.format(weekEnd) + "_" + userCount + ".json";
+        String fileName = DATE_FORMAT.format(weekStart) + "_" + DATE_FORMAT.format(weekEnd) + "_" + userCount + extension;
         StorageReference reference = storage.getReference()
                 .child("weekly-usage")
                 .child(fileName);
 
-        UploadTask uploadTask = reference.putBytes(jsonPayload.getBytes(StandardCharsets.UTF_8));
+        UploadTask uploadTask = reference.putFile(Uri.fromFile(exportFile));
         Tasks.await(uploadTask);
     }
 
+    private static void deleteQuietly(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete temporary export file " + file);
+        }
+    }
+
     private Map<String, String> fetchUserGroupAssignments() {
         Map<String, String> assignments = new HashMap<>();
+        Query baseQuery = firestore.collection(EXPERIMENT_ASSIGNMENTS_COLLECTION)
+                .orderBy(FieldPath.documentId())
+                .limit(PAGE_SIZE);
         try {
-            QuerySnapshot snapshot = Tasks.await(firestore.collection(EXPERIMENT_ASSIGNMENTS_COLLECTION).get());
-            for (DocumentSnapshot document : snapshot.getDocuments()) {
-                String userId = document.getString("userId");
-                if (userId == null || userId.trim().isEmpty()) {
-                    userId = document.getId();
+            DocumentSnapshot cursor = null;
+            while (true) {
+                Query pageQuery = cursor == null ? baseQuery : baseQuery.startAfter(cursor);
+                List<DocumentSnapshot> page = Tasks.await(pageQuery.get()).getDocuments();
+                for (DocumentSnapshot document : page) {
+                    String userId = document.getString("userId");
+                    if (userId == null || userId.trim().isEmpty()) {
+                        userId = document.getId();
+                    }
+                    String normalizedGroup = normalizeGroup(document.getString("group"));
+                    if (userId != null && normalizedGroup != null) {
+                        assignments.put(userId, normalizedGroup);
+                    }
                 }
-                String normalizedGroup = normalizeGroup(document.getString("group"));
-                if (userId != null && normalizedGroup != null) {
-                    assignments.put(userId, normalizedGroup);
+                if (page.size() < PAGE_SIZE) {
+                    break;
                 }
+                cursor = page.get(page.size() - 1);
             }
         } catch (ExecutionException e) {
             Log.w(TAG, "Failed to fetch experiment assignments", e);
@@ -377,94 +594,235 @@ public class WeeklyUsageExportWorker extends Worker {
         return "phase2".equals(phase) || "phase3".equals(phase);
     }
 
-    private static boolean isWithinWeek(Instant value, Instant start, Instant end) {
-        return value != null && !value.isBefore(start) && !value.isAfter(end);
+    /**
+     * Source of the rollups of the exported weeks.
+     */
+    interface RollupSource {
+        /**
+         * Returns the next page of rollups, or {@code null} once every page was read. Pages
+         * follow each other ordered by week start and user id.
+         */
+        @Nullable
+        RollupPage nextPage() throws ExecutionException, InterruptedException;
     }
 
-    private static Instant parseAttemptInstant(String attemptDateTime) {
-        if (attemptDateTime == null || attemptDateTime.trim().isEmpty()) {
-            return null;
-        }
-        try {
-            return LocalDateTime.parse(attemptDateTime, FLEXIBLE_TIMESTAMP_PARSER).atZone(ZONE).toInstant();
-        } catch (Exception firstError) {
-            try {
-                return Instant.parse(attemptDateTime);
-            } catch (Exception ignored) {
-                Log.w(TAG, "Unable to parse attempt timestamp: " + attemptDateTime, firstError);
-                return null;
-            }
-        }
-    }
+    /**
+     * A page of rollups and the activity weeks of the indexes of their users, keyed by user
+     * id; users without an index are left out.
+     */
+    static final class RollupPage {
+        private final List<WeeklyUsageRollup> rollups;
+        private final Map<String, Map<?, ?>> activityWeeks;
 
-    private static String asString(Object value) {
-        return value == null ? null : String.valueOf(value);
+        RollupPage(List<WeeklyUsageRollup> rollups, Map<String, Map<?, ?>> activityWeeks) {
+            this.rollups = rollups;
+            this.activityWeeks = activityWeeks;
+        }
     }
 
-    private static Boolean asBoolean(Object value) {
-        if (value instanceof Boolean bool) {
-            return bool;
-        }
-        if (value instanceof String str) {
-            return Boolean.parseBoolean(str);
-        }
-        if (value instanceof Number number) {
-            return number.intValue() != 0;
-        }
-        return null;
+    /**
+     * Uploads a finished export file of a week.
+     */
+    interface Uploader {
+        void upload(File file, LocalDate weekStart, LocalDate weekEnd, int userCount, String extension)
+                throws ExecutionException, InterruptedException;
     }
 
-    private static Integer asInteger(Object value) {
-        if (value instanceof Number number) {
-            return number.intValue();
-        }
-        if (value instanceof String str) {
+    /**
+     * Turns rollup pages into one export per week. Each user is written to the export of their
+     * week right away, which keeps at most one page in memory, and a week is uploaded as soon
+     * as the rollups move on to the next one. Weeks without rollups are exported with no
+     * users. Users are aggregated on {@code pool}.
+     */
+    static final class Exporter {
+        private final RollupSource source;
+        private final File cacheDir;
+        private final Uploader uploader;
+        private final Gson gson;
+        private final ForkJoinPool pool;
+        private final Clock clock;
+
+        Exporter(RollupSource source, File cacheDir, Uploader uploader, Gson gson, ForkJoinPool pool, Clock clock) {
+            this.source = source;
+            this.cacheDir = cacheDir;
+            this.uploader = uploader;
+            this.gson = gson;
+            this.pool = pool;
+            this.clock = clock;
+        }
+
+        void exportWeeks(LocalDate firstWeek,
+                         LocalDate lastWeek,
+                         LocalDate experimentStartDate,
+                         Map<String, String> userGroupAssignments,
+                         Consumer<LocalDate> onWeekExported)
+                throws ExecutionException, InterruptedException, IOException {
+            WeekExport current = new WeekExport(firstWeek, experimentStartDate);
             try {
-                return Integer.parseInt(str);
-            } catch (NumberFormatException ignored) {
-                return null;
+                RollupPage page;
+                while ((page = source.nextPage()) != null) {
+                    List<WeeklyUsageRollup> rollups = new ArrayList<>(page.rollups.size());
+                    for (WeeklyUsageRollup rollup : page.rollups) {
+                        if (!rollup.getUserId().trim().isEmpty()) {
+                            rollups.add(rollup);
+                        }
+                    }
+
+                    int start = 0;
+                    while (start < rollups.size()) {
+                        LocalDate week = rollups.get(start).getWeekStart();
+                        int end = start + 1;
+                        while (end < rollups.size() && rollups.get(end).getWeekStart().equals(week)) {
+                            end++;
+                        }
+                        while (current.weekStart.isBefore(week)) {
+                            current = finishAndOpenNext(current, experimentStartDate, onWeekExported);
+                        }
+                        current.include(rollups.subList(start, end), page.activityWeeks, userGroupAssignments);
+                        start = end;
+                    }
+                }
+                while (current.weekStart.isBefore(lastWeek)) {
+                    current = finishAndOpenNext(current, experimentStartDate, onWeekExported);
+                }
+                current.finish();
+                onWeekExported.accept(current.weekStart);
+            } finally {
+                current.close();
             }
         }
-        return null;
-    }
 
-    private static long parseTimeSpentSeconds(String raw) {
-        if (raw == null || raw.trim().isEmpty()) {
-            return 0L;
-        }
-        String[] parts = raw.split(":");
-        int[] units = new int[]{0, 0, 0}; // hours, minutes, seconds
-        int partIndex = parts.length - 1;
-        for (int i = 2; i >= 0 && partIndex >= 0; i--, partIndex--) {
-            try {
-                units[i] = Integer.parseInt(parts[partIndex]);
-            } catch (NumberFormatException ignored) {
-                units[i] = 0;
+        private WeekExport finishAndOpenNext(WeekExport current,
+                                             LocalDate experimentStartDate,
+                                             Consumer<LocalDate> onWeekExported)
+                throws ExecutionException, InterruptedException, IOException {
+            current.finish();
+            onWeekExported.accept(current.weekStart);
+            current.close();
+            return new WeekExport(current.weekStart.plusWeeks(1), experimentStartDate);
+        }
+
+        /**
+         * Writes the summary in the layout of {@link WeeklyUsageSummary}. The aggregates are only
+         * known once every user has been read, so the users are streamed to a separate file first
+         * and copied token by token into their place after the aggregates.
+         */
+        private void writeSummary(File exportFile,
+                                  File usersFile,
+                                  LocalDate weekStart,
+                                  LocalDate weekEnd,
+                                  int activeUsers,
+                                  AggregateCollector collector,
+                                  Instant generatedAt) throws IOException {
+            try (JsonWriter writer = openJsonWriter(exportFile);
+                 JsonReader usersReader = new JsonReader(new BufferedReader(new InputStreamReader(
+                         new FileInputStream(usersFile), StandardCharsets.UTF_8)))) {
+                writer.beginObject();
+                writer.name("version").value(SUMMARY_VERSION);
+                writer.name("generatedAtUtc").value(generatedAt.toString());
+                writer.name("weekStart").value(DATE_FORMAT.format(weekStart));
+                writer.name("weekEnd").value(DATE_FORMAT.format(weekEnd));
+                writer.name("activeUsers").value(activeUsers);
+                writer.name("countsByCondition");
+                gson.toJson(collector.buildCountsByCondition(), COUNTS_BY_CONDITION_TYPE, writer);
+                writer.name("countsByPhaseAndGroup");
+                gson.toJson(collector.buildCountsByPhaseAndGroup(), COUNTS_BY_PHASE_AND_GROUP_TYPE, writer);
+                writer.name("users");
+                copyValue(usersReader, writer);
+                writer.endObject();
             }
         }
-        return units[0] * 3600L + units[1] * 60L + units[2];
-    }
 
-    private static double resolveScoreRatio(Map<String, Object> attempt) {
-        if (attempt == null) {
-            return 0.0;
-        }
-        Object scoreObj = attempt.get("scoreRatio");
-        Double ratio = null;
-        if (scoreObj instanceof Number number) {
-            ratio = number.doubleValue();
-        } else if (scoreObj instanceof String ratioString) {
-            try {
-                ratio = Double.parseDouble(ratioString);
-            } catch (NumberFormatException ignored) {
-                ratio = null;
+        /**
+         * Export of one week in progress: users are streamed to temporary files in the cache
+         * directory, which {@link #finish()} turns into the JSON summary and uploads together with
+         * the binary copy.
+         */
+        private final class WeekExport implements Closeable {
+            private final LocalDate weekStart;
+            private final LocalDate weekEnd;
+            private final LocalDate experimentStartDate;
+            private final Instant generatedAt = clock.instant();
+            private final AggregateCollector collector = new AggregateCollector();
+            private final File usersFile;
+            private final File exportFile;
+            private final File binaryFile;
+            private final JsonWriter usersWriter;
+            private final WeeklyUsageBinaryFormat.Writer binaryWriter;
+            private int activeUsers;
+            private boolean writersClosed;
+
+            WeekExport(LocalDate weekStart, LocalDate configuredExperimentStartDate) throws IOException {
+                this.weekStart = weekStart;
+                this.weekEnd = weekStart.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
+                this.experimentStartDate = configuredExperimentStartDate != null ? configuredExperimentStartDate : weekStart;
+                usersFile = File.createTempFile("weekly-usage-users", JSON_EXTENSION, cacheDir);
+                exportFile = File.createTempFile("weekly-usage", JSON_EXTENSION, cacheDir);
+                binaryFile = File.createTempFile("weekly-usage", BINARY_EXTENSION, cacheDir);
+                usersWriter = openJsonWriter(usersFile);
+                usersWriter.beginArray();
+                binaryWriter = new WeeklyUsageBinaryFormat.Writer(new FileOutputStream(binaryFile), SUMMARY_VERSION,
+                        generatedAt, weekStart, weekEnd);
+            }
+
+            /**
+             * Adds the users of rollups of this week, which must be ordered by user id.
+             */
+            void include(List<WeeklyUsageRollup> rollups,
+                         Map<String, Map<?, ?>> activityWeeks,
+                         Map<String, String> userGroupAssignments)
+                    throws IOException, ExecutionException, InterruptedException {
+                // Every user is in exactly one rollup of the week, so users are aggregated
+                // independently across the fork-join pool. The ordered collect keeps them in user id
+                // order and the totals only hold integer counters, so the output does not depend on
+                // how the work was split.
+                List<UserWeeklyUsage> users = pool.submit(() -> rollups.parallelStream()
+                        .map(rollup -> toWeeklyUsage(rollup, activityWeeks.get(rollup.getUserId()), weekStart,
+                                experimentStartDate, userGroupAssignments))
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList())).get();
+                collector.merge(pool.submit(() -> users.parallelStream()
+                        .collect(AggregateCollector::new, AggregateCollector::include, AggregateCollector::merge)).get());
+
+                for (UserWeeklyUsage usage : users) {
+                    gson.toJson(usage, UserWeeklyUsage.class, usersWriter);
+                    binaryWriter.write(usage);
+                }
+                activeUsers += users.size();
+            }
+
+            void finish() throws IOException, ExecutionException, InterruptedException {
+                usersWriter.endArray();
+                closeWriters();
+                writeSummary(exportFile, usersFile, weekStart, weekEnd, activeUsers, collector, generatedAt);
+                uploader.upload(exportFile, weekStart, weekEnd, activeUsers, JSON_EXTENSION);
+                uploader.upload(binaryFile, weekStart, weekEnd, activeUsers, BINARY_EXTENSION);
+            }
+
+            private void closeWriters() throws IOException {
+                if (writersClosed) {
+                    return;
+                }
+                writersClosed = true;
+                try {
+                    usersWriter.close();
+                } finally {
+                    binaryWriter.close();
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    closeWriters();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close weekly usage export of " + weekStart, e);
+                }
+                deleteQuietly(usersFile);
+                deleteQuietly(exportFile);
+                deleteQuietly(binaryFile);
             }
         }
-        if (ratio == null) {
-            Boolean success = asBoolean(attempt.get("success"));
-            ratio = Boolean.TRUE.equals(success) ? 1.0 : 0.0;
-        }
-        return Math.max(0.0, Math.min(1.0, ratio));
     }
 
     static final class UserWeekMetadata {
@@ -499,7 +857,7 @@ public class WeeklyUsageExportWorker extends Worker {
 
     private static class UserUsageAccumulator {
         private final String userId;
-        private final Set<LocalDate> activeDays = new HashSet<>();
+        private final EpochDaySet activeDays;
         private final Set<String> courseIds = new HashSet<>();
         private final Map<String, ActivityUsageAccumulator> activities = new HashMap<>();
         private int tasksAttempted;
@@ -510,8 +868,9 @@ public class WeeklyUsageExportWorker extends Worker {
         private int hintsUsed;
         private double scoreAccumulator;
 
-        private UserUsageAccumulator(String userId) {
+        private UserUsageAccumulator(String userId, LocalDate firstDay) {
             this.userId = userId;
+            this.activeDays = new EpochDaySet(firstDay);
         }
 
         String getUserId() {
@@ -522,7 +881,7 @@ public class WeeklyUsageExportWorker extends Worker {
             String key = courseId + "|" + activityId;
             ActivityUsageAccumulator accumulator = activities.get(key);
             if (accumulator == null) {
-                accumulator = new ActivityUsageAccumulator(courseId, activityId);
+                accumulator = new ActivityUsageAccumulator(courseId, activityId, activeDays.getFirstDay());
                 activities.put(key, accumulator);
             }
             return accumulator;
@@ -534,28 +893,31 @@ public class WeeklyUsageExportWorker extends Worker {
             }
         }
 
-        void registerAttempt(Instant attemptInstant, Map<String, Object> attempt) {
-            activeDays.add(LocalDateTime.ofInstant(attemptInstant, ZONE).toLocalDate());
-            tasksAttempted++;
-
-            double scoreRatio = resolveScoreRatio(attempt);
-            scoreAccumulator += scoreRatio;
-            if (scoreRatio >= 0.999) {
-                successfulTasks++;
-            }
-
-            Integer retries = asInteger(attempt.get("retries"));
-            if (retries != null) {
-                totalRetries += retries;
-                retrySamples++;
+        void include(WeeklyUsageRollup rollup, @Nullable Map<?, ?> activityWeeks) {
+            LocalDate weekStart = rollup.getWeekStart();
+            for (int dayIndex = 0; dayIndex < 7; dayIndex++) {
+                if (rollup.getDailyAttempts(dayIndex) > 0) {
+                    activeDays.add(weekStart.plusDays(dayIndex));
+                }
             }
-
-            Boolean hints = asBoolean(attempt.get("hintsUsed"));
-            if (Boolean.TRUE.equals(hints)) {
-                hintsUsed++;
+            for (WeeklyUsageRollup.ActivityRollup activity : rollup.getActivities().values()) {
+                if (activity.getAttempts() == 0) {
+                    continue;
+                }
+                registerActivityParticipation(activity.getCourseId());
+                ActivityUsageAccumulator activityAccumulator =
+                        ensureActivityAccumulator(activity.getCourseId(), activity.getActivityId());
+                activityAccumulator.include(activity, weekStart);
+                activityAccumulator.setNewContent(WeeklyUsageRollup.isFirstWeek(activityWeeks, activity.getKey(), weekStart));
+
+                tasksAttempted += activity.getAttempts();
+                successfulTasks += activity.getSuccesses();
+                scoreAccumulator += activity.getScoreSum();
+                totalRetries += activity.getRetries();
+                retrySamples += activity.getRetrySamples();
+                hintsUsed += activity.getHintsUsed();
+                totalTimeSeconds += activity.getTimeSpentSeconds();
             }
-
-            totalTimeSeconds += parseTimeSpentSeconds(asString(attempt.get("timeSpent")));
         }
 
         boolean hasData() {
@@ -580,12 +942,7 @@ public class WeeklyUsageExportWorker extends Worker {
                 }
             }
 
-            List<String> activeDayStrings = new ArrayList<>();
-            List<LocalDate> sortedDays = new ArrayList<>(activeDays);
-            Collections.sort(sortedDays);
-            for (LocalDate day : sortedDays) {
-                activeDayStrings.add(DATE_FORMAT.format(day));
-            }
+            List<String> activeDayStrings = activeDays.format(DATE_FORMAT);
 
             String experimentPhase = metadata == null ? PHASE_SEQUENCE[0] : metadata.getExperimentPhase();
             String group = metadata == null ? "A" : metadata.getGroup();
@@ -624,36 +981,28 @@ public class WeeklyUsageExportWorker extends Worker {
         private int retrySamples;
         private int hintsUsed;
         private boolean newContent;
-        private final Set<LocalDate> activeDays = new HashSet<>();
+        private final EpochDaySet activeDays;
         private double scoreAccumulator;
 
-        ActivityUsageAccumulator(String courseId, String activityId) {
+        ActivityUsageAccumulator(String courseId, String activityId, LocalDate firstDay) {
             this.courseId = courseId;
             this.activityId = activityId;
+            this.activeDays = new EpochDaySet(firstDay);
         }
 
-        void registerAttempt(Instant attemptInstant, Map<String, Object> attempt) {
-            tasksAttempted++;
-            activeDays.add(LocalDateTime.ofInstant(attemptInstant, ZONE).toLocalDate());
-
-            double scoreRatio = resolveScoreRatio(attempt);
-            scoreAccumulator += scoreRatio;
-            if (scoreRatio >= 0.999) {
-                successfulTasks++;
-            }
-
-            Integer retries = asInteger(attempt.get("retries"));
-            if (retries != null) {
-                totalRetries += retries;
-                retrySamples++;
-            }
-
-            Boolean hints = asBoolean(attempt.get("hintsUsed"));
-            if (Boolean.TRUE.equals(hints)) {
-                hintsUsed++;
+        void include(WeeklyUsageRollup.ActivityRollup activity, LocalDate weekStart) {
+            for (int dayIndex = 0; dayIndex < 7; dayIndex++) {
+                if (activity.getDailyAttempts(dayIndex) > 0) {
+                    activeDays.add(weekStart.plusDays(dayIndex));
+                }
             }
-
-            totalTimeSeconds += parseTimeSpentSeconds(asString(attempt.get("timeSpent")));
+            tasksAttempted += activity.getAttempts();
+            successfulTasks += activity.getSuccesses();
+            scoreAccumulator += activity.getScoreSum();
+            totalRetries += activity.getRetries();
+            retrySamples += activity.getRetrySamples();
+            hintsUsed += activity.getHintsUsed();
+            totalTimeSeconds += activity.getTimeSpentSeconds();
         }
 
         void setNewContent(boolean newContent) {
@@ -664,12 +1013,7 @@ public class WeeklyUsageExportWorker extends Worker {
             double successRate = tasksAttempted == 0 ? 0.0 : scoreAccumulator / tasksAttempted;
             double averageRetries = retrySamples == 0 ? 0.0 : (double) totalRetries / retrySamples;
 
-            List<String> activeDayStrings = new ArrayList<>();
-            List<LocalDate> sortedDays = new ArrayList<>(activeDays);
-            Collections.sort(sortedDays);
-            for (LocalDate day : sortedDays) {
-                activeDayStrings.add(DATE_FORMAT.format(day));
-            }
+            List<String> activeDayStrings = activeDays.format(DATE_FORMAT);
 
             return new ActivityUsage(
                     courseId,
@@ -686,6 +1030,39 @@ public class WeeklyUsageExportWorker extends Worker {
         }
     }
 
+    /**
+     * Set of days stored as a bitset of their offset from a first day, which keeps the
+     * days ordered without boxing them.
+     */
+    private static final class EpochDaySet {
+        private final long firstEpochDay;
+        private final BitSet days = new BitSet();
+
+        EpochDaySet(LocalDate firstDay) {
+            this.firstEpochDay = firstDay.toEpochDay();
+        }
+
+        LocalDate getFirstDay() {
+            return LocalDate.ofEpochDay(firstEpochDay);
+        }
+
+        void add(LocalDate day) {
+            long offset = day.toEpochDay() - firstEpochDay;
+            if (offset < 0 || offset > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(day + " is before " + getFirstDay());
+            }
+            days.set((int) offset);
+        }
+
+        List<String> format(DateTimeFormatter formatter) {
+            List<String> formatted = new ArrayList<>(days.cardinality());
+            for (int offset = days.nextSetBit(0); offset >= 0; offset = days.nextSetBit(offset + 1)) {
+                formatted.add(formatter.format(LocalDate.ofEpochDay(firstEpochDay + offset)));
+            }
+            return formatted;
+        }
+    }
+
     public static class WeeklyUsageSummary {
         private final String version;
         private final String generatedAtUtc;
@@ -892,6 +1269,19 @@ public class WeeklyUsageExportWorker extends Worker {
             totals.include(usage);
         }
 
+        void merge(AggregateCollector other) {
+            for (Map.Entry<Boolean, RunningTotals> entry : other.conditionTotals.entrySet()) {
+                conditionTotals.computeIfAbsent(entry.getKey(), ignored -> new RunningTotals()).merge(entry.getValue());
+            }
+            for (Map.Entry<String, Map<String, RunningTotals>> phase : other.phaseGroupTotals.entrySet()) {
+                Map<String, RunningTotals> groupTotals =
+                        phaseGroupTotals.computeIfAbsent(phase.getKey(), ignored -> new HashMap<>());
+                for (Map.Entry<String, RunningTotals> group : phase.getValue().entrySet()) {
+                    groupTotals.computeIfAbsent(group.getKey(), ignored -> new RunningTotals()).merge(group.getValue());
+                }
+            }
+        }
+
         Map<String, AggregateMetrics> buildCountsByCondition() {
             Map<String, AggregateMetrics> result = new LinkedHashMap<>();
             result.put("nudged", AggregateMetrics.fromTotals(conditionTotals.get(Boolean.TRUE), null));
@@ -1004,6 +1394,16 @@ public class WeeklyUsageExportWorker extends Worker {
             retrySamples += usage.getRetrySamples();
             hintsUsed += usage.getHintsUsed();
         }
+
+        void merge(RunningTotals other) {
+            activeUsers += other.activeUsers;
+            totalTasks += other.totalTasks;
+            successfulTasks += other.successfulTasks;
+            totalTimeSeconds += other.totalTimeSeconds;
+            totalRetries += other.totalRetries;
+            retrySamples += other.retrySamples;
+            hintsUsed += other.hintsUsed;
+        }
     }
 
     public static class ActivityUsage {
@@ -0,0 +1,572 @@
+package com.choicecrafter.students.analytics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.utils.TimestampParser;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Usage of one user in one ISO week, pre-aggregated into counters per day and per
+ * (course, activity).
+ * <p>
+ * Rollups are stored in {@link #COLLECTION} under {@link #documentId(String, LocalDate)}
+ * and are kept up to date by {@link com.choicecrafter.students.repositories.TaskStatsWriteQueue},
+ * which adjusts them in the same transaction that writes the task results; the Flutter client
+ * makes the same changes in {@code lib/repositories/weekly_usage_rollup.dart}. Like the task
+ * results, a rollup counts the latest result of every task: a result that replaces an older
+ * one is added to its week and the older one is removed from its own. Readers such as
+ * the weekly export and the daily scores therefore only read the weeks they need instead
+ * of parsing the whole attempt history. For every user, {@link #INDEX_COLLECTION} records
+ * the weeks in which each activity was attempted and whether the history from before the
+ * rollups existed has been backfilled by {@link UsageRollupBackfill}.
+ */
+public final class WeeklyUsageRollup {
+
+    public static final String COLLECTION = "USAGE_ROLLUPS";
+    public static final String INDEX_COLLECTION = "USAGE_ROLLUP_INDEX";
+    public static final ZoneId ZONE = ZoneId.of("Europe/Bucharest");
+
+    static final String FIELD_USER_ID = "userId";
+    static final String FIELD_WEEK_START = "weekStart";
+    static final String FIELD_BACKFILLED = "backfilled";
+    private static final String FIELD_DAILY_ATTEMPTS = "dailyAttempts";
+    private static final String FIELD_DAILY_POINTS = "dailyPoints";
+    private static final String FIELD_DAILY_SECONDS = "dailySeconds";
+    private static final String FIELD_ACTIVITIES = "activities";
+    private static final String FIELD_ACTIVITY_WEEKS = "activityWeeks";
+
+    private static final String TAG = "WeeklyUsageRollup";
+    private static final int DAYS_PER_WEEK = 7;
+    /**
+     * Points awarded for a perfect attempt; see the daily scores in
+     * {@link com.choicecrafter.students.repositories.UserRepository}.
+     */
+    private static final int POINTS_PER_TASK = 40;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final TimestampParser ATTEMPT_TIMESTAMP_PARSER = TimestampParser.forZone(ZONE);
+
+    private final String userId;
+    private final LocalDate weekStart;
+    private final int[] dailyAttempts = new int[DAYS_PER_WEEK];
+    private final long[] dailyPoints = new long[DAYS_PER_WEEK];
+    private final long[] dailySeconds = new long[DAYS_PER_WEEK];
+    private final Map<String, ActivityRollup> activities = new LinkedHashMap<>();
+
+    public WeeklyUsageRollup(@NonNull String userId, @NonNull LocalDate weekStart) {
+        this.userId = userId;
+        this.weekStart = weekStartOf(weekStart);
+    }
+
+    @NonNull
+    public static LocalDate weekStartOf(@NonNull LocalDate day) {
+        return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    @NonNull
+    public static String documentId(@NonNull String userId, @NonNull LocalDate weekStart) {
+        return userId + "_" + DATE_FORMAT.format(weekStartOf(weekStart));
+    }
+
+    @NonNull
+    public static String formatWeekStart(@NonNull LocalDate weekStart) {
+        return DATE_FORMAT.format(weekStartOf(weekStart));
+    }
+
+    /**
+     * Adds one stored task result to the rollup of its week in {@code rollupsById}, creating
+     * the rollup when needed. Results without a readable {@code attemptDateTime} are skipped.
+     */
+    public static void addAttempt(@NonNull Map<String, WeeklyUsageRollup> rollupsById,
+                                  @NonNull String userId,
+                                  @Nullable String courseId,
+                                  @Nullable String activityId,
+                                  @NonNull Map<?, ?> attempt) {
+        addAttempt(rollupsById, userId, courseId, activityId, attempt, 1);
+    }
+
+    /**
+     * Subtracts a stored task result that is being replaced, the reverse of
+     * {@link #addAttempt}. Rollups count the latest result of every task, like the task
+     * results they are built from, so replacing a result removes the old one from its week.
+     */
+    public static void removeAttempt(@NonNull Map<String, WeeklyUsageRollup> rollupsById,
+                                     @NonNull String userId,
+                                     @Nullable String courseId,
+                                     @Nullable String activityId,
+                                     @NonNull Map<?, ?> attempt) {
+        addAttempt(rollupsById, userId, courseId, activityId, attempt, -1);
+    }
+
+    private static void addAttempt(Map<String, WeeklyUsageRollup> rollupsById,
+                                   String userId,
+                                   String courseId,
+                                   String activityId,
+                                   Map<?, ?> attempt,
+                                   int sign) {
+        Instant attemptInstant = parseAttemptInstant(asString(attempt.get("attemptDateTime")));
+        if (attemptInstant == null) {
+            return;
+        }
+        LocalDate day = attemptInstant.atZone(ZONE).toLocalDate();
+        String documentId = documentId(userId, day);
+        WeeklyUsageRollup rollup = rollupsById.get(documentId);
+        if (rollup == null) {
+            rollup = new WeeklyUsageRollup(userId, day);
+            rollupsById.put(documentId, rollup);
+        }
+        rollup.record(courseId, activityId, day,
+                resolveScoreRatio(attempt),
+                asInteger(attempt.get("retries")),
+                Boolean.TRUE.equals(asBoolean(attempt.get("hintsUsed"))),
+                Math.max(0, TaskStats.parseTimeSpentSeconds(asString(attempt.get("timeSpent")))),
+                sign);
+    }
+
+    private void record(String courseId,
+                        String activityId,
+                        LocalDate day,
+                        double scoreRatio,
+                        Integer retries,
+                        boolean hintsUsed,
+                        long seconds,
+                        int sign) {
+        int dayIndex = (int) ChronoUnit.DAYS.between(weekStart, day);
+        dailyAttempts[dayIndex] += sign;
+        dailyPoints[dayIndex] += sign * Math.round(scoreRatio * POINTS_PER_TASK);
+        dailySeconds[dayIndex] += sign * seconds;
+
+        String key = activityKey(courseId, activityId);
+        ActivityRollup activity = activities.get(key);
+        if (activity == null) {
+            activity = new ActivityRollup(courseId, activityId);
+            activities.put(key, activity);
+        }
+        activity.dailyAttempts[dayIndex] += sign;
+        activity.attempts += sign;
+        activity.scoreSum += sign * scoreRatio;
+        if (scoreRatio >= 0.999) {
+            activity.successes += sign;
+        }
+        if (retries != null) {
+            activity.retries += sign * retries;
+            activity.retrySamples += sign;
+        }
+        if (hintsUsed) {
+            activity.hintsUsed += sign;
+        }
+        activity.timeSpentSeconds += sign * seconds;
+    }
+
+    /**
+     * Whether every counter is zero, e.g. after a result was replaced by an identical one.
+     */
+    public boolean isEmpty() {
+        for (int dayIndex = 0; dayIndex < DAYS_PER_WEEK; dayIndex++) {
+            if (dailyAttempts[dayIndex] != 0 || dailyPoints[dayIndex] != 0 || dailySeconds[dayIndex] != 0) {
+                return false;
+            }
+        }
+        for (ActivityRollup activity : activities.values()) {
+            if (!activity.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    public static WeeklyUsageRollup fromSnapshot(@NonNull DocumentSnapshot document) {
+        String userId = asString(document.get(FIELD_USER_ID));
+        LocalDate weekStart = LocalDate.parse(String.valueOf(document.get(FIELD_WEEK_START)));
+        WeeklyUsageRollup rollup = new WeeklyUsageRollup(userId != null ? userId : "", weekStart);
+        readDays(document.get(FIELD_DAILY_ATTEMPTS), rollup.dailyAttempts, null);
+        readDays(document.get(FIELD_DAILY_POINTS), null, rollup.dailyPoints);
+        readDays(document.get(FIELD_DAILY_SECONDS), null, rollup.dailySeconds);
+        if (document.get(FIELD_ACTIVITIES) instanceof Map<?, ?> activities) {
+            for (Map.Entry<?, ?> entry : activities.entrySet()) {
+                if (entry.getValue() instanceof Map<?, ?> stored) {
+                    rollup.activities.put(String.valueOf(entry.getKey()), ActivityRollup.fromMap(stored));
+                }
+            }
+        }
+        return rollup;
+    }
+
+    /**
+     * Document data that adds this rollup to the stored one when written with
+     * {@code SetOptions.merge()}.
+     */
+    @NonNull
+    public Map<String, Object> toIncrementData() {
+        return toData(true);
+    }
+
+    /**
+     * Document data that replaces the stored rollup.
+     */
+    @NonNull
+    public Map<String, Object> toReplacementData() {
+        return toData(false);
+    }
+
+    private Map<String, Object> toData(boolean increment) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_USER_ID, userId);
+        data.put(FIELD_WEEK_START, formatWeekStart(weekStart));
+        data.put(FIELD_DAILY_ATTEMPTS, writeDays(dailyAttempts, null, increment));
+        data.put(FIELD_DAILY_POINTS, writeDays(null, dailyPoints, increment));
+        data.put(FIELD_DAILY_SECONDS, writeDays(null, dailySeconds, increment));
+        Map<String, Object> activityData = new HashMap<>();
+        for (Map.Entry<String, ActivityRollup> entry : activities.entrySet()) {
+            activityData.put(entry.getKey(), entry.getValue().toData(increment));
+        }
+        data.put(FIELD_ACTIVITIES, activityData);
+        return data;
+    }
+
+    /**
+     * Index data recording the weeks in which the activities of {@code rollups} were
+     * attempted, to be written with {@code SetOptions.merge()}.
+     */
+    @NonNull
+    public static Map<String, Object> indexData(@NonNull String userId,
+                                                @NonNull Collection<WeeklyUsageRollup> rollups,
+                                                boolean backfilled) {
+        Map<String, Object> activityWeeks = new HashMap<>();
+        for (WeeklyUsageRollup rollup : rollups) {
+            for (String key : rollup.activities.keySet()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> weeks = (Map<String, Object>) activityWeeks.computeIfAbsent(key,
+                        ignored -> new HashMap<String, Object>());
+                weeks.put(formatWeekStart(rollup.weekStart), true);
+            }
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_USER_ID, userId);
+        data.put(FIELD_ACTIVITY_WEEKS, activityWeeks);
+        if (backfilled) {
+            data.put(FIELD_BACKFILLED, true);
+        }
+        return data;
+    }
+
+    public static boolean isBackfilled(@Nullable DocumentSnapshot index) {
+        return index != null && index.exists() && Boolean.TRUE.equals(index.getBoolean(FIELD_BACKFILLED));
+    }
+
+    /**
+     * Whether no week before {@code weekStart} is recorded in {@code activityWeeks}, as read by
+     * {@link #activityWeeksOf(DocumentSnapshot)}, for the activity,
+     * i.e. whether the activity was new content for the user in that week.
+     */
+    public static boolean isFirstWeek(@Nullable Map<?, ?> activityWeeks,
+                                      @NonNull String activityKey,
+                                      @NonNull LocalDate weekStart) {
+        if (activityWeeks == null || !(activityWeeks.get(activityKey) instanceof Map<?, ?> weeks)) {
+            return true;
+        }
+        String week = formatWeekStart(weekStart);
+        for (Object recorded : weeks.keySet()) {
+            // ISO dates order lexicographically.
+            if (String.valueOf(recorded).compareTo(week) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the weeks each activity was attempted in, as stored on a rollup index, keyed by
+     * activity key; {@code null} when the index has none.
+     */
+    @Nullable
+    public static Map<?, ?> activityWeeksOf(@Nullable DocumentSnapshot index) {
+        return index != null && index.get(FIELD_ACTIVITY_WEEKS) instanceof Map<?, ?> activityWeeks
+                ? activityWeeks : null;
+    }
+
+    @NonNull
+    static String activityKey(@Nullable String courseId, @Nullable String activityId) {
+        return (courseId != null ? courseId : "") + "|" + (activityId != null ? activityId : "");
+    }
+
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    @NonNull
+    public LocalDate getWeekStart() {
+        return weekStart;
+    }
+
+    @NonNull
+    public String getDocumentId() {
+        return documentId(userId, weekStart);
+    }
+
+    /**
+     * Number of attempts on the given day, counted from Monday ({@code 0}).
+     */
+    public int getDailyAttempts(int dayIndex) {
+        return dailyAttempts[dayIndex];
+    }
+
+    public long getDailyPoints(int dayIndex) {
+        return dailyPoints[dayIndex];
+    }
+
+    /**
+     * Seconds spent on the given day. Rollups written before this counter existed read
+     * {@code 0} for the days they covered at that time.
+     */
+    public long getDailySeconds(int dayIndex) {
+        return dailySeconds[dayIndex];
+    }
+
+    /**
+     * Activity rollups keyed by {@code courseId|activityId}.
+     */
+    @NonNull
+    public Map<String, ActivityRollup> getActivities() {
+        return Collections.unmodifiableMap(activities);
+    }
+
+    private static void readDays(Object stored, int[] intDays, long[] longDays) {
+        if (!(stored instanceof Map<?, ?> days)) {
+            return;
+        }
+        for (Map.Entry<?, ?> entry : days.entrySet()) {
+            int dayIndex;
+            try {
+                dayIndex = Integer.parseInt(String.valueOf(entry.getKey()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (dayIndex < 0 || dayIndex >= DAYS_PER_WEEK || !(entry.getValue() instanceof Number number)) {
+                continue;
+            }
+            if (intDays != null) {
+                intDays[dayIndex] = number.intValue();
+            } else {
+                longDays[dayIndex] = number.longValue();
+            }
+        }
+    }
+
+    private static Map<String, Object> writeDays(int[] intDays, long[] longDays, boolean increment) {
+        Map<String, Object> days = new HashMap<>();
+        for (int dayIndex = 0; dayIndex < DAYS_PER_WEEK; dayIndex++) {
+            long value = intDays != null ? intDays[dayIndex] : longDays[dayIndex];
+            if (value != 0) {
+                days.put(String.valueOf(dayIndex), counter(value, increment));
+            }
+        }
+        return days;
+    }
+
+    private static Object counter(long value, boolean increment) {
+        return increment ? FieldValue.increment(value) : value;
+    }
+
+    private static Object counter(double value, boolean increment) {
+        return increment ? FieldValue.increment(value) : value;
+    }
+
+    static Instant parseAttemptInstant(String attemptDateTime) {
+        if (attemptDateTime == null || attemptDateTime.trim().isEmpty()) {
+            return null;
+        }
+        long epochMillis = ATTEMPT_TIMESTAMP_PARSER.parse(attemptDateTime);
+        if (epochMillis == TimestampParser.INVALID) {
+            Log.w(TAG, "Unable to parse attempt timestamp: " + attemptDateTime);
+            return null;
+        }
+        return Instant.ofEpochMilli(epochMillis);
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : String.valueOf(value);
+    }
+
+    private static Boolean asBoolean(Object value) {
+        if (value instanceof Boolean bool) {
+            return bool;
+        }
+        if (value instanceof String str) {
+            return Boolean.parseBoolean(str);
+        }
+        if (value instanceof Number number) {
+            return number.intValue() != 0;
+        }
+        return null;
+    }
+
+    private static Integer asInteger(Object value) {
+        if (value instanceof Number number) {
+            return number.intValue();
+        }
+        if (value instanceof String str) {
+            try {
+                return Integer.parseInt(str);
+            } catch (NumberFormatException ignored) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static double resolveScoreRatio(Map<?, ?> attempt) {
+        Object scoreObj = attempt.get("scoreRatio");
+        Double ratio = null;
+        if (scoreObj instanceof Number number) {
+            ratio = number.doubleValue();
+        } else if (scoreObj instanceof String ratioString) {
+            try {
+                ratio = Double.parseDouble(ratioString);
+            } catch (NumberFormatException ignored) {
+                ratio = null;
+            }
+        }
+        if (ratio == null) {
+            Boolean success = asBoolean(attempt.get("success"));
+            ratio = Boolean.TRUE.equals(success) ? 1.0 : 0.0;
+        }
+        return Math.max(0.0, Math.min(1.0, ratio));
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number number ? number.longValue() : 0L;
+    }
+
+    /**
+     * Counters of one (course, activity) pair in the week.
+     */
+    public static final class ActivityRollup {
+        private final String courseId;
+        private final String activityId;
+        private final int[] dailyAttempts = new int[DAYS_PER_WEEK];
+        private int attempts;
+        private int successes;
+        private double scoreSum;
+        private long retries;
+        private int retrySamples;
+        private int hintsUsed;
+        private long timeSpentSeconds;
+
+        private ActivityRollup(String courseId, String activityId) {
+            this.courseId = courseId;
+            this.activityId = activityId;
+        }
+
+        private static ActivityRollup fromMap(Map<?, ?> stored) {
+            ActivityRollup rollup = new ActivityRollup(asString(stored.get("courseId")),
+                    asString(stored.get("activityId")));
+            readDays(stored.get(FIELD_DAILY_ATTEMPTS), rollup.dailyAttempts, null);
+            rollup.attempts = (int) asLong(stored.get("attempts"));
+            rollup.successes = (int) asLong(stored.get("successes"));
+            rollup.scoreSum = stored.get("scoreSum") instanceof Number number ? number.doubleValue() : 0.0;
+            rollup.retries = asLong(stored.get("retries"));
+            rollup.retrySamples = (int) asLong(stored.get("retrySamples"));
+            rollup.hintsUsed = (int) asLong(stored.get("hintsUsed"));
+            rollup.timeSpentSeconds = asLong(stored.get("timeSpentSeconds"));
+            return rollup;
+        }
+
+        private Map<String, Object> toData(boolean increment) {
+            Map<String, Object> data = new HashMap<>();
+            data.put("courseId", courseId);
+            data.put("activityId", activityId);
+            data.put(FIELD_DAILY_ATTEMPTS, writeDays(dailyAttempts, null, increment));
+            data.put("attempts", counter(attempts, increment));
+            data.put("successes", counter(successes, increment));
+            data.put("scoreSum", counter(scoreSum, increment));
+            data.put("retries", counter(retries, increment));
+            data.put("retrySamples", counter(retrySamples, increment));
+            data.put("hintsUsed", counter(hintsUsed, increment));
+            data.put("timeSpentSeconds", counter(timeSpentSeconds, increment));
+            return data;
+        }
+
+        private boolean isEmpty() {
+            for (int dayIndex = 0; dayIndex < DAYS_PER_WEEK; dayIndex++) {
+                if (dailyAttempts[dayIndex] != 0) {
+                    return false;
+                }
+            }
+            return attempts == 0 && successes == 0 && scoreSum == 0.0 && retries == 0
+                    && retrySamples == 0 && hintsUsed == 0 && timeSpentSeconds == 0;
+        }
+
+        @Nullable
+        public String getCourseId() {
+            return courseId;
+        }
+
+        @Nullable
+        public String getActivityId() {
+            return activityId;
+        }
+
+        @NonNull
+        public String getKey() {
+            return activityKey(courseId, activityId);
+        }
+
+        public int getDailyAttempts(int dayIndex) {
+            return dailyAttempts[dayIndex];
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public int getSuccesses() {
+            return successes;
+        }
+
+        /**
+         * Sum of the score ratios of all attempts.
+         */
+        public double getScoreSum() {
+            return scoreSum;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * Number of attempts that reported their retries.
+         */
+        public int getRetrySamples() {
+            return retrySamples;
+        }
+
+        public int getHintsUsed() {
+            return hintsUsed;
+        }
+
+        public long getTimeSpentSeconds() {
+            return timeSpentSeconds;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Utility that aggregates completed modules from enrollment progress snapshots.
@@ -15,10 +16,63 @@ public class ModuleCompletionAggregator {
 
     private final Set<String> completedModuleIds = new HashSet<>();
     private int numericCompletedModulesCount;
+    private final Map<String, Integer> mergedModuleCounts = new HashMap<>();
+    private final TreeMap<Integer, Integer> mergedNumericCounts = new TreeMap<>();
 
     public void reset() {
         completedModuleIds.clear();
         numericCompletedModulesCount = 0;
+        mergedModuleCounts.clear();
+        mergedNumericCounts.clear();
+    }
+
+    /**
+     * Adds the modules collected by {@code other}, usually the aggregator of a single
+     * enrollment. Merged modules are counted per enrollment so that {@link #unmerge} can take
+     * one enrollment out again without collecting the others anew; an aggregator that merges
+     * should not also collect progress summaries itself.
+     */
+    public void merge(@Nullable ModuleCompletionAggregator other) {
+        if (other == null) {
+            return;
+        }
+        for (String moduleId : other.completedModuleIds) {
+            if (mergedModuleCounts.merge(moduleId, 1, Integer::sum) == 1) {
+                completedModuleIds.add(moduleId);
+            }
+        }
+        mergedNumericCounts.merge(other.numericCompletedModulesCount, 1, Integer::sum);
+        numericCompletedModulesCount = mergedNumericCounts.lastKey();
+    }
+
+    /**
+     * Takes out the modules of an aggregator that was passed to {@link #merge} before.
+     */
+    public void unmerge(@Nullable ModuleCompletionAggregator other) {
+        if (other == null) {
+            return;
+        }
+        for (String moduleId : other.completedModuleIds) {
+            Integer count = mergedModuleCounts.get(moduleId);
+            if (count == null) {
+                continue;
+            }
+            if (count == 1) {
+                mergedModuleCounts.remove(moduleId);
+                completedModuleIds.remove(moduleId);
+            } else {
+                mergedModuleCounts.put(moduleId, count - 1);
+            }
+        }
+        Integer count = mergedNumericCounts.get(other.numericCompletedModulesCount);
+        if (count != null) {
+            if (count == 1) {
+                mergedNumericCounts.remove(other.numericCompletedModulesCount);
+            } else {
+                mergedNumericCounts.put(other.numericCompletedModulesCount, count - 1);
+            }
+        }
+        numericCompletedModulesCount = mergedNumericCounts.isEmpty() ? 0 : mergedNumericCounts.lastKey();
     }
 
     public void collectFromProgressSummary(@Nullable Map<?, ?> progressSummary) {
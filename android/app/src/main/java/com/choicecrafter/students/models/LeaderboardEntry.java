@@ -0,0 +1,59 @@
+package com.choicecrafter.students.models;
+
+import com.choicecrafter.students.utils.Avatar;
+import com.google.firebase.firestore.IgnoreExtraProperties;
+
+/**
+ * A user's row in the leaderboard, stored under their email by
+ * {@link com.choicecrafter.students.repositories.LeaderboardRepository}.
+ */
+@IgnoreExtraProperties
+public class LeaderboardEntry {
+    private String userId;
+    private String name;
+    private Avatar anonymousAvatar;
+    private int totalScore;
+
+    public LeaderboardEntry() {
+        // Default constructor required for calls to DocumentSnapshot.toObject(LeaderboardEntry.class)
+    }
+
+    public LeaderboardEntry(String userId, String name, Avatar anonymousAvatar, int totalScore) {
+        this.userId = userId;
+        this.name = name;
+        this.anonymousAvatar = anonymousAvatar;
+        this.totalScore = totalScore;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Avatar getAnonymousAvatar() {
+        return anonymousAvatar;
+    }
+
+    public void setAnonymousAvatar(Avatar anonymousAvatar) {
+        this.anonymousAvatar = anonymousAvatar;
+    }
+
+    public int getTotalScore() {
+        return totalScore;
+    }
+
+    public void setTotalScore(int totalScore) {
+        this.totalScore = totalScore;
+    }
+}
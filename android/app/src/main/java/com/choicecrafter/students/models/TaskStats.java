@@ -1,6 +1,11 @@
 package com.choicecrafter.students.models;
 
+import com.google.firebase.firestore.Exclude;
+
 public class TaskStats {
+    /** Marks {@link #timeSpentSeconds} as not parsed yet. */
+    private static final int UNPARSED = Integer.MIN_VALUE;
+
     private String attemptDateTime;
     private String timeSpent;
     private Integer retries;
@@ -8,6 +13,7 @@ public class TaskStats {
     private Boolean hintsUsed;
     private Double completionRatio;
     private Double scoreRatio;
+    private transient int timeSpentSeconds = UNPARSED;
 
     // No-argument constructor
     public TaskStats() {
@@ -60,6 +66,21 @@ public class TaskStats {
 
     public void setTimeSpent(String timeSpent) {
         this.timeSpent = timeSpent;
+        this.timeSpentSeconds = UNPARSED;
+    }
+
+    /**
+     * {@link #getTimeSpent()} in seconds, parsed once, or {@code -1} when it is missing or
+     * malformed.
+     */
+    @Exclude
+    public int getTimeSpentSeconds() {
+        int seconds = timeSpentSeconds;
+        if (seconds == UNPARSED) {
+            seconds = parseTimeSpentSeconds(timeSpent);
+            timeSpentSeconds = seconds;
+        }
+        return seconds;
     }
 
     public Integer getRetries() {
@@ -148,4 +169,48 @@ public class TaskStats {
     public boolean isFullyCorrect() {
         return resolveScoreRatio() >= 1.0;
     }
+
+    /**
+     * Parses a time spent value written as {@code h:mm:ss}, {@code m:ss} or a plain number
+     * of seconds; other text falls back to its digits. Returns {@code -1} when the value is
+     * missing or has no digits.
+     */
+    public static int parseTimeSpentSeconds(String timeSpent) {
+        if (timeSpent == null) {
+            return -1;
+        }
+        String trimmed = timeSpent.trim();
+        if (trimmed.isEmpty()) {
+            return -1;
+        }
+
+        if (trimmed.indexOf(':') >= 0) {
+            String[] parts = trimmed.split(":");
+            if (parts.length == 2 || parts.length == 3) {
+                try {
+                    int total = 0;
+                    for (String part : parts) {
+                        total = total * 60 + Integer.parseInt(part.trim());
+                    }
+                    return Math.max(0, total);
+                } catch (NumberFormatException ignored) {
+                    return -1;
+                }
+            }
+        }
+
+        int seconds = 0;
+        boolean hasDigits = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (seconds > (Integer.MAX_VALUE - 9) / 10) {
+                    return -1;
+                }
+                seconds = seconds * 10 + (c - '0');
+                hasDigits = true;
+            }
+        }
+        return hasDigits ? seconds : -1;
+    }
 }
@@ -7,17 +7,18 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.choicecrafter.students.utils.Avatar;
+import com.choicecrafter.students.utils.StreakTracker;
+import com.google.firebase.firestore.Exclude;
 import com.google.firebase.firestore.IgnoreExtraProperties;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 
 @IgnoreExtraProperties
 public class User implements Parcelable {
@@ -35,6 +36,8 @@ public class User implements Parcelable {
 
     //key = yyyy-MM-dd, value = score of the day
     private Map<String, Long> scores;
+    // Rebuilt from the score days when null; the scores only change through this class.
+    private transient StreakTracker streakTracker;
 
     public User() {
         this.anonymousAvatar = new Avatar("Anonymous", null);
@@ -48,7 +51,7 @@ public class User implements Parcelable {
         this.name = name;
         this.email = email;
         this.anonymousAvatar = anonymousAvatar;
-        this.scores = scores != null ? scores : new HashMap<>();
+        this.scores = scores != null ? new HashMap<>(scores) : new HashMap<>();
         this.totalScore = computeTotalScore();
         this.streak = computeStreak();
         this.learningPathPoints = 0;
@@ -100,7 +103,7 @@ public class User implements Parcelable {
     }
 
     public Map<String, Long> getScores() {
-        return scores;
+        return Collections.unmodifiableMap(scores);
     }
 
     public int getLearningPathPoints() {
@@ -121,6 +124,7 @@ public class User implements Parcelable {
     public void updateDailyScore(String day) {
         if (!scores.containsKey(day)) {
             scores.put(day, 0L);
+            recordDays(new long[]{StreakTracker.parseEpochDay(day)}, 1);
             streak = computeStreak();
         }
         scores.compute(day, (k, currentScore) -> currentScore + 1L);
@@ -161,48 +165,48 @@ public class User implements Parcelable {
         return totalScore;
     }
 
+    /**
+     * Number of consecutive days with a score up to today, in the device's zone; see
+     * {@link StreakTracker#getCurrentStreak(LocalDate)}.
+     */
     public int computeStreak() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        TreeSet<String> sortedDays = new TreeSet<>(scores.keySet());
-        int streak = 0;
-        Date today = new Date();
-        String todayStr = sdf.format(today);
-        Log.i("ComputeStreak", "Today: " + todayStr);
-        Log.i("ComputeStreak", "Sorted days: " + sortedDays);
-
-        try {
-            // Check if today is in the records
-            if (sortedDays.contains(todayStr)) {
-                streak = 1; // Start streak from today
-            } else {
-                // Check if yesterday is in the records
-                Date yesterday = new Date(today.getTime() - (24 * 60 * 60 * 1000));
-                String yesterdayStr = sdf.format(yesterday);
-                if (sortedDays.contains(yesterdayStr)) {
-                    streak = 1; // Start streak from yesterday
-                } else {
-                    return 0; // No streak if neither today nor yesterday has activity
-                }
-            }
+        return streakTracker().getCurrentStreak(LocalDate.now());
+    }
 
-            // Calculate streak backward from today or yesterday
-            Date previousDate = sdf.parse(todayStr);
-            for (String day : sortedDays.descendingSet()) {
-                Date currentDate = sdf.parse(day);
-                long diff = (previousDate.getTime() - currentDate.getTime()) / (1000 * 60 * 60 * 24);
-
-                if (diff == 1) {
-                    streak++;
-                    previousDate = currentDate;
-                } else if (diff > 1) {
-                    break; // Streak is broken
-                }
-            }
-        } catch (ParseException e) {
-            Log.e("ComputeStreak", "Error parsing date", e);
+    /**
+     * Longest run of consecutive days with a score.
+     */
+    @Exclude
+    public int getLongestStreak() {
+        return streakTracker().getLongestStreak();
+    }
+
+    /**
+     * Returns the tracker of the score days, rebuilding it after the scores were replaced
+     * with days it could not record in order.
+     */
+    private StreakTracker streakTracker() {
+        if (streakTracker == null) {
+            streakTracker = StreakTracker.fromDayKeys(scores != null ? scores.keySet() : null);
         }
+        return streakTracker;
+    }
 
-        return streak;
+    /**
+     * Records the first {@code count} of {@code epochDays}, which are new score days, on the
+     * tracker in ascending order, or drops the tracker when one lies before its current run.
+     */
+    private void recordDays(long[] epochDays, int count) {
+        if (streakTracker == null) {
+            return;
+        }
+        Arrays.sort(epochDays, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (epochDays[i] != StreakTracker.NONE && !streakTracker.recordActivity(epochDays[i])) {
+                streakTracker = null;
+                return;
+            }
+        }
     }
 
     public static User extractUserFromDoc(QueryDocumentSnapshot doc) {
@@ -254,10 +258,26 @@ public class User implements Parcelable {
         }
         if (this.scores == null) {
             this.scores = new HashMap<>();
-        } else {
-            this.scores.clear();
         }
+        // Scores that only gained days, as when the daily scores are reloaded, extend the
+        // tracker instead of rebuilding it.
+        boolean onlyAddsDays = scores.keySet().containsAll(this.scores.keySet());
+        long[] addedDays = new long[Math.max(0, scores.size() - this.scores.size())];
+        int added = 0;
+        if (onlyAddsDays) {
+            for (String day : scores.keySet()) {
+                if (!this.scores.containsKey(day)) {
+                    addedDays[added++] = StreakTracker.parseEpochDay(day);
+                }
+            }
+        }
+        this.scores.clear();
         this.scores.putAll(scores);
+        if (onlyAddsDays) {
+            recordDays(addedDays, added);
+        } else {
+            streakTracker = null;
+        }
         computeTotalScore();
     }
 
@@ -16,6 +16,11 @@ public abstract class Task implements Parcelable {
     private String type;
     private String status;
     private String explanation;
+    /**
+     * Stats key computed by {@link com.choicecrafter.students.utils.TaskStatsKeyUtils}; reset
+     * whenever a field it is derived from changes.
+     */
+    private transient String statsKey;
 
     public Task() {
     }
@@ -75,6 +80,7 @@ public abstract class Task implements Parcelable {
 
     public void setId(String id) {
         this.id = id;
+        this.statsKey = null;
     }
 
     public String getTitle() {
@@ -83,6 +89,7 @@ public abstract class Task implements Parcelable {
 
     public void setTitle(String title) {
         this.title = title;
+        this.statsKey = null;
     }
 
     public String getDescription() {
@@ -91,6 +98,7 @@ public abstract class Task implements Parcelable {
 
     public void setDescription(String description) {
         this.description = description;
+        this.statsKey = null;
     }
 
     public String getType() {
@@ -99,6 +107,7 @@ public abstract class Task implements Parcelable {
 
     public void setType(String type) {
         this.type = type;
+        this.statsKey = null;
     }
 
     public String getStatus() {
@@ -107,6 +116,7 @@ public abstract class Task implements Parcelable {
 
     public void setStatus(String status) {
         this.status = status;
+        this.statsKey = null;
     }
 
     public String getExplanation() {
@@ -117,6 +127,16 @@ public abstract class Task implements Parcelable {
         this.explanation = explanation;
     }
 
+    @Exclude
+    public String getCachedStatsKey() {
+        return statsKey;
+    }
+
+    @Exclude
+    public void setCachedStatsKey(String statsKey) {
+        this.statsKey = statsKey;
+    }
+
     @Exclude
     public static Task fromDocumentSnapshot(DocumentSnapshot document) {
         String type = document.getString("type");
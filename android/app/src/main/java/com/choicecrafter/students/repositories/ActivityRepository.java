@@ -1,22 +1,41 @@
 package com.choicecrafter.students.repositories;
 
+import static com.choicecrafter.students.repositories.EnrollmentProgressSnapshots.activityField;
+
+import android.util.Log;
+
+import com.choicecrafter.students.analytics.WeeklyUsageRollup;
 import com.choicecrafter.students.models.EnrollmentActivityProgress;
 import com.choicecrafter.students.models.TaskStats;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.SetOptions;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Reads and writes the per-activity progress of an enrollment.
+ * <p>
+ * Every write targets the activity's entry in the {@code activityProgress} map through
+ * field paths, so recording one task result neither reads the enrollment nor rewrites
+ * the progress of other activities; task results are additionally batched by
+ * {@link TaskStatsWriteQueue}. Reads go through {@link EnrollmentProgressSnapshots} and
+ * therefore also see progress still stored in the legacy {@code progressSummary}.
+ */
 public class ActivityRepository {
 
+    private static final String TAG = "ActivityRepository";
     private static final String ENROLLMENTS_COLLECTION = "COURSE_ENROLLMENTS";
     private final FirebaseFirestore firestore;
+    private final TaskStatsWriteQueue writeQueue = TaskStatsWriteQueue.getInstance();
 
     public ActivityRepository() {
         this.firestore = FirebaseFirestore.getInstance();
@@ -27,16 +46,28 @@ public class ActivityRepository {
         void onFailure(Exception e);
     }
 
+    public interface HighScoreCallback {
+        /**
+         * @param updated      whether {@code score} became the new highest score.
+         * @param highestScore the highest score stored after the update.
+         */
+        void onResult(boolean updated, int highestScore);
+        void onFailure(Exception e);
+    }
+
     private String buildEnrollmentId(String userId, String courseId) {
         return userId + "_" + courseId;
     }
 
+    private DocumentReference enrollmentReference(String userId, String courseId) {
+        return firestore.collection(ENROLLMENTS_COLLECTION).document(buildEnrollmentId(userId, courseId));
+    }
+
     public void startActivity(String userId,
                               String courseId,
                               String activityId,
                               StartActivityCallback callback) {
-        DocumentReference documentReference = firestore.collection(ENROLLMENTS_COLLECTION)
-                .document(buildEnrollmentId(userId, courseId));
+        DocumentReference documentReference = enrollmentReference(userId, courseId);
 
         documentReference.get().addOnSuccessListener(documentSnapshot -> {
             if (!documentSnapshot.exists()) {
@@ -44,206 +75,176 @@ public class ActivityRepository {
                 return;
             }
 
-            Map<String, Object> progressSummary = getProgressSummary(documentSnapshot);
-            List<Map<String, Object>> activitySnapshots = getActivitySnapshots(progressSummary);
-            Map<String, Object> snapshot = getOrCreateActivitySnapshot(activitySnapshots, userId, courseId, activityId);
+            Map<String, Object> snapshot = EnrollmentProgressSnapshots.find(documentSnapshot, activityId);
+            if (snapshot == null) {
+                snapshot = new HashMap<>();
+                snapshot.put("taskStats", new HashMap<>());
+            }
+            snapshot.put("activityId", activityId);
+            snapshot.put("courseId", courseId);
+            snapshot.put("userId", userId);
+            Map<String, TaskStats> unsent = writeQueue.pendingTaskStats(userId, courseId, activityId);
+            if (!unsent.isEmpty()) {
+                Map<String, Object> taskStats = new HashMap<>();
+                if (snapshot.get("taskStats") instanceof Map<?, ?> stored) {
+                    for (Map.Entry<?, ?> entry : stored.entrySet()) {
+                        taskStats.put(String.valueOf(entry.getKey()), entry.getValue());
+                    }
+                }
+                taskStats.putAll(unsent);
+                snapshot.put("taskStats", taskStats);
+            }
             EnrollmentActivityProgress progress = EnrollmentActivityProgress.fromMap(snapshot);
 
-            saveProgressSummary(documentReference, progressSummary)
+            if (EnrollmentProgressSnapshots.findKeyed(documentSnapshot, activityId) != null) {
+                callback.onSuccess(progress);
+                return;
+            }
+            List<Object> updates = identifierUpdates(userId, courseId, activityId);
+            updates.add(activityField(activityId, "taskStats"));
+            updates.add(new HashMap<>());
+            applyUpdates(documentReference, updates)
                     .addOnSuccessListener(unused -> callback.onSuccess(progress))
                     .addOnFailureListener(callback::onFailure);
         }).addOnFailureListener(callback::onFailure);
     }
 
+    /**
+     * Queues a task result on the {@link TaskStatsWriteQueue}, which coalesces the results
+     * of an enrollment into one write.
+     */
     public void addTaskStats(String userId,
                              String courseId,
                              String activityId,
                              String taskId,
                              TaskStats taskStats) {
-        DocumentReference documentReference = firestore.collection(ENROLLMENTS_COLLECTION)
-                .document(buildEnrollmentId(userId, courseId));
-
-        firestore.runTransaction(transaction -> {
-            DocumentSnapshot documentSnapshot = transaction.get(documentReference);
-            if (!documentSnapshot.exists()) {
-                return null;
-            }
-
-            Map<String, Object> progressSummary = getProgressSummary(documentSnapshot);
-            List<Map<String, Object>> activitySnapshots = getActivitySnapshots(progressSummary);
-            Map<String, Object> snapshot = getOrCreateActivitySnapshot(activitySnapshots, userId, courseId, activityId);
-
-            Map<String, Object> taskStatsMap = ensureTaskStatsMap(snapshot);
-            taskStatsMap.put(taskId, convertTaskStats(taskStats));
-            snapshot.put("taskStats", taskStatsMap);
-
-            transaction.set(documentReference, buildProgressUpdate(progressSummary), SetOptions.merge());
-            return null;
-        });
+        if (userId == null || courseId == null || activityId == null || taskId == null || taskStats == null) {
+            Log.w(TAG, "Ignoring task stats without user, course, activity or task id");
+            return;
+        }
+        writeQueue.enqueue(userId, courseId, activityId, taskId, taskStats);
     }
 
+    /**
+     * Clears the task results and highest score of an activity. The same transaction removes
+     * the cleared results from the user's {@link WeeklyUsageRollup}s, which only count the
+     * stored result of every task.
+     * <p>
+     * Queued results of the activity are dropped first. If a batch with some of them is being
+     * written, the reset waits for it, so the batch cannot bring cleared results back.
+     */
     public void resetTaskStats(String userId, String courseId, String activityId) {
-        DocumentReference documentReference = firestore.collection(ENROLLMENTS_COLLECTION)
-                .document(buildEnrollmentId(userId, courseId));
-
-        documentReference.get().addOnSuccessListener(documentSnapshot -> {
-            if (!documentSnapshot.exists()) {
-                return;
-            }
-
-            Map<String, Object> progressSummary = getProgressSummary(documentSnapshot);
-            List<Map<String, Object>> activitySnapshots = getActivitySnapshots(progressSummary);
-            Map<String, Object> snapshot = getOrCreateActivitySnapshot(activitySnapshots, userId, courseId, activityId);
-
-            snapshot.put("taskStats", new HashMap<>());
-            snapshot.remove("highestScore");
-
-            saveProgressSummary(documentReference, progressSummary);
-        });
+        writeQueue.discard(userId, courseId, activityId, () -> clearTaskStats(userId, courseId, activityId));
     }
 
-    public void updateHighestScoreIfGreater(String userId,
-                                            String courseId,
-                                            String activityId,
-                                            int score) {
-        DocumentReference documentReference = firestore.collection(ENROLLMENTS_COLLECTION)
-                .document(buildEnrollmentId(userId, courseId));
+    private void clearTaskStats(String userId, String courseId, String activityId) {
+        DocumentReference documentReference = enrollmentReference(userId, courseId);
+        DailyScoreRepository dailyScores = DailyScoreRepository.getInstance();
+        int writeGeneration = dailyScores.beginWrite(userId);
 
-        documentReference.get().addOnSuccessListener(snapshot -> {
-            if (!snapshot.exists()) {
-                return;
+        firestore.runTransaction(transaction -> {
+            DocumentSnapshot documentSnapshot = transaction.get(documentReference);
+            List<WeeklyUsageRollup> removed = new ArrayList<>();
+            if (!documentSnapshot.exists()) {
+                return removed;
             }
 
-            Map<String, Object> progressSummary = getProgressSummary(snapshot);
-            List<Map<String, Object>> activitySnapshots = getActivitySnapshots(progressSummary);
-            Map<String, Object> activitySnapshot = getOrCreateActivitySnapshot(activitySnapshots, userId, courseId, activityId);
-
-            Object highestScoreObj = activitySnapshot.get("highestScore");
-            if (!(highestScoreObj instanceof Number) || score > ((Number) highestScoreObj).intValue()) {
-                activitySnapshot.put("highestScore", score);
-                saveProgressSummary(documentReference, progressSummary);
+            List<Object> updates = identifierUpdates(userId, courseId, activityId);
+            updates.add(activityField(activityId, "taskStats"));
+            updates.add(new HashMap<>());
+            updates.add(activityField(activityId, "highestScore"));
+            updates.add(FieldValue.delete());
+
+            // A reset has to drop the legacy copy as well, otherwise the read adapter would
+            // merge the old task stats back in.
+            Object progressSummary = documentSnapshot.get(EnrollmentProgressSnapshots.PROGRESS_SUMMARY_FIELD);
+            List<Map<String, Object>> legacy = EnrollmentProgressSnapshots.readLegacy(progressSummary);
+            List<Map<String, Object>> remaining = new ArrayList<>(legacy.size());
+            for (Map<String, Object> snapshot : legacy) {
+                if (!activityId.equals(EnrollmentProgressSnapshots.activityIdOf(snapshot))) {
+                    remaining.add(snapshot);
+                }
             }
-        });
-    }
-
-    private Map<String, Object> getProgressSummary(DocumentSnapshot documentSnapshot) {
-        Object summary = documentSnapshot.get("progressSummary");
-        if (summary instanceof Map<?, ?> map) {
-            Map<String, Object> result = new HashMap<>();
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                result.put(String.valueOf(entry.getKey()), entry.getValue());
+            if (remaining.size() != legacy.size()) {
+                updates.add(FieldPath.of(EnrollmentProgressSnapshots.PROGRESS_SUMMARY_FIELD,
+                        EnrollmentProgressSnapshots.LEGACY_SNAPSHOTS_FIELD));
+                updates.add(remaining);
             }
-            return result;
-        }
-        return new HashMap<>();
-    }
 
-    @SuppressWarnings("unchecked")
-    private List<Map<String, Object>> getActivitySnapshots(Map<String, Object> progressSummary) {
-        Object snapshots = progressSummary.get("activitySnapshots");
-        if (snapshots instanceof List<?> list) {
-            List<Map<String, Object>> result = new ArrayList<>();
-            for (Object item : list) {
-                if (item instanceof Map<?, ?> map) {
-                    Map<String, Object> snapshotMap = new HashMap<>();
-                    for (Map.Entry<?, ?> entry : map.entrySet()) {
-                        snapshotMap.put(String.valueOf(entry.getKey()), entry.getValue());
+            Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+            Map<String, Object> activitySnapshot = EnrollmentProgressSnapshots.find(documentSnapshot, activityId);
+            if (activitySnapshot != null && activitySnapshot.get("taskStats") instanceof Map<?, ?> taskStats) {
+                for (Object result : taskStats.values()) {
+                    if (result instanceof Map<?, ?> resultMap) {
+                        WeeklyUsageRollup.removeAttempt(rollups, userId, courseId, activityId, resultMap);
                     }
-                    result.add(snapshotMap);
                 }
             }
-            progressSummary.put("activitySnapshots", result);
-            return result;
-        }
-        List<Map<String, Object>> result = new ArrayList<>();
-        progressSummary.put("activitySnapshots", result);
-        return result;
-    }
 
-    private Map<String, Object> getOrCreateActivitySnapshot(List<Map<String, Object>> activitySnapshots,
-                                                            String userId,
-                                                            String courseId,
-                                                            String activityId) {
-        for (Map<String, Object> snapshot : activitySnapshots) {
-            Object activityIdObj = snapshot.get("activityId");
-            if (activityIdObj != null && activityIdObj.toString().equals(activityId)) {
-                ensureSnapshotIdentifiers(snapshot, userId, courseId, activityId);
-                return snapshot;
+            Object[] more = updates.subList(2, updates.size()).toArray();
+            transaction.update(documentReference, (FieldPath) updates.get(0), updates.get(1), more);
+            for (WeeklyUsageRollup rollup : rollups.values()) {
+                if (!rollup.isEmpty()) {
+                    transaction.set(firestore.collection(WeeklyUsageRollup.COLLECTION).document(rollup.getDocumentId()),
+                            rollup.toIncrementData(), SetOptions.merge());
+                    removed.add(rollup);
+                }
             }
-        }
-        Map<String, Object> snapshot = new HashMap<>();
-        snapshot.put("activityId", activityId);
-        snapshot.put("courseId", courseId);
-        snapshot.put("userId", userId);
-        snapshot.put("taskStats", new HashMap<>());
-        activitySnapshots.add(snapshot);
-        return snapshot;
+            return removed;
+        }).addOnSuccessListener(removed -> dailyScores.addRollups(userId, writeGeneration, removed))
+                .addOnFailureListener(e -> Log.w(TAG, "Failed to reset task stats for activity " + activityId, e));
     }
 
-    private void ensureSnapshotIdentifiers(Map<String, Object> snapshot,
-                                           String userId,
-                                           String courseId,
-                                           String activityId) {
-        snapshot.put("userId", userId);
-        snapshot.put("courseId", courseId);
-        snapshot.put("activityId", activityId);
-        if (!(snapshot.get("taskStats") instanceof Map)) {
-            snapshot.put("taskStats", new HashMap<>());
-        }
+    public void updateHighestScoreIfGreater(String userId,
+                                            String courseId,
+                                            String activityId,
+                                            int score) {
+        updateHighestScoreIfGreater(userId, courseId, activityId, score, null);
     }
 
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> ensureTaskStatsMap(Map<String, Object> snapshot) {
-        Object stats = snapshot.get("taskStats");
-        if (stats instanceof Map<?, ?> map) {
-            Map<String, Object> result = new HashMap<>();
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                result.put(String.valueOf(entry.getKey()), entry.getValue());
+    /**
+     * Stores {@code score} as the activity's highest score if it beats the stored one.
+     * <p>
+     * The score is queued on the {@link TaskStatsWriteQueue} together with the last results
+     * of the activity. The queue compares it with the stored score in the same transaction
+     * that writes the results, so two devices finishing the same activity cannot overwrite a
+     * higher score with a lower one, and it keeps the score in its journal until it is
+     * written, so a score reached offline is not lost. {@code callback} is called once that
+     * transaction committed, which may be much later when offline.
+     */
+    public void updateHighestScoreIfGreater(String userId,
+                                            String courseId,
+                                            String activityId,
+                                            int score,
+                                            HighScoreCallback callback) {
+        if (userId == null || courseId == null || activityId == null) {
+            Log.w(TAG, "Ignoring highest score without user, course or activity id");
+            if (callback != null) {
+                callback.onFailure(new IllegalArgumentException("Missing user, course or activity id"));
             }
-            snapshot.put("taskStats", result);
-            return result;
-        }
-        Map<String, Object> result = new HashMap<>();
-        snapshot.put("taskStats", result);
-        return result;
-    }
-
-    private Map<String, Object> convertTaskStats(TaskStats taskStats) {
-        Map<String, Object> map = new HashMap<>();
-        if (taskStats.getAttemptDateTime() != null) {
-            map.put("attemptDateTime", taskStats.getAttemptDateTime());
-        }
-        if (taskStats.getTimeSpent() != null) {
-            map.put("timeSpent", taskStats.getTimeSpent());
-        }
-        if (taskStats.getRetries() != null) {
-            map.put("retries", taskStats.getRetries());
-        }
-        if (taskStats.getSuccess() != null) {
-            map.put("success", taskStats.getSuccess());
-        }
-        if (taskStats.getHintsUsed() != null) {
-            map.put("hintsUsed", taskStats.getHintsUsed());
-        }
-        Double completionRatio = taskStats.getCompletionRatio();
-        if (completionRatio != null) {
-            map.put("completionRatio", completionRatio);
-        }
-        Double scoreRatio = taskStats.getScoreRatio();
-        if (scoreRatio != null) {
-            map.put("scoreRatio", scoreRatio);
+            return;
         }
-        return map;
+        writeQueue.enqueueHighestScore(userId, courseId, activityId, score, callback);
     }
 
-    private Task<Void> saveProgressSummary(DocumentReference documentReference,
-                                           Map<String, Object> progressSummary) {
-        return documentReference.set(buildProgressUpdate(progressSummary), SetOptions.merge());
+    private List<Object> identifierUpdates(String userId, String courseId, String activityId) {
+        List<Object> updates = new ArrayList<>();
+        updates.add(activityField(activityId, "activityId"));
+        updates.add(activityId);
+        updates.add(activityField(activityId, "courseId"));
+        updates.add(courseId);
+        updates.add(activityField(activityId, "userId"));
+        updates.add(userId);
+        return updates;
     }
 
-    private Map<String, Object> buildProgressUpdate(Map<String, Object> progressSummary) {
-        Map<String, Object> update = new HashMap<>();
-        update.put("progressSummary", progressSummary);
-        return update;
+    /**
+     * Applies alternating field paths and values as one update. Updates fail when the
+     * enrollment document does not exist, so progress is never written for a student who
+     * is not enrolled.
+     */
+    private Task<Void> applyUpdates(DocumentReference documentReference, List<Object> fieldsAndValues) {
+        Object[] more = fieldsAndValues.subList(2, fieldsAndValues.size()).toArray();
+        return documentReference.update((FieldPath) fieldsAndValues.get(0), fieldsAndValues.get(1), more);
     }
 }
@@ -0,0 +1,310 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Append-only feed of the activities the users worked on, read by the colleagues screen.
+ * <p>
+ * {@link TaskStatsWriteQueue} adds one small event per activity to {@link #COLLECTION} in the
+ * batch that writes its task results, keyed by enrollment, activity and attempt time so a
+ * retried write does not add it twice; the Flutter client adds the same events when it writes
+ * a task result. Readers only query the courses they can see, newest first: a listener is
+ * kept on the newest page and older pages are read with a {@link Cursor}. Firestore accepts
+ * at most {@link #MAX_COURSES} values in an {@code in} filter, so the courses are queried in
+ * chunks of that size and the newest events of all chunks are merged. The queries need a
+ * composite index on {@code courseId} and {@code timestamp} descending.
+ */
+public class ColleagueFeedRepository {
+
+    private static final String TAG = "ColleagueFeedRepository";
+    public static final String COLLECTION = "COLLEAGUE_FEED";
+    static final String FIELD_USER_ID = "userId";
+    static final String FIELD_COURSE_ID = "courseId";
+    static final String FIELD_ACTIVITY_ID = "activityId";
+    static final String FIELD_TIMESTAMP = "timestamp";
+    static final String FIELD_TASK_COUNT = "taskCount";
+    /**
+     * Firestore accepts at most 30 values in an {@code in} filter.
+     */
+    static final int MAX_COURSES = 30;
+
+    private final FirebaseFirestore firestore;
+
+    public ColleagueFeedRepository() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public ColleagueFeedRepository(@NonNull FirebaseFirestore firestore) {
+        this.firestore = Objects.requireNonNull(firestore, "firestore == null");
+    }
+
+    /**
+     * One activity a user worked on; {@code timestamp} is the epoch milliseconds of the
+     * latest attempt written with it.
+     */
+    public static final class Event {
+        private final String id;
+        private final String userId;
+        private final String courseId;
+        private final String activityId;
+        private final long timestamp;
+
+        Event(String id, String userId, String courseId, String activityId, long timestamp) {
+            this.id = id;
+            this.userId = userId;
+            this.courseId = courseId;
+            this.activityId = activityId;
+            this.timestamp = timestamp;
+        }
+
+        @Nullable
+        static Event fromSnapshot(@NonNull DocumentSnapshot snapshot) {
+            String userId = snapshot.getString(FIELD_USER_ID);
+            String activityId = snapshot.getString(FIELD_ACTIVITY_ID);
+            Long timestamp = snapshot.getLong(FIELD_TIMESTAMP);
+            if (userId == null || activityId == null || timestamp == null) {
+                return null;
+            }
+            return new Event(snapshot.getId(), userId, snapshot.getString(FIELD_COURSE_ID), activityId, timestamp);
+        }
+
+        @NonNull
+        public String getId() {
+            return id;
+        }
+
+        @NonNull
+        public String getUserId() {
+            return userId;
+        }
+
+        @Nullable
+        public String getCourseId() {
+            return courseId;
+        }
+
+        @NonNull
+        public String getActivityId() {
+            return activityId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * A page of events, newest first, and the cursor to read the page after it; the cursor
+     * is {@code null} when there are no older events.
+     */
+    public static final class Page {
+        private final List<Event> events;
+        private final Cursor cursor;
+
+        Page(List<Event> events, @Nullable Cursor cursor) {
+            this.events = events;
+            this.cursor = cursor;
+        }
+
+        @NonNull
+        public List<Event> getEvents() {
+            return events;
+        }
+
+        @Nullable
+        public Cursor getCursor() {
+            return cursor;
+        }
+    }
+
+    /**
+     * Where the next page starts in each chunk of courses: after the last event of the chunk
+     * that was returned, from the newest one while none was, or nowhere once the chunk has
+     * no older events. Only valid for the course list it was read with.
+     */
+    public static final class Cursor {
+        private final DocumentSnapshot[] after;
+        private final boolean[] exhausted;
+
+        Cursor(DocumentSnapshot[] after, boolean[] exhausted) {
+            this.after = after;
+            this.exhausted = exhausted;
+        }
+    }
+
+    static String eventId(String userId, String courseId, String activityId, long timestamp) {
+        return userId + "_" + courseId + "_" + activityId + "_" + timestamp;
+    }
+
+    static Map<String, Object> eventData(String userId, String courseId, String activityId,
+                                         long timestamp, int taskCount) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(FIELD_USER_ID, userId);
+        data.put(FIELD_COURSE_ID, courseId);
+        data.put(FIELD_ACTIVITY_ID, activityId);
+        data.put(FIELD_TIMESTAMP, timestamp);
+        data.put(FIELD_TASK_COUNT, taskCount);
+        return data;
+    }
+
+    /**
+     * Listens to the newest {@code limit} events of the given courses, with one listener per
+     * chunk of {@link #MAX_COURSES} courses. The listener is called once every chunk has
+     * delivered its first snapshot, and again on every later change.
+     */
+    @NonNull
+    public ListenerRegistration listenNewest(@NonNull List<String> courseIds,
+                                             int limit,
+                                             @NonNull Consumer<Page> listener) {
+        List<List<String>> chunks = chunk(courseIds);
+        List<List<DocumentSnapshot>> newest = new ArrayList<>(Collections.nCopies(chunks.size(), null));
+        List<ListenerRegistration> registrations = new ArrayList<>(chunks.size());
+        Cursor start = new Cursor(new DocumentSnapshot[chunks.size()], new boolean[chunks.size()]);
+        for (int i = 0; i < chunks.size(); i++) {
+            int index = i;
+            registrations.add(query(chunks.get(i), limit).addSnapshotListener((value, error) -> {
+                if (error != null || value == null) {
+                    Log.w(TAG, "Failed to listen to the colleague feed", error);
+                    return;
+                }
+                newest.set(index, value.getDocuments());
+                if (!newest.contains(null)) {
+                    listener.accept(toPage(newest, start, limit));
+                }
+            }));
+        }
+        return () -> {
+            for (ListenerRegistration registration : registrations) {
+                registration.remove();
+            }
+        };
+    }
+
+    /**
+     * Reads the {@code limit} events of the given courses that come after {@code cursor}.
+     */
+    @NonNull
+    public Task<Page> fetchOlder(@NonNull List<String> courseIds, @NonNull Cursor cursor, int limit) {
+        List<List<String>> chunks = chunk(courseIds);
+        if (chunks.size() != cursor.after.length) {
+            return Tasks.forException(new IllegalArgumentException("Cursor of another course list"));
+        }
+        List<Task<QuerySnapshot>> reads = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            if (cursor.exhausted[i]) {
+                reads.add(null);
+                continue;
+            }
+            Query query = query(chunks.get(i), limit);
+            reads.add((cursor.after[i] != null ? query.startAfter(cursor.after[i]) : query).get());
+        }
+        List<Task<QuerySnapshot>> pending = new ArrayList<>(reads);
+        pending.removeIf(Objects::isNull);
+        return Tasks.whenAll(pending).continueWith(ignored -> {
+            List<List<DocumentSnapshot>> older = new ArrayList<>(reads.size());
+            for (Task<QuerySnapshot> read : reads) {
+                if (read == null) {
+                    older.add(Collections.emptyList());
+                } else if (!read.isSuccessful()) {
+                    throw Objects.requireNonNull(read.getException());
+                } else {
+                    older.add(read.getResult().getDocuments());
+                }
+            }
+            return toPage(older, cursor, limit);
+        });
+    }
+
+    private Query query(List<String> courseIds, int limit) {
+        return firestore.collection(COLLECTION)
+                .whereIn(FIELD_COURSE_ID, courseIds)
+                .orderBy(FIELD_TIMESTAMP, Query.Direction.DESCENDING)
+                .limit(limit);
+    }
+
+    static List<List<String>> chunk(List<String> courseIds) {
+        List<List<String>> chunks = new ArrayList<>();
+        for (int from = 0; from < courseIds.size(); from += MAX_COURSES) {
+            chunks.add(new ArrayList<>(courseIds.subList(from, Math.min(from + MAX_COURSES, courseIds.size()))));
+        }
+        return chunks;
+    }
+
+    private static Page toPage(List<List<DocumentSnapshot>> chunks, Cursor previous, int limit) {
+        DocumentSnapshot[] after = previous.after.clone();
+        boolean[] exhausted = previous.exhausted.clone();
+        int[] taken = new int[chunks.size()];
+        List<Event> events = new ArrayList<>();
+        for (int chunk : mergeNewest(chunks, ColleagueFeedRepository::timestampOf, limit)) {
+            DocumentSnapshot document = chunks.get(chunk).get(taken[chunk]++);
+            after[chunk] = document;
+            Event event = Event.fromSnapshot(document);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        boolean more = false;
+        for (int i = 0; i < chunks.size(); i++) {
+            int size = chunks.get(i).size();
+            exhausted[i] |= size < limit && taken[i] == size;
+            more |= !exhausted[i];
+        }
+        return new Page(events, more ? new Cursor(after, exhausted) : null);
+    }
+
+    /**
+     * Merges chunks that are each ordered newest first and returns, for the {@code limit}
+     * newest items of all of them, the chunk each one comes from, newest first. Items of one
+     * chunk keep their order, and on equal timestamps the earlier chunk comes first.
+     */
+    static <T> int[] mergeNewest(List<List<T>> chunks, ToLongFunction<T> timestamp, int limit) {
+        int[] next = new int[chunks.size()];
+        int total = 0;
+        for (List<T> chunk : chunks) {
+            total += chunk.size();
+        }
+        int[] order = new int[Math.min(limit, total)];
+        for (int position = 0; position < order.length; position++) {
+            int best = -1;
+            long bestTimestamp = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                if (next[i] == chunks.get(i).size()) {
+                    continue;
+                }
+                long candidate = timestamp.applyAsLong(chunks.get(i).get(next[i]));
+                if (best < 0 || candidate > bestTimestamp) {
+                    best = i;
+                    bestTimestamp = candidate;
+                }
+            }
+            order[position] = best;
+            next[best]++;
+        }
+        return order;
+    }
+
+    private static long timestampOf(DocumentSnapshot document) {
+        Long timestamp = document.getLong(FIELD_TIMESTAMP);
+        return timestamp != null ? timestamp : Long.MIN_VALUE;
+    }
+}
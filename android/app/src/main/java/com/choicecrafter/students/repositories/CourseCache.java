@@ -1,21 +1,35 @@
 package com.choicecrafter.students.repositories;
 
+import com.choicecrafter.students.models.Activity;
+import com.choicecrafter.students.models.Comment;
 import com.choicecrafter.students.models.Course;
+import com.choicecrafter.students.models.Module;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Simple in-memory cache for course data so that it can be preloaded during
  * the loading screen and reused across the app without additional network calls.
+ * <p>
+ * The cached courses are published as an immutable snapshot that also indexes them by
+ * course id, activity id/title and module id. Readers never lock or copy; writers build
+ * a new snapshot and swap it in through a volatile field. Comment and reaction updates
+ * copy the affected activity, the course and modules holding it, and publish them in a
+ * new snapshot instead of dropping the whole cache. Objects that were handed out, and the
+ * ones {@link CourseDocumentParser} keeps, are never modified.
  */
 public class CourseCache {
 
     private static final CourseCache INSTANCE = new CourseCache();
 
     private final Object lock = new Object();
-    private List<Course> cachedCourses = new ArrayList<>();
-    private boolean isLoaded = false;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     private CourseCache() {
     }
@@ -26,31 +40,256 @@ public class CourseCache {
 
     public void setCourses(List<Course> courses) {
         synchronized (lock) {
-            if (courses == null) {
-                this.cachedCourses = new ArrayList<>();
-            } else {
-                this.cachedCourses = new ArrayList<>(courses);
-            }
-            isLoaded = true;
+            snapshot = Snapshot.build(courses);
         }
     }
 
+    /**
+     * Returns the cached courses as a read-only list.
+     */
     public List<Course> getCourses() {
-        synchronized (lock) {
-            return new ArrayList<>(cachedCourses);
-        }
+        return snapshot.courses;
+    }
+
+    public Course getCourse(String courseId) {
+        return courseId != null ? snapshot.coursesById.get(courseId) : null;
+    }
+
+    /**
+     * Returns the cached activity with the given id or title, or {@code null} when the
+     * course or activity is not cached.
+     */
+    public Activity findActivity(String courseId, String activityIdOrTitle) {
+        List<Activity> matches = snapshot.activities.get(activityKey(courseId, activityIdOrTitle));
+        return matches != null && !matches.isEmpty() ? matches.get(0) : null;
+    }
+
+    public Module getModule(String courseId, String moduleId) {
+        return snapshot.modules.get(activityKey(courseId, moduleId));
     }
 
     public boolean isLoaded() {
+        return snapshot.loaded;
+    }
+
+    /**
+     * Appends a comment to every cached copy of the activity.
+     *
+     * @return {@code false} when the activity is not cached, in which case the caller
+     * should fall back to {@link #clear()}.
+     */
+    public boolean applyComment(String courseId, String activityIdOrTitle, Comment comment) {
+        if (comment == null) {
+            return false;
+        }
+        return patchActivity(courseId, activityIdOrTitle, activity -> {
+            List<Comment> comments = activity.getComments() != null
+                    ? new ArrayList<>(activity.getComments())
+                    : new ArrayList<>();
+            comments.add(comment);
+            activity.setComments(comments);
+        });
+    }
+
+    /**
+     * Replaces the reaction counts of every cached copy of the activity with the counts
+     * committed by a reaction transaction.
+     *
+     * @return {@code false} when the activity is not cached, in which case the caller
+     * should fall back to {@link #clear()}.
+     */
+    public boolean applyReactionCounts(String courseId, String activityIdOrTitle, Map<String, Long> reactionCounts) {
+        if (reactionCounts == null) {
+            return false;
+        }
+        return patchActivity(courseId, activityIdOrTitle, activity -> activity.setReactions(reactionCounts));
+    }
+
+    /**
+     * Publishes a snapshot in which every cached copy of the activity is replaced by a
+     * patched copy, together with copies of the course and modules that list it.
+     */
+    private boolean patchActivity(String courseId, String activityIdOrTitle, Consumer<Activity> patch) {
         synchronized (lock) {
-            return isLoaded;
+            Snapshot current = snapshot;
+            List<Activity> matches = current.activities.get(activityKey(courseId, activityIdOrTitle));
+            if (matches == null || matches.isEmpty()) {
+                return false;
+            }
+            Map<Activity, Activity> replacements = new IdentityHashMap<>();
+            for (Activity activity : matches) {
+                Activity copy = copyOf(activity);
+                patch.accept(copy);
+                replacements.put(activity, copy);
+            }
+            List<Course> courses = new ArrayList<>(current.courses.size());
+            for (Course course : current.courses) {
+                courses.add(course != null && courseId.equals(course.getId())
+                        ? copyOf(course, replacements)
+                        : course);
+            }
+            snapshot = Snapshot.build(courses);
+            return true;
         }
     }
 
     public void clear() {
         synchronized (lock) {
-            cachedCourses.clear();
-            isLoaded = false;
+            snapshot = Snapshot.EMPTY;
+        }
+    }
+
+    private static String activityKey(String courseId, String identifier) {
+        return courseId + "::" + identifier;
+    }
+
+    private static Activity copyOf(Activity source) {
+        Activity copy = new Activity();
+        copy.setId(source.getId());
+        copy.setTitle(source.getTitle());
+        copy.setDescription(source.getDescription());
+        copy.setType(source.getType());
+        copy.setDate(source.getDate());
+        copy.setTime(source.getTime());
+        copy.setTasks(source.getTasks());
+        copy.setRecommendations(source.getRecommendations());
+        copy.setStatus(source.getStatus());
+        copy.setReminders(source.getReminders());
+        copy.setComments(source.getComments());
+        copy.setReactions(source.getReactionCounts());
+        return copy;
+    }
+
+    private static Course copyOf(Course source, Map<Activity, Activity> replacements) {
+        Course copy = new Course();
+        copy.setId(source.getId());
+        copy.setTitle(source.getTitle());
+        copy.setDescription(source.getDescription());
+        copy.setTeacher(source.getTeacher());
+        copy.setImageUrl(source.getImageUrl());
+        copy.setActivities(replace(source.getActivities(), replacements));
+        if (source.getModules() != null) {
+            List<Module> modules = new ArrayList<>(source.getModules().size());
+            for (Module module : source.getModules()) {
+                modules.add(module != null ? copyOf(module, replacements) : null);
+            }
+            copy.setModules(modules);
+        } else {
+            copy.setModules(null);
+        }
+        return copy;
+    }
+
+    private static Module copyOf(Module source, Map<Activity, Activity> replacements) {
+        List<Activity> activities = replace(source.getActivities(), replacements);
+        if (activities == source.getActivities()) {
+            return source;
+        }
+        Module copy = new Module(source.getId(), source.getTitle(), source.getDescription(),
+                activities, source.getCompletedPercentage());
+        copy.setCourseId(source.getCourseId());
+        return copy;
+    }
+
+    /**
+     * Returns {@code activities} with the replaced activities swapped in, or the list itself
+     * when it holds none of them.
+     */
+    private static List<Activity> replace(List<Activity> activities, Map<Activity, Activity> replacements) {
+        if (activities == null) {
+            return null;
+        }
+        List<Activity> result = null;
+        for (int i = 0; i < activities.size(); i++) {
+            Activity replacement = replacements.get(activities.get(i));
+            if (replacement == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(activities);
+            }
+            result.set(i, replacement);
+        }
+        return result != null ? result : activities;
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList(), Collections.emptyMap(),
+                Collections.emptyMap(), Collections.emptyMap(), false);
+
+        final List<Course> courses;
+        final Map<String, Course> coursesById;
+        final Map<String, List<Activity>> activities;
+        final Map<String, Module> modules;
+        final boolean loaded;
+
+        private Snapshot(List<Course> courses,
+                         Map<String, Course> coursesById,
+                         Map<String, List<Activity>> activities,
+                         Map<String, Module> modules,
+                         boolean loaded) {
+            this.courses = courses;
+            this.coursesById = coursesById;
+            this.activities = activities;
+            this.modules = modules;
+            this.loaded = loaded;
+        }
+
+        static Snapshot build(List<Course> source) {
+            List<Course> courses = source != null ? new ArrayList<>(source) : new ArrayList<>();
+            Map<String, Course> coursesById = new HashMap<>();
+            Map<String, List<Activity>> activities = new HashMap<>();
+            Map<String, Module> modules = new HashMap<>();
+            for (Course course : courses) {
+                if (course == null || course.getId() == null) {
+                    continue;
+                }
+                String courseId = course.getId();
+                coursesById.put(courseId, course);
+                indexActivities(courseId, course.getActivities(), activities);
+                if (course.getModules() != null) {
+                    for (Module module : course.getModules()) {
+                        if (module == null) {
+                            continue;
+                        }
+                        if (module.getId() != null) {
+                            modules.put(activityKey(courseId, module.getId()), module);
+                        }
+                        indexActivities(courseId, module.getActivities(), activities);
+                    }
+                }
+            }
+            return new Snapshot(Collections.unmodifiableList(courses), coursesById, activities, modules, true);
+        }
+
+        private static void indexActivities(String courseId,
+                                            List<Activity> source,
+                                            Map<String, List<Activity>> index) {
+            if (source == null) {
+                return;
+            }
+            for (Activity activity : source) {
+                if (activity == null) {
+                    continue;
+                }
+                addToIndex(index, courseId, activity.getId(), activity);
+                if (activity.getTitle() != null && !activity.getTitle().equals(activity.getId())) {
+                    addToIndex(index, courseId, activity.getTitle(), activity);
+                }
+            }
+        }
+
+        private static void addToIndex(Map<String, List<Activity>> index,
+                                       String courseId,
+                                       String identifier,
+                                       Activity activity) {
+            if (identifier == null) {
+                return;
+            }
+            List<Activity> matches = index.computeIfAbsent(activityKey(courseId, identifier), key -> new ArrayList<>(1));
+            if (!matches.contains(activity)) {
+                matches.add(activity);
+            }
         }
     }
 }
@@ -0,0 +1,402 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.firebase.Timestamp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Disk-backed snapshot of the raw {@code COURSES} documents.
+ * <p>
+ * The snapshot is a single binary file: a header with a format version followed by
+ * one record per document (id, version token and the document data). Values are
+ * tagged and map keys are dictionary encoded, so the repeated field names of task
+ * definitions are only stored once. The file is streamed on load and replaced
+ * atomically on save; an unreadable or outdated file is treated as an empty snapshot.
+ * <p>
+ * The version token of a document is a SHA-256 digest of the same encoding with map keys
+ * in sorted order, see {@link #digest(Map)}.
+ */
+public class CourseCatalogStore {
+
+    private static final String TAG = "CourseCatalogStore";
+    private static final String FILE_NAME = "course_catalog.bin";
+
+    private static final int MAGIC = 0x43434154; // "CCAT"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_DOUBLE = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_MAP = 6;
+    private static final int TAG_LIST = 7;
+    private static final int TAG_TIMESTAMP = 8;
+
+    private static final CourseCatalogStore INSTANCE = new CourseCatalogStore(null);
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final Object lock = new Object();
+    private volatile File file;
+
+    public CourseCatalogStore(@Nullable File file) {
+        this.file = file;
+    }
+
+    /**
+     * Shared store used by {@link CourseRepository}. It stays inert until
+     * {@link #attach(File)} points it at the application's files directory.
+     */
+    public static CourseCatalogStore getInstance() {
+        return INSTANCE;
+    }
+
+    public void attach(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    public boolean isAttached() {
+        return file != null;
+    }
+
+    /**
+     * Reads every stored entry. Returns an empty list when nothing has been stored yet or
+     * the stored snapshot cannot be decoded.
+     */
+    @NonNull
+    public List<Entry> load() {
+        File target = file;
+        if (target == null || !target.isFile()) {
+            return Collections.emptyList();
+        }
+        synchronized (lock) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(target)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    Log.w(TAG, "Discarding course catalogue snapshot with unknown format");
+                    return Collections.emptyList();
+                }
+                Reader reader = new Reader(in);
+                int count = reader.readVarInt();
+                List<Entry> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String id = reader.readString();
+                    String version = reader.readString();
+                    Object data = reader.readValue();
+                    if (data instanceof Map<?, ?>) {
+                        entries.add(new Entry(id, version, castMap(data)));
+                    }
+                }
+                return entries;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to read course catalogue snapshot", e);
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * Replaces the stored snapshot with the supplied entries.
+     */
+    public void save(@NonNull List<Entry> entries) {
+        File target = file;
+        if (target == null) {
+            return;
+        }
+        synchronized (lock) {
+            File temp = new File(target.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                Writer writer = new Writer(out, false);
+                writer.writeVarInt(entries.size());
+                for (Entry entry : entries) {
+                    writer.writeString(entry.getId());
+                    writer.writeString(entry.getVersion());
+                    writer.writeValue(entry.getData());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write course catalogue snapshot", e);
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(target)) {
+                Log.w(TAG, "Failed to replace course catalogue snapshot");
+                temp.delete();
+            }
+        }
+    }
+
+    public void clear() {
+        File target = file;
+        if (target == null) {
+            return;
+        }
+        synchronized (lock) {
+            target.delete();
+        }
+    }
+
+    /**
+     * Returns a token that changes whenever the content of {@code data} changes: the
+     * SHA-256 digest of its encoding with every map's keys in sorted order.
+     */
+    @NonNull
+    public static String digest(@NonNull Map<String, Object> data) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(NULL_OUTPUT, sha256))) {
+            new Writer(out, true).writeValue(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to digest course document", e);
+        }
+        byte[] hash = sha256.digest();
+        StringBuilder token = new StringBuilder(2 + hash.length * 2).append("s:");
+        for (byte b : hash) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * One stored course document.
+     */
+    public static final class Entry {
+        private final String id;
+        private final String version;
+        private final Map<String, Object> data;
+
+        public Entry(@NonNull String id, @NonNull String version, @NonNull Map<String, Object> data) {
+            this.id = id;
+            this.version = version;
+            this.data = data;
+        }
+
+        @NonNull
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Token that changes whenever the document content changes.
+         */
+        @NonNull
+        public String getVersion() {
+            return version;
+        }
+
+        @NonNull
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final boolean sortKeys;
+        private final Map<String, Integer> keyIds = new HashMap<>();
+
+        Writer(DataOutputStream out, boolean sortKeys) {
+            this.out = out;
+            this.sortKeys = sortKeys;
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof String text) {
+                out.writeByte(TAG_STRING);
+                writeString(text);
+            } else if (value instanceof Boolean bool) {
+                out.writeByte(bool ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double || value instanceof Float) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof Number number) {
+                out.writeByte(TAG_LONG);
+                out.writeLong(number.longValue());
+            } else if (value instanceof Timestamp timestamp) {
+                out.writeByte(TAG_TIMESTAMP);
+                out.writeLong(timestamp.getSeconds());
+                out.writeInt(timestamp.getNanoseconds());
+            } else if (value instanceof Map<?, ?> map) {
+                out.writeByte(TAG_MAP);
+                writeVarInt(map.size());
+                if (sortKeys) {
+                    Map<String, Object> sorted = new TreeMap<>();
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+                    }
+                    map = sorted;
+                }
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeKey(String.valueOf(entry.getKey()));
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof List<?> list) {
+                out.writeByte(TAG_LIST);
+                writeVarInt(list.size());
+                for (Object item : list) {
+                    writeValue(item);
+                }
+            } else {
+                // References, geo points and blobs are not used by course documents.
+                out.writeByte(TAG_NULL);
+            }
+        }
+
+        /**
+         * Keys are written as an id into a dictionary that grows while writing; a key seen
+         * for the first time is written inline right after its new id.
+         */
+        void writeKey(String key) throws IOException {
+            Integer id = keyIds.get(key);
+            if (id != null) {
+                writeVarInt(id);
+                return;
+            }
+            int newId = keyIds.size();
+            keyIds.put(key, newId);
+            writeVarInt(newId);
+            writeString(key);
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<String> keys = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        Object readValue() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return readString();
+                case TAG_LONG:
+                    return in.readLong();
+                case TAG_DOUBLE:
+                    return in.readDouble();
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TIMESTAMP:
+                    return new Timestamp(in.readLong(), in.readInt());
+                case TAG_MAP: {
+                    int size = readVarInt();
+                    Map<String, Object> map = new HashMap<>(Math.max(4, size * 2));
+                    for (int i = 0; i < size; i++) {
+                        String key = readKey();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case TAG_LIST: {
+                    int size = readVarInt();
+                    List<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                default:
+                    throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        String readKey() throws IOException {
+            int id = readVarInt();
+            if (id < keys.size()) {
+                return keys.get(id);
+            }
+            if (id != keys.size()) {
+                throw new IOException("Corrupt key dictionary");
+            }
+            String key = readString();
+            keys.add(key);
+            return key;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (shift < 35) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+            throw new EOFException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.choicecrafter.students.models.Course;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps the on-disk {@link CourseCatalogStore} in line with a {@link CourseDocumentSource}.
+ * <p>
+ * {@link #loadSnapshot()} turns the stored documents into courses without touching the
+ * network, so the first screen can render from local data. {@link #synchronize()} then
+ * asks the source for the documents that changed, compares their content digests with the
+ * stored ones and only decodes the documents whose digest differs; every other course is
+ * returned as the instance decoded before. The snapshot is rewritten only when a document
+ * was added, changed or removed.
+ */
+public class CourseCatalogSynchronizer {
+
+    private static final String TAG = "CourseCatalogSync";
+
+    private final CourseDocumentSource source;
+    private final CourseCatalogStore store;
+    private final CourseDocumentParser parser;
+
+    private final Object lock = new Object();
+    private LinkedHashMap<String, CourseCatalogStore.Entry> knownEntries;
+    private final Map<String, Course> knownCourses = new HashMap<>();
+    private final Set<String> staleIds = new HashSet<>();
+
+    public CourseCatalogSynchronizer(@NonNull CourseDocumentSource source,
+                                     @NonNull CourseCatalogStore store,
+                                     @NonNull CourseDocumentParser parser) {
+        this.source = Objects.requireNonNull(source, "source == null");
+        this.store = Objects.requireNonNull(store, "store == null");
+        this.parser = Objects.requireNonNull(parser, "parser == null");
+    }
+
+    /**
+     * Parses the stored snapshot. Returns an empty list when no snapshot exists.
+     */
+    @NonNull
+    public List<Course> loadSnapshot() {
+        List<CourseCatalogStore.Entry> entries = store.load();
+        List<Course> courses = new ArrayList<>(entries.size());
+        synchronized (lock) {
+            knownEntries = new LinkedHashMap<>();
+            knownCourses.clear();
+            for (CourseCatalogStore.Entry entry : entries) {
+                Course course = parser.parseDocument(entry.getId(), entry.getData()).getCourse();
+                knownEntries.put(entry.getId(), entry);
+                knownCourses.put(entry.getId(), course);
+                courses.add(course);
+            }
+        }
+        return courses;
+    }
+
+    /**
+     * Applies the changes reported by the source, updates the stored snapshot when the
+     * catalogue changed and returns the courses in collection order.
+     */
+    @NonNull
+    public List<Course> synchronize() throws Exception {
+        CourseDocumentSource.Changes changes = source.fetchChanges();
+        synchronized (lock) {
+            if (knownEntries == null) {
+                // Compare with the snapshot on disk, but decode its documents only when needed.
+                knownEntries = new LinkedHashMap<>();
+                for (CourseCatalogStore.Entry entry : store.load()) {
+                    knownEntries.put(entry.getId(), entry);
+                }
+            }
+
+            LinkedHashMap<String, CourseCatalogStore.Entry> entries;
+            int changedDocuments = 0;
+            if (changes.isFullListing()) {
+                entries = new LinkedHashMap<>();
+                Set<String> listedIds = new HashSet<>();
+                for (CourseDocumentSource.RawCourseDocument document : changes.getDocuments()) {
+                    listedIds.add(document.getId());
+                }
+                for (String previousId : knownEntries.keySet()) {
+                    if (!listedIds.contains(previousId)) {
+                        forget(previousId);
+                        changedDocuments++;
+                    }
+                }
+            } else {
+                entries = new LinkedHashMap<>(knownEntries);
+                for (String removedId : changes.getRemovedIds()) {
+                    if (entries.remove(removedId) != null) {
+                        forget(removedId);
+                        changedDocuments++;
+                    }
+                }
+            }
+
+            for (CourseDocumentSource.RawCourseDocument document : changes.getDocuments()) {
+                String id = document.getId();
+                String version = CourseCatalogStore.digest(document.getData());
+                CourseCatalogStore.Entry previous = knownEntries.get(id);
+                if (previous != null && version.equals(previous.getVersion()) && !staleIds.contains(id)) {
+                    entries.put(id, previous);
+                } else {
+                    entries.put(id, new CourseCatalogStore.Entry(id, version, document.getData()));
+                    knownCourses.remove(id);
+                    staleIds.remove(id);
+                    changedDocuments++;
+                }
+            }
+
+            List<Course> courses = new ArrayList<>(entries.size());
+            for (CourseCatalogStore.Entry entry : entries.values()) {
+                Course course = knownCourses.get(entry.getId());
+                if (course == null) {
+                    course = parser.parseDocument(entry.getId(), entry.getData()).getCourse();
+                    knownCourses.put(entry.getId(), course);
+                }
+                courses.add(course);
+            }
+
+            if (changedDocuments > 0 || !staleIds.isEmpty()) {
+                Log.d(TAG, "Course catalogue changed in " + changedDocuments + " document(s); rewriting snapshot");
+                store.save(new ArrayList<>(entries.values()));
+                staleIds.clear();
+            }
+            knownEntries = entries;
+            return courses;
+        }
+    }
+
+    /**
+     * Drops the decoded course of a document so the next {@link #synchronize()} decodes it
+     * again and rewrites the snapshot, even if its content digest is unchanged.
+     */
+    public void invalidate(String courseId) {
+        synchronized (lock) {
+            if (courseId != null) {
+                knownCourses.remove(courseId);
+                staleIds.add(courseId);
+            }
+        }
+    }
+
+    private void forget(String courseId) {
+        knownCourses.remove(courseId);
+        staleIds.remove(courseId);
+        parser.evict(courseId);
+    }
+}
@@ -0,0 +1,421 @@
+package com.choicecrafter.students.repositories;
+
+import com.choicecrafter.students.models.Activity;
+import com.choicecrafter.students.models.Comment;
+import com.choicecrafter.students.models.Course;
+import com.choicecrafter.students.models.Module;
+import com.choicecrafter.students.models.Recommendation;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.utils.ActivityVisibilityFilter;
+import com.choicecrafter.students.utils.DefaultRecommendationsProvider;
+import com.choicecrafter.students.utils.TaskStatsKeyUtils;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared parser for documents of the {@code COURSES} collection.
+ * <p>
+ * Parsed graphs are remembered per document id. When a document is seen again the
+ * parser compares each raw activity map with the one it parsed last time and reuses
+ * the previous {@link Activity} (and, when only comments or reactions moved, the
+ * previous task list) instead of decoding it again. The comparison always looks at the
+ * activity maps themselves: comments and reactions are written without touching the
+ * document's {@code updatedAt}, so a version field cannot tell whether a document changed.
+ */
+public final class CourseDocumentParser {
+
+    private static final CourseDocumentParser INSTANCE = new CourseDocumentParser();
+
+    private final Map<String, ParsedCourse> parsedCourses = new ConcurrentHashMap<>();
+
+    private CourseDocumentParser() {
+    }
+
+    public static CourseDocumentParser getInstance() {
+        return INSTANCE;
+    }
+
+    public Course parse(DocumentSnapshot courseDoc) {
+        return parseDocument(courseDoc).getCourse();
+    }
+
+    public ParsedCourse parseDocument(DocumentSnapshot courseDoc) {
+        return parseDocument(courseDoc.getId(), courseDoc.getData());
+    }
+
+    /**
+     * Parses the raw document data, reusing every activity whose raw map has not changed
+     * since the previous call for the same document id.
+     */
+    public ParsedCourse parseDocument(String courseId, Map<String, Object> data) {
+        Map<String, Object> courseData = data != null ? data : Collections.emptyMap();
+        ParsedCourse previous = parsedCourses.get(courseId);
+        ParsedCourse parsed = buildParsedCourse(courseId, courseData, previous);
+        parsedCourses.put(courseId, parsed);
+        return parsed;
+    }
+
+    /**
+     * Returns the progress index of a course produced by this parser, building it on first
+     * use. Courses that did not come from the parser get a fresh, uncached index.
+     */
+    public CourseProgressIndex progressIndexFor(Course course) {
+        if (course == null) {
+            return CourseProgressIndex.EMPTY;
+        }
+        ParsedCourse parsed = course.getId() != null ? parsedCourses.get(course.getId()) : null;
+        if (parsed != null && parsed.course == course) {
+            return parsed.getProgressIndex();
+        }
+        return CourseProgressIndex.build(course);
+    }
+
+    public void evict(String courseId) {
+        if (courseId != null) {
+            parsedCourses.remove(courseId);
+        }
+    }
+
+    public void clear() {
+        parsedCourses.clear();
+    }
+
+    private ParsedCourse buildParsedCourse(String courseId,
+                                           Map<String, Object> courseData,
+                                           ParsedCourse previous) {
+        Map<String, ParsedActivity> previousIndex = previous != null ? previous.activityIndex : Collections.emptyMap();
+        Map<String, ParsedActivity> activityIndex = new HashMap<>();
+
+        Course course = new Course();
+        course.setId(courseId);
+        course.setDescription(asString(courseData.get("description")));
+        course.setTitle(asString(courseData.get("title")));
+        course.setTeacher(asString(courseData.get("teacher")));
+        course.setImageUrl(asString(courseData.get("imageUrl")));
+
+        List<ParsedActivity> parsedActivities = new ArrayList<>();
+        List<Activity> activities = new ArrayList<>();
+        List<Map<String, Object>> activitiesList = extractMapList(courseData.get("activities"));
+        if (activitiesList != null) {
+            for (int i = 0; i < activitiesList.size(); i++) {
+                ParsedActivity parsedActivity = resolveActivity("activities", i, activitiesList.get(i),
+                        previousIndex, activityIndex);
+                parsedActivities.add(parsedActivity);
+                if (ActivityVisibilityFilter.isVisible(parsedActivity.getActivity())) {
+                    activities.add(parsedActivity.getActivity());
+                }
+            }
+        }
+        course.setActivities(activities);
+
+        List<Map<String, Object>> modulesList = extractMapList(courseData.get("modules"));
+        if (modulesList != null) {
+            List<Module> modules = new ArrayList<>();
+            for (int i = 0; i < modulesList.size(); i++) {
+                Module module = mapModule(modulesList.get(i), i, course.getId(), previousIndex, activityIndex);
+                if (module != null) {
+                    modules.add(module);
+                }
+            }
+            course.setModules(modules);
+        }
+
+        return new ParsedCourse(course, Collections.unmodifiableList(parsedActivities), activityIndex);
+    }
+
+    private Module mapModule(Map<String, Object> moduleMap,
+                             int moduleIndex,
+                             String courseId,
+                             Map<String, ParsedActivity> previousIndex,
+                             Map<String, ParsedActivity> activityIndex) {
+        if (moduleMap == null) {
+            return null;
+        }
+
+        Module module = new Module();
+        module.setId((String) moduleMap.get("id"));
+        module.setTitle((String) moduleMap.get("title"));
+        module.setDescription((String) moduleMap.get("description"));
+        module.setCourseId(courseId);
+
+        String scope = "modules/" + (module.getId() != null ? module.getId() : String.valueOf(moduleIndex));
+        List<Map<String, Object>> activitiesList = extractMapList(moduleMap.get("activities"));
+        List<Activity> activities = new ArrayList<>();
+        if (activitiesList != null) {
+            for (int i = 0; i < activitiesList.size(); i++) {
+                Activity activity = resolveActivity(scope, i, activitiesList.get(i), previousIndex, activityIndex)
+                        .getActivity();
+                if (ActivityVisibilityFilter.isVisible(activity)) {
+                    activities.add(activity);
+                }
+            }
+        }
+        module.setActivities(activities);
+
+        Object completionObj = moduleMap.get("completedPercentage");
+        if (completionObj instanceof Number number) {
+            module.setCompletedPercentage(number.intValue());
+        }
+
+        return module;
+    }
+
+    private ParsedActivity resolveActivity(String scope,
+                                           int position,
+                                           Map<String, Object> activityMap,
+                                           Map<String, ParsedActivity> previousIndex,
+                                           Map<String, ParsedActivity> activityIndex) {
+        String activityId = extractActivityId(activityMap);
+        String key = scope + "/" + (activityId != null ? activityId : "#" + position);
+        ParsedActivity previous = previousIndex.get(key);
+
+        ParsedActivity parsed;
+        if (previous != null && previous.raw.equals(activityMap)) {
+            parsed = previous;
+        } else {
+            parsed = mapActivity(activityMap, previous);
+        }
+        activityIndex.put(key, parsed);
+        return parsed;
+    }
+
+    private ParsedActivity mapActivity(Map<String, Object> activityMap, ParsedActivity previous) {
+        Activity activity = new Activity();
+        activity.setId(extractActivityId(activityMap));
+        activity.setDescription((String) activityMap.get("description"));
+        activity.setType((String) activityMap.get("type"));
+        activity.setDate((String) activityMap.get("date"));
+        activity.setTime((String) activityMap.get("time"));
+        activity.setTitle((String) activityMap.get("title"));
+        activity.setStatus(parseStatus(activityMap.get("status")));
+
+        List<String> reminders = extractStringList(activityMap.get("reminders"));
+        if (reminders != null) {
+            activity.setReminders(reminders);
+        }
+
+        Object rawTasks = activityMap.get("tasks");
+        List<Task> tasks;
+        if (previous != null && Objects.equals(previous.raw.get("tasks"), rawTasks)) {
+            tasks = previous.tasks;
+        } else {
+            tasks = mapTasks(rawTasks);
+        }
+        activity.setTasks(new ArrayList<>(tasks));
+
+        List<Map<String, Object>> recommendationsList = extractMapList(activityMap.get("recommendations"));
+        List<Recommendation> recommendations = new ArrayList<>();
+        if (recommendationsList != null) {
+            for (Map<String, Object> recommendationMap : recommendationsList) {
+                String type = (String) recommendationMap.get("type");
+                String link = (String) recommendationMap.get("url");
+                recommendations.add(new Recommendation(type, link));
+            }
+        }
+        activity.setRecommendations(recommendations);
+        DefaultRecommendationsProvider.ensureDefaults(activity);
+
+        List<Map<String, Object>> commentsList = extractMapList(activityMap.get("comments"));
+        List<Comment> comments = new ArrayList<>();
+        if (commentsList != null) {
+            for (Map<String, Object> commentMap : commentsList) {
+                String userId = (String) commentMap.get("userId");
+                String text = (String) commentMap.get("text");
+                String timestamp = (String) commentMap.get("timestamp");
+                comments.add(new Comment(userId, text, timestamp));
+            }
+        }
+        activity.setComments(comments);
+
+        activity.setReactions(parseReactions(activityMap.get("reactions")));
+        return new ParsedActivity(activityMap, activity, Collections.unmodifiableList(tasks));
+    }
+
+    private List<Task> mapTasks(Object rawTasks) {
+        List<Map<String, Object>> tasksList = extractMapList(rawTasks);
+        List<Task> tasks = new ArrayList<>();
+        if (tasksList == null) {
+            return tasks;
+        }
+        for (Map<String, Object> taskMap : tasksList) {
+            Task taskParsed = TaskMapDecoder.decode(taskMap);
+            if (taskParsed != null) {
+                Object idValue = taskMap.get("id");
+                if (idValue == null) {
+                    idValue = taskMap.get("taskId");
+                }
+                if (idValue == null) {
+                    idValue = taskMap.get("title");
+                }
+                if (idValue != null) {
+                    taskParsed.setId(String.valueOf(idValue));
+                }
+                // Caches the stats key on the task so score lookups do not hash it again.
+                TaskStatsKeyUtils.buildKey(taskParsed);
+                tasks.add(taskParsed);
+            }
+        }
+        return tasks;
+    }
+
+    static String extractActivityId(Map<String, Object> activityMap) {
+        Object idValue = activityMap != null ? activityMap.get("id") : null;
+        if (idValue == null && activityMap != null) {
+            idValue = activityMap.get("activityId");
+        }
+        if (idValue == null && activityMap != null) {
+            idValue = activityMap.get("title");
+        }
+        return idValue != null ? String.valueOf(idValue) : null;
+    }
+
+    static Activity.Status parseStatus(Object statusValue) {
+        if (statusValue == null) {
+            return Activity.Status.CREATED;
+        }
+        String normalized = statusValue.toString().trim();
+        if (normalized.isEmpty()) {
+            return Activity.Status.CREATED;
+        }
+        try {
+            return Activity.Status.valueOf(normalized);
+        } catch (IllegalArgumentException ex) {
+            return Activity.Status.CREATED;
+        }
+    }
+
+    static Map<String, Long> parseReactions(Object reactionsObject) {
+        Map<String, Long> reactionCounts = new HashMap<>();
+        if (reactionsObject instanceof Map<?, ?> reactionsMap) {
+            for (Map.Entry<?, ?> entry : reactionsMap.entrySet()) {
+                Object key = entry.getKey();
+                Object value = entry.getValue();
+                if (key != null && value instanceof Number) {
+                    reactionCounts.put(String.valueOf(key), ((Number) value).longValue());
+                }
+            }
+        } else if (reactionsObject instanceof Number number) {
+            reactionCounts.put("likes", number.longValue());
+        }
+        return reactionCounts;
+    }
+
+    static List<Map<String, Object>> extractMapList(Object source) {
+        if (!(source instanceof List<?> list)) {
+            return null;
+        }
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Object item : list) {
+            Map<String, Object> converted = convertToStringObjectMap(item);
+            if (converted != null) {
+                result.add(converted);
+            }
+        }
+        return result;
+    }
+
+    static Map<String, Object> convertToStringObjectMap(Object value) {
+        if (!(value instanceof Map<?, ?> map)) {
+            return null;
+        }
+        Map<String, Object> result = new HashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getKey() instanceof String key) {
+                result.put(key, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static List<String> extractStringList(Object source) {
+        if (!(source instanceof List<?> list)) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (Object item : list) {
+            result.add(item != null ? item.toString() : null);
+        }
+        return result;
+    }
+
+    private static String asString(Object value) {
+        return value instanceof String text ? text : null;
+    }
+
+    /**
+     * Result of parsing one course document. Instances are immutable and shared between
+     * callers; an unchanged activity keeps the same {@link ParsedActivity} instance
+     * across parses so consumers can detect changes with a reference comparison.
+     */
+    public static final class ParsedCourse {
+        private final Course course;
+        private final List<ParsedActivity> activities;
+        private final Map<String, ParsedActivity> activityIndex;
+        private volatile CourseProgressIndex progressIndex;
+
+        private ParsedCourse(Course course,
+                             List<ParsedActivity> activities,
+                             Map<String, ParsedActivity> activityIndex) {
+            this.course = course;
+            this.activities = activities;
+            this.activityIndex = activityIndex;
+        }
+
+        public Course getCourse() {
+            return course;
+        }
+
+        /**
+         * Returns every top-level activity of the document, including the ones hidden
+         * from students by {@link ActivityVisibilityFilter}.
+         */
+        public List<ParsedActivity> getActivities() {
+            return activities;
+        }
+
+        /**
+         * Returns every activity of the document, top-level and inside modules, including
+         * the hidden ones.
+         */
+        public Collection<ParsedActivity> getAllActivities() {
+            return Collections.unmodifiableCollection(activityIndex.values());
+        }
+
+        public CourseProgressIndex getProgressIndex() {
+            CourseProgressIndex index = progressIndex;
+            if (index == null) {
+                index = CourseProgressIndex.build(course);
+                progressIndex = index;
+            }
+            return index;
+        }
+    }
+
+    public static final class ParsedActivity {
+        private final Map<String, Object> raw;
+        private final Activity activity;
+        private final List<Task> tasks;
+
+        private ParsedActivity(Map<String, Object> raw, Activity activity, List<Task> tasks) {
+            this.raw = raw;
+            this.activity = activity;
+            this.tasks = tasks;
+        }
+
+        public Map<String, Object> getRaw() {
+            return raw;
+        }
+
+        public Activity getActivity() {
+            return activity;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.choicecrafter.students.repositories;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Abstraction over the backend that serves the raw documents of the {@code COURSES}
+ * collection.
+ */
+public interface CourseDocumentSource {
+
+    /**
+     * Blocks until the documents that changed since the previous call are known. The first
+     * call, and the first call after the source lost track of the collection, returns a full
+     * listing of every document.
+     *
+     * @return the changed documents, or every document when {@link Changes#isFullListing()}.
+     * @throws Exception when the documents could not be fetched.
+     */
+    @NonNull
+    Changes fetchChanges() throws Exception;
+
+    /**
+     * Documents added, modified or removed since the previous {@link #fetchChanges()}.
+     */
+    final class Changes {
+        private final boolean fullListing;
+        private final List<RawCourseDocument> documents;
+        private final List<String> removedIds;
+
+        public Changes(boolean fullListing,
+                       @NonNull List<RawCourseDocument> documents,
+                       @NonNull List<String> removedIds) {
+            this.fullListing = fullListing;
+            this.documents = documents;
+            this.removedIds = removedIds;
+        }
+
+        /**
+         * Whether {@link #getDocuments()} lists the whole collection, in collection order, so
+         * documents missing from it were removed.
+         */
+        public boolean isFullListing() {
+            return fullListing;
+        }
+
+        /**
+         * Added and modified documents, or every document of a full listing.
+         */
+        @NonNull
+        public List<RawCourseDocument> getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Ids of removed documents. Empty for a full listing.
+         */
+        @NonNull
+        public List<String> getRemovedIds() {
+            return removedIds;
+        }
+    }
+
+    /**
+     * Raw data of one course document together with its document id.
+     */
+    final class RawCourseDocument {
+        private final String id;
+        private final Map<String, Object> data;
+
+        public RawCourseDocument(@NonNull String id, @NonNull Map<String, Object> data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        @NonNull
+        public String getId() {
+            return id;
+        }
+
+        @NonNull
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+}
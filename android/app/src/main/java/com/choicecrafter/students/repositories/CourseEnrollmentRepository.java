@@ -6,14 +6,10 @@ import com.choicecrafter.students.models.Activity;
 import com.choicecrafter.students.models.Course;
 import com.choicecrafter.students.models.CourseEnrollment;
 import com.choicecrafter.students.models.CourseProgress;
-import com.choicecrafter.students.models.Module;
 import com.choicecrafter.students.models.ModuleProgress;
 import com.choicecrafter.students.models.TaskStats;
-import com.choicecrafter.students.models.tasks.Task;
 import com.choicecrafter.students.utils.ActivityScoreCalculator;
-import com.choicecrafter.students.utils.TaskStatsKeyUtils;
 import com.google.android.gms.tasks.TaskCompletionSource;
-import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
@@ -21,8 +17,10 @@ import com.google.firebase.firestore.SetOptions;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -34,6 +32,7 @@ public class CourseEnrollmentRepository {
 
     private final FirebaseFirestore firestore = FirebaseFirestore.getInstance();
     private final CourseRepository courseRepository = new CourseRepository();
+    private final CourseDocumentParser courseDocumentParser = CourseDocumentParser.getInstance();
 
     public interface Callback<T> {
         void onSuccess(T result);
@@ -56,22 +55,42 @@ public class CourseEnrollmentRepository {
                         return;
                     }
 
-                    List<com.google.android.gms.tasks.Task<CourseEnrollment>> enrollmentTasks = new ArrayList<>();
+                    List<CourseEnrollment> enrollments = new ArrayList<>();
+                    Map<CourseEnrollment, DocumentSnapshot> enrollmentSnapshots = new IdentityHashMap<>();
+                    List<String> courseIds = new ArrayList<>();
                     for (DocumentSnapshot documentSnapshot : querySnapshot.getDocuments()) {
-                        enrollmentTasks.add(buildEnrollmentTask(documentSnapshot));
+                        CourseEnrollment enrollment = parseEnrollment(documentSnapshot);
+                        if (enrollment == null) {
+                            Log.w(TAG, "Skipping unreadable enrollment " + documentSnapshot.getId());
+                            continue;
+                        }
+                        enrollments.add(enrollment);
+                        enrollmentSnapshots.put(enrollment, documentSnapshot);
+                        courseIds.add(enrollment.getCourseId());
                     }
 
-                    Tasks.whenAllSuccess(enrollmentTasks)
-                            .addOnSuccessListener(results -> {
-                                List<CourseEnrollment> enrollments = new ArrayList<>();
-                                for (Object result : results) {
-                                    if (result instanceof CourseEnrollment enrollment) {
-                                        enrollments.add(enrollment);
-                                    }
+                    courseRepository.getCoursesByIds(courseIds, new CourseRepository.Callback<>() {
+                        @Override
+                        public void onSuccess(Map<String, Course> courses) {
+                            List<CourseEnrollment> resolved = new ArrayList<>(enrollments.size());
+                            for (CourseEnrollment enrollment : enrollments) {
+                                Course course = courses.get(enrollment.getCourseId());
+                                if (course == null) {
+                                    Log.w(TAG, "Skipping enrollment " + enrollment.getId()
+                                            + " for missing course " + enrollment.getCourseId());
+                                    continue;
                                 }
-                                callback.onSuccess(enrollments);
-                            })
-                            .addOnFailureListener(callback::onFailure);
+                                attachCourse(enrollment, course, enrollmentSnapshots.get(enrollment));
+                                resolved.add(enrollment);
+                            }
+                            callback.onSuccess(resolved);
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            callback.onFailure(e);
+                        }
+                    });
                 })
                 .addOnFailureListener(callback::onFailure);
     }
@@ -104,19 +123,23 @@ public class CourseEnrollmentRepository {
 
     private com.google.android.gms.tasks.Task<CourseEnrollment> buildEnrollmentTask(DocumentSnapshot documentSnapshot) {
         TaskCompletionSource<CourseEnrollment> taskCompletionSource = new TaskCompletionSource<>();
-        CourseEnrollment enrollment = documentSnapshot.toObject(CourseEnrollment.class);
+        CourseEnrollment enrollment = parseEnrollment(documentSnapshot);
         if (enrollment == null) {
             taskCompletionSource.setException(new IllegalStateException("Failed to parse enrollment document"));
             return taskCompletionSource.getTask();
         }
-        enrollment.setId(documentSnapshot.getId());
 
-        courseRepository.getCourseById(enrollment.getCourseId(), new CourseRepository.Callback<>() {
+        String courseId = enrollment.getCourseId();
+        courseRepository.getCoursesByIds(Collections.singletonList(courseId), new CourseRepository.Callback<>() {
             @Override
-            public void onSuccess(Course course) {
-                enrollment.setCourse(course);
-                CourseProgress progress = buildProgress(enrollment, documentSnapshot);
-                enrollment.setProgress(progress);
+            public void onSuccess(Map<String, Course> courses) {
+                Course course = courses.get(courseId);
+                if (course == null) {
+                    taskCompletionSource.setException(
+                            new IllegalArgumentException("Course not found for id " + courseId));
+                    return;
+                }
+                attachCourse(enrollment, course, documentSnapshot);
                 taskCompletionSource.setResult(enrollment);
             }
 
@@ -129,6 +152,19 @@ public class CourseEnrollmentRepository {
         return taskCompletionSource.getTask();
     }
 
+    private CourseEnrollment parseEnrollment(DocumentSnapshot documentSnapshot) {
+        CourseEnrollment enrollment = documentSnapshot.toObject(CourseEnrollment.class);
+        if (enrollment != null) {
+            enrollment.setId(documentSnapshot.getId());
+        }
+        return enrollment;
+    }
+
+    private void attachCourse(CourseEnrollment enrollment, Course course, DocumentSnapshot enrollmentSnapshot) {
+        enrollment.setCourse(course);
+        enrollment.setProgress(buildProgress(enrollment, enrollmentSnapshot));
+    }
+
     public void enrollUserInCourse(String userId, String courseId, Callback<Void> callback) {
         if (userId == null || userId.isEmpty() || courseId == null || courseId.isEmpty()) {
             if (callback != null) {
@@ -167,160 +203,116 @@ public class CourseEnrollmentRepository {
 
     private CourseProgress buildProgress(CourseEnrollment enrollment,
                                          DocumentSnapshot enrollmentSnapshot) {
-        int totalActivities = 0;
-        int totalTasks = 0;
-        Map<String, String> activityToModule = new HashMap<>();
-        Map<String, ModuleAccumulator> moduleAccumulators = new HashMap<>();
-        Map<String, ModuleProgress> legacyModuleProgress = new HashMap<>();
-        Map<String, Activity> activityLookup = new HashMap<>();
+        return buildProgress(courseDocumentParser.progressIndexFor(enrollment.getCourse()),
+                enrollment.getUserId(),
+                EnrollmentProgressSnapshots.read(enrollmentSnapshot),
+                enrollmentSnapshot != null ? enrollmentSnapshot.get("progressSummary") : null);
+    }
+
+    /**
+     * Builds the progress of an enrollment from its activity snapshots in a single pass.
+     * {@code progressSummary} is only read for module progress the course index does not
+     * know about.
+     */
+    static CourseProgress buildProgress(CourseProgressIndex index,
+                                        String userId,
+                                        List<Map<String, Object>> activitySnapshots,
+                                        Object progressSummaryObj) {
+        int[] moduleCompletedTasks = new int[index.getModuleCount()];
+        Map<String, ModuleProgress> legacyModuleProgress = null;
         int totalEarnedXp = 0;
         int totalAvailableXp = 0;
 
-        if (enrollment.getCourse() != null) {
-            if (enrollment.getCourse().getActivities() != null && !enrollment.getCourse().getActivities().isEmpty()) {
-                totalActivities = enrollment.getCourse().getActivities().size();
-                for (Activity activity : enrollment.getCourse().getActivities()) {
-                    if (activity == null) {
-                        continue;
-                    }
-                    indexActivity(activity, null, activityToModule, activityLookup);
-                    if (activity.getTasks() != null) {
-                        totalTasks += activity.getTasks().size();
-                    }
-                }
-            } else if (enrollment.getCourse().getModules() != null && !enrollment.getCourse().getModules().isEmpty()) {
-                List<Module> modules = enrollment.getCourse().getModules();
-                for (int moduleIndex = 0; moduleIndex < modules.size(); moduleIndex++) {
-                    Module module = modules.get(moduleIndex);
-                    if (module == null) {
-                        continue;
-                    }
-                    String moduleKey = resolveModuleKey(module, moduleIndex);
-                    ModuleAccumulator accumulator = moduleAccumulators.computeIfAbsent(moduleKey, key -> new ModuleAccumulator());
-                    List<Activity> moduleActivities = module.getActivities();
-                    if (moduleActivities != null) {
-                        totalActivities += moduleActivities.size();
-                        for (Activity activity : moduleActivities) {
-                            if (activity == null) {
-                                continue;
-                            }
-                            indexActivity(activity, moduleKey, activityToModule, activityLookup);
-                            int taskCount = activity.getTasks() != null ? activity.getTasks().size() : 0;
-                            totalTasks += taskCount;
-                            accumulator.totalTasks += taskCount;
-                        }
-                    }
-                }
-            }
-        }
-
         int activitiesStarted = 0;
         int attemptedTasks = 0;
         int completedTasks = 0;
-        List<Map<String, Object>> activitySnapshots = new ArrayList<>();
-
-        if (enrollmentSnapshot != null) {
-            Object progressSummaryObj = enrollmentSnapshot.get("progressSummary");
-            if (progressSummaryObj instanceof Map<?, ?> progressSummary) {
-                Object activitySnapshotsObj = progressSummary.get("activitySnapshots");
-                if (activitySnapshotsObj instanceof List<?> snapshotsList) {
-                    for (Object entry : snapshotsList) {
-                        if (entry instanceof Map<?, ?> snapshotMapRaw) {
-                            Map<String, Object> snapshotMap = new HashMap<>();
-                            for (Map.Entry<?, ?> snapshotEntry : snapshotMapRaw.entrySet()) {
-                                snapshotMap.put(String.valueOf(snapshotEntry.getKey()), snapshotEntry.getValue());
-                            }
-                            activitySnapshots.add(snapshotMap);
-
-                            String moduleKey = findModuleKeyForSnapshot(activityToModule, snapshotMap);
-                            ModuleAccumulator moduleAccumulator = moduleKey != null
-                                    ? moduleAccumulators.get(moduleKey)
-                                    : null;
-
-                            Object taskStatsObj = snapshotMap.get("taskStats");
-                            if (taskStatsObj instanceof Map<?, ?> taskStatsMap) {
-                                boolean hasAttempts = false;
-                                Map<String, TaskStats> rawStats = new HashMap<>();
-                                for (Map.Entry<?, ?> taskEntry : taskStatsMap.entrySet()) {
-                                    TaskStats taskStats = mapToTaskStats(taskEntry.getValue());
-                                    if (taskStats == null) {
-                                        continue;
-                                    }
-
-                                    String key = String.valueOf(taskEntry.getKey());
-                                    rawStats.put(key, taskStats);
-                                    String normalizedKey = normalizeString(key);
-                                    if (!normalizedKey.isEmpty()) {
-                                        rawStats.putIfAbsent(normalizedKey, taskStats);
-                                        rawStats.putIfAbsent(normalizedKey.toLowerCase(Locale.ROOT), taskStats);
-                                    }
-
-                                    boolean attempted = taskStats.resolveCompletionRatio() > 0.0
-                                            || taskStats.getRetries() != null
-                                            || taskStats.getTimeSpent() != null
-                                            || taskStats.getAttemptDateTime() != null;
-                                    if (attempted) {
-                                        hasAttempts = true;
-                                        attemptedTasks++;
-                                    }
-
-                                    if (taskStats.isCompleted()) {
-                                        completedTasks++;
-                                        if (moduleAccumulator != null) {
-                                            moduleAccumulator.completedTasks++;
-                                        }
-                                    }
-                                }
-                                if (hasAttempts) {
-                                    activitiesStarted++;
-                                }
+        for (Map<String, Object> snapshotMap : activitySnapshots) {
+            CourseProgressIndex.ActivityEntry activityEntry = index.findEntry(snapshotMap);
+            int moduleSlot = activityEntry != null ? activityEntry.getModuleSlot() : -1;
 
-                                Activity activity = findActivityForSnapshot(activityLookup, snapshotMap);
-                                if (activity != null) {
-                                    Map<String, TaskStats> statsForCalculation = rawStats.isEmpty()
-                                            ? rawStats
-                                            : enrichStatsMap(activity, rawStats);
-                                    totalEarnedXp += ActivityScoreCalculator.calculateEarnedXp(activity.getTasks(),
-                                            statsForCalculation);
-                                    totalAvailableXp += ActivityScoreCalculator.calculateTotalXp(activity.getTasks(),
-                                            statsForCalculation);
-                                }
-                            }
-                        }
+            Object taskStatsObj = snapshotMap.get("taskStats");
+            if (!(taskStatsObj instanceof Map<?, ?> taskStatsMap)) {
+                continue;
+            }
+            boolean hasAttempts = false;
+            Map<String, TaskStats> rawStats = activityEntry != null
+                    ? new HashMap<>(taskStatsMap.size() * 2)
+                    : null;
+            for (Map.Entry<?, ?> taskEntry : taskStatsMap.entrySet()) {
+                TaskStats taskStats = mapToTaskStats(taskEntry.getValue());
+                if (taskStats == null) {
+                    continue;
+                }
+                if (rawStats != null) {
+                    rawStats.put(String.valueOf(taskEntry.getKey()), taskStats);
+                }
+
+                boolean attempted = taskStats.resolveCompletionRatio() > 0.0
+                        || taskStats.getRetries() != null
+                        || taskStats.getTimeSpent() != null
+                        || taskStats.getAttemptDateTime() != null;
+                if (attempted) {
+                    hasAttempts = true;
+                    attemptedTasks++;
+                }
+
+                if (taskStats.isCompleted()) {
+                    completedTasks++;
+                    if (moduleSlot >= 0) {
+                        moduleCompletedTasks[moduleSlot]++;
                     }
                 }
+            }
+            if (hasAttempts) {
+                activitiesStarted++;
+            }
 
-                Object moduleProgressObj = progressSummary.get("moduleProgress");
-                if (moduleProgressObj instanceof Map<?, ?> moduleMap) {
-                    for (Map.Entry<?, ?> moduleEntry : moduleMap.entrySet()) {
-                        if (moduleEntry.getValue() instanceof Map<?, ?> moduleValues) {
-                            ModuleProgress module = new ModuleProgress();
-                            Object completed = moduleValues.get("completedTasks");
-                            if (completed instanceof Number number) {
-                                module.setCompletedTasks(number.intValue());
-                            }
-                            Object total = moduleValues.get("totalTasks");
-                            if (total instanceof Number number) {
-                                module.setTotalTasks(number.intValue());
-                            }
-                            legacyModuleProgress.put(String.valueOf(moduleEntry.getKey()), module);
+            if (activityEntry != null) {
+                Activity activity = activityEntry.getActivity();
+                Map<String, TaskStats> statsForCalculation = activityEntry.resolveStats(rawStats);
+                ActivityScoreCalculator.ActivityScore score =
+                        ActivityScoreCalculator.score(userId, activity.getId(),
+                                activity.getTasks(), statsForCalculation);
+                totalEarnedXp += score.getEarnedXp();
+                totalAvailableXp += score.getTotalXp();
+            }
+        }
+
+        if (progressSummaryObj instanceof Map<?, ?> progressSummary) {
+            Object moduleProgressObj = progressSummary.get("moduleProgress");
+            if (moduleProgressObj instanceof Map<?, ?> moduleMap) {
+                legacyModuleProgress = new HashMap<>();
+                for (Map.Entry<?, ?> moduleEntry : moduleMap.entrySet()) {
+                    if (moduleEntry.getValue() instanceof Map<?, ?> moduleValues) {
+                        ModuleProgress module = new ModuleProgress();
+                        Object completed = moduleValues.get("completedTasks");
+                        if (completed instanceof Number number) {
+                            module.setCompletedTasks(number.intValue());
+                        }
+                        Object total = moduleValues.get("totalTasks");
+                        if (total instanceof Number number) {
+                            module.setTotalTasks(number.intValue());
                         }
+                        legacyModuleProgress.put(String.valueOf(moduleEntry.getKey()), module);
                     }
                 }
             }
         }
 
         Map<String, ModuleProgress> moduleProgressMap = new HashMap<>();
-        for (Map.Entry<String, ModuleAccumulator> entry : moduleAccumulators.entrySet()) {
-            ModuleAccumulator accumulator = entry.getValue();
-            moduleProgressMap.put(entry.getKey(), new ModuleProgress(accumulator.completedTasks, accumulator.totalTasks));
+        for (int slot = 0; slot < moduleCompletedTasks.length; slot++) {
+            moduleProgressMap.put(index.getModuleKey(slot),
+                    new ModuleProgress(moduleCompletedTasks[slot], index.getModuleTaskTotal(slot)));
         }
-        for (Map.Entry<String, ModuleProgress> entry : legacyModuleProgress.entrySet()) {
-            moduleProgressMap.putIfAbsent(entry.getKey(), entry.getValue());
+        if (legacyModuleProgress != null) {
+            for (Map.Entry<String, ModuleProgress> entry : legacyModuleProgress.entrySet()) {
+                moduleProgressMap.putIfAbsent(entry.getKey(), entry.getValue());
+            }
         }
 
+        int totalTasks = index.getTotalTasks();
         double completionPercentage = totalTasks == 0 ? 0 : (completedTasks * 100.0) / totalTasks;
-        CourseProgress progress = new CourseProgress(totalActivities, activitiesStarted, totalTasks, attemptedTasks, completedTasks, completionPercentage);
+        CourseProgress progress = new CourseProgress(index.getTotalActivities(), activitiesStarted, totalTasks, attemptedTasks, completedTasks, completionPercentage);
         progress.setActivitySnapshots(activitySnapshots);
         progress.setModuleProgress(moduleProgressMap);
         progress.setEarnedXp(totalEarnedXp);
@@ -329,166 +321,7 @@ public class CourseEnrollmentRepository {
         return progress;
     }
 
-    private String resolveModuleKey(Module module, int index) {
-        String moduleId = normalizeString(module != null ? module.getId() : null);
-        if (!moduleId.isEmpty()) {
-            return moduleId;
-        }
-        String title = normalizeString(module != null ? module.getTitle() : null);
-        if (!title.isEmpty()) {
-            return title;
-        }
-        return "module_" + index;
-    }
-
-    private void indexActivity(Activity activity,
-                               String moduleKey,
-                               Map<String, String> activityToModule,
-                               Map<String, Activity> activityLookup) {
-        if (activity == null) {
-            return;
-        }
-
-        if (activityLookup != null) {
-            String activityId = normalizeString(activity.getId());
-            if (!activityId.isEmpty()) {
-                activityLookup.put(activityId, activity);
-                activityLookup.putIfAbsent(activityId.toLowerCase(Locale.ROOT), activity);
-            }
-            String title = normalizeString(activity.getTitle());
-            if (!title.isEmpty()) {
-                activityLookup.putIfAbsent(title, activity);
-                activityLookup.putIfAbsent(title.toLowerCase(Locale.ROOT), activity);
-            }
-        }
-
-        if (moduleKey == null || activityToModule == null) {
-            return;
-        }
-
-        String activityId = normalizeString(activity.getId());
-        if (!activityId.isEmpty()) {
-            activityToModule.put(activityId, moduleKey);
-            activityToModule.putIfAbsent(activityId.toLowerCase(Locale.ROOT), moduleKey);
-        }
-        String title = normalizeString(activity.getTitle());
-        if (!title.isEmpty()) {
-            activityToModule.putIfAbsent(title, moduleKey);
-            activityToModule.putIfAbsent(title.toLowerCase(Locale.ROOT), moduleKey);
-        }
-    }
-
-    private String findModuleKeyForSnapshot(Map<String, String> activityToModule,
-                                            Map<String, Object> snapshot) {
-        if (snapshot == null || activityToModule == null || activityToModule.isEmpty()) {
-            return null;
-        }
-        String[] keys = new String[]{"activityId", "activityTitle", "activityName"};
-        for (String key : keys) {
-            String identifier = normalize(snapshot.get(key));
-            if (!identifier.isEmpty()) {
-                String moduleKey = activityToModule.get(identifier);
-                if (moduleKey == null) {
-                    moduleKey = activityToModule.get(identifier.toLowerCase(Locale.ROOT));
-                }
-                if (moduleKey != null) {
-                    return moduleKey;
-                }
-            }
-        }
-        return null;
-    }
-
-    private Activity findActivityForSnapshot(Map<String, Activity> activityLookup,
-                                             Map<String, Object> snapshot) {
-        if (snapshot == null || activityLookup == null || activityLookup.isEmpty()) {
-            return null;
-        }
-        String[] keys = new String[]{"activityId", "activityTitle", "activityName"};
-        for (String key : keys) {
-            String identifier = normalize(snapshot.get(key));
-            if (!identifier.isEmpty()) {
-                Activity activity = activityLookup.get(identifier);
-                if (activity == null) {
-                    activity = activityLookup.get(identifier.toLowerCase(Locale.ROOT));
-                }
-                if (activity != null) {
-                    return activity;
-                }
-            }
-        }
-        return null;
-    }
-
-    private Map<String, TaskStats> enrichStatsMap(Activity activity,
-                                                  Map<String, TaskStats> rawStats) {
-        if (activity == null || rawStats == null || rawStats.isEmpty()) {
-            return rawStats;
-        }
-        Map<String, TaskStats> enriched = new HashMap<>(rawStats);
-        List<Task> tasks = activity.getTasks();
-        if (tasks == null || tasks.isEmpty()) {
-            return enriched;
-        }
-        for (Task task : tasks) {
-            if (task == null) {
-                continue;
-            }
-            String stableKey = TaskStatsKeyUtils.buildKey(task);
-            if (enriched.containsKey(stableKey)) {
-                continue;
-            }
-            TaskStats stats = tryResolveStatsForTask(task, rawStats);
-            if (stats != null) {
-                enriched.put(stableKey, stats);
-            }
-        }
-        return enriched;
-    }
-
-    private TaskStats tryResolveStatsForTask(Task task,
-                                             Map<String, TaskStats> rawStats) {
-        if (task == null || rawStats == null || rawStats.isEmpty()) {
-            return null;
-        }
-        String id = normalizeString(task.getId());
-        if (!id.isEmpty()) {
-            TaskStats stats = rawStats.get(id);
-            if (stats == null) {
-                stats = rawStats.get(id.toLowerCase(Locale.ROOT));
-            }
-            if (stats != null) {
-                return stats;
-            }
-        }
-        String title = normalizeString(task.getTitle());
-        if (!title.isEmpty()) {
-            TaskStats stats = rawStats.get(title);
-            if (stats == null) {
-                stats = rawStats.get(title.toLowerCase(Locale.ROOT));
-            }
-            if (stats != null) {
-                return stats;
-            }
-        }
-        for (Map.Entry<String, TaskStats> entry : rawStats.entrySet()) {
-            String key = normalizeString(entry.getKey());
-            if (!key.isEmpty() && !title.isEmpty() && key.equalsIgnoreCase(title)) {
-                return entry.getValue();
-            }
-        }
-        return null;
-    }
-
-    private String normalize(Object value) {
-        return value != null ? value.toString().trim() : "";
-    }
-
-    private String normalizeString(String value) {
-        return value != null ? value.trim() : "";
-    }
-
-    private TaskStats mapToTaskStats(Object value) {
+    private static TaskStats mapToTaskStats(Object value) {
         if (value instanceof TaskStats taskStats) {
             return taskStats;
         }
@@ -539,11 +372,6 @@ public class CourseEnrollmentRepository {
         return null;
     }
 
-    private static final class ModuleAccumulator {
-        private int totalTasks;
-        private int completedTasks;
-    }
-
     public void seedDummyEnrollments(String userId) {
         if (userId == null || userId.isEmpty()) {
             Log.w(TAG, "Cannot seed dummy enrollments without a user id");
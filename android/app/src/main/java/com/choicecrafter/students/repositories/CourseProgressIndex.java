@@ -0,0 +1,302 @@
+package com.choicecrafter.students.repositories;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.models.Activity;
+import com.choicecrafter.students.models.Course;
+import com.choicecrafter.students.models.Module;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.utils.TaskStatsKeyUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable lookup structure used to turn enrollment progress snapshots into a
+ * {@link com.choicecrafter.students.models.CourseProgress}.
+ * <p>
+ * The index resolves the activity id or title stored in a snapshot to its activity and
+ * module in one map lookup, and keeps the stats keys of every task precomputed, so the
+ * progress of an enrollment can be built without walking the course graph again. It is
+ * built once per parsed course and kept by {@link CourseDocumentParser} next to it.
+ */
+public final class CourseProgressIndex {
+
+    static final CourseProgressIndex EMPTY = new CourseProgressIndex(0, 0,
+            new String[0], new int[0], Collections.emptyMap());
+
+    private static final String[] SNAPSHOT_ID_FIELDS = {"activityId", "activityTitle", "activityName"};
+
+    private final int totalActivities;
+    private final int totalTasks;
+    private final String[] moduleKeys;
+    private final int[] moduleTaskTotals;
+    private final Map<String, ActivityEntry> entries;
+
+    private CourseProgressIndex(int totalActivities,
+                                int totalTasks,
+                                String[] moduleKeys,
+                                int[] moduleTaskTotals,
+                                Map<String, ActivityEntry> entries) {
+        this.totalActivities = totalActivities;
+        this.totalTasks = totalTasks;
+        this.moduleKeys = moduleKeys;
+        this.moduleTaskTotals = moduleTaskTotals;
+        this.entries = entries;
+    }
+
+    /**
+     * Indexes the top-level activities of the course or, when it has none, the activities
+     * of its modules.
+     */
+    @NonNull
+    public static CourseProgressIndex build(@Nullable Course course) {
+        if (course == null) {
+            return EMPTY;
+        }
+        Map<String, ActivityEntry> entries = new HashMap<>();
+        List<String> moduleKeys = new ArrayList<>();
+        List<Integer> moduleTotals = new ArrayList<>();
+        int totalActivities = 0;
+        int totalTasks = 0;
+
+        if (course.getActivities() != null && !course.getActivities().isEmpty()) {
+            totalActivities = course.getActivities().size();
+            for (Activity activity : course.getActivities()) {
+                if (activity == null) {
+                    continue;
+                }
+                ActivityEntry entry = new ActivityEntry(activity, -1);
+                addEntry(entries, entry);
+                totalTasks += entry.tasks.length;
+            }
+        } else if (course.getModules() != null && !course.getModules().isEmpty()) {
+            Map<String, Integer> moduleSlots = new HashMap<>();
+            List<Module> modules = course.getModules();
+            for (int moduleIndex = 0; moduleIndex < modules.size(); moduleIndex++) {
+                Module module = modules.get(moduleIndex);
+                if (module == null) {
+                    continue;
+                }
+                String moduleKey = resolveModuleKey(module, moduleIndex);
+                Integer slot = moduleSlots.get(moduleKey);
+                if (slot == null) {
+                    slot = moduleKeys.size();
+                    moduleSlots.put(moduleKey, slot);
+                    moduleKeys.add(moduleKey);
+                    moduleTotals.add(0);
+                }
+                List<Activity> moduleActivities = module.getActivities();
+                if (moduleActivities == null) {
+                    continue;
+                }
+                totalActivities += moduleActivities.size();
+                for (Activity activity : moduleActivities) {
+                    if (activity == null) {
+                        continue;
+                    }
+                    ActivityEntry entry = new ActivityEntry(activity, slot);
+                    addEntry(entries, entry);
+                    totalTasks += entry.tasks.length;
+                    moduleTotals.set(slot, moduleTotals.get(slot) + entry.tasks.length);
+                }
+            }
+        }
+
+        int[] totals = new int[moduleTotals.size()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = moduleTotals.get(i);
+        }
+        return new CourseProgressIndex(totalActivities, totalTasks,
+                moduleKeys.toArray(new String[0]), totals, entries);
+    }
+
+    public int getTotalActivities() {
+        return totalActivities;
+    }
+
+    public int getTotalTasks() {
+        return totalTasks;
+    }
+
+    public int getModuleCount() {
+        return moduleKeys.length;
+    }
+
+    @NonNull
+    public String getModuleKey(int slot) {
+        return moduleKeys[slot];
+    }
+
+    public int getModuleTaskTotal(int slot) {
+        return moduleTaskTotals[slot];
+    }
+
+    /**
+     * Finds the activity a progress snapshot refers to, trying its activity id, title and
+     * name in turn, each first as stored and then lower-cased.
+     */
+    @Nullable
+    public ActivityEntry findEntry(@Nullable Map<?, ?> snapshot) {
+        if (snapshot == null || entries.isEmpty()) {
+            return null;
+        }
+        for (String field : SNAPSHOT_ID_FIELDS) {
+            Object value = snapshot.get(field);
+            if (value == null) {
+                continue;
+            }
+            String identifier = value.toString().trim();
+            if (identifier.isEmpty()) {
+                continue;
+            }
+            ActivityEntry entry = entries.get(identifier);
+            if (entry == null) {
+                entry = entries.get(identifier.toLowerCase(Locale.ROOT));
+            }
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    static String resolveModuleKey(Module module, int index) {
+        String moduleId = trim(module != null ? module.getId() : null);
+        if (!moduleId.isEmpty()) {
+            return moduleId;
+        }
+        String title = trim(module != null ? module.getTitle() : null);
+        if (!title.isEmpty()) {
+            return title;
+        }
+        return "module_" + index;
+    }
+
+    private static void addEntry(Map<String, ActivityEntry> entries, ActivityEntry entry) {
+        String activityId = trim(entry.activity.getId());
+        if (!activityId.isEmpty()) {
+            entries.put(activityId, entry);
+            entries.putIfAbsent(activityId.toLowerCase(Locale.ROOT), entry);
+        }
+        String title = trim(entry.activity.getTitle());
+        if (!title.isEmpty()) {
+            entries.putIfAbsent(title, entry);
+            entries.putIfAbsent(title.toLowerCase(Locale.ROOT), entry);
+        }
+    }
+
+    private static String trim(String value) {
+        return value != null ? value.trim() : "";
+    }
+
+    /**
+     * One indexed activity together with its module slot and the lookup keys of its tasks.
+     */
+    public static final class ActivityEntry {
+        private final Activity activity;
+        private final int moduleSlot;
+        private final TaskKeys[] tasks;
+
+        private ActivityEntry(Activity activity, int moduleSlot) {
+            this.activity = activity;
+            this.moduleSlot = moduleSlot;
+            List<Task> activityTasks = activity.getTasks();
+            List<TaskKeys> keys = new ArrayList<>();
+            if (activityTasks != null) {
+                for (Task task : activityTasks) {
+                    keys.add(task != null ? new TaskKeys(task) : null);
+                }
+            }
+            this.tasks = keys.toArray(new TaskKeys[0]);
+        }
+
+        @NonNull
+        public Activity getActivity() {
+            return activity;
+        }
+
+        /**
+         * Slot of the module the activity belongs to, or {@code -1} for top-level activities.
+         */
+        public int getModuleSlot() {
+            return moduleSlot;
+        }
+
+        /**
+         * Maps the stats stored under arbitrary keys (stable key, task id or title, in any
+         * case) to the stable key of each task, ready for
+         * {@link com.choicecrafter.students.utils.ActivityScoreCalculator}.
+         */
+        @NonNull
+        public Map<String, TaskStats> resolveStats(@NonNull Map<String, TaskStats> rawStats) {
+            if (rawStats.isEmpty() || tasks.length == 0) {
+                return rawStats;
+            }
+            Map<String, TaskStats> resolved = new HashMap<>(tasks.length * 2);
+            Map<String, TaskStats> folded = null;
+            for (TaskKeys keys : tasks) {
+                if (keys == null || resolved.containsKey(keys.stableKey)) {
+                    continue;
+                }
+                TaskStats stats = keys.lookup(rawStats, false);
+                if (stats == null) {
+                    if (folded == null) {
+                        folded = foldKeys(rawStats);
+                    }
+                    stats = keys.lookup(folded, true);
+                }
+                if (stats != null) {
+                    resolved.put(keys.stableKey, stats);
+                }
+            }
+            return resolved;
+        }
+
+        private static Map<String, TaskStats> foldKeys(Map<String, TaskStats> rawStats) {
+            Map<String, TaskStats> folded = new HashMap<>(rawStats.size() * 2);
+            for (Map.Entry<String, TaskStats> entry : rawStats.entrySet()) {
+                String key = trim(entry.getKey());
+                if (!key.isEmpty()) {
+                    folded.putIfAbsent(key.toLowerCase(Locale.ROOT), entry.getValue());
+                }
+            }
+            return folded;
+        }
+    }
+
+    private static final class TaskKeys {
+        private final String stableKey;
+        private final String id;
+        private final String title;
+        private final String foldedStableKey;
+        private final String foldedId;
+        private final String foldedTitle;
+
+        TaskKeys(Task task) {
+            stableKey = TaskStatsKeyUtils.buildKey(task);
+            id = trim(task.getId());
+            title = trim(task.getTitle());
+            foldedStableKey = stableKey.trim().toLowerCase(Locale.ROOT);
+            foldedId = id.toLowerCase(Locale.ROOT);
+            foldedTitle = title.toLowerCase(Locale.ROOT);
+        }
+
+        TaskStats lookup(Map<String, TaskStats> stats, boolean folded) {
+            TaskStats result = stats.get(folded ? foldedStableKey : stableKey);
+            if (result == null && !id.isEmpty()) {
+                result = stats.get(folded ? foldedId : id);
+            }
+            if (result == null && !title.isEmpty()) {
+                result = stats.get(folded ? foldedTitle : title);
+            }
+            return result;
+        }
+    }
+}
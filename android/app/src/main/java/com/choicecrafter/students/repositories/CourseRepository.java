@@ -1,57 +1,67 @@
 package com.choicecrafter.students.repositories;
 
+import static com.choicecrafter.students.repositories.CourseDocumentParser.extractMapList;
+import static com.choicecrafter.students.repositories.CourseDocumentParser.parseReactions;
+
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import com.choicecrafter.students.models.Comment;
 import com.choicecrafter.students.models.Course;
-import com.choicecrafter.students.models.tasks.CodingChallengeTask;
 import com.choicecrafter.students.models.tasks.FillInTheBlank;
-import com.choicecrafter.students.models.tasks.InfoCardTask;
-import com.choicecrafter.students.models.tasks.MatchingPairTask;
 import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
 import com.choicecrafter.students.models.Recommendation;
-import com.choicecrafter.students.models.tasks.OrderingTask;
-import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
 import com.choicecrafter.students.models.tasks.Task;
-import com.choicecrafter.students.models.tasks.SupportingContent;
 import com.choicecrafter.students.models.Teacher;
-import com.choicecrafter.students.models.tasks.TrueFalseTask;
-import com.choicecrafter.students.models.Activity;
-import com.choicecrafter.students.models.Module;
-import com.choicecrafter.students.utils.ActivityVisibilityFilter;
-import com.choicecrafter.students.utils.DefaultRecommendationsProvider;
 import android.util.Log;
 
 import com.google.firebase.firestore.DocumentReference;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
-import com.google.gson.Gson;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 
 public class CourseRepository {
 
     private static final String TAG = "CourseRepository";
+    private static final int WHERE_IN_LIMIT = 10;
+    private static final ExecutorService parseExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final CourseCatalogSynchronizer catalogSynchronizer = new CourseCatalogSynchronizer(
+            new FirestoreCourseDocumentSource(),
+            CourseCatalogStore.getInstance(),
+            CourseDocumentParser.getInstance());
 
     private final FirebaseFirestore db = FirebaseFirestore.getInstance();
-    private final Gson gson = new Gson();
     private final CourseCache courseCache = CourseCache.getInstance();
+    private final CourseDocumentParser courseDocumentParser = CourseDocumentParser.getInstance();
     private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
@@ -64,30 +74,35 @@ public class CourseRepository {
             postSuccess(callback, courseCache.getCourses());
             return;
         }
-        db.collection("COURSES").get().addOnCompleteListener(backgroundExecutor, task -> {
-            if (!task.isSuccessful()) {
-                Exception exception = task.getException();
-                if (exception == null) {
-                    exception = new IllegalStateException("Failed to fetch courses");
-                }
-                postFailure(callback, exception);
-                return;
-            }
-
-            if (task.getResult() == null) {
-                postFailure(callback, new IllegalStateException("No course data available"));
-                return;
+        backgroundExecutor.execute(() -> {
+            try {
+                List<Course> courses = catalogSynchronizer.synchronize();
+                courseCache.setCourses(courses);
+                postSuccess(callback, courses);
+            } catch (Exception e) {
+                Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception
+                        ? (Exception) e.getCause()
+                        : e;
+                postFailure(callback, cause);
             }
+        });
+    }
 
+    /**
+     * Serves the courses stored on disk by the last successful sync without touching the
+     * network. Posts an empty list when no snapshot is available yet.
+     */
+    public void loadCachedCourses(final Callback<List<Course>> callback) {
+        if (courseCache.isLoaded()) {
+            postSuccess(callback, courseCache.getCourses());
+            return;
+        }
+        backgroundExecutor.execute(() -> {
             try {
-                List<Course> courses = new ArrayList<>();
-
-                for (QueryDocumentSnapshot courseDoc : task.getResult()) {
-                    Course course = mapCourseDocument(courseDoc);
-                    courses.add(course);
+                List<Course> courses = catalogSynchronizer.loadSnapshot();
+                if (!courses.isEmpty()) {
+                    courseCache.setCourses(courses);
                 }
-
-                courseCache.setCourses(courses);
                 postSuccess(callback, courses);
             } catch (Exception e) {
                 postFailure(callback, e);
@@ -101,7 +116,7 @@ public class CourseRepository {
                 .get()
                 .addOnSuccessListener(documentSnapshot -> {
                     if (documentSnapshot.exists()) {
-                        Course course = mapCourseDocument(documentSnapshot);
+                        Course course = courseDocumentParser.parse(documentSnapshot);
                         callback.onSuccess(course);
                     } else {
                         callback.onFailure(new IllegalArgumentException("Course not found for id " + courseId));
@@ -110,163 +125,95 @@ public class CourseRepository {
                 .addOnFailureListener(callback::onFailure);
     }
 
-    private Course mapCourseDocument(DocumentSnapshot courseDoc) {
-        Course course = new Course();
-        course.setId(courseDoc.getId());
-        course.setDescription(courseDoc.getString("description"));
-        course.setTitle(courseDoc.getString("title"));
-        course.setTeacher(courseDoc.getString("teacher"));
-        course.setImageUrl(courseDoc.getString("imageUrl"));
-
-        List<Map<String, Object>> activitiesList = extractMapList(courseDoc.get("activities"));
-        List<Activity> activities = new ArrayList<>();
-
-        if (activitiesList != null) {
-            for (Map<String, Object> activityMap : activitiesList) {
-                Activity activity = mapActivity(activityMap);
-                if (ActivityVisibilityFilter.isVisible(activity)) {
-                    activities.add(activity);
+    /**
+     * Resolves several courses at once. Courses already held by {@link CourseCache} are
+     * served from memory; the rest are fetched with chunked {@code whereIn} queries on the
+     * document id and parsed in parallel. Ids without a matching document are left out of
+     * the result map, which keeps the order of the requested ids.
+     */
+    public void getCoursesByIds(Collection<String> courseIds, final Callback<Map<String, Course>> callback) {
+        Set<String> distinctIds = new LinkedHashSet<>();
+        if (courseIds != null) {
+            for (String courseId : courseIds) {
+                if (courseId != null && !courseId.isEmpty()) {
+                    distinctIds.add(courseId);
                 }
             }
         }
 
-        course.setActivities(activities);
-
-        List<Map<String, Object>> modulesList = extractMapList(courseDoc.get("modules"));
-        if (modulesList != null) {
-            List<Module> modules = new ArrayList<>();
-            for (Map<String, Object> moduleMap : modulesList) {
-                Module module = mapModule(moduleMap, course.getId());
-                if (module != null) {
-                    modules.add(module);
-                }
+        Map<String, Course> cached = new HashMap<>();
+        List<String> missingIds = new ArrayList<>();
+        for (String courseId : distinctIds) {
+            Course course = courseCache.getCourse(courseId);
+            if (course != null) {
+                cached.put(courseId, course);
+            } else {
+                missingIds.add(courseId);
             }
-            course.setModules(modules);
         }
-        return course;
-    }
-
-    private Activity mapActivity(Map<String, Object> activityMap) {
-        Activity activity = new Activity();
-        activity.setId(extractActivityId(activityMap));
-        activity.setDescription((String) activityMap.get("description"));
-        activity.setType((String) activityMap.get("type"));
-        activity.setDate((String) activityMap.get("date"));
-        activity.setTime((String) activityMap.get("time"));
-        activity.setTitle((String) activityMap.get("title"));
-
-        Activity.Status status = parseStatus(activityMap != null ? activityMap.get("status") : null);
-        if (status != null) {
-            activity.setStatus(status);
+        if (missingIds.isEmpty()) {
+            postSuccess(callback, orderById(distinctIds, cached));
+            return;
         }
 
-        List<Map<String, Object>> tasksList = extractMapList(activityMap.get("tasks"));
-        List<Task> tasks = new ArrayList<>();
-        if (tasksList != null) {
-            for (Map<String, Object> taskMap : tasksList) {
-                JsonObject taskJson = JsonParser.parseString(gson.toJson(taskMap)).getAsJsonObject();
-                Task taskParsed = parseTask(taskJson);
-                if (taskParsed != null) {
-                    Object idValue = taskMap.get("id");
-                    if (idValue == null) {
-                        idValue = taskMap.get("taskId");
-                    }
-                    if (idValue == null) {
-                        idValue = taskMap.get("title");
-                    }
-                    if (idValue != null) {
-                        taskParsed.setId(String.valueOf(idValue));
-                    }
-                    tasks.add(taskParsed);
-                }
+        backgroundExecutor.execute(() -> {
+            try {
+                Map<String, Course> resolved = new HashMap<>(cached);
+                resolved.putAll(fetchAndParseCourses(missingIds));
+                postSuccess(callback, orderById(distinctIds, resolved));
+            } catch (Exception e) {
+                Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception
+                        ? (Exception) e.getCause()
+                        : e;
+                postFailure(callback, cause);
             }
-        }
-        activity.setTasks(tasks);
+        });
+    }
 
-        List<Map<String, Object>> recommendationsList = extractMapList(activityMap.get("recommendations"));
-        List<Recommendation> recommendations = new ArrayList<>();
-        if (recommendationsList != null) {
-            for (Map<String, Object> recommendationMap : recommendationsList) {
-                String type = (String) recommendationMap.get("type");
-                String link = (String) recommendationMap.get("url");
-                recommendations.add(new Recommendation(type, link));
-            }
+    private Map<String, Course> fetchAndParseCourses(List<String> courseIds) throws Exception {
+        List<com.google.android.gms.tasks.Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (int start = 0; start < courseIds.size(); start += WHERE_IN_LIMIT) {
+            List<String> chunk = courseIds.subList(start, Math.min(start + WHERE_IN_LIMIT, courseIds.size()));
+            queries.add(db.collection("COURSES")
+                    .whereIn(FieldPath.documentId(), new ArrayList<>(chunk))
+                    .get());
         }
-        activity.setRecommendations(recommendations);
-        DefaultRecommendationsProvider.ensureDefaults(activity);
 
-        List<Map<String, Object>> commentsList = extractMapList(activityMap.get("comments"));
-        List<Comment> comments = new ArrayList<>();
-        if (commentsList != null) {
-            for (Map<String, Object> commentMap : commentsList) {
-                String userId = (String) commentMap.get("userId");
-                String text = (String) commentMap.get("text");
-                String timestamp = (String) commentMap.get("timestamp");
-                comments.add(new Comment(userId, text, timestamp));
+        List<DocumentSnapshot> documents = new ArrayList<>();
+        for (com.google.android.gms.tasks.Task<QuerySnapshot> query : queries) {
+            QuerySnapshot snapshot = Tasks.await(query);
+            if (snapshot != null) {
+                documents.addAll(snapshot.getDocuments());
             }
         }
-        activity.setComments(comments);
-
-        Map<String, Long> reactions = parseReactions(activityMap.get("reactions"));
-        activity.setReactions(reactions);
-        return activity;
-    }
-
-    private String extractActivityId(Map<String, Object> activityMap) {
-        Object idValue = activityMap != null ? activityMap.get("id") : null;
-        if (idValue == null && activityMap != null) {
-            idValue = activityMap.get("activityId");
-        }
-        if (idValue == null && activityMap != null) {
-            idValue = activityMap.get("title");
-        }
-        return idValue != null ? String.valueOf(idValue) : null;
-    }
 
-    private Module mapModule(Map<String, Object> moduleMap, String courseId) {
-        if (moduleMap == null) {
-            return null;
+        List<Callable<Course>> parseJobs = new ArrayList<>(documents.size());
+        for (DocumentSnapshot document : documents) {
+            parseJobs.add(() -> courseDocumentParser.parse(document));
         }
+        List<Future<Course>> parsed = parseExecutor.invokeAll(parseJobs);
 
-        Module module = new Module();
-        module.setId((String) moduleMap.get("id"));
-        module.setTitle((String) moduleMap.get("title"));
-        module.setDescription((String) moduleMap.get("description"));
-        module.setCourseId(courseId);
-
-        List<Map<String, Object>> activitiesList = extractMapList(moduleMap.get("activities"));
-        List<Activity> activities = new ArrayList<>();
-        if (activitiesList != null) {
-            for (Map<String, Object> activityMap : activitiesList) {
-                Activity activity = mapActivity(activityMap);
-                if (ActivityVisibilityFilter.isVisible(activity)) {
-                    activities.add(activity);
-                }
+        Map<String, Course> courses = new HashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            Course course = parsed.get(i).get();
+            if (course != null) {
+                courses.put(documents.get(i).getId(), course);
             }
         }
-        module.setActivities(activities);
-
-        Object completionObj = moduleMap.get("completedPercentage");
-        if (completionObj instanceof Number number) {
-            module.setCompletedPercentage(number.intValue());
-        }
-
-        return module;
+        return courses;
     }
 
-    private Activity.Status parseStatus(Object statusValue) {
-        if (statusValue == null) {
-            return Activity.Status.CREATED;
-        }
-        String normalized = statusValue.toString().trim();
-        if (normalized.isEmpty()) {
-            return Activity.Status.CREATED;
-        }
-        try {
-            return Activity.Status.valueOf(normalized);
-        } catch (IllegalArgumentException ex) {
-            return Activity.Status.CREATED;
+    private static Map<String, Course> orderById(Collection<String> courseIds, Map<String, Course> courses) {
+        Map<String, Course> ordered = new LinkedHashMap<>();
+        for (String courseId : courseIds) {
+            Course course = courses.get(courseId);
+            if (course != null) {
+                ordered.put(courseId, course);
+            } else {
+                Log.w(TAG, "No course found for id " + courseId);
+            }
         }
+        return ordered;
     }
 
     public void addComment(String courseId, String activityIdOrTitle, Comment comment) {
@@ -299,8 +246,11 @@ public class CourseRepository {
                 transaction.update(courseRef, "modules", modules);
             }
             return null;
-        }).addOnSuccessListener(unused -> courseCache.clear())
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to add comment to activity", e));
+        }).addOnSuccessListener(unused -> {
+            if (!courseCache.applyComment(courseId, activityIdOrTitle, comment)) {
+                courseCache.clear();
+            }
+        }).addOnFailureListener(e -> Log.e(TAG, "Failed to add comment to activity", e));
     }
 
     public void addReaction(String courseId, String activityIdOrTitle, String reactionType) {
@@ -346,7 +296,9 @@ public class CourseRepository {
             }
             return finalCounts != null ? new HashMap<>(finalCounts) : null;
         }).addOnSuccessListener(reactionCounts -> {
-            courseCache.clear();
+            if (!courseCache.applyReactionCounts(courseId, activityIdOrTitle, reactionCounts)) {
+                courseCache.clear();
+            }
             if (callback != null) {
                 callback.onSuccess(reactionCounts);
             }
@@ -358,128 +310,6 @@ public class CourseRepository {
         });
     }
 
-    // Factory method to parse Task
-    private Task parseTask(JsonObject taskJson) {
-        if (taskJson == null) {
-            Log.w(TAG, "Skipping null task definition");
-            return null;
-        }
-
-        if (!taskJson.has("type") || taskJson.get("type").isJsonNull()) {
-            Log.w(TAG, "Task entry is missing a type field. Skipping task: " + taskJson);
-            return null;
-        }
-
-        String type = taskJson.get("type").getAsString();
-        if (type == null) {
-            Log.w(TAG, "Task type is null. Skipping task: " + taskJson);
-            return null;
-        }
-
-        String normalizedType = type.trim();
-        if (normalizedType.isEmpty()) {
-            Log.w(TAG, "Task type is empty. Skipping task: " + taskJson);
-            return null;
-        }
-
-        try {
-            Task parsedTask = switch (normalizedType) {
-                case "MultipleChoice" -> gson.fromJson(taskJson, MultipleChoiceQuestion.class);
-                case "FillInTheBlank" -> gson.fromJson(taskJson, FillInTheBlank.class);
-                case "MatchingPair" -> gson.fromJson(taskJson, MatchingPairTask.class);
-                case "Ordering" -> gson.fromJson(taskJson, OrderingTask.class);
-                case "InfoCard" -> gson.fromJson(taskJson, InfoCardTask.class);
-                case "CodingChallenge" -> gson.fromJson(taskJson, CodingChallengeTask.class);
-                case "TrueFalse" -> gson.fromJson(taskJson, TrueFalseTask.class);
-                case "SpotError" -> gson.fromJson(taskJson, SpotTheErrorTask.class);
-                default -> {
-                    Log.w(TAG, "Unknown task type '" + normalizedType + "'. Skipping task: " + taskJson);
-                    yield null;
-                }
-            };
-
-            if (parsedTask != null) {
-                applySupportingContent(taskJson, parsedTask);
-            }
-
-            return parsedTask;
-        } catch (RuntimeException ex) {
-            Log.e(TAG, "Failed to parse task of type " + normalizedType + ": " + taskJson, ex);
-            return null;
-        }
-    }
-
-    private void applySupportingContent(JsonObject taskJson, Task parsedTask) {
-        if (!(parsedTask instanceof MultipleChoiceQuestion || parsedTask instanceof FillInTheBlank)) {
-            return;
-        }
-
-        SupportingContent supportingContent = null;
-
-        if (taskJson.has("supportingContent") && taskJson.get("supportingContent").isJsonObject()) {
-            supportingContent = gson.fromJson(taskJson.getAsJsonObject("supportingContent"), SupportingContent.class);
-        } else {
-            String supportingText = normalizeString(getAsString(taskJson, "supportingText"));
-            String supportingImageUrl = normalizeString(getAsString(taskJson, "supportingImageUrl"));
-            if (supportingImageUrl == null) {
-                supportingImageUrl = normalizeString(getAsString(taskJson, "supportingImage"));
-            }
-
-            if (supportingText != null || supportingImageUrl != null) {
-                supportingContent = new SupportingContent(supportingText, supportingImageUrl);
-            }
-        }
-
-        if (supportingContent == null) {
-            return;
-        }
-
-        if (parsedTask instanceof MultipleChoiceQuestion multipleChoiceQuestion) {
-            multipleChoiceQuestion.setSupportingContent(supportingContent);
-        } else if (parsedTask instanceof FillInTheBlank fillInTheBlank) {
-            fillInTheBlank.setSupportingContent(supportingContent);
-        }
-    }
-
-    private String getAsString(JsonObject jsonObject, String memberName) {
-        if (jsonObject == null || memberName == null || !jsonObject.has(memberName)) {
-            return null;
-        }
-        if (jsonObject.get(memberName).isJsonNull()) {
-            return null;
-        }
-        try {
-            return jsonObject.get(memberName).getAsString();
-        } catch (ClassCastException | IllegalStateException ex) {
-            Log.w(TAG, "Failed to read string value for " + memberName + " in " + jsonObject, ex);
-            return null;
-        }
-    }
-
-    private String normalizeString(String value) {
-        if (value == null) {
-            return null;
-        }
-        String trimmed = value.trim();
-        return trimmed.isEmpty() ? null : trimmed;
-    }
-
-    private Map<String, Long> parseReactions(Object reactionsObject) {
-        Map<String, Long> reactionCounts = new HashMap<>();
-        if (reactionsObject instanceof Map<?, ?> reactionsMap) {
-            for (Map.Entry<?, ?> entry : reactionsMap.entrySet()) {
-                Object key = entry.getKey();
-                Object value = entry.getValue();
-                if (key != null && value instanceof Number) {
-                    reactionCounts.put(String.valueOf(key), ((Number) value).longValue());
-                }
-            }
-        } else if (reactionsObject instanceof Number number) {
-            reactionCounts.put("likes", number.longValue());
-        }
-        return reactionCounts;
-    }
-
     private boolean matchesActivity(Map<String, Object> activity, String activityIdOrTitle) {
         if (activity == null || activityIdOrTitle == null) {
             return false;
@@ -507,20 +337,6 @@ public class CourseRepository {
         };
     }
 
-    private List<Map<String, Object>> extractMapList(Object source) {
-        if (!(source instanceof List<?> list)) {
-            return null;
-        }
-        List<Map<String, Object>> result = new ArrayList<>();
-        for (Object item : list) {
-            Map<String, Object> converted = convertToStringObjectMap(item);
-            if (converted != null) {
-                result.add(converted);
-            }
-        }
-        return result;
-    }
-
     private boolean updateCommentsInActivities(List<Map<String, Object>> activities,
                                                String activityIdOrTitle,
                                                Comment comment) {
@@ -634,19 +450,6 @@ public class CourseRepository {
         return updated;
     }
 
-    private Map<String, Object> convertToStringObjectMap(Object value) {
-        if (!(value instanceof Map<?, ?> map)) {
-            return null;
-        }
-        Map<String, Object> result = new HashMap<>();
-        for (Map.Entry<?, ?> entry : map.entrySet()) {
-            if (entry.getKey() instanceof String key) {
-                result.put(key, entry.getValue());
-            }
-        }
-        return result;
-    }
-
     public interface Callback<T> {
         void onSuccess(T result);
 
@@ -783,7 +586,7 @@ public class CourseRepository {
         try (InputStream inputStream = context.getAssets().open(assetPath);
              InputStreamReader reader = new InputStreamReader(inputStream)) {
             JsonObject courseJson = JsonParser.parseReader(reader).getAsJsonObject();
-            Map<String, Object> courseMap = gson.fromJson(courseJson, Map.class);
+            Map<String, Object> courseMap = toFirestoreMap(courseJson);
             String courseId = null;
             if (courseJson.has("id")) {
                 courseId = courseJson.get("id").getAsString();
@@ -829,4 +632,41 @@ public class CourseRepository {
             }
         }
     }
+
+    /**
+     * Converts a course asset to the maps, lists and primitives Firestore stores. Numbers
+     * become doubles, as they did when the asset was read into a map with Gson.
+     */
+    private static Map<String, Object> toFirestoreMap(JsonObject json) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            map.put(entry.getKey(), toFirestoreValue(entry.getValue()));
+        }
+        return map;
+    }
+
+    private static Object toFirestoreValue(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonObject()) {
+            return toFirestoreMap(element.getAsJsonObject());
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            List<Object> list = new ArrayList<>(array.size());
+            for (JsonElement item : array) {
+                list.add(toFirestoreValue(item));
+            }
+            return list;
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        if (primitive.isNumber()) {
+            return primitive.getAsDouble();
+        }
+        return primitive.getAsString();
+    }
 }
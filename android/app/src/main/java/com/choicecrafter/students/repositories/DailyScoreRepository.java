@@ -0,0 +1,293 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.analytics.DailyScoreSeries;
+import com.choicecrafter.students.analytics.UsageRollupBackfill;
+import com.choicecrafter.students.analytics.WeeklyUsageRollup;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Per-user {@link DailyScoreSeries}, cached in memory and in one small file per user.
+ * <p>
+ * {@link TaskStatsWriteQueue} adds the rollup changes of every write, so the series of a
+ * loaded user follows new attempts without reading anything. A refresh that overlapped
+ * the write may or may not have read it; the written rollups are then read back and
+ * merged instead, so a write is never counted twice. {@link #refresh} reads only
+ * the rollups from the last synced week on, which covers writes from other devices; only a
+ * user without a cached series has all their rollups read once, backfilling them first when
+ * needed. The statistics screen reads its ranges from the series instead of the attempt
+ * history.
+ */
+public class DailyScoreRepository {
+
+    private static final String TAG = "DailyScoreRepository";
+    private static final String DIRECTORY_NAME = "daily_scores";
+
+    private static final DailyScoreRepository INSTANCE = new DailyScoreRepository();
+
+    private final Map<String, DailyScoreSeries> seriesByUser = new ConcurrentHashMap<>();
+    private final Map<String, RefreshState> refreshStates = new ConcurrentHashMap<>();
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private volatile File directory;
+
+    public static DailyScoreRepository getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Stores the series under the application's files directory. Until then they are only
+     * kept in memory.
+     */
+    public void attach(@NonNull File filesDirectory) {
+        this.directory = new File(filesDirectory, DIRECTORY_NAME);
+    }
+
+    /**
+     * Returns the series of {@code userId} if it was already loaded in this process.
+     */
+    @Nullable
+    public DailyScoreSeries peek(@NonNull String userId) {
+        return seriesByUser.get(userId);
+    }
+
+    /**
+     * Marks the start of a rollup write for {@code userId}; the result is passed to
+     * {@link #addRollups} once the write succeeded.
+     */
+    public int beginWrite(@NonNull String userId) {
+        RefreshState state = refreshState(userId);
+        synchronized (state) {
+            return state.generation;
+        }
+    }
+
+    /**
+     * Adds the changes of rollups that were just written for {@code userId}, in a write
+     * started at {@code writeGeneration}. If a refresh ran while the write was in flight the
+     * written rollups are read back instead. Users whose series is not loaded are skipped;
+     * their next refresh reads the rollups back.
+     */
+    public void addRollups(@NonNull String userId,
+                           int writeGeneration,
+                           @NonNull Collection<WeeklyUsageRollup> rollups) {
+        DailyScoreSeries series = seriesByUser.get(userId);
+        if (series == null || rollups.isEmpty()) {
+            return;
+        }
+        RefreshState state = refreshState(userId);
+        synchronized (state) {
+            if (state.generation == writeGeneration && state.running == 0) {
+                for (WeeklyUsageRollup rollup : rollups) {
+                    series.addRollup(rollup);
+                }
+                save(series);
+                return;
+            }
+        }
+        readBack(series, rollups);
+    }
+
+    /**
+     * Brings the series of {@code userId} up to date with the stored rollups and resolves to
+     * it.
+     */
+    @NonNull
+    public Task<DailyScoreSeries> refresh(@NonNull FirebaseFirestore db, @NonNull String userId) {
+        RefreshState state = refreshState(userId);
+        synchronized (state) {
+            state.generation++;
+            state.running++;
+        }
+        return load(userId).onSuccessTask(series -> {
+            int currentWeekStart = (int) WeeklyUsageRollup.weekStartOf(LocalDate.now(WeeklyUsageRollup.ZONE)).toEpochDay();
+            Task<List<WeeklyUsageRollup>> rollups = series.isSynced()
+                    ? readRollupsSince(db, userId, LocalDate.ofEpochDay(series.getSyncedWeekStart()))
+                    : readAllRollups(db, userId);
+            return rollups.onSuccessTask(read -> {
+                for (WeeklyUsageRollup rollup : read) {
+                    series.mergeRollup(rollup);
+                }
+                series.markSynced(currentWeekStart);
+                save(series);
+                Log.i(TAG, "Refreshed " + series + " from " + read.size() + " rollup(s)");
+                return Tasks.forResult(series);
+            });
+        }).addOnCompleteListener(task -> {
+            synchronized (state) {
+                state.running--;
+                state.generation++;
+            }
+        });
+    }
+
+    /**
+     * Reads the stored totals of the given rollups and merges them into the series.
+     */
+    private void readBack(DailyScoreSeries series, Collection<WeeklyUsageRollup> rollups) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        List<Task<DocumentSnapshot>> reads = new ArrayList<>();
+        for (WeeklyUsageRollup rollup : rollups) {
+            reads.add(db.collection(WeeklyUsageRollup.COLLECTION).document(rollup.getDocumentId()).get());
+        }
+        Tasks.whenAllSuccess(reads)
+                .addOnSuccessListener(documents -> {
+                    for (Object document : documents) {
+                        DocumentSnapshot snapshot = (DocumentSnapshot) document;
+                        if (snapshot.exists()) {
+                            series.mergeRollup(WeeklyUsageRollup.fromSnapshot(snapshot));
+                        }
+                    }
+                    save(series);
+                })
+                .addOnFailureListener(e -> Log.w(TAG, "Failed to read back the rollups of " + series.getUserId(), e));
+    }
+
+    private RefreshState refreshState(String userId) {
+        return refreshStates.computeIfAbsent(userId, unused -> new RefreshState());
+    }
+
+    private Task<DailyScoreSeries> load(String userId) {
+        DailyScoreSeries loaded = seriesByUser.get(userId);
+        if (loaded != null) {
+            return Tasks.forResult(loaded);
+        }
+        return Tasks.call(diskExecutor, () -> {
+            DailyScoreSeries series = seriesByUser.get(userId);
+            if (series == null) {
+                series = read(userId);
+                DailyScoreSeries previous = seriesByUser.putIfAbsent(userId, series);
+                if (previous != null) {
+                    series = previous;
+                }
+            }
+            return series;
+        });
+    }
+
+    private static Task<List<WeeklyUsageRollup>> readRollupsSince(FirebaseFirestore db, String userId, LocalDate weekStart) {
+        return toRollups(db.collection(WeeklyUsageRollup.COLLECTION)
+                .whereEqualTo("userId", userId)
+                .whereGreaterThanOrEqualTo("weekStart", WeeklyUsageRollup.formatWeekStart(weekStart)));
+    }
+
+    /**
+     * Reads every rollup of the user, rebuilding them first if the history from before the
+     * rollups existed was never backfilled.
+     */
+    private static Task<List<WeeklyUsageRollup>> readAllRollups(FirebaseFirestore db, String userId) {
+        return db.collection(WeeklyUsageRollup.INDEX_COLLECTION)
+                .document(userId)
+                .get()
+                .onSuccessTask(index -> WeeklyUsageRollup.isBackfilled(index)
+                        ? toRollups(db.collection(WeeklyUsageRollup.COLLECTION).whereEqualTo("userId", userId))
+                        : new UsageRollupBackfill(db).backfillUser(userId));
+    }
+
+    private static Task<List<WeeklyUsageRollup>> toRollups(Query query) {
+        return query.get().continueWith(task -> {
+            List<WeeklyUsageRollup> rollups = new ArrayList<>();
+            for (DocumentSnapshot doc : task.getResult().getDocuments()) {
+                rollups.add(WeeklyUsageRollup.fromSnapshot(doc));
+            }
+            return rollups;
+        });
+    }
+
+    @NonNull
+    private DailyScoreSeries read(String userId) {
+        File file = fileFor(userId);
+        if (file == null || !file.isFile()) {
+            return new DailyScoreSeries(userId);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return DailyScoreSeries.readFrom(in, userId);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable daily scores of " + userId, e);
+            return new DailyScoreSeries(userId);
+        }
+    }
+
+    /**
+     * Encodes the series on the calling thread and replaces its file on the disk thread.
+     */
+    private void save(DailyScoreSeries series) {
+        File file = fileFor(series.getUserId());
+        if (file == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            series.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to encode daily scores of " + series.getUserId(), e);
+            return;
+        }
+        byte[] encoded = bytes.toByteArray();
+        diskExecutor.execute(() -> {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                Log.w(TAG, "Failed to create " + parent);
+                return;
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                out.write(encoded);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write daily scores of " + series.getUserId(), e);
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Failed to replace daily scores of " + series.getUserId());
+                temp.delete();
+            }
+        });
+    }
+
+    /**
+     * Counts the refreshes of one user: {@code generation} changes whenever a refresh starts
+     * or ends and {@code running} is the number of refreshes in flight.
+     */
+    private static final class RefreshState {
+        private int generation;
+        private int running;
+    }
+
+    @Nullable
+    private File fileFor(String userId) {
+        File target = directory;
+        if (target == null) {
+            return null;
+        }
+        // The file also records the user id, so two ids that map to the same name only cost
+        // a discarded cache.
+        return new File(target, userId.replaceAll("[^A-Za-z0-9@._-]", "_") + ".bin");
+    }
+}
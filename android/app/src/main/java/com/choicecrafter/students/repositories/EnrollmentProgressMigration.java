@@ -0,0 +1,177 @@
+package com.choicecrafter.students.repositories;
+
+import static com.choicecrafter.students.repositories.EnrollmentProgressSnapshots.activityField;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Moves the activity snapshots of enrollment documents from the legacy
+ * {@code progressSummary.activitySnapshots} list into the keyed {@code activityProgress}
+ * map read by {@link EnrollmentProgressSnapshots}.
+ * <p>
+ * Each document is migrated in its own transaction and migrating a document twice is a
+ * no-op. The Firestore instance is injectable so the migration can be run against the
+ * emulator ({@code FirebaseFirestore#useEmulator}) before it touches production data.
+ */
+public class EnrollmentProgressMigration {
+
+    private static final String TAG = "EnrollmentMigration";
+    private static final String ENROLLMENTS_COLLECTION = "COURSE_ENROLLMENTS";
+
+    private final FirebaseFirestore firestore;
+
+    public EnrollmentProgressMigration() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public EnrollmentProgressMigration(@NonNull FirebaseFirestore firestore) {
+        this.firestore = Objects.requireNonNull(firestore, "firestore == null");
+    }
+
+    /**
+     * Migrates one enrollment document. The task resolves to {@code true} when legacy
+     * snapshots were moved and {@code false} when there was nothing to migrate.
+     */
+    @NonNull
+    public Task<Boolean> migrateEnrollment(@NonNull String enrollmentId) {
+        DocumentReference reference = firestore.collection(ENROLLMENTS_COLLECTION).document(enrollmentId);
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(reference);
+            if (!snapshot.exists()) {
+                return false;
+            }
+            Plan plan = plan(snapshot.get(EnrollmentProgressSnapshots.PROGRESS_SUMMARY_FIELD),
+                    snapshot.get(EnrollmentProgressSnapshots.ACTIVITY_PROGRESS_FIELD));
+            if (plan == null) {
+                return false;
+            }
+
+            List<Object> updates = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Object>> entry : plan.getMigrated().entrySet()) {
+                updates.add(activityField(entry.getKey()));
+                updates.add(entry.getValue());
+            }
+            updates.add(FieldPath.of(EnrollmentProgressSnapshots.PROGRESS_SUMMARY_FIELD,
+                    EnrollmentProgressSnapshots.LEGACY_SNAPSHOTS_FIELD));
+            updates.add(plan.getUnmigrated());
+
+            Object[] more = updates.subList(2, updates.size()).toArray();
+            transaction.update(reference, (FieldPath) updates.get(0), updates.get(1), more);
+            return true;
+        });
+    }
+
+    /**
+     * Works out the migration of one enrollment from its {@code progressSummary} and
+     * {@code activityProgress} fields, or returns {@code null} when no legacy snapshot with
+     * an activity id is left. Every activity found in the legacy list is written to the
+     * keyed layout merged with its keyed entry, the way {@link EnrollmentProgressSnapshots}
+     * reads it, so no task result is lost; legacy snapshots without an activity id stay in
+     * the list.
+     */
+    @Nullable
+    static Plan plan(@Nullable Object progressSummary, @Nullable Object activityProgress) {
+        Set<String> legacyIds = new HashSet<>();
+        for (Map<String, Object> legacy : EnrollmentProgressSnapshots.readLegacy(progressSummary)) {
+            String activityId = EnrollmentProgressSnapshots.activityIdOf(legacy);
+            if (activityId != null) {
+                legacyIds.add(activityId);
+            }
+        }
+        if (legacyIds.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Map<String, Object>> migrated = new LinkedHashMap<>();
+        List<Map<String, Object>> unmigrated = new ArrayList<>();
+        for (Map<String, Object> merged : EnrollmentProgressSnapshots.read(progressSummary, activityProgress)) {
+            String activityId = EnrollmentProgressSnapshots.activityIdOf(merged);
+            if (activityId == null) {
+                // Without an activity id there is no key to store the snapshot under.
+                unmigrated.add(merged);
+            } else if (legacyIds.contains(activityId)) {
+                migrated.put(activityId, merged);
+            }
+        }
+        return new Plan(migrated, unmigrated);
+    }
+
+    /**
+     * Migrates every enrollment of a user and returns the number of documents that
+     * were changed. Blocks the calling thread, so it must not run on the main thread.
+     */
+    public int migrateUser(@NonNull String userId) throws Exception {
+        QuerySnapshot enrollments = Tasks.await(firestore.collection(ENROLLMENTS_COLLECTION)
+                .whereEqualTo("userId", userId)
+                .get());
+        return migrateAll(enrollments);
+    }
+
+    /**
+     * Migrates every enrollment document. Blocks the calling thread, so it must not run on
+     * the main thread.
+     */
+    public int migrateAllEnrollments() throws Exception {
+        return migrateAll(Tasks.await(firestore.collection(ENROLLMENTS_COLLECTION).get()));
+    }
+
+    private int migrateAll(QuerySnapshot enrollments) throws Exception {
+        if (enrollments == null) {
+            return 0;
+        }
+        int migrated = 0;
+        for (DocumentSnapshot document : enrollments.getDocuments()) {
+            if (Boolean.TRUE.equals(Tasks.await(migrateEnrollment(document.getId())))) {
+                migrated++;
+            }
+        }
+        Log.i(TAG, "Migrated " + migrated + " of " + enrollments.size() + " enrollment documents");
+        return migrated;
+    }
+
+    /**
+     * Changes the migration makes to one enrollment document.
+     */
+    static final class Plan {
+        private final Map<String, Map<String, Object>> migrated;
+        private final List<Map<String, Object>> unmigrated;
+
+        Plan(Map<String, Map<String, Object>> migrated, List<Map<String, Object>> unmigrated) {
+            this.migrated = migrated;
+            this.unmigrated = unmigrated;
+        }
+
+        /**
+         * Merged snapshots to store in the keyed layout, by activity id.
+         */
+        Map<String, Map<String, Object>> getMigrated() {
+            return migrated;
+        }
+
+        /**
+         * Snapshots left in the legacy list.
+         */
+        List<Map<String, Object>> getUnmigrated() {
+            return unmigrated;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.choicecrafter.students.repositories;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.analytics.WeeklyUsageRollup;
+import com.choicecrafter.students.utils.TimestampParser;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the per-activity progress stored on a {@code COURSE_ENROLLMENTS} document.
+ * <p>
+ * Progress is stored in the {@code activityProgress} map field, keyed by activity id, so a
+ * single task result can be written with a field-path update instead of rewriting the
+ * whole document. Both clients write only that map, but documents written by older
+ * clients keep their progress in the {@code progressSummary.activitySnapshots} list until
+ * {@link EnrollmentProgressMigration} moves it; both layouts are read and merged here, as in
+ * the Flutter client's
+ * {@code EnrollmentProgressSnapshots}, so callers always see one snapshot per activity in
+ * the list shape. Returned snapshots may be the stored maps themselves and must be treated
+ * as read-only.
+ */
+public final class EnrollmentProgressSnapshots {
+
+    public static final String ACTIVITY_PROGRESS_FIELD = "activityProgress";
+    public static final String PROGRESS_SUMMARY_FIELD = "progressSummary";
+    public static final String LEGACY_SNAPSHOTS_FIELD = "activitySnapshots";
+
+    private static final TimestampParser ATTEMPT_TIMESTAMP_PARSER = TimestampParser.forZone(WeeklyUsageRollup.ZONE);
+
+    private EnrollmentProgressSnapshots() {
+        // Utility class
+    }
+
+    /**
+     * Returns every activity snapshot of the enrollment document, legacy entries first in
+     * their stored order followed by activities that only exist in the keyed layout.
+     */
+    @NonNull
+    public static List<Map<String, Object>> read(@Nullable DocumentSnapshot enrollment) {
+        if (enrollment == null) {
+            return new ArrayList<>();
+        }
+        return read(enrollment.get(PROGRESS_SUMMARY_FIELD), enrollment.get(ACTIVITY_PROGRESS_FIELD));
+    }
+
+    @NonNull
+    public static List<Map<String, Object>> read(@Nullable Object progressSummary,
+                                                 @Nullable Object activityProgress) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        Map<String, Map<String, Object>> byActivity = new LinkedHashMap<>();
+
+        for (Map<String, Object> legacy : readLegacy(progressSummary)) {
+            String activityId = activityIdOf(legacy);
+            if (activityId == null) {
+                result.add(legacy);
+            } else {
+                byActivity.merge(activityId, legacy, EnrollmentProgressSnapshots::overlay);
+            }
+        }
+
+        if (activityProgress instanceof Map<?, ?> keyed) {
+            for (Map.Entry<?, ?> entry : keyed.entrySet()) {
+                if (!(entry.getValue() instanceof Map<?, ?> value)) {
+                    continue;
+                }
+                String activityId = String.valueOf(entry.getKey());
+                byActivity.merge(activityId, withActivityId(value, activityId), EnrollmentProgressSnapshots::overlay);
+            }
+        }
+
+        result.addAll(byActivity.values());
+        return result;
+    }
+
+    /**
+     * Returns the merged snapshot of one activity, or {@code null} when the enrollment has
+     * no progress for it.
+     */
+    @Nullable
+    public static Map<String, Object> find(@Nullable DocumentSnapshot enrollment, @Nullable String activityId) {
+        if (enrollment == null || activityId == null) {
+            return null;
+        }
+        Map<String, Object> found = null;
+        for (Map<String, Object> legacy : readLegacy(enrollment.get(PROGRESS_SUMMARY_FIELD))) {
+            if (activityId.equals(activityIdOf(legacy))) {
+                found = found == null ? legacy : overlay(found, legacy);
+            }
+        }
+        Map<String, Object> keyed = findKeyed(enrollment, activityId);
+        if (keyed != null) {
+            found = found == null ? keyed : overlay(found, keyed);
+        }
+        return found != null ? new HashMap<>(found) : null;
+    }
+
+    /**
+     * Returns the activity's entry in the keyed layout only, ignoring legacy data.
+     */
+    @Nullable
+    static Map<String, Object> findKeyed(@NonNull DocumentSnapshot enrollment, @NonNull String activityId) {
+        Object activityProgress = enrollment.get(ACTIVITY_PROGRESS_FIELD);
+        if (activityProgress instanceof Map<?, ?> keyed && keyed.get(activityId) instanceof Map<?, ?> value) {
+            return withActivityId(value, activityId);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the snapshots stored in the legacy {@code progressSummary} list.
+     */
+    @NonNull
+    static List<Map<String, Object>> readLegacy(@Nullable Object progressSummary) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (!(progressSummary instanceof Map<?, ?> summary)
+                || !(summary.get(LEGACY_SNAPSHOTS_FIELD) instanceof List<?> list)) {
+            return result;
+        }
+        for (Object item : list) {
+            if (item instanceof Map<?, ?> map) {
+                result.add(asStringKeyed(map));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Field path of a value inside the keyed entry of an activity. Activity and task ids
+     * are passed as separate segments, so dots in them are not treated as separators.
+     */
+    @NonNull
+    public static FieldPath activityField(@NonNull String activityId, @NonNull String... path) {
+        String[] segments = new String[path.length + 2];
+        segments[0] = ACTIVITY_PROGRESS_FIELD;
+        segments[1] = activityId;
+        System.arraycopy(path, 0, segments, 2, path.length);
+        return FieldPath.of(segments);
+    }
+
+    @Nullable
+    static String activityIdOf(@NonNull Map<String, Object> snapshot) {
+        Object activityId = snapshot.get("activityId");
+        return activityId != null ? activityId.toString() : null;
+    }
+
+    /**
+     * Lays {@code newer} over {@code older}. Task stats are merged per task, keeping the
+     * result with the later attempt, since either layout may hold the newest result of a
+     * task depending on which client wrote it; the higher of the two highest scores wins.
+     */
+    private static Map<String, Object> overlay(Map<String, Object> older, Map<String, Object> newer) {
+        Map<String, Object> merged = new HashMap<>(older);
+        merged.putAll(newer);
+
+        Map<String, Object> taskStats = new HashMap<>();
+        if (older.get("taskStats") instanceof Map<?, ?> olderStats) {
+            taskStats.putAll(asStringKeyed(olderStats));
+        }
+        if (newer.get("taskStats") instanceof Map<?, ?> newerStats) {
+            for (Map.Entry<?, ?> entry : newerStats.entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                if (!isOlder(entry.getValue(), taskStats.get(key))) {
+                    taskStats.put(key, entry.getValue());
+                }
+            }
+        }
+        merged.put("taskStats", taskStats);
+
+        Object olderScore = older.get("highestScore");
+        Object newerScore = newer.get("highestScore");
+        if (olderScore instanceof Number olderNumber
+                && (!(newerScore instanceof Number newerNumber) || olderNumber.intValue() > newerNumber.intValue())) {
+            merged.put("highestScore", olderScore);
+        }
+        return merged;
+    }
+
+    /**
+     * Whether {@code candidate} was attempted strictly before {@code current}. Results
+     * without a readable attempt time are never considered older.
+     */
+    private static boolean isOlder(Object candidate, Object current) {
+        long candidateTime = attemptTime(candidate);
+        long currentTime = attemptTime(current);
+        return candidateTime != TimestampParser.INVALID
+                && currentTime != TimestampParser.INVALID
+                && candidateTime < currentTime;
+    }
+
+    private static long attemptTime(Object stats) {
+        if (!(stats instanceof Map<?, ?> map) || map.get("attemptDateTime") == null) {
+            return TimestampParser.INVALID;
+        }
+        return ATTEMPT_TIMESTAMP_PARSER.parse(String.valueOf(map.get("attemptDateTime")));
+    }
+
+    private static Map<String, Object> withActivityId(Map<?, ?> value, String activityId) {
+        Map<String, Object> snapshot = asStringKeyed(value);
+        if (snapshot.containsKey("activityId")) {
+            return snapshot;
+        }
+        Map<String, Object> copy = new HashMap<>(snapshot);
+        copy.put("activityId", activityId);
+        return copy;
+    }
+
+    /**
+     * Firestore maps always have string keys, so stored maps are handed out as is rather
+     * than copied; anything else is converted. Callers must not modify the result.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asStringKeyed(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return copy(map);
+            }
+        }
+        return (Map<String, Object>) map;
+    }
+
+    private static Map<String, Object> copy(Map<?, ?> source) {
+        Map<String, Object> result = new HashMap<>();
+        for (Map.Entry<?, ?> entry : source.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+package com.choicecrafter.students.repositories;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link CourseDocumentSource} implementation backed by Firebase Firestore.
+ * <p>
+ * The first {@link #fetchChanges()} attaches a snapshot listener to the collection and
+ * returns its first snapshot as a full listing. From then on the listener only receives the
+ * documents that changed, which are collected until the next call. A listener error drops
+ * the listener; the following call attaches a new one and starts over with a full listing.
+ */
+public class FirestoreCourseDocumentSource implements CourseDocumentSource {
+
+    private static final String COLLECTION_NAME = "COURSES";
+    private static final long FIRST_SNAPSHOT_TIMEOUT_SECONDS = 30;
+
+    private final FirebaseFirestore firestore;
+
+    private final Object lock = new Object();
+    private ListenerRegistration registration;
+    private boolean primed;
+    private boolean fullListingPending;
+    private final Map<String, RawCourseDocument> pendingDocuments = new LinkedHashMap<>();
+    private final Set<String> pendingRemovals = new LinkedHashSet<>();
+    private FirebaseFirestoreException failure;
+
+    public FirestoreCourseDocumentSource() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public FirestoreCourseDocumentSource(@NonNull FirebaseFirestore firestore) {
+        this.firestore = Objects.requireNonNull(firestore, "firestore == null");
+    }
+
+    @NonNull
+    @Override
+    public Changes fetchChanges() throws Exception {
+        synchronized (lock) {
+            if (registration == null) {
+                primed = false;
+                failure = null;
+                registration = firestore.collection(COLLECTION_NAME).addSnapshotListener(this::onSnapshot);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FIRST_SNAPSHOT_TIMEOUT_SECONDS);
+            while (!primed && failure == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("No course data available");
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            if (failure != null) {
+                FirebaseFirestoreException error = failure;
+                failure = null;
+                throw error;
+            }
+            Changes changes = new Changes(fullListingPending,
+                    new ArrayList<>(pendingDocuments.values()),
+                    fullListingPending ? Collections.emptyList() : new ArrayList<>(pendingRemovals));
+            fullListingPending = false;
+            pendingDocuments.clear();
+            pendingRemovals.clear();
+            return changes;
+        }
+    }
+
+    private void onSnapshot(QuerySnapshot snapshot, FirebaseFirestoreException error) {
+        synchronized (lock) {
+            if (error != null || snapshot == null) {
+                failure = error != null ? error
+                        : new FirebaseFirestoreException("No course data available",
+                        FirebaseFirestoreException.Code.UNKNOWN);
+                if (registration != null) {
+                    registration.remove();
+                    registration = null;
+                }
+                primed = false;
+                lock.notifyAll();
+                return;
+            }
+            if (!primed) {
+                // The first snapshot lists every document, whatever the previous listener saw.
+                pendingDocuments.clear();
+                pendingRemovals.clear();
+                for (QueryDocumentSnapshot document : snapshot) {
+                    pendingDocuments.put(document.getId(), new RawCourseDocument(document.getId(), document.getData()));
+                }
+                fullListingPending = true;
+                primed = true;
+            } else {
+                for (DocumentChange change : snapshot.getDocumentChanges()) {
+                    QueryDocumentSnapshot document = change.getDocument();
+                    String id = document.getId();
+                    if (change.getType() == DocumentChange.Type.REMOVED) {
+                        pendingDocuments.remove(id);
+                        if (!fullListingPending) {
+                            pendingRemovals.add(id);
+                        }
+                    } else {
+                        pendingRemovals.remove(id);
+                        pendingDocuments.put(id, new RawCourseDocument(id, document.getData()));
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+}
@@ -3,23 +3,10 @@ package com.choicecrafter.students.repositories;
 import android.content.Context;
 
 import com.choicecrafter.students.models.Activity;
-import com.choicecrafter.students.models.Comment;
-import com.choicecrafter.students.models.tasks.CodingChallengeExample;
-import com.choicecrafter.students.models.tasks.CodingChallengeTask;
-import com.choicecrafter.students.models.tasks.FillInTheBlank;
-import com.choicecrafter.students.models.tasks.InfoCardTask;
-import com.choicecrafter.students.models.tasks.MatchingPairTask;
-import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
 import com.choicecrafter.students.models.Notification;
 import com.choicecrafter.students.models.NotificationType;
-import com.choicecrafter.students.models.tasks.OrderingTask;
-import com.choicecrafter.students.models.Recommendation;
-import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
-import com.choicecrafter.students.models.tasks.Task;
-import com.choicecrafter.students.models.tasks.TrueFalseTask;
 import com.choicecrafter.students.notifications.NotificationHelper;
 import com.choicecrafter.students.utils.AppLogger;
-import com.choicecrafter.students.utils.DefaultRecommendationsProvider;
 import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
@@ -29,11 +16,11 @@ import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.QuerySnapshot;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -49,16 +36,24 @@ public class FirestoreListener {
     private FirebaseFirestore db;
     private ListenerRegistration coursesListenerRegistration;
     private ListenerRegistration enrollmentListenerRegistration;
+    private boolean enrollmentListenerPrimed;
     private final SimpleDateFormat notificationTimestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.getDefault());
 
     private final Map<String, Activity.Status> activityStatusCache = new ConcurrentHashMap<>();
     private final Map<String, Integer> activityCommentCountCache = new ConcurrentHashMap<>();
     private final Map<String, Long> activityPointsCache = new ConcurrentHashMap<>();
+    private final Map<String, CourseDocumentParser.ParsedCourse> processedCourses = new ConcurrentHashMap<>();
+    private final CourseDocumentParser courseDocumentParser = CourseDocumentParser.getInstance();
 
     private NotificationHelper notificationHelper;
     private final NotificationRepository notificationRepository;
     private final String userId;
     private final Set<String> enrolledCourseIds = Collections.synchronizedSet(new HashSet<>());
+    private final Map<String, Integer> enrollmentCountsByCourse = new HashMap<>();
+    private final SnapshotReducer<String, Void> enrollmentReducer = SnapshotReducer.keyed(document -> {
+        String courseId = document.getString("courseId");
+        return courseId != null && !courseId.isEmpty() ? courseId : null;
+    });
     private volatile boolean activityStartedNotificationsEnabled = true;
     private volatile boolean discussionForumEnabled = true;
 
@@ -67,6 +62,14 @@ public class FirestoreListener {
         notificationHelper = new NotificationHelper(context);
         notificationRepository = new NotificationRepository();
         this.userId = userId;
+        enrollmentReducer.setDocumentListener((enrollmentId, previousCourseId, courseId) -> {
+            if (previousCourseId != null) {
+                releaseEnrolledCourse(previousCourseId);
+            }
+            if (courseId != null) {
+                retainEnrolledCourse(courseId);
+            }
+        });
     }
 
     public void setActivityStartedNotificationsEnabled(boolean enabled) {
@@ -130,6 +133,8 @@ public class FirestoreListener {
                                         AppLogger.d(TAG, "Course change detected",
                                                 "changeType", "removed",
                                                 "courseId", courseDocumentId);
+                                        processedCourses.remove(courseDocumentId);
+                                        courseDocumentParser.evict(courseDocumentId);
                                         break;
                                 }
                             }
@@ -143,6 +148,7 @@ public class FirestoreListener {
             enrollmentListenerRegistration.remove();
         }
 
+        enrollmentListenerPrimed = false;
         enrollmentListenerRegistration = db.collection(ENROLLMENTS_COLLECTION)
                 .whereEqualTo("userId", userId)
                 .addSnapshotListener((snapshots, e) -> {
@@ -151,7 +157,11 @@ public class FirestoreListener {
                         return;
                     }
 
-                    updateEnrolledCourses(snapshots);
+                    boolean firstSnapshot = !enrollmentListenerPrimed;
+                    if (snapshots != null) {
+                        enrollmentListenerPrimed = true;
+                    }
+                    updateEnrolledCourses(snapshots, firstSnapshot);
                 });
     }
 
@@ -160,38 +170,35 @@ public class FirestoreListener {
                 .whereEqualTo("userId", userId)
                 .get()
                 .addOnSuccessListener(snapshots -> {
-                    updateEnrolledCourses(snapshots);
+                    updateEnrolledCourses(snapshots, true);
                     if (onComplete != null) {
                         onComplete.run();
                     }
                 })
                 .addOnFailureListener(e -> {
                     AppLogger.e(TAG, "Failed to fetch initial enrollments", e);
-                    synchronized (enrolledCourseIds) {
-                        enrolledCourseIds.clear();
-                    }
+                    enrollmentReducer.clear();
                     if (onComplete != null) {
                         onComplete.run();
                     }
                 });
     }
 
-    private void updateEnrolledCourses(QuerySnapshot snapshots) {
+    /**
+     * Applies the enrollment changes of {@code snapshots}. A complete snapshot, the one-time
+     * read or the first snapshot of the listener, replaces what was known, so an enrollment
+     * removed in between is not kept; later snapshots only touch the changed enrollments.
+     */
+    private void updateEnrolledCourses(QuerySnapshot snapshots, boolean complete) {
         if (snapshots == null) {
             return;
         }
 
-        Set<String> updatedCourseIds = new HashSet<>();
-        for (DocumentSnapshot document : snapshots.getDocuments()) {
-            String courseId = document.getString("courseId");
-            if (courseId != null && !courseId.isEmpty()) {
-                updatedCourseIds.add(courseId);
-            }
+        if (complete) {
+            enrollmentReducer.clear();
         }
-
-        synchronized (enrolledCourseIds) {
-            enrolledCourseIds.clear();
-            enrolledCourseIds.addAll(updatedCourseIds);
+        if (!enrollmentReducer.apply(snapshots) && !complete) {
+            return;
         }
 
         AppLogger.d(TAG, "Enrolled courses updated",
@@ -199,6 +206,25 @@ public class FirestoreListener {
                 "courses", enrolledCourseIds);
     }
 
+    private void retainEnrolledCourse(String courseId) {
+        if (enrollmentCountsByCourse.merge(courseId, 1, Integer::sum) == 1) {
+            enrolledCourseIds.add(courseId);
+        }
+    }
+
+    private void releaseEnrolledCourse(String courseId) {
+        Integer count = enrollmentCountsByCourse.get(courseId);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            enrollmentCountsByCourse.remove(courseId);
+            enrolledCourseIds.remove(courseId);
+        } else {
+            enrollmentCountsByCourse.put(courseId, count - 1);
+        }
+    }
+
     private boolean isUserEnrolledInCourse(String courseId) {
         synchronized (enrolledCourseIds) {
             return enrolledCourseIds.contains(courseId);
@@ -217,27 +243,42 @@ public class FirestoreListener {
             return;
         }
 
-        List<Map<String, Object>> activities = (List<Map<String, Object>>) snapshot.get("activities");
+        if (snapshot.get("activities") == null) {
+            AppLogger.w(TAG, "Course does not have activity definitions", "courseId", courseId);
+            return;
+        }
 
-        if (activities != null) {
-            for (Map<String, Object> activity : activities) {
-                String activityId = activity.get("title") != null ? activity.get("title").toString() : "UNKNOWN";
-                String status = activity.get("status") != null ? activity.get("status").toString() : "UNKNOWN";
+        // Only courses processed while enrolled are remembered. An activity that is identical
+        // to the remembered one already left its status, comment count and points in the
+        // caches, so checking it again could not notify; every other activity is checked as
+        // before, including all of them on the first change of a course.
+        CourseDocumentParser.ParsedCourse parsedCourse = courseDocumentParser.parseDocument(snapshot);
+        CourseDocumentParser.ParsedCourse previousCourse = processedCourses.put(courseId, parsedCourse);
 
-                AppLogger.d(TAG, "Checking course activity",
-                        "courseId", courseId,
-                        "activityId", activityId,
-                        "status", status);
+        Set<CourseDocumentParser.ParsedActivity> unchanged = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (previousCourse != null) {
+            unchanged.addAll(previousCourse.getActivities());
+        }
 
-                handleActivityUpdates(courseId, courseTitle, activityId, activity);
+        for (CourseDocumentParser.ParsedActivity parsedActivity : parsedCourse.getActivities()) {
+            if (unchanged.contains(parsedActivity)) {
+                continue;
             }
-        } else {
-            AppLogger.w(TAG, "Course does not have activity definitions", "courseId", courseId);
+            Map<String, Object> activity = parsedActivity.getRaw();
+            String activityId = activity.get("title") != null ? activity.get("title").toString() : "UNKNOWN";
+            String status = activity.get("status") != null ? activity.get("status").toString() : "UNKNOWN";
+
+            AppLogger.d(TAG, "Checking course activity",
+                    "courseId", courseId,
+                    "activityId", activityId,
+                    "status", status);
+
+            handleActivityUpdates(courseId, courseTitle, activityId, activity, parsedActivity.getActivity());
         }
     }
 
-    private void handleActivityUpdates(String courseId, String courseTitle, String activityId, Map<String, Object> activityData) {
-        Activity activityMapped = mapToActivity(activityData);
+    private void handleActivityUpdates(String courseId, String courseTitle, String activityId,
+                                       Map<String, Object> activityData, Activity activityMapped) {
         if (activityMapped == null) {
             AppLogger.w(TAG, "Unable to map activity for notifications",
                     "courseId", courseId,
@@ -253,272 +294,11 @@ public class FirestoreListener {
         handlePointsMilestones(cacheKey, courseId, displayCourseName, activityId, activityData, activityMapped);
     }
 
-    private Activity mapToActivity(Map<String, Object> activityMap) {
-        Activity activity = new Activity();
-        activity.setId(resolveActivityId(activityMap));
-        activity.setTitle(activityMap.get("title") != null ? activityMap.get("title").toString() : null);
-        activity.setDescription(activityMap.get("description") != null ? activityMap.get("description").toString() : null);
-        activity.setType(activityMap.get("type") != null ? activityMap.get("type").toString() : null);
-        activity.setDate(activityMap.get("date") != null ? activityMap.get("date").toString() : null);
-        activity.setTime(activityMap.get("time") != null ? activityMap.get("time").toString() : null);
-        if (activityMap.get("status") != null) {
-            activity.setStatus(Activity.Status.valueOf(activityMap.get("status").toString()));
-        }
-        if (activityMap.get("reminders") instanceof List) {
-            activity.setReminders(getStringList(activityMap, "reminders"));
-        }
-        if (activityMap.get("tasks") instanceof List) {
-            List<Map<String, Object>> taskMaps = (List<Map<String, Object>>) activityMap.get("tasks");
-            List<Task> tasks = new ArrayList<>();
-            for (Map<String, Object> taskMap : taskMaps) {
-                tasks.add(mapToTask(taskMap));
-            }
-            activity.setTasks(tasks);
-        }
-        if (activityMap.get("recommendations") instanceof List) {
-            List<Map<String, Object>> recMaps = (List<Map<String, Object>>) activityMap.get("recommendations");
-            List<Recommendation> recommendations = new ArrayList<>();
-            for (Map<String, Object> recMap : recMaps) {
-                recommendations.add(mapToRecommendation(recMap));
-            }
-            activity.setRecommendations(recommendations);
-        }
-        DefaultRecommendationsProvider.ensureDefaults(activity);
-        if (activityMap.get("comments") instanceof List) {
-            List<Map<String, Object>> commentMaps = (List<Map<String, Object>>) activityMap.get("comments");
-            List<Comment> comments = new ArrayList<>();
-            for (Map<String, Object> commentMap : commentMaps) {
-                String user = getString(commentMap, "userId");
-                String text = getString(commentMap, "text");
-                String timestamp = getString(commentMap, "timestamp");
-                comments.add(new Comment(user, text, timestamp));
-            }
-            activity.setComments(comments);
-        }
-        if (activityMap.get("reactions") instanceof Map) {
-            Map<String, Object> reactionsRaw = (Map<String, Object>) activityMap.get("reactions");
-            Map<String, Long> normalized = new HashMap<>();
-            for (Map.Entry<String, Object> entry : reactionsRaw.entrySet()) {
-                Long value = toLong(entry.getValue());
-                if (value != null) {
-                    normalized.put(entry.getKey(), value);
-                }
-            }
-            activity.setReactions(normalized);
-        }
-        return activity;
-    }
-
-    private String resolveActivityId(Map<String, Object> activityMap) {
-        if (activityMap == null) {
-            return null;
-        }
-        Object idValue = activityMap.get("id");
-        if (idValue == null) {
-            idValue = activityMap.get("activityId");
-        }
-        if (idValue == null) {
-            idValue = activityMap.get("title");
-        }
-        return idValue != null ? String.valueOf(idValue) : null;
-    }
-
-    private Task mapToTask(Map<String, Object> map) {
-        String type = map.get("type") != null ? map.get("type").toString() : "";
-        Task task = null;
-        switch (type) {
-            case "MultipleChoice":
-                MultipleChoiceQuestion mcTask = new MultipleChoiceQuestion();
-                mcTask.setTitle(getString(map, "title"));
-                mcTask.setDescription(getString(map, "description"));
-                mcTask.setOptions(getStringList(map, "options"));
-                if (map.get("correctAnswer") != null) {
-                    mcTask.setCorrectAnswer(Integer.valueOf(map.get("correctAnswer").toString()));
-                }
-                mcTask.setStatus(getString(map, "status"));
-                task = mcTask;
-                break;
-            case "FillInTheBlank":
-                FillInTheBlank fibTask = new FillInTheBlank();
-                fibTask.setTitle(getString(map, "title"));
-                fibTask.setDescription(getString(map, "description"));
-                fibTask.setText(getString(map, "text"));
-                fibTask.setSegmentPositions(getIntList(map, "segmentPositions"));
-                fibTask.setMissingSegments(getStringList(map, "missingSegments"));
-                fibTask.setStatus(getString(map, "status"));
-                task = fibTask;
-                break;
-            case "Ordering":
-                OrderingTask orderingTask = new OrderingTask();
-                orderingTask.setTitle(getString(map, "title"));
-                orderingTask.setDescription(getString(map, "description"));
-                orderingTask.setItems(getStringList(map, "items"));
-                orderingTask.setCorrectOrder(getIntList(map, "correctOrder"));
-                orderingTask.setStatus(getString(map, "status"));
-                task = orderingTask;
-                break;
-            case "MatchingPair":
-                MatchingPairTask matchingTask = new MatchingPairTask();
-                matchingTask.setTitle(getString(map, "title"));
-                matchingTask.setDescription(getString(map, "description"));
-                matchingTask.setLeftItems(getStringList(map, "leftItems"));
-                matchingTask.setRightItems(getStringList(map, "rightItems"));
-                if (map.get("correctMatches") instanceof Map) {
-                    matchingTask.setCorrectMatches((Map<String, String>) map.get("correctMatches"));
-                }
-                matchingTask.setStatus(getString(map, "status"));
-                task = matchingTask;
-                break;
-            case "TrueFalse":
-                TrueFalseTask trueFalseTask = new TrueFalseTask();
-                trueFalseTask.setTitle(getString(map, "title"));
-                trueFalseTask.setDescription(getString(map, "description"));
-                trueFalseTask.setStatement(getString(map, "statement"));
-                Object boolValue = map.get("correctAnswer");
-                if (boolValue instanceof Boolean b) {
-                    trueFalseTask.setCorrectAnswer(b);
-                } else if (boolValue instanceof Number number) {
-                    trueFalseTask.setCorrectAnswer(number.intValue() != 0);
-                } else if (boolValue != null) {
-                    trueFalseTask.setCorrectAnswer(Boolean.parseBoolean(boolValue.toString()));
-                }
-                trueFalseTask.setStatus(getString(map, "status"));
-                task = trueFalseTask;
-                break;
-            case "SpotError":
-                SpotTheErrorTask spotErrorTask = new SpotTheErrorTask();
-                spotErrorTask.setTitle(getString(map, "title"));
-                spotErrorTask.setDescription(getString(map, "description"));
-                spotErrorTask.setPrompt(getString(map, "prompt"));
-                spotErrorTask.setSnippet(getString(map, "codeSnippet"));
-                spotErrorTask.setOptions(getStringList(map, "options"));
-                Object correct = map.get("correctAnswer");
-                if (correct != null) {
-                    spotErrorTask.setCorrectOptionIndex(Integer.parseInt(correct.toString()));
-                }
-                spotErrorTask.setStatus(getString(map, "status"));
-                task = spotErrorTask;
-                break;
-            case "CodingChallenge":
-                CodingChallengeTask codingTask = new CodingChallengeTask();
-                codingTask.setTitle(getString(map, "title"));
-                codingTask.setDescription(getString(map, "description"));
-                codingTask.setProblemDescription(getString(map, "problemDescription"));
-                codingTask.setExpectedOutputDescription(getString(map, "expectedOutput"));
-                codingTask.setStatus(getString(map, "status"));
-                codingTask.setDefaultLanguage(getString(map, "defaultLanguage"));
-                codingTask.setExamples(parseCodingExamples(map.get("examples")));
-                Map<String, String> starterCode = getStringMap(map, "starterCode");
-                if (starterCode.isEmpty()) {
-                    starterCode = getStringMap(map, "starterTemplates");
-                }
-                codingTask.setStarterCodeByLanguage(starterCode);
-                Map<String, String> solutionCode = getStringMap(map, "solutionCode");
-                if (solutionCode.isEmpty()) {
-                    solutionCode = getStringMap(map, "solutions");
-                }
-                codingTask.setSolutionCodeByLanguage(solutionCode);
-                codingTask.setSolutionInput(getString(map, "solutionInput"));
-                task = codingTask;
-                break;
-            case "InfoCard":
-                InfoCardTask infoCardTask = new InfoCardTask();
-                infoCardTask.setTitle(getString(map, "title"));
-                infoCardTask.setDescription(getString(map, "description"));
-                infoCardTask.setContentType(getString(map, "contentType"));
-                infoCardTask.setContentText(getString(map, "contentText"));
-                infoCardTask.setMediaUrl(getString(map, "mediaUrl"));
-                infoCardTask.setInteractiveUrl(getString(map, "interactiveUrl"));
-                infoCardTask.setActionText(getString(map, "actionText"));
-                infoCardTask.setStatus(getString(map, "status"));
-                task = infoCardTask;
-                break;
-            default:
-                AppLogger.w(TAG, "Unknown task type encountered", "type", type);
-                return null;
-        }
-        if (task != null) {
-            task.setExplanation(getString(map, "explanation"));
-        }
-        return task;
-    }
-
     private String getString(Map<String, Object> map, String key) {
         Object value = map.get(key);
         return value != null ? value.toString() : null;
     }
 
-    private List<String> getStringList(Map<String, Object> map, String key) {
-        Object value = map.get(key);
-        if (value instanceof List) {
-            List<?> rawList = (List<?>) value;
-            List<String> result = new ArrayList<>();
-            for (Object item : rawList) {
-                result.add(item != null ? item.toString() : null);
-            }
-            return result;
-        }
-        return new ArrayList<>();
-    }
-
-    private List<Integer> getIntList(Map<String, Object> map, String key) {
-        Object value = map.get(key);
-        if (value instanceof List) {
-            List<?> rawList = (List<?>) value;
-            List<Integer> result = new ArrayList<>();
-            for (Object item : rawList) {
-                if (item instanceof Number) {
-                    result.add(((Number) item).intValue());
-                } else if (item != null) {
-                    try {
-                        result.add(Integer.parseInt(item.toString()));
-                    } catch (NumberFormatException ignored) {}
-                }
-            }
-            return result;
-        }
-        return new ArrayList<>();
-    }
-
-    private List<CodingChallengeExample> parseCodingExamples(Object value) {
-        List<CodingChallengeExample> examples = new ArrayList<>();
-        if (!(value instanceof List<?> rawList)) {
-            return examples;
-        }
-        for (Object exampleObject : rawList) {
-            if (exampleObject instanceof Map<?, ?> map) {
-                CodingChallengeExample example = new CodingChallengeExample();
-                example.setInput(getString((Map<String, Object>) map, "input"));
-                example.setOutput(getString((Map<String, Object>) map, "output"));
-                example.setExplanation(getString((Map<String, Object>) map, "explanation"));
-                examples.add(example);
-            }
-        }
-        return examples;
-    }
-
-    private Map<String, String> getStringMap(Map<String, Object> map, String key) {
-        Map<String, String> result = new HashMap<>();
-        Object value = map.get(key);
-        if (value instanceof Map<?, ?> rawMap) {
-            for (Map.Entry<?, ?> entry : rawMap.entrySet()) {
-                Object entryKey = entry.getKey();
-                Object entryValue = entry.getValue();
-                if (entryKey != null && entryValue != null) {
-                    result.put(String.valueOf(entryKey), String.valueOf(entryValue));
-                }
-            }
-        }
-        return result;
-    }
-
-    private Recommendation mapToRecommendation(Map<String, Object> map) {
-        Recommendation rec = new Recommendation();
-        rec.setType(getString(map, "type"));
-        rec.setUrl(getString(map, "url"));
-        return rec;
-    }
-
     private void handleStatusChange(String cacheKey, String courseId, String courseTitle, String activityId,
                                     Map<String, Object> activityData, Activity activityMapped) {
         Activity.Status status = activityMapped.getStatus();
@@ -0,0 +1,71 @@
+package com.choicecrafter.students.repositories;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One-off worker that builds the leaderboard from the {@code users} collection the first time
+ * any device runs it; see {@link LeaderboardRepository#rebuildAllOnce()}.
+ */
+public class LeaderboardRebuildWorker extends Worker {
+
+    public static final String WORK_NAME = "leaderboard_rebuild";
+    private static final String TAG = "LeaderboardRebuild";
+
+    public LeaderboardRebuildWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Enqueues the rebuild once per application instance; it waits for a network connection.
+     */
+    public static void schedule(@NonNull Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(LeaderboardRebuildWorker.class)
+                .setConstraints(constraints)
+                .addTag(WORK_NAME)
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME,
+                ExistingWorkPolicy.KEEP,
+                request
+        );
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        try {
+            int users = LeaderboardRepository.getInstance().rebuildAllOnce();
+            if (users > 0) {
+                Log.i(TAG, "Built the leaderboard of " + users + " users");
+            }
+            return Result.success();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to rebuild the leaderboard", e);
+            return Result.retry();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Leaderboard rebuild interrupted", e);
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        } catch (Exception e) {
+            Log.e(TAG, "Unexpected failure while rebuilding the leaderboard", e);
+            return Result.failure();
+        }
+    }
+}
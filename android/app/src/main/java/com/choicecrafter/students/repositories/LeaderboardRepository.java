@@ -0,0 +1,449 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.models.LeaderboardEntry;
+import com.choicecrafter.students.models.User;
+import com.choicecrafter.students.utils.Avatar;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Leaderboard of the users' total scores that answers the top entries, a user's rank and
+ * their neighbours without reading the {@code users} collection.
+ * <p>
+ * Every user has a {@link LeaderboardEntry} in {@link #ENTRIES_COLLECTION}, keyed by email.
+ * Scores are grouped into buckets of {@link #BUCKET_WIDTH} points, and
+ * {@link #RANK_TREE_COLLECTION} holds a Fenwick tree over the bucket counts, ordered from the
+ * highest bucket down, with one {@code count} document per tree node. A rank is the number
+ * of users in higher buckets, a prefix sum of at most {@code log2(BUCKET_COUNT)} nodes read
+ * in one query, plus a count of the users above in the own bucket. Moving a user to another
+ * bucket increments the nodes whose count changes in the transaction that rewrites their
+ * entry. The root node would count every user and be written by every new user, so it is
+ * not stored; the number of users is counted from the entries instead.
+ * <p>
+ * The app has no backend, so the index is kept up to date by {@link #updateEntry(User)}
+ * whenever a user's scores are written, on Flutter by {@code LeaderboardRepository} in
+ * {@code lib/repositories}, and {@link #rebuildAllOnce()} builds it from the {@code users}
+ * collection once, from {@link LeaderboardRebuildWorker}. Scores are the sum of the users'
+ * {@code scores}, as {@link User#computeTotalScore()} adds them up.
+ */
+public class LeaderboardRepository {
+
+    private static final String TAG = "LeaderboardRepository";
+    public static final String ENTRIES_COLLECTION = "LEADERBOARD";
+    public static final String RANK_TREE_COLLECTION = "LEADERBOARD_RANK_TREE";
+    static final String FIELD_TOTAL_SCORE = "totalScore";
+    private static final String FIELD_COUNT = "count";
+    static final String STATUS_COLLECTION = "LEADERBOARD_REBUILD";
+    private static final String STATUS_DOCUMENT = "allUsers";
+    /**
+     * Points per bucket; scores from {@code BUCKET_WIDTH * (BUCKET_COUNT - 1)} upwards share
+     * the last bucket.
+     */
+    static final int BUCKET_WIDTH = 25;
+    /**
+     * Number of buckets; a power of two, so every prefix the ranks need ends below the root
+     * node.
+     */
+    static final int BUCKET_COUNT = 4096;
+    private static final int PAGE_SIZE = 500;
+    private static final int MAX_WRITES_PER_BATCH = 500;
+
+    private static LeaderboardRepository instance;
+
+    private final FirebaseFirestore firestore;
+
+    public LeaderboardRepository(@NonNull FirebaseFirestore firestore) {
+        this.firestore = Objects.requireNonNull(firestore, "firestore == null");
+    }
+
+    public static synchronized LeaderboardRepository getInstance() {
+        if (instance == null) {
+            instance = new LeaderboardRepository(FirebaseFirestore.getInstance());
+        }
+        return instance;
+    }
+
+    /**
+     * Where a user stands: their entry, their 1-based rank among {@code totalUsers}, and the
+     * closest entries with a strictly higher and lower score, if any. Users with the same
+     * score share a rank.
+     */
+    public static final class Standing {
+        private final LeaderboardEntry entry;
+        private final int rank;
+        private final int totalUsers;
+        private final LeaderboardEntry ahead;
+        private final LeaderboardEntry behind;
+
+        Standing(LeaderboardEntry entry, int rank, int totalUsers,
+                 @Nullable LeaderboardEntry ahead, @Nullable LeaderboardEntry behind) {
+            this.entry = entry;
+            this.rank = rank;
+            this.totalUsers = totalUsers;
+            this.ahead = ahead;
+            this.behind = behind;
+        }
+
+        @NonNull
+        public LeaderboardEntry getEntry() {
+            return entry;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+
+        public int getTotalUsers() {
+            return totalUsers;
+        }
+
+        @Nullable
+        public LeaderboardEntry getAhead() {
+            return ahead;
+        }
+
+        @Nullable
+        public LeaderboardEntry getBehind() {
+            return behind;
+        }
+    }
+
+    /**
+     * Listens to the {@code limit} highest entries, best first.
+     */
+    @NonNull
+    public ListenerRegistration listenTopEntries(int limit, @NonNull Consumer<List<LeaderboardEntry>> listener) {
+        return firestore.collection(ENTRIES_COLLECTION)
+                .orderBy(FIELD_TOTAL_SCORE, Query.Direction.DESCENDING)
+                .limit(limit)
+                .addSnapshotListener((value, error) -> {
+                    if (error != null || value == null) {
+                        Log.w(TAG, "Failed to listen to the top of the leaderboard", error);
+                        return;
+                    }
+                    listener.accept(toEntries(value));
+                });
+    }
+
+    /**
+     * Listens to the entry of one user; the listener receives {@code null} while it does not
+     * exist.
+     */
+    @NonNull
+    public ListenerRegistration listenEntry(@NonNull String userId, @NonNull Consumer<LeaderboardEntry> listener) {
+        return firestore.collection(ENTRIES_COLLECTION)
+                .document(userId)
+                .addSnapshotListener((value, error) -> {
+                    if (error != null) {
+                        Log.w(TAG, "Failed to listen to the leaderboard entry of " + userId, error);
+                        return;
+                    }
+                    listener.accept(value != null && value.exists() ? value.toObject(LeaderboardEntry.class) : null);
+                });
+    }
+
+    /**
+     * Resolves where {@code entry} stands. Reads the rank tree nodes of one prefix sum, two
+     * counts and the two neighbouring entries, whatever the number of users.
+     */
+    @NonNull
+    public Task<Standing> fetchStanding(@NonNull LeaderboardEntry entry) {
+        int score = entry.getTotalScore();
+        int bucket = bucketOf(score);
+
+        List<String> nodeIds = new ArrayList<>();
+        for (int node = position(bucket) - 1; node > 0; node -= node & -node) {
+            nodeIds.add(nodeId(node));
+        }
+        Task<Long> higherBucketsTask;
+        if (nodeIds.isEmpty()) {
+            higherBucketsTask = Tasks.forResult(0L);
+        } else {
+            higherBucketsTask = firestore.collection(RANK_TREE_COLLECTION)
+                    .whereIn(FieldPath.documentId(), nodeIds)
+                    .get()
+                    .continueWith(task -> {
+                        long users = 0;
+                        for (DocumentSnapshot node : task.getResult().getDocuments()) {
+                            Long count = node.getLong(FIELD_COUNT);
+                            users += count != null ? count : 0L;
+                        }
+                        return users;
+                    });
+        }
+        Task<Long> totalUsersTask = firestore.collection(ENTRIES_COLLECTION)
+                .count()
+                .get(AggregateSource.SERVER)
+                .continueWith(task -> task.getResult().getCount());
+
+        Query sameBucketAbove = firestore.collection(ENTRIES_COLLECTION)
+                .whereGreaterThan(FIELD_TOTAL_SCORE, score);
+        if (bucket < BUCKET_COUNT - 1) {
+            sameBucketAbove = sameBucketAbove.whereLessThan(FIELD_TOTAL_SCORE, (bucket + 1) * BUCKET_WIDTH);
+        }
+        Task<Long> sameBucketAboveTask = sameBucketAbove.count()
+                .get(AggregateSource.SERVER)
+                .continueWith(task -> task.getResult().getCount());
+
+        Task<QuerySnapshot> aheadTask = firestore.collection(ENTRIES_COLLECTION)
+                .whereGreaterThan(FIELD_TOTAL_SCORE, score)
+                .orderBy(FIELD_TOTAL_SCORE)
+                .limit(1)
+                .get();
+        Task<QuerySnapshot> behindTask = firestore.collection(ENTRIES_COLLECTION)
+                .whereLessThan(FIELD_TOTAL_SCORE, score)
+                .orderBy(FIELD_TOTAL_SCORE, Query.Direction.DESCENDING)
+                .limit(1)
+                .get();
+
+        List<Task<?>> reads = List.of(higherBucketsTask, totalUsersTask, sameBucketAboveTask, aheadTask, behindTask);
+        return Tasks.whenAll(reads).continueWith(ignored -> {
+            for (Task<?> read : reads) {
+                if (!read.isSuccessful()) {
+                    throw Objects.requireNonNull(read.getException());
+                }
+            }
+            long rank = 1 + higherBucketsTask.getResult() + sameBucketAboveTask.getResult();
+            return new Standing(entry,
+                    (int) rank,
+                    (int) Math.max(totalUsersTask.getResult(), rank),
+                    firstEntry(aheadTask.getResult()),
+                    firstEntry(behindTask.getResult()));
+        });
+    }
+
+    /**
+     * Writes the entry of {@code user} from their scores and moves them to their new bucket
+     * of the rank tree. The task resolves to whether anything changed.
+     */
+    @NonNull
+    public Task<Boolean> updateEntry(@NonNull User user) {
+        String userId = user.getEmail();
+        if (userId == null || userId.trim().isEmpty()) {
+            return Tasks.forException(new IllegalArgumentException("User without email"));
+        }
+        int score = user.computeTotalScore();
+        Avatar avatar = user.getAnonymousAvatar();
+        DocumentReference entryRef = firestore.collection(ENTRIES_COLLECTION).document(userId);
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(entryRef);
+            Long previousScore = snapshot.exists() ? snapshot.getLong(FIELD_TOTAL_SCORE) : null;
+            if (previousScore != null
+                    && previousScore == score
+                    && Objects.equals(snapshot.getString("name"), user.getName())
+                    && Objects.equals(snapshot.getString("anonymousAvatar.name"), avatar != null ? avatar.getName() : null)
+                    && Objects.equals(snapshot.getString("anonymousAvatar.imageUrl"),
+                    avatar != null ? avatar.getImageUrl() : null)) {
+                return false;
+            }
+            transaction.set(entryRef, entryData(userId, user.getName(), avatar, score));
+
+            Map<Integer, Long> deltas = rankTreeDeltas(previousScore, score);
+            for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+                transaction.set(firestore.collection(RANK_TREE_COLLECTION).document(nodeId(delta.getKey())),
+                        Collections.singletonMap(FIELD_COUNT, FieldValue.increment(delta.getValue())),
+                        SetOptions.merge());
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Rebuilds the leaderboard unless that already happened once, and records the rebuild in
+     * {@link #STATUS_COLLECTION}. Returns the number of users, or 0 when it was rebuilt
+     * before. Blocks the calling thread, so it must not run on the main thread.
+     */
+    public int rebuildAllOnce() throws Exception {
+        DocumentReference status = firestore.collection(STATUS_COLLECTION).document(STATUS_DOCUMENT);
+        if (Tasks.await(status.get()).exists()) {
+            return 0;
+        }
+        int users = rebuildAll();
+        Map<String, Object> data = new HashMap<>();
+        data.put("users", users);
+        data.put("completedAt", FieldValue.serverTimestamp());
+        Tasks.await(status.set(data));
+        return users;
+    }
+
+    /**
+     * Rewrites every entry and the whole rank tree from the {@code users} collection and
+     * returns the number of users. Score updates made while it runs may be lost, so it is
+     * meant to run once, when the leaderboard is introduced. Blocks the calling thread, so it
+     * must not run on the main thread.
+     */
+    public int rebuildAll() throws Exception {
+        long[] tree = new long[BUCKET_COUNT + 1];
+        List<Task<?>> commits = new ArrayList<>();
+        WriteBatch batch = firestore.batch();
+        int batchSize = 0;
+        int users = 0;
+
+        Query baseQuery = firestore.collection("users")
+                .orderBy(FieldPath.documentId())
+                .limit(PAGE_SIZE);
+        DocumentSnapshot cursor = null;
+        while (true) {
+            Query pageQuery = cursor == null ? baseQuery : baseQuery.startAfter(cursor);
+            List<DocumentSnapshot> page = Tasks.await(pageQuery.get()).getDocuments();
+            for (DocumentSnapshot document : page) {
+                User user = User.extractUserFromDoc((QueryDocumentSnapshot) document);
+                String userId = user.getEmail();
+                if (userId == null || userId.trim().isEmpty()) {
+                    continue;
+                }
+                int score = user.computeTotalScore();
+                tree[position(bucketOf(score))]++;
+                if (batchSize == MAX_WRITES_PER_BATCH) {
+                    commits.add(batch.commit());
+                    batch = firestore.batch();
+                    batchSize = 0;
+                }
+                batch.set(firestore.collection(ENTRIES_COLLECTION).document(userId),
+                        entryData(userId, user.getName(), user.getAnonymousAvatar(), score));
+                batchSize++;
+                users++;
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+            cursor = page.get(page.size() - 1);
+        }
+
+        for (int node = 1; node <= BUCKET_COUNT; node++) {
+            int parent = node + (node & -node);
+            if (parent <= BUCKET_COUNT) {
+                tree[parent] += tree[node];
+            }
+        }
+        Set<String> storedNodes = new HashSet<>();
+        for (DocumentSnapshot node : Tasks.await(firestore.collection(RANK_TREE_COLLECTION).get()).getDocuments()) {
+            storedNodes.add(node.getId());
+        }
+        for (int node = 1; node <= BUCKET_COUNT; node++) {
+            String id = nodeId(node);
+            boolean stored = storedNodes.contains(id);
+            boolean root = node == BUCKET_COUNT;
+            if ((root || tree[node] == 0) && !stored) {
+                continue;
+            }
+            if (batchSize == MAX_WRITES_PER_BATCH) {
+                commits.add(batch.commit());
+                batch = firestore.batch();
+                batchSize = 0;
+            }
+            DocumentReference reference = firestore.collection(RANK_TREE_COLLECTION).document(id);
+            if (root) {
+                // Left behind by an index that still kept the root.
+                batch.delete(reference);
+            } else {
+                batch.set(reference, Collections.singletonMap(FIELD_COUNT, tree[node]));
+            }
+            batchSize++;
+        }
+        commits.add(batch.commit());
+        Tasks.await(Tasks.whenAll(commits));
+        Log.i(TAG, "Rebuilt the leaderboard of " + users + " users");
+        return users;
+    }
+
+    static int bucketOf(long score) {
+        if (score <= 0) {
+            return 0;
+        }
+        return (int) Math.min(score / BUCKET_WIDTH, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Position of a bucket in the rank tree; the highest bucket comes first, so the prefix
+     * before a position counts the users in higher buckets.
+     */
+    static int position(int bucket) {
+        return BUCKET_COUNT - bucket;
+    }
+
+    /**
+     * Changes of the stored rank tree nodes, keyed by node, when a user moves from
+     * {@code previousScore}, or {@code null} for a new user, to {@code score}. Nodes whose
+     * count does not change and the root are left out, so a move within a subtree only
+     * writes the nodes below their common ancestor.
+     */
+    static Map<Integer, Long> rankTreeDeltas(@Nullable Long previousScore, long score) {
+        Map<Integer, Long> deltas = new TreeMap<>();
+        if (previousScore != null) {
+            addPathDeltas(deltas, position(bucketOf(previousScore)), -1);
+        }
+        addPathDeltas(deltas, position(bucketOf(score)), 1);
+        deltas.values().removeIf(delta -> delta == 0);
+        return deltas;
+    }
+
+    private static void addPathDeltas(Map<Integer, Long> deltas, int position, long delta) {
+        for (int node = position; node < BUCKET_COUNT; node += node & -node) {
+            deltas.merge(node, delta, Long::sum);
+        }
+    }
+
+    private static String nodeId(int node) {
+        return "node_" + node;
+    }
+
+    private static Map<String, Object> entryData(String userId, String name, @Nullable Avatar avatar, int score) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("userId", userId);
+        data.put("name", name);
+        if (avatar != null) {
+            Map<String, Object> avatarData = new HashMap<>();
+            avatarData.put("name", avatar.getName());
+            avatarData.put("imageUrl", avatar.getImageUrl());
+            data.put("anonymousAvatar", avatarData);
+        }
+        data.put(FIELD_TOTAL_SCORE, score);
+        return data;
+    }
+
+    private static List<LeaderboardEntry> toEntries(QuerySnapshot snapshot) {
+        List<LeaderboardEntry> entries = new ArrayList<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            LeaderboardEntry entry = document.toObject(LeaderboardEntry.class);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Nullable
+    private static LeaderboardEntry firstEntry(QuerySnapshot snapshot) {
+        List<LeaderboardEntry> entries = toEntries(snapshot);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+}
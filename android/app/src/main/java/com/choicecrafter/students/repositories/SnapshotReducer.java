@@ -0,0 +1,258 @@
+package com.choicecrafter.students.repositories;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Keeps state derived from a query snapshot listener up to date from the document changes
+ * of each snapshot instead of rebuilding it from all documents.
+ * <p>
+ * A document is mapped to a value once, when it is added or modified, and the value is kept
+ * under the document id. The previous and the new value of every changed document are
+ * reported to a {@link DocumentListener}, so keyed aggregates can take out the old
+ * contribution and add the new one. The items of all values are kept in one list sorted by
+ * the given order, and each insertion, move, change and removal in it is reported to a
+ * {@link ListUpdateCallback}, e.g. an {@code AdapterListUpdateCallback}. A snapshot costs
+ * work for the documents it changed only; snapshots that only change metadata cost nothing.
+ * <p>
+ * Items are found again by identity, so the order must not change while an item is in the
+ * list. Not thread safe; use it from the thread the listener delivers on.
+ */
+public class SnapshotReducer<V, T> {
+
+    /**
+     * Told about every document whose value changed; {@code previous} is {@code null} for a
+     * new document and {@code current} is {@code null} for a removed one.
+     */
+    public interface DocumentListener<V> {
+        void onDocumentChanged(@NonNull String documentId, @Nullable V previous, @Nullable V current);
+    }
+
+    private final Function<DocumentSnapshot, V> mapper;
+    private final Function<V, List<T>> itemsOf;
+    private final Comparator<? super T> order;
+    private final Map<String, V> values = new HashMap<>();
+    private final List<T> items = new ArrayList<>();
+    private final List<T> itemsView = Collections.unmodifiableList(items);
+    private DocumentListener<V> documentListener;
+    private ListUpdateCallback listUpdateCallback;
+
+    /**
+     * @param mapper  maps a document to its value, or to {@code null} when the document
+     *                contributes nothing
+     * @param itemsOf returns the list items of a value
+     * @param order   the order of the item list
+     */
+    public SnapshotReducer(@NonNull Function<DocumentSnapshot, V> mapper,
+                           @NonNull Function<V, List<T>> itemsOf,
+                           @NonNull Comparator<? super T> order) {
+        this.mapper = Objects.requireNonNull(mapper, "mapper == null");
+        this.itemsOf = Objects.requireNonNull(itemsOf, "itemsOf == null");
+        this.order = Objects.requireNonNull(order, "order == null");
+    }
+
+    /**
+     * Creates a reducer that only keeps the value of each document, without an item list.
+     */
+    @NonNull
+    public static <V> SnapshotReducer<V, Void> keyed(@NonNull Function<DocumentSnapshot, V> mapper) {
+        return new SnapshotReducer<>(mapper, value -> Collections.emptyList(), (first, second) -> 0);
+    }
+
+    public void setDocumentListener(@Nullable DocumentListener<V> documentListener) {
+        this.documentListener = documentListener;
+    }
+
+    public void setListUpdateCallback(@Nullable ListUpdateCallback listUpdateCallback) {
+        this.listUpdateCallback = listUpdateCallback;
+    }
+
+    /**
+     * Returns a read-only view of the sorted items, which follows later snapshots.
+     */
+    @NonNull
+    public List<T> getItems() {
+        return itemsView;
+    }
+
+    @NonNull
+    public Map<String, V> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Applies the document changes of {@code snapshot} and returns whether any value changed.
+     * <p>
+     * An added document that is already known is treated as modified, so a listener can be
+     * fed after a one-time read of the same query. While the item list is empty, for example
+     * on the first snapshot, the insertions are reported as a single range.
+     */
+    public boolean apply(@Nullable QuerySnapshot snapshot) {
+        if (snapshot == null) {
+            return false;
+        }
+        List<DocumentChange> changes = snapshot.getDocumentChanges();
+        if (changes.isEmpty()) {
+            return false;
+        }
+        boolean initialLoad = items.isEmpty();
+        boolean changed = false;
+        for (DocumentChange change : changes) {
+            DocumentSnapshot document = change.getDocument();
+            V current = change.getType() == DocumentChange.Type.REMOVED ? null : mapper.apply(document);
+            changed |= applyChange(document.getId(), current, initialLoad);
+        }
+        finishApply(initialLoad);
+        return changed;
+    }
+
+    /**
+     * Applies already mapped changes, in iteration order, the way {@link #apply(QuerySnapshot)}
+     * applies the document changes of a snapshot; a {@code null} value stands for a removed
+     * document or one that contributes nothing.
+     */
+    boolean applyValues(@NonNull Map<String, V> changedValues) {
+        if (changedValues.isEmpty()) {
+            return false;
+        }
+        boolean initialLoad = items.isEmpty();
+        boolean changed = false;
+        for (Map.Entry<String, V> change : changedValues.entrySet()) {
+            changed |= applyChange(change.getKey(), change.getValue(), initialLoad);
+        }
+        finishApply(initialLoad);
+        return changed;
+    }
+
+    private boolean applyChange(String documentId, @Nullable V current, boolean initialLoad) {
+        V previous = current == null ? values.remove(documentId) : values.put(documentId, current);
+        if (previous == null && current == null) {
+            return false;
+        }
+        updateItems(itemsOf(previous), itemsOf(current), initialLoad ? null : listUpdateCallback);
+        if (documentListener != null) {
+            documentListener.onDocumentChanged(documentId, previous, current);
+        }
+        return true;
+    }
+
+    private void finishApply(boolean initialLoad) {
+        if (initialLoad && listUpdateCallback != null && !items.isEmpty()) {
+            listUpdateCallback.onInserted(0, items.size());
+        }
+    }
+
+    /**
+     * Forgets all documents, reporting each of them as removed, e.g. before the state is
+     * rebuilt from a complete read.
+     */
+    public void clear() {
+        if (documentListener != null) {
+            for (Map.Entry<String, V> entry : values.entrySet()) {
+                documentListener.onDocumentChanged(entry.getKey(), entry.getValue(), null);
+            }
+        }
+        values.clear();
+        int removed = items.size();
+        items.clear();
+        if (listUpdateCallback != null && removed > 0) {
+            listUpdateCallback.onRemoved(0, removed);
+        }
+    }
+
+    private List<T> itemsOf(@Nullable V value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<T> valueItems = itemsOf.apply(value);
+        return valueItems != null ? valueItems : Collections.emptyList();
+    }
+
+    /**
+     * Replaces the items of one document, pairing old and new items in order so that an
+     * item that stays in place is reported as changed rather than removed and inserted.
+     */
+    private void updateItems(List<T> oldItems, List<T> newItems, @Nullable ListUpdateCallback callback) {
+        int shared = Math.min(oldItems.size(), newItems.size());
+        for (int i = 0; i < shared; i++) {
+            T oldItem = oldItems.get(i);
+            T newItem = newItems.get(i);
+            int from = remove(oldItem);
+            int to = insert(newItem);
+            if (callback == null) {
+                continue;
+            }
+            if (from < 0) {
+                callback.onInserted(to, 1);
+                continue;
+            }
+            if (from != to) {
+                callback.onMoved(from, to);
+            }
+            if (!Objects.equals(oldItem, newItem)) {
+                callback.onChanged(to, 1, null);
+            }
+        }
+        for (int i = shared; i < oldItems.size(); i++) {
+            int from = remove(oldItems.get(i));
+            if (callback != null && from >= 0) {
+                callback.onRemoved(from, 1);
+            }
+        }
+        for (int i = shared; i < newItems.size(); i++) {
+            int to = insert(newItems.get(i));
+            if (callback != null) {
+                callback.onInserted(to, 1);
+            }
+        }
+    }
+
+    private int insert(T item) {
+        int low = 0;
+        int high = items.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (order.compare(items.get(mid), item) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        items.add(low, item);
+        return low;
+    }
+
+    private int remove(T item) {
+        int low = 0;
+        int high = items.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (order.compare(items.get(mid), item) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < items.size() && order.compare(items.get(i), item) == 0; i++) {
+            if (items.get(i) == item) {
+                items.remove(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,372 @@
+package com.choicecrafter.students.repositories;
+
+import android.util.Log;
+
+import com.choicecrafter.students.models.tasks.CodingChallengeExample;
+import com.choicecrafter.students.models.tasks.CodingChallengeTask;
+import com.choicecrafter.students.models.tasks.FillInTheBlank;
+import com.choicecrafter.students.models.tasks.InfoCardTask;
+import com.choicecrafter.students.models.tasks.MatchingPairTask;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.OrderingTask;
+import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
+import com.choicecrafter.students.models.tasks.SupportingContent;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.models.tasks.TrueFalseTask;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the raw task maps stored inside Firestore course documents straight into
+ * {@link Task} instances.
+ * <p>
+ * The conversion rules mirror the ones Gson applied when tasks were round-tripped
+ * through JSON (numbers and booleans are accepted for string fields, numeric strings
+ * for integer fields, mismatched shapes reject the task) so that the decoded graph is
+ * identical to the previous reflective path without the intermediate JSON string.
+ */
+final class TaskMapDecoder {
+
+    private static final String TAG = "TaskMapDecoder";
+
+    private TaskMapDecoder() {
+        // Utility class
+    }
+
+    /**
+     * Returns the decoded task, or {@code null} when the entry has no usable type or
+     * does not match the shape of its declared type.
+     */
+    static Task decode(Map<String, Object> taskMap) {
+        if (taskMap == null) {
+            Log.w(TAG, "Skipping null task definition");
+            return null;
+        }
+
+        Object typeValue = taskMap.get("type");
+        if (typeValue == null) {
+            Log.w(TAG, "Task entry is missing a type field. Skipping task: " + taskMap);
+            return null;
+        }
+
+        String normalizedType = String.valueOf(typeValue).trim();
+        if (normalizedType.isEmpty()) {
+            Log.w(TAG, "Task type is empty. Skipping task: " + taskMap);
+            return null;
+        }
+
+        try {
+            Task parsedTask = switch (normalizedType) {
+                case "MultipleChoice" -> decodeMultipleChoice(taskMap);
+                case "FillInTheBlank" -> decodeFillInTheBlank(taskMap);
+                case "MatchingPair" -> decodeMatchingPair(taskMap);
+                case "Ordering" -> decodeOrdering(taskMap);
+                case "InfoCard" -> decodeInfoCard(taskMap);
+                case "CodingChallenge" -> decodeCodingChallenge(taskMap);
+                case "TrueFalse" -> decodeTrueFalse(taskMap);
+                case "SpotError" -> decodeSpotError(taskMap);
+                default -> {
+                    Log.w(TAG, "Unknown task type '" + normalizedType + "'. Skipping task: " + taskMap);
+                    yield null;
+                }
+            };
+
+            if (parsedTask != null) {
+                applySupportingContent(taskMap, parsedTask);
+            }
+
+            return parsedTask;
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Failed to parse task of type " + normalizedType + ": " + taskMap, ex);
+            return null;
+        }
+    }
+
+    private static void decodeBase(Map<String, Object> map, Task task) {
+        task.setId(asString(map, "id"));
+        task.setTitle(asString(map, "title"));
+        task.setDescription(asString(map, "description"));
+        task.setType(asString(map, "type"));
+        task.setStatus(asString(map, "status"));
+        task.setExplanation(asString(map, "explanation"));
+    }
+
+    private static MultipleChoiceQuestion decodeMultipleChoice(Map<String, Object> map) {
+        MultipleChoiceQuestion task = new MultipleChoiceQuestion();
+        decodeBase(map, task);
+        task.setQuestion(asString(map, "question"));
+        task.setOptions(asStringList(map, "options"));
+        Integer correctAnswer = asInteger(map.get("correctAnswer"), "correctAnswer");
+        if (correctAnswer != null) {
+            task.setCorrectAnswer(correctAnswer);
+        }
+        task.setSupportingContent(asSupportingContent(map.get("supportingContent")));
+        return task;
+    }
+
+    private static FillInTheBlank decodeFillInTheBlank(Map<String, Object> map) {
+        FillInTheBlank task = new FillInTheBlank();
+        decodeBase(map, task);
+        task.setText(asString(map, "text"));
+        task.setMissingSegments(asStringList(map, "missingSegments"));
+        task.setSegmentPositions(asIntegerList(map, "segmentPositions"));
+        task.setSupportingContent(asSupportingContent(map.get("supportingContent")));
+        return task;
+    }
+
+    private static MatchingPairTask decodeMatchingPair(Map<String, Object> map) {
+        MatchingPairTask task = new MatchingPairTask();
+        decodeBase(map, task);
+        task.setLeftItems(asStringList(map, "leftItems"));
+        task.setRightItems(asStringList(map, "rightItems"));
+        task.setCorrectMatches(asStringMap(map.get("correctMatches"), "correctMatches"));
+        return task;
+    }
+
+    private static OrderingTask decodeOrdering(Map<String, Object> map) {
+        OrderingTask task = new OrderingTask();
+        decodeBase(map, task);
+        task.setItems(asStringList(map, "items"));
+        task.setCorrectOrder(asIntegerList(map, "correctOrder"));
+        return task;
+    }
+
+    private static InfoCardTask decodeInfoCard(Map<String, Object> map) {
+        InfoCardTask task = new InfoCardTask();
+        decodeBase(map, task);
+        task.setContentType(asString(map, "contentType"));
+        task.setContentText(asString(map, "contentText"));
+        task.setMediaUrl(asString(map, "mediaUrl"));
+        task.setInteractiveUrl(asString(map, "interactiveUrl"));
+        task.setActionText(asString(map, "actionText"));
+        return task;
+    }
+
+    private static CodingChallengeTask decodeCodingChallenge(Map<String, Object> map) {
+        CodingChallengeTask task = new CodingChallengeTask();
+        decodeBase(map, task);
+        task.setProblemDescription(asString(map, "problemDescription"));
+        task.setExpectedOutputDescription(asString(map, "expectedOutput"));
+        task.setSolutionInput(asString(map, "solutionInput"));
+        task.setDefaultLanguage(asString(map, "defaultLanguage"));
+
+        Object examples = map.get("examples");
+        if (examples != null) {
+            task.setExamples(asExamples(examples));
+        }
+
+        Object starterCode = firstPresent(map, "starterCode", "starterTemplates");
+        if (starterCode != null) {
+            task.setStarterCodeByLanguage(asStringMap(starterCode, "starterCode"));
+        }
+
+        Object solutionCode = firstPresent(map, "solutionCode", "solutions");
+        if (solutionCode != null) {
+            task.setSolutionCodeByLanguage(asStringMap(solutionCode, "solutionCode"));
+        }
+        return task;
+    }
+
+    private static TrueFalseTask decodeTrueFalse(Map<String, Object> map) {
+        TrueFalseTask task = new TrueFalseTask();
+        decodeBase(map, task);
+        task.setStatement(asString(map, "statement"));
+        Object correctAnswer = map.get("correctAnswer");
+        if (correctAnswer instanceof Boolean bool) {
+            task.setCorrectAnswer(bool);
+        } else if (correctAnswer instanceof String text) {
+            task.setCorrectAnswer(Boolean.parseBoolean(text));
+        } else if (correctAnswer != null) {
+            throw mismatch("correctAnswer", correctAnswer);
+        }
+        return task;
+    }
+
+    private static SpotTheErrorTask decodeSpotError(Map<String, Object> map) {
+        SpotTheErrorTask task = new SpotTheErrorTask();
+        decodeBase(map, task);
+        task.setPrompt(asString(map, "prompt"));
+        task.setSnippet(asString(map, "codeSnippet"));
+        task.setOptions(asStringList(map, "options"));
+        Integer correctAnswer = asInteger(map.get("correctAnswer"), "correctAnswer");
+        if (correctAnswer != null) {
+            task.setCorrectOptionIndex(correctAnswer);
+        }
+        return task;
+    }
+
+    private static void applySupportingContent(Map<String, Object> taskMap, Task parsedTask) {
+        if (!(parsedTask instanceof MultipleChoiceQuestion || parsedTask instanceof FillInTheBlank)) {
+            return;
+        }
+
+        SupportingContent supportingContent = null;
+
+        if (taskMap.get("supportingContent") instanceof Map<?, ?>) {
+            supportingContent = asSupportingContent(taskMap.get("supportingContent"));
+        } else {
+            String supportingText = normalizeString(asLenientString(taskMap, "supportingText"));
+            String supportingImageUrl = normalizeString(asLenientString(taskMap, "supportingImageUrl"));
+            if (supportingImageUrl == null) {
+                supportingImageUrl = normalizeString(asLenientString(taskMap, "supportingImage"));
+            }
+
+            if (supportingText != null || supportingImageUrl != null) {
+                supportingContent = new SupportingContent(supportingText, supportingImageUrl);
+            }
+        }
+
+        if (supportingContent == null) {
+            return;
+        }
+
+        if (parsedTask instanceof MultipleChoiceQuestion multipleChoiceQuestion) {
+            multipleChoiceQuestion.setSupportingContent(supportingContent);
+        } else if (parsedTask instanceof FillInTheBlank fillInTheBlank) {
+            fillInTheBlank.setSupportingContent(supportingContent);
+        }
+    }
+
+    private static Object firstPresent(Map<String, Object> map, String primaryKey, String alternateKey) {
+        Object value = map.get(primaryKey);
+        return value != null ? value : map.get(alternateKey);
+    }
+
+    private static String asString(Map<?, ?> map, String key) {
+        return asString(map.get(key), key);
+    }
+
+    private static String asString(Object value, String field) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        throw mismatch(field, value);
+    }
+
+    /**
+     * Variant used for the loose supporting-content fields, which never rejected a
+     * task and simply ignored values that were not primitives.
+     */
+    private static String asLenientString(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return String.valueOf(value);
+        }
+        if (value != null) {
+            Log.w(TAG, "Failed to read string value for " + key + " in " + map);
+        }
+        return null;
+    }
+
+    private static Integer asInteger(Object value, String field) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number number) {
+            return number.intValue();
+        }
+        if (value instanceof String text) {
+            return Integer.parseInt(text);
+        }
+        throw mismatch(field, value);
+    }
+
+    private static List<String> asStringList(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof List<?> rawList)) {
+            throw mismatch(key, value);
+        }
+        List<String> result = new ArrayList<>(rawList.size());
+        for (Object item : rawList) {
+            result.add(asString(item, key));
+        }
+        return result;
+    }
+
+    private static List<Integer> asIntegerList(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof List<?> rawList)) {
+            throw mismatch(key, value);
+        }
+        List<Integer> result = new ArrayList<>(rawList.size());
+        for (Object item : rawList) {
+            result.add(asInteger(item, key));
+        }
+        return result;
+    }
+
+    private static Map<String, String> asStringMap(Object value, String field) {
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Map<?, ?> rawMap)) {
+            throw mismatch(field, value);
+        }
+        // Gson filled these maps in document order.
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : rawMap.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), asString(entry.getValue(), field));
+        }
+        return result;
+    }
+
+    private static SupportingContent asSupportingContent(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Map<?, ?> map)) {
+            throw mismatch("supportingContent", value);
+        }
+        SupportingContent supportingContent = new SupportingContent();
+        supportingContent.setText(asString(map, "text"));
+        supportingContent.setImageUrl(asString(map, "imageUrl"));
+        return supportingContent;
+    }
+
+    private static List<CodingChallengeExample> asExamples(Object value) {
+        if (!(value instanceof List<?> rawList)) {
+            throw mismatch("examples", value);
+        }
+        List<CodingChallengeExample> examples = new ArrayList<>(rawList.size());
+        for (Object item : rawList) {
+            if (item == null) {
+                examples.add(null);
+                continue;
+            }
+            if (!(item instanceof Map<?, ?> map)) {
+                throw mismatch("examples", item);
+            }
+            CodingChallengeExample example = new CodingChallengeExample();
+            example.setInput(asString(map, "input"));
+            example.setOutput(asString(map, "output"));
+            example.setExplanation(asString(map, "explanation"));
+            examples.add(example);
+        }
+        return examples;
+    }
+
+    private static String normalizeString(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static IllegalArgumentException mismatch(String field, Object value) {
+        return new IllegalArgumentException("Unexpected value for '" + field + "': "
+                + value.getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,1086 @@
+package com.choicecrafter.students.repositories;
+
+import static com.choicecrafter.students.repositories.EnrollmentProgressSnapshots.activityField;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.analytics.WeeklyUsageRollup;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.utils.TimestampParser;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.SetOptions;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for task results.
+ * <p>
+ * Results are coalesced per enrollment and written in one transaction once
+ * {@link #MAX_PENDING_TASKS} results are pending or {@link #FLUSH_DELAY_MS} after the
+ * first one arrived, whichever comes first. A later result for the same task replaces
+ * the pending one. Every result is also appended to a journal in the app's files
+ * directory, so results that were not written before the process died are replayed by
+ * {@link #attach(File)} on the next start. The journal is read and written on a background
+ * thread, in the order of the changes to the queue.
+ * <p>
+ * The transaction reads the enrollment and only writes a result that is newer than the
+ * stored result of its task. The same transaction moves the user's
+ * {@link WeeklyUsageRollup}s from the replaced result to the new one and adds one event per
+ * activity to the {@link ColleagueFeedRepository colleague feed}. Writing a result a second
+ * time, for example when a result that was already committed is replayed from the journal,
+ * therefore changes nothing. Highest scores of finished activities are queued and journaled
+ * the same way and only written when they beat the stored score, so they survive going
+ * offline as well. Once the transaction succeeded, the rollup changes are also
+ * applied to the {@link DailyScoreRepository cached daily scores}. Failed writes are retried
+ * with a growing delay, except for errors that a retry cannot fix.
+ */
+public class TaskStatsWriteQueue {
+
+    private static final String TAG = "TaskStatsWriteQueue";
+    private static final String ENROLLMENTS_COLLECTION = "COURSE_ENROLLMENTS";
+    private static final String JOURNAL_FILE_NAME = "task_stats_journal.log";
+    private static final TimestampParser ATTEMPT_TIMESTAMP_PARSER = TimestampParser.forZone(WeeklyUsageRollup.ZONE);
+
+    static final int MAX_PENDING_TASKS = 20;
+    static final long FLUSH_DELAY_MS = 3_000;
+    static final long MAX_RETRY_DELAY_MS = 5 * 60_000;
+
+    private static final TaskStatsWriteQueue INSTANCE = new TaskStatsWriteQueue();
+
+    private final Gson gson = new Gson();
+    private final ScheduledExecutorService scheduler;
+    private final Executor journalExecutor;
+    private final BatchWriter writer;
+    private final Object lock = new Object();
+
+    private final Map<String, PendingEnrollment> pending = new LinkedHashMap<>();
+    private final Map<String, Batch> inFlight = new HashMap<>();
+    /**
+     * Activities discarded while a batch with their results was in flight, by enrollment,
+     * with the callbacks that wait for that batch to finish.
+     */
+    private final Map<String, Map<String, List<Runnable>>> tombstones = new HashMap<>();
+    private int pendingTasks;
+    private int consecutiveFailures;
+    private ScheduledFuture<?> scheduledFlush;
+    private File journal;
+
+    private long flushCount;
+    private long failedFlushCount;
+    private long droppedFlushCount;
+    private long coalescedUpdates;
+    private long lastFlushLatencyMs;
+    private long maxFlushLatencyMs;
+
+    private TaskStatsWriteQueue() {
+        this(Executors.newSingleThreadScheduledExecutor(), Executors.newSingleThreadExecutor(),
+                TaskStatsWriteQueue::writeToFirestore);
+    }
+
+    /**
+     * @param journalExecutor runs the journal reads and writes in submission order, so it
+     *                        has to be single threaded
+     */
+    TaskStatsWriteQueue(@NonNull ScheduledExecutorService scheduler,
+                        @NonNull Executor journalExecutor,
+                        @NonNull BatchWriter writer) {
+        this.scheduler = scheduler;
+        this.journalExecutor = journalExecutor;
+        this.writer = writer;
+    }
+
+    public static TaskStatsWriteQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Points the journal at the given directory and replays results left over from a
+     * previous process in the background. Until attached the queue works in memory only.
+     */
+    public void attach(@NonNull File directory) {
+        File file = new File(directory, JOURNAL_FILE_NAME);
+        synchronized (lock) {
+            journal = file;
+        }
+        // Runs before any append or rewrite of the new journal, which are queued after it.
+        journalExecutor.execute(() -> {
+            List<JournalEntry> entries = readJournal(file);
+            if (entries.isEmpty()) {
+                return;
+            }
+            synchronized (lock) {
+                // Newest first, and without replacing results queued since the start: of
+                // several results for a task the last one journaled or queued wins.
+                for (int i = entries.size() - 1; i >= 0; i--) {
+                    addLocked(entries.get(i), false);
+                }
+                Log.i(TAG, "Replayed " + entries.size() + " unsent task result(s) from the journal");
+                scheduleFlushLocked(0);
+            }
+        });
+    }
+
+    public void enqueue(@NonNull String userId,
+                        @NonNull String courseId,
+                        @NonNull String activityId,
+                        @NonNull String taskId,
+                        @NonNull TaskStats taskStats) {
+        JournalEntry entry = new JournalEntry(userId, courseId, activityId, taskId, taskStats);
+        synchronized (lock) {
+            appendToJournalLocked(entry);
+            addLocked(entry, true);
+            if (pendingTasks >= MAX_PENDING_TASKS) {
+                scheduleFlushLocked(0);
+            } else if (scheduledFlush == null) {
+                scheduleFlushLocked(FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Queues the score of a finished activity, which is stored as its highest score unless
+     * the stored one is at least as high. Of several queued scores of an activity the highest
+     * is kept. Everything that is pending is written right away, so the score and the last
+     * results of the activity go out in the same transaction.
+     * <p>
+     * {@code callback} is called once the transaction committed, with whether {@code score}
+     * became the stored highest score and the score stored after the write. It fails when
+     * the write is given up or the activity's progress is reset first. While offline the
+     * callback waits with the score; it is not called after the process died, although the
+     * score itself is replayed from the journal.
+     */
+    public void enqueueHighestScore(@NonNull String userId,
+                                    @NonNull String courseId,
+                                    @NonNull String activityId,
+                                    int score,
+                                    @Nullable ActivityRepository.HighScoreCallback callback) {
+        JournalEntry entry = new JournalEntry(userId, courseId, activityId, score);
+        synchronized (lock) {
+            appendToJournalLocked(entry);
+            PendingActivity activity = addLocked(entry, true);
+            if (callback != null) {
+                activity.scoreRequests.add(new ScoreRequest(score, callback));
+            }
+            scheduleFlushLocked(0);
+        }
+    }
+
+    /**
+     * Writes everything that is pending without waiting for the flush delay.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (!pending.isEmpty()) {
+                scheduleFlushLocked(0);
+            }
+        }
+    }
+
+    /**
+     * Drops the queued results of an activity, used when its progress is reset, and runs
+     * {@code then} once no write of those results is in flight any more. A batch that is
+     * already being written is left alone; the activity is only marked as discarded, so a
+     * failed batch does not put its results back. Running the reset from {@code then} keeps
+     * it from being overwritten by a batch that commits after it.
+     */
+    public void discard(@NonNull String userId,
+                        @NonNull String courseId,
+                        @NonNull String activityId,
+                        @NonNull Runnable then) {
+        String enrollmentId = enrollmentId(userId, courseId);
+        List<ScoreRequest> cancelled = new ArrayList<>();
+        boolean waiting;
+        synchronized (lock) {
+            PendingEnrollment enrollment = pending.get(enrollmentId);
+            if (enrollment != null) {
+                PendingActivity removed = enrollment.activities.remove(activityId);
+                if (removed != null) {
+                    pendingTasks -= removed.taskStats.size();
+                    cancelled.addAll(removed.scoreRequests);
+                }
+                if (enrollment.activities.isEmpty()) {
+                    pending.remove(enrollmentId);
+                }
+            }
+            Batch sending = inFlight.get(enrollmentId);
+            waiting = sending != null && sending.activities.containsKey(activityId);
+            if (waiting) {
+                tombstones.computeIfAbsent(enrollmentId, id -> new HashMap<>())
+                        .computeIfAbsent(activityId, id -> new ArrayList<>())
+                        .add(then);
+            }
+            rewriteJournalLocked();
+        }
+        for (ScoreRequest request : cancelled) {
+            request.callback.onFailure(new CancellationException("Progress of " + activityId + " was reset"));
+        }
+        if (!waiting) {
+            then.run();
+        }
+    }
+
+    /**
+     * Returns the results of an activity that have not been written yet, keyed by task.
+     */
+    @NonNull
+    public Map<String, TaskStats> pendingTaskStats(@NonNull String userId,
+                                                   @NonNull String courseId,
+                                                   @NonNull String activityId) {
+        String enrollmentId = enrollmentId(userId, courseId);
+        Map<String, TaskStats> result = new HashMap<>();
+        synchronized (lock) {
+            Batch sending = inFlight.get(enrollmentId);
+            if (sending != null && !isDiscardedLocked(enrollmentId, activityId)) {
+                BatchedActivity activity = sending.activities.get(activityId);
+                if (activity != null) {
+                    result.putAll(activity.taskStats);
+                }
+            }
+            PendingEnrollment enrollment = pending.get(enrollmentId);
+            PendingActivity activity = enrollment != null ? enrollment.activities.get(activityId) : null;
+            if (activity != null) {
+                result.putAll(activity.taskStats);
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    public Metrics getMetrics() {
+        synchronized (lock) {
+            return new Metrics(pendingTasks, pending.size(), flushCount, failedFlushCount,
+                    droppedFlushCount, coalescedUpdates, lastFlushLatencyMs, maxFlushLatencyMs);
+        }
+    }
+
+    private void flushNow() {
+        List<Batch> batches = new ArrayList<>();
+        synchronized (lock) {
+            scheduledFlush = null;
+            Iterator<PendingEnrollment> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                PendingEnrollment enrollment = iterator.next();
+                // Only one write per enrollment is in flight; the rest waits for the next flush.
+                if (inFlight.containsKey(enrollment.enrollmentId)) {
+                    continue;
+                }
+                iterator.remove();
+                Batch batch = enrollment.toBatch();
+                inFlight.put(batch.enrollmentId, batch);
+                pendingTasks -= batch.taskCount();
+                batches.add(batch);
+            }
+        }
+        for (Batch batch : batches) {
+            writer.write(batch, new WriteListener() {
+                @Override
+                public void onCommitted(@NonNull WriteResult result) {
+                    onWriteFinished(batch, result, null);
+                }
+
+                @Override
+                public void onFailed(@NonNull Exception e) {
+                    if (isPermanent(e)) {
+                        // A retry would fail the same way and hold up every later result of the enrollment.
+                        Log.w(TAG, "Dropping task results for " + batch.enrollmentId, e);
+                        synchronized (lock) {
+                            droppedFlushCount++;
+                        }
+                        onWriteFinished(batch, null, e);
+                    } else {
+                        Log.w(TAG, "Failed to flush task results for " + batch.enrollmentId, e);
+                        onWriteFinished(batch, null, null);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the results of an enrollment together with the changes to its usage rollups and
+     * feed events. Results that are not newer than the stored ones are left out, so the rollups
+     * never count a result twice and results of a missing enrollment are not counted at all.
+     */
+    private static void writeToFirestore(Batch batch, WriteListener listener) {
+        FirebaseFirestore firestore = FirebaseFirestore.getInstance();
+        DocumentReference reference = firestore.collection(ENROLLMENTS_COLLECTION).document(batch.enrollmentId);
+        int writeGeneration = DailyScoreRepository.getInstance().beginWrite(batch.userId);
+        firestore.runTransaction(transaction -> {
+            DocumentSnapshot stored = transaction.get(reference);
+            if (!stored.exists()) {
+                throw new FirebaseFirestoreException("Enrollment " + batch.enrollmentId + " not found",
+                        FirebaseFirestoreException.Code.NOT_FOUND);
+            }
+            WriteResult result = buildWrite(batch, stored);
+            if (result.updates.isEmpty()) {
+                return result;
+            }
+            Object[] more = result.updates.subList(2, result.updates.size()).toArray();
+            transaction.update(reference, (FieldPath) result.updates.get(0), result.updates.get(1), more);
+            if (!result.rollups.isEmpty()) {
+                for (WeeklyUsageRollup rollup : result.rollups) {
+                    transaction.set(firestore.collection(WeeklyUsageRollup.COLLECTION).document(rollup.getDocumentId()),
+                            rollup.toIncrementData(), SetOptions.merge());
+                }
+                transaction.set(firestore.collection(WeeklyUsageRollup.INDEX_COLLECTION).document(batch.userId),
+                        WeeklyUsageRollup.indexData(batch.userId, result.rollups, false), SetOptions.merge());
+            }
+            for (Map.Entry<String, Map<String, Object>> event : result.feedEvents.entrySet()) {
+                transaction.set(firestore.collection(ColleagueFeedRepository.COLLECTION).document(event.getKey()),
+                        event.getValue());
+            }
+            return result;
+        }).addOnSuccessListener(result -> {
+            if (!result.rollups.isEmpty()) {
+                DailyScoreRepository.getInstance().addRollups(batch.userId, writeGeneration, result.rollups);
+            }
+            listener.onCommitted(result);
+        }).addOnFailureListener(listener::onFailed);
+    }
+
+    /**
+     * Field updates, rollup changes and feed events for the results of {@code batch} that
+     * supersede the results stored in {@code stored}, plus the highest scores that beat the
+     * stored ones.
+     */
+    static WriteResult buildWrite(Batch batch, DocumentSnapshot stored) {
+        List<Object> updates = new ArrayList<>();
+        Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+        Map<String, Map<String, Object>> feedEvents = new LinkedHashMap<>();
+        Map<String, Integer> highestScores = new HashMap<>();
+        Set<String> beatenHighestScores = new HashSet<>();
+        for (BatchedActivity activity : batch.activities.values()) {
+            Map<String, Object> snapshot = EnrollmentProgressSnapshots.find(stored, activity.activityId);
+            Map<?, ?> storedStats = snapshot != null && snapshot.get("taskStats") instanceof Map<?, ?> map
+                    ? map : Map.of();
+            int written = 0;
+            long latestAttempt = TimestampParser.INVALID;
+            for (Map.Entry<String, TaskStats> task : activity.taskStats.entrySet()) {
+                Map<String, Object> next = convertTaskStats(task.getValue());
+                Object previous = storedStats.get(task.getKey());
+                if (!supersedes(next, previous)) {
+                    continue;
+                }
+                if (previous instanceof Map<?, ?> previousMap) {
+                    WeeklyUsageRollup.removeAttempt(rollups, batch.userId, batch.courseId,
+                            activity.activityId, previousMap);
+                }
+                WeeklyUsageRollup.addAttempt(rollups, batch.userId, batch.courseId,
+                        activity.activityId, next);
+                updates.add(activityField(activity.activityId, "taskStats", task.getKey()));
+                updates.add(next);
+                written++;
+                latestAttempt = Math.max(latestAttempt, ATTEMPT_TIMESTAMP_PARSER.parse(task.getValue().getAttemptDateTime()));
+            }
+            Integer storedScore = snapshot != null && snapshot.get("highestScore") instanceof Number number
+                    ? number.intValue() : null;
+            boolean highestScoreBeaten = activity.highestScore != null
+                    && (storedScore == null || activity.highestScore > storedScore);
+            if (highestScoreBeaten) {
+                updates.add(activityField(activity.activityId, "highestScore"));
+                updates.add(activity.highestScore);
+                highestScores.put(activity.activityId, activity.highestScore);
+                beatenHighestScores.add(activity.activityId);
+            } else if (activity.highestScore != null) {
+                highestScores.put(activity.activityId, storedScore);
+            }
+            if (written == 0 && !highestScoreBeaten) {
+                continue;
+            }
+            updates.add(activityField(activity.activityId, "activityId"));
+            updates.add(activity.activityId);
+            updates.add(activityField(activity.activityId, "courseId"));
+            updates.add(batch.courseId);
+            updates.add(activityField(activity.activityId, "userId"));
+            updates.add(batch.userId);
+            if (written == 0) {
+                continue;
+            }
+            if (latestAttempt == TimestampParser.INVALID) {
+                latestAttempt = System.currentTimeMillis();
+            }
+            feedEvents.put(ColleagueFeedRepository.eventId(batch.userId, batch.courseId,
+                            activity.activityId, latestAttempt),
+                    ColleagueFeedRepository.eventData(batch.userId, batch.courseId,
+                            activity.activityId, latestAttempt, written));
+        }
+        List<WeeklyUsageRollup> changed = new ArrayList<>();
+        for (WeeklyUsageRollup rollup : rollups.values()) {
+            if (!rollup.isEmpty()) {
+                changed.add(rollup);
+            }
+        }
+        return new WriteResult(updates, changed, feedEvents, highestScores, beatenHighestScores);
+    }
+
+    /**
+     * Whether {@code next} should replace the stored result {@code previous}: it does unless
+     * both carry an attempt time and {@code next} is not later. A result that was already
+     * written is therefore never written again.
+     */
+    static boolean supersedes(Map<String, Object> next, Object previous) {
+        if (!(previous instanceof Map<?, ?> previousMap)) {
+            return true;
+        }
+        long nextAttempt = ATTEMPT_TIMESTAMP_PARSER.parse(asString(next.get("attemptDateTime")));
+        long previousAttempt = ATTEMPT_TIMESTAMP_PARSER.parse(asString(previousMap.get("attemptDateTime")));
+        return nextAttempt == TimestampParser.INVALID
+                || previousAttempt == TimestampParser.INVALID
+                || nextAttempt > previousAttempt;
+    }
+
+    /**
+     * Errors a retry cannot fix: the enrollment is gone, the user may not write it, or the
+     * data is rejected.
+     */
+    private static boolean isPermanent(Exception e) {
+        if (!(e instanceof FirebaseFirestoreException firestoreException)) {
+            return false;
+        }
+        switch (firestoreException.getCode()) {
+            case NOT_FOUND:
+            case PERMISSION_DENIED:
+            case INVALID_ARGUMENT:
+            case OUT_OF_RANGE:
+            case UNIMPLEMENTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param result  the committed write, or {@code null} if the write failed
+     * @param dropped the error the write was given up for, or {@code null} if it committed
+     *                or will be retried
+     */
+    private void onWriteFinished(Batch batch, @Nullable WriteResult result, @Nullable Exception dropped) {
+        boolean done = result != null || dropped != null;
+        List<Runnable> released = new ArrayList<>();
+        synchronized (lock) {
+            inFlight.remove(batch.enrollmentId);
+            Map<String, List<Runnable>> discarded = tombstones.remove(batch.enrollmentId);
+            Set<String> discardedActivities = discarded != null ? discarded.keySet() : Set.of();
+            for (BatchedActivity activity : batch.activities.values()) {
+                if (discardedActivities.contains(activity.activityId)) {
+                    Exception reset = new CancellationException("Progress of " + activity.activityId + " was reset");
+                    released.addAll(activity.fail(reset));
+                } else if (result != null) {
+                    released.addAll(activity.report(result));
+                } else if (dropped != null) {
+                    released.addAll(activity.fail(dropped));
+                }
+            }
+            if (discarded != null) {
+                for (List<Runnable> callbacks : discarded.values()) {
+                    released.addAll(callbacks);
+                }
+            }
+            if (done) {
+                flushCount++;
+                consecutiveFailures = 0;
+                long latency = SystemClock.elapsedRealtime() - batch.firstQueuedAt;
+                lastFlushLatencyMs = latency;
+                maxFlushLatencyMs = Math.max(maxFlushLatencyMs, latency);
+            } else {
+                failedFlushCount++;
+                consecutiveFailures++;
+                requeueLocked(batch, discardedActivities);
+            }
+            rewriteJournalLocked();
+            if (!pending.isEmpty()) {
+                scheduleFlushLocked(done ? 0 : retryDelayLocked());
+            }
+        }
+        for (Runnable callback : released) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Delay before retrying after a failed write: {@link #FLUSH_DELAY_MS}, doubled with every
+     * further failure in a row up to {@link #MAX_RETRY_DELAY_MS}.
+     */
+    private long retryDelayLocked() {
+        int doublings = Math.min(consecutiveFailures - 1, 16);
+        return Math.min(MAX_RETRY_DELAY_MS, FLUSH_DELAY_MS << Math.max(0, doublings));
+    }
+
+    /**
+     * Puts the results of a failed write back, except those of discarded activities, keeping
+     * any newer result for the same task that was queued in the meantime. Results of the
+     * failed write that did reach the server are skipped when they are written again.
+     */
+    private void requeueLocked(Batch failed, Set<String> discardedActivities) {
+        PendingEnrollment target = pending.get(failed.enrollmentId);
+        if (target == null) {
+            target = new PendingEnrollment(failed.enrollmentId, failed.userId, failed.courseId);
+            pending.put(failed.enrollmentId, target);
+        }
+        target.firstQueuedAt = Math.min(target.firstQueuedAt, failed.firstQueuedAt);
+        for (BatchedActivity activity : failed.activities.values()) {
+            if (discardedActivities.contains(activity.activityId)) {
+                continue;
+            }
+            PendingActivity existing = target.activities.computeIfAbsent(activity.activityId, PendingActivity::new);
+            existing.offerHighestScore(activity.highestScore);
+            existing.scoreRequests.addAll(0, activity.scoreRequests);
+            for (Map.Entry<String, TaskStats> task : activity.taskStats.entrySet()) {
+                if (existing.taskStats.putIfAbsent(task.getKey(), task.getValue()) == null) {
+                    pendingTasks++;
+                }
+            }
+        }
+        if (target.activities.isEmpty()) {
+            pending.remove(failed.enrollmentId);
+        }
+    }
+
+    /**
+     * @param replace whether the result replaces a pending result for the same task; replayed
+     *                results do not, since they are older than anything queued since
+     */
+    private PendingActivity addLocked(JournalEntry entry, boolean replace) {
+        String enrollmentId = enrollmentId(entry.userId, entry.courseId);
+        PendingEnrollment enrollment = pending.get(enrollmentId);
+        if (enrollment == null) {
+            enrollment = new PendingEnrollment(enrollmentId, entry.userId, entry.courseId);
+            pending.put(enrollmentId, enrollment);
+        }
+        PendingActivity activity = enrollment.activities.computeIfAbsent(entry.activityId, PendingActivity::new);
+        if (entry.highestScore != null) {
+            activity.offerHighestScore(entry.highestScore);
+            return activity;
+        }
+        TaskStats previous = replace
+                ? activity.taskStats.put(entry.taskId, entry.stats)
+                : activity.taskStats.putIfAbsent(entry.taskId, entry.stats);
+        if (previous == null) {
+            pendingTasks++;
+        } else {
+            coalescedUpdates++;
+        }
+        return activity;
+    }
+
+    private boolean isDiscardedLocked(String enrollmentId, String activityId) {
+        Map<String, List<Runnable>> discarded = tombstones.get(enrollmentId);
+        return discarded != null && discarded.containsKey(activityId);
+    }
+
+    private void scheduleFlushLocked(long delayMs) {
+        if (scheduledFlush != null) {
+            if (delayMs > 0 || scheduledFlush.getDelay(TimeUnit.MILLISECONDS) <= 0) {
+                return;
+            }
+            scheduledFlush.cancel(false);
+        }
+        scheduledFlush = scheduler.schedule(this::flushNow, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void appendToJournalLocked(JournalEntry entry) {
+        File file = journal;
+        if (file == null) {
+            return;
+        }
+        journalExecutor.execute(() -> {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+                writer.write(gson.toJson(entry));
+                writer.write('\n');
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to append task result to the journal", e);
+            }
+        });
+    }
+
+    /**
+     * Replaces the journal with the results that are still pending or in flight, so it only
+     * grows between two flushes. The results are collected when the rewrite runs, so a
+     * rewrite never undoes a change queued before it.
+     */
+    private void rewriteJournalLocked() {
+        File file = journal;
+        if (file == null) {
+            return;
+        }
+        journalExecutor.execute(() -> {
+            List<JournalEntry> entries = new ArrayList<>();
+            synchronized (lock) {
+                for (Batch batch : inFlight.values()) {
+                    for (BatchedActivity activity : batch.activities.values()) {
+                        if (!isDiscardedLocked(batch.enrollmentId, activity.activityId)) {
+                            addJournalEntries(entries, batch.userId, batch.courseId, activity.activityId,
+                                    activity.taskStats, activity.highestScore);
+                        }
+                    }
+                }
+                for (PendingEnrollment enrollment : pending.values()) {
+                    for (PendingActivity activity : enrollment.activities.values()) {
+                        addJournalEntries(entries, enrollment.userId, enrollment.courseId, activity.activityId,
+                                activity.taskStats, activity.highestScore);
+                    }
+                }
+            }
+            writeJournal(file, entries);
+        });
+    }
+
+    private static void addJournalEntries(List<JournalEntry> into,
+                                          String userId,
+                                          String courseId,
+                                          String activityId,
+                                          Map<String, TaskStats> taskStats,
+                                          @Nullable Integer highestScore) {
+        for (Map.Entry<String, TaskStats> task : taskStats.entrySet()) {
+            into.add(new JournalEntry(userId, courseId, activityId, task.getKey(), task.getValue()));
+        }
+        if (highestScore != null) {
+            into.add(new JournalEntry(userId, courseId, activityId, highestScore));
+        }
+    }
+
+    private void writeJournal(File file, List<JournalEntry> entries) {
+        if (entries.isEmpty()) {
+            file.delete();
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (JournalEntry entry : entries) {
+                writer.write(gson.toJson(entry));
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact the task result journal", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace the task result journal");
+            temp.delete();
+        }
+    }
+
+    /**
+     * Reads the results left in the journal, oldest first. Some of them may have been written
+     * just before the process died; {@link #supersedes} skips those when they are written again.
+     */
+    private List<JournalEntry> readJournal(File file) {
+        List<JournalEntry> entries = new ArrayList<>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    JournalEntry entry = gson.fromJson(line, JournalEntry.class);
+                    if (entry != null && entry.isComplete()) {
+                        entries.add(entry);
+                    }
+                } catch (JsonParseException e) {
+                    // A line cut short by process death; everything before it is intact.
+                    Log.w(TAG, "Skipping unreadable journal line", e);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the task result journal", e);
+        }
+        return entries;
+    }
+
+    private static String asString(Object value) {
+        return value != null ? String.valueOf(value) : null;
+    }
+
+    private static String enrollmentId(String userId, String courseId) {
+        return userId + "_" + courseId;
+    }
+
+    private static Map<String, Object> convertTaskStats(TaskStats taskStats) {
+        Map<String, Object> map = new HashMap<>();
+        if (taskStats.getAttemptDateTime() != null) {
+            map.put("attemptDateTime", taskStats.getAttemptDateTime());
+        }
+        if (taskStats.getTimeSpent() != null) {
+            map.put("timeSpent", taskStats.getTimeSpent());
+        }
+        if (taskStats.getRetries() != null) {
+            map.put("retries", taskStats.getRetries());
+        }
+        if (taskStats.getSuccess() != null) {
+            map.put("success", taskStats.getSuccess());
+        }
+        if (taskStats.getHintsUsed() != null) {
+            map.put("hintsUsed", taskStats.getHintsUsed());
+        }
+        Double completionRatio = taskStats.getCompletionRatio();
+        if (completionRatio != null) {
+            map.put("completionRatio", completionRatio);
+        }
+        Double scoreRatio = taskStats.getScoreRatio();
+        if (scoreRatio != null) {
+            map.put("scoreRatio", scoreRatio);
+        }
+        return map;
+    }
+
+    /**
+     * Point-in-time view of the queue.
+     */
+    public static final class Metrics {
+        private final int queueDepth;
+        private final int pendingEnrollments;
+        private final long flushCount;
+        private final long failedFlushCount;
+        private final long droppedFlushCount;
+        private final long coalescedUpdates;
+        private final long lastFlushLatencyMs;
+        private final long maxFlushLatencyMs;
+
+        private Metrics(int queueDepth,
+                        int pendingEnrollments,
+                        long flushCount,
+                        long failedFlushCount,
+                        long droppedFlushCount,
+                        long coalescedUpdates,
+                        long lastFlushLatencyMs,
+                        long maxFlushLatencyMs) {
+            this.queueDepth = queueDepth;
+            this.pendingEnrollments = pendingEnrollments;
+            this.flushCount = flushCount;
+            this.failedFlushCount = failedFlushCount;
+            this.droppedFlushCount = droppedFlushCount;
+            this.coalescedUpdates = coalescedUpdates;
+            this.lastFlushLatencyMs = lastFlushLatencyMs;
+            this.maxFlushLatencyMs = maxFlushLatencyMs;
+        }
+
+        /**
+         * Number of task results waiting to be written.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getPendingEnrollments() {
+            return pendingEnrollments;
+        }
+
+        public long getFlushCount() {
+            return flushCount;
+        }
+
+        public long getFailedFlushCount() {
+            return failedFlushCount;
+        }
+
+        /**
+         * Number of writes given up because of an error a retry cannot fix; these are also
+         * counted as flushes.
+         */
+        public long getDroppedFlushCount() {
+            return droppedFlushCount;
+        }
+
+        /**
+         * Number of results that replaced a pending result for the same task.
+         */
+        public long getCoalescedUpdates() {
+            return coalescedUpdates;
+        }
+
+        /**
+         * Time between the first queued result of the last flushed enrollment and the
+         * acknowledgement of its write.
+         */
+        public long getLastFlushLatencyMs() {
+            return lastFlushLatencyMs;
+        }
+
+        public long getMaxFlushLatencyMs() {
+            return maxFlushLatencyMs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Metrics{queueDepth=" + queueDepth
+                    + ", pendingEnrollments=" + pendingEnrollments
+                    + ", flushCount=" + flushCount
+                    + ", failedFlushCount=" + failedFlushCount
+                    + ", droppedFlushCount=" + droppedFlushCount
+                    + ", coalescedUpdates=" + coalescedUpdates
+                    + ", lastFlushLatencyMs=" + lastFlushLatencyMs
+                    + ", maxFlushLatencyMs=" + maxFlushLatencyMs + '}';
+        }
+    }
+
+    static final class WriteResult {
+        private final List<Object> updates;
+        private final List<WeeklyUsageRollup> rollups;
+        private final Map<String, Map<String, Object>> feedEvents;
+        private final Map<String, Integer> highestScores;
+        private final Set<String> beatenHighestScores;
+
+        /**
+         * @param highestScores       the highest score stored after the write, for every
+         *                            activity with a queued score
+         * @param beatenHighestScores activities whose queued score replaced the stored one
+         */
+        WriteResult(List<Object> updates,
+                    List<WeeklyUsageRollup> rollups,
+                    Map<String, Map<String, Object>> feedEvents,
+                    Map<String, Integer> highestScores,
+                    Set<String> beatenHighestScores) {
+            this.updates = updates;
+            this.rollups = rollups;
+            this.feedEvents = feedEvents;
+            this.highestScores = highestScores;
+            this.beatenHighestScores = beatenHighestScores;
+        }
+
+        List<Object> getUpdates() {
+            return updates;
+        }
+
+        List<WeeklyUsageRollup> getRollups() {
+            return rollups;
+        }
+
+        Map<String, Map<String, Object>> getFeedEvents() {
+            return feedEvents;
+        }
+
+        Map<String, Integer> getHighestScores() {
+            return highestScores;
+        }
+    }
+
+    /**
+     * Writes one batch of an enrollment; the Firestore transaction of
+     * {@link #writeToFirestore} outside of tests.
+     */
+    interface BatchWriter {
+        void write(@NonNull Batch batch, @NonNull WriteListener listener);
+    }
+
+    interface WriteListener {
+        void onCommitted(@NonNull WriteResult result);
+
+        void onFailed(@NonNull Exception e);
+    }
+
+    /**
+     * Results of an enrollment that are queued and not yet in flight.
+     */
+    static final class PendingEnrollment {
+        private final String enrollmentId;
+        private final String userId;
+        private final String courseId;
+        private final Map<String, PendingActivity> activities = new LinkedHashMap<>();
+        private long firstQueuedAt = SystemClock.elapsedRealtime();
+
+        PendingEnrollment(String enrollmentId, String userId, String courseId) {
+            this.enrollmentId = enrollmentId;
+            this.userId = userId;
+            this.courseId = courseId;
+        }
+
+        Batch toBatch() {
+            Map<String, BatchedActivity> batched = new LinkedHashMap<>();
+            for (PendingActivity activity : activities.values()) {
+                batched.put(activity.activityId, new BatchedActivity(activity));
+            }
+            return new Batch(enrollmentId, userId, courseId, firstQueuedAt, batched);
+        }
+    }
+
+    static final class PendingActivity {
+        private final String activityId;
+        private final Map<String, TaskStats> taskStats = new LinkedHashMap<>();
+        private final List<ScoreRequest> scoreRequests = new ArrayList<>();
+        private Integer highestScore;
+
+        PendingActivity(String activityId) {
+            this.activityId = activityId;
+        }
+
+        void offerHighestScore(Integer score) {
+            if (score != null && (highestScore == null || score > highestScore)) {
+                highestScore = score;
+            }
+        }
+    }
+
+    /**
+     * Results of an enrollment taken off the queue for one write. A batch never changes, so
+     * the transaction can read it on its own thread while results are queued, discarded or
+     * put back.
+     */
+    static final class Batch {
+        private final String enrollmentId;
+        private final String userId;
+        private final String courseId;
+        private final long firstQueuedAt;
+        private final Map<String, BatchedActivity> activities;
+
+        private Batch(String enrollmentId,
+                      String userId,
+                      String courseId,
+                      long firstQueuedAt,
+                      Map<String, BatchedActivity> activities) {
+            this.enrollmentId = enrollmentId;
+            this.userId = userId;
+            this.courseId = courseId;
+            this.firstQueuedAt = firstQueuedAt;
+            this.activities = Collections.unmodifiableMap(activities);
+        }
+
+        String getEnrollmentId() {
+            return enrollmentId;
+        }
+
+        Map<String, BatchedActivity> getActivities() {
+            return activities;
+        }
+
+        int taskCount() {
+            int count = 0;
+            for (BatchedActivity activity : activities.values()) {
+                count += activity.taskStats.size();
+            }
+            return count;
+        }
+    }
+
+    static final class BatchedActivity {
+        private final String activityId;
+        private final Map<String, TaskStats> taskStats;
+        private final Integer highestScore;
+        private final List<ScoreRequest> scoreRequests;
+
+        private BatchedActivity(PendingActivity pending) {
+            this.activityId = pending.activityId;
+            this.taskStats = Collections.unmodifiableMap(new LinkedHashMap<>(pending.taskStats));
+            this.highestScore = pending.highestScore;
+            this.scoreRequests = List.copyOf(pending.scoreRequests);
+        }
+
+        private List<Runnable> report(WriteResult result) {
+            List<Runnable> calls = new ArrayList<>(scoreRequests.size());
+            Integer stored = result.highestScores.get(activityId);
+            boolean beaten = result.beatenHighestScores.contains(activityId);
+            for (ScoreRequest request : scoreRequests) {
+                if (stored == null) {
+                    calls.add(() -> request.callback.onFailure(
+                            new IllegalStateException("No highest score stored for " + activityId)));
+                } else {
+                    calls.add(() -> request.callback.onResult(beaten && request.score == stored, stored));
+                }
+            }
+            return calls;
+        }
+
+        private List<Runnable> fail(Exception e) {
+            List<Runnable> calls = new ArrayList<>(scoreRequests.size());
+            for (ScoreRequest request : scoreRequests) {
+                calls.add(() -> request.callback.onFailure(e));
+            }
+            return calls;
+        }
+
+        Map<String, TaskStats> getTaskStats() {
+            return taskStats;
+        }
+
+        @Nullable
+        Integer getHighestScore() {
+            return highestScore;
+        }
+    }
+
+    private static final class ScoreRequest {
+        private final int score;
+        private final ActivityRepository.HighScoreCallback callback;
+
+        ScoreRequest(int score, ActivityRepository.HighScoreCallback callback) {
+            this.score = score;
+            this.callback = callback;
+        }
+    }
+
+    private static final class JournalEntry {
+        private String userId;
+        private String courseId;
+        private String activityId;
+        private String taskId;
+        private TaskStats stats;
+        private Integer highestScore;
+
+        @SuppressWarnings("unused")
+        JournalEntry() {
+            // Used by Gson
+        }
+
+        JournalEntry(String userId, String courseId, String activityId, String taskId, TaskStats stats) {
+            this.userId = userId;
+            this.courseId = courseId;
+            this.activityId = activityId;
+            this.taskId = taskId;
+            this.stats = stats;
+        }
+
+        JournalEntry(String userId, String courseId, String activityId, int highestScore) {
+            this.userId = userId;
+            this.courseId = courseId;
+            this.activityId = activityId;
+            this.highestScore = highestScore;
+        }
+
+        boolean isComplete() {
+            return userId != null && courseId != null && activityId != null
+                    && (highestScore != null || (taskId != null && stats != null));
+        }
+    }
+}
@@ -2,136 +2,54 @@ package com.choicecrafter.students.repositories;
 
 import android.util.Log;
 
+import com.choicecrafter.students.analytics.DailyScoreSeries;
 import com.choicecrafter.students.models.User;
-import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
 
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.temporal.ChronoField;
-import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
 import java.util.function.Consumer;
 
 public class UserRepository {
+    private static final int MAX_IN_QUERY_VALUES = 30;
     private final FirebaseFirestore db = FirebaseFirestore.getInstance();
-    private static final ZoneId ZONE = ZoneId.of("Europe/Bucharest");
-    private static final DateTimeFormatter FLEX_PARSER =
-            new DateTimeFormatterBuilder()
-                    .appendPattern("uuuu-MM-dd'T'HH:mm:ss")
-                    .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
-                    .optionalStart().appendOffsetId().optionalEnd()
-                    .toFormatter();
-
-    private static final DateTimeFormatter DAY_FMT = DateTimeFormatter.ofPattern("uuuu-MM-dd");
 
     public interface DailyScoresCallback {
         void onComplete(Map<String, Long> dailyScores);
     }
 
     // In UserRepository.java
+    /**
+     * Sums the points of the stored result of every task per day of its attempt, like the
+     * stored task results themselves: a task answered again only counts its latest result.
+     * The sums come from the user's cached {@link DailyScoreSeries}, refreshed from the usage
+     * rollups written since it was last read, which count results the same way.
+     */
     public static void buildDailyScores(
             FirebaseFirestore db,
             String userEmail,
             DailyScoresCallback callback) {
-        Map<String, Long> daily = new TreeMap<>();
         Log.i("UserRepository", "Building daily scores for user: " + userEmail);
-        db.collection("COURSE_ENROLLMENTS")
-                .whereEqualTo("userId", userEmail)
-                .get()
-                .addOnSuccessListener(task -> {
-                    for (DocumentSnapshot doc : task.getDocuments()) {
-                        Log.i("UserRepository", "Fetched enrollment document: " + doc.getId());
-                        Object progressSummaryObj = doc.get("progressSummary");
-                        if (!(progressSummaryObj instanceof Map<?, ?> progressSummary)) {
-                            continue;
-                        }
-                        Object activitySnapshotsObj = progressSummary.get("activitySnapshots");
-                        if (!(activitySnapshotsObj instanceof List<?> snapshots)) {
-                            continue;
-                        }
-                        for (Object entry : snapshots) {
-                            if (!(entry instanceof Map<?, ?> snapshotMapRaw)) {
-                                continue;
-                            }
-                            Map<String, Object> snapshotMap = new HashMap<>();
-                            for (Map.Entry<?, ?> mapEntry : snapshotMapRaw.entrySet()) {
-                                snapshotMap.put(String.valueOf(mapEntry.getKey()), mapEntry.getValue());
-                            }
-                            Object taskStatsObj = snapshotMap.get("taskStats");
-                            if (!(taskStatsObj instanceof Map<?, ?> taskStatsMap)) {
-                                continue;
-                            }
-                            for (Object value : taskStatsMap.values()) {
-                                if (!(value instanceof Map<?, ?> attemptMap)) {
-                                    continue;
-                                }
-                                @SuppressWarnings("unchecked")
-                                Map<String, Object> attempt = (Map<String, Object>) attemptMap;
-
-                                String attemptDateTime = asString(attempt.get("attemptDateTime"));
-                                if (attemptDateTime == null || attemptDateTime.isEmpty()) {
-                                    continue;
-                                }
-
-                                Instant instant = parseToInstant(attemptDateTime);
-                                String dayKey = DAY_FMT.withZone(ZONE).format(instant);
-
-                                long points = attemptScore(attempt);
-                                daily.merge(dayKey, points, Long::sum);
-                            }
-                        }
-                    }
-                    Log.i("UserRepository", "Daily scores: " + daily);
-                    callback.onComplete(daily);
-                })
+        DailyScoreRepository.getInstance().refresh(db, userEmail)
+                .addOnSuccessListener(series -> callback.onComplete(series.toDayKeyedScores()))
                 .addOnFailureListener(e -> {
                     Log.e("UserRepository", "Failed to fetch daily scores", e);
-                    callback.onComplete(daily); // return empty map on failure
+                    DailyScoreSeries cached = DailyScoreRepository.getInstance().peek(userEmail);
+                    // Fall back to what is cached, or an empty map.
+                    callback.onComplete(cached != null ? cached.toDayKeyedScores() : new TreeMap<>());
                 });
     }
 
-    private static int attemptScore(Map<String, Object> attempt) {
-        Object scoreObj = attempt.get("scoreRatio");
-        Double ratio = null;
-        if (scoreObj instanceof Number number) {
-            ratio = number.doubleValue();
-        } else if (scoreObj instanceof String ratioString) {
-            try {
-                ratio = Double.parseDouble(ratioString);
-            } catch (NumberFormatException ignored) {
-                ratio = null;
-            }
-        }
-        if (ratio == null) {
-            Object s = attempt.get("success");
-            boolean success = (s instanceof Boolean) ? (Boolean) s : false;
-            ratio = success ? 1.0 : 0.0;
-        }
-        double clamped = Math.max(0.0, Math.min(1.0, ratio));
-        // Each task used to award up to 100 points. Reduce the value by ~60% so a
-        // perfect attempt now grants 40 points.
-        return (int) Math.round(clamped * 40.0);
-    }
-
-    private static Instant parseToInstant(String s) {
-        TemporalAccessor ta = FLEX_PARSER.parse(s);
-        return ta.isSupported(ChronoField.OFFSET_SECONDS)
-                ? OffsetDateTime.from(ta).toInstant()
-                : LocalDateTime.from(ta).atZone(ZONE).toInstant();
-    }
-
-    private static String asString(Object o) {
-        return (o == null) ? null : String.valueOf(o);
-    }
-
     public void updateUserScores(User user, Runnable onSuccess, java.util.function.Consumer<Exception> onFailure) {
         db.collection("users")
                 .whereEqualTo("email", user.getEmail())
@@ -144,6 +62,9 @@ public class UserRepository {
                                 .update("scores", user.getScores())
                                 .addOnSuccessListener(aVoid -> {
                                     Log.i("UserRepository", "Scores updated for user: " + user.getEmail());
+                                    LeaderboardRepository.getInstance().updateEntry(user)
+                                            .addOnFailureListener(e -> Log.w("UserRepository",
+                                                    "Failed to update leaderboard entry of " + user.getEmail(), e));
                                     if (onSuccess != null) onSuccess.run();
                                 })
                                 .addOnFailureListener(e -> {
@@ -161,6 +82,34 @@ public class UserRepository {
                 });
     }
 
+    /**
+     * Loads the users with the given emails, in chunks of at most {@link #MAX_IN_QUERY_VALUES}
+     * per query. The task resolves to the users found, keyed by email.
+     */
+    public Task<Map<String, User>> fetchUsersByEmail(Collection<String> emails) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(emails));
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (int start = 0; start < distinct.size(); start += MAX_IN_QUERY_VALUES) {
+            List<String> chunk = distinct.subList(start, Math.min(start + MAX_IN_QUERY_VALUES, distinct.size()));
+            queries.add(db.collection("users").whereIn("email", new ArrayList<>(chunk)).get());
+        }
+        return Tasks.whenAllSuccess(queries).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw Objects.requireNonNull(task.getException());
+            }
+            Map<String, User> usersByEmail = new HashMap<>();
+            for (Task<QuerySnapshot> query : queries) {
+                for (QueryDocumentSnapshot document : query.getResult()) {
+                    User user = User.extractUserFromDoc(document);
+                    if (user.getEmail() != null) {
+                        usersByEmail.put(user.getEmail(), user);
+                    }
+                }
+            }
+            return usersByEmail;
+        });
+    }
+
     public void updateUserBadges(User user, Runnable onSuccess, Consumer<Exception> onFailure) {
         if (user == null || user.getEmail() == null) {
             if (onFailure != null) {
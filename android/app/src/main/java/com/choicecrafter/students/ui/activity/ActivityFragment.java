@@ -537,17 +537,7 @@ public class ActivityFragment extends Fragment {
                 if (stats == null) {
                     continue;
                 }
-                String timeSpent = stats.getTimeSpent();
-                if (!TextUtils.isEmpty(timeSpent) && timeSpent.contains(":")) {
-                    String[] parts = timeSpent.split(":");
-                    try {
-                        int minutes = Integer.parseInt(parts[0]);
-                        int seconds = Integer.parseInt(parts[1]);
-                        totalSeconds += minutes * 60 + seconds;
-                    } catch (NumberFormatException ignored) {
-                        // ignore malformed values
-                    }
-                }
+                totalSeconds += Math.max(0, stats.getTimeSpentSeconds());
                 if (!hintsUsed && Boolean.TRUE.equals(stats.getHintsUsed())) {
                     hintsUsed = true;
                 }
@@ -558,8 +548,9 @@ public class ActivityFragment extends Fragment {
         int seconds = totalSeconds % 60;
         String timeFormatted = String.format(Locale.getDefault(), "%02d:%02d", minutes, seconds);
         List<Task> tasks = activity != null ? activity.getTasks() : null;
-        int earnedXp = ActivityScoreCalculator.calculateEarnedXp(tasks, statsMap);
-        int totalXp = ActivityScoreCalculator.calculateTotalXp(tasks, statsMap);
+        ActivityScoreCalculator.ActivityScore score = ActivityScoreCalculator.score(tasks, statsMap);
+        int earnedXp = score.getEarnedXp();
+        int totalXp = score.getTotalXp();
         Integer highestScore = userActivity != null ? userActivity.getHighestScore() : null;
         if (highestScore != null && highestScore > earnedXp) {
             earnedXp = highestScore;
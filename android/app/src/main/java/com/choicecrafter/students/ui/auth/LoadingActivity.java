@@ -46,6 +46,29 @@ public class LoadingActivity extends AppCompatActivity {
     }
 
     private void loadCoursesData() {
+        courseRepository.loadCachedCourses(new CourseRepository.Callback<List<Course>>() {
+            @Override
+            public void onSuccess(List<Course> result) {
+                if (result == null || result.isEmpty()) {
+                    fetchCoursesFromNetwork();
+                    return;
+                }
+                runOnUiThread(() -> {
+                    isCoursesLoaded = true;
+                    maybeNavigateToMain();
+                });
+                // Reconcile the on-disk catalogue with Firestore while the user moves on.
+                courseRepository.fetchCourses(true, null);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                fetchCoursesFromNetwork();
+            }
+        });
+    }
+
+    private void fetchCoursesFromNetwork() {
         courseRepository.fetchCourses(true, new CourseRepository.Callback<List<Course>>() {
             @Override
             public void onSuccess(List<Course> result) {
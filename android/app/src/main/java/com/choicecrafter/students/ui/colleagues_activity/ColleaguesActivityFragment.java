@@ -9,6 +9,8 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -20,58 +22,64 @@ import com.choicecrafter.students.R;
 import com.choicecrafter.students.MainViewModel;
 import com.choicecrafter.students.adapters.ColleaguesActivityAdapter;
 import com.choicecrafter.students.models.ColleagueActivity;
-import com.choicecrafter.students.models.TaskStats;
 import com.choicecrafter.students.models.User;
-import com.choicecrafter.students.models.EnrollmentActivityProgress;
+import com.choicecrafter.students.models.LeaderboardEntry;
 import com.choicecrafter.students.models.NudgePreferences;
+import com.choicecrafter.students.repositories.ColleagueFeedRepository;
+import com.choicecrafter.students.repositories.LeaderboardRepository;
+import com.choicecrafter.students.repositories.UserCourseAvailabilityRepository;
+import com.choicecrafter.students.repositories.UserRepository;
 import com.choicecrafter.students.utils.MotivationalPromptType;
 import com.choicecrafter.students.utils.MotivationalPrompts;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.time.temporal.TemporalAccessor;
+import java.util.Set;
 
 public class ColleaguesActivityFragment extends Fragment {
 
     private static final String TAG = "ColleaguesActivity";
-    private static final int MAX_DISPLAYED_ACTIVITIES = 20;
+    private static final int FEED_PAGE_SIZE = 20;
+    private static final int LOAD_MORE_THRESHOLD = 5;
     private static final ZoneId APP_ZONE = ZoneId.of("Europe/Bucharest");
     private static final DateTimeFormatter ISO_MILLIS = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS");
-    private static final DateTimeFormatter FLEXIBLE_TIMESTAMP = new DateTimeFormatterBuilder()
-            .appendPattern("uuuu-MM-dd'T'HH:mm:ss")
-            .appendFraction(java.time.temporal.ChronoField.NANO_OF_SECOND, 0, 9, true)
-            .optionalStart().appendOffsetId().optionalEnd()
-            .toFormatter();
 
     private RecyclerView colleagueActivityList;
     private ColleaguesActivityAdapter activityAdapter;
     private final List<ColleagueActivity> activityList = new ArrayList<>();
     private final Map<String, User> usersByEmail = new HashMap<>();
-    private final List<User> leaderboardUsers = new ArrayList<>();
+    private final UserRepository userRepository = new UserRepository();
+    private final LeaderboardRepository leaderboardRepository = LeaderboardRepository.getInstance();
+    private LeaderboardRepository.Standing leaderboardStanding;
+    private LeaderboardEntry currentUserEntry;
+    private final ColleagueFeedRepository feedRepository = new ColleagueFeedRepository();
+    private final UserCourseAvailabilityRepository courseAvailabilityRepository = new UserCourseAvailabilityRepository();
+    private final Map<String, ColleagueFeedRepository.Event> feedEvents = new HashMap<>();
+    private List<String> feedCourseIds;
+    private ColleagueFeedRepository.Cursor olderFeedCursor;
+    private boolean feedHeadLoaded;
+    private boolean loadingOlderFeed;
+    private int feedGeneration;
     private TextView motivationalPromptView;
     private View currentUserScoreCard;
     private TextView currentUserScoreView;
     private TextView currentUserRankView;
     private TextView currentUserInitialView;
     private FirebaseUser currentFirebaseUser;
-    private ListenerRegistration usersRegistration;
-    private ListenerRegistration enrollmentsRegistration;
+    private ListenerRegistration topEntriesRegistration;
+    private ListenerRegistration currentUserEntryRegistration;
+    private ListenerRegistration feedRegistration;
     private MainViewModel mainViewModel;
     private View motivationalPromptCard;
     private TextView motivationalPromptTextView;
@@ -111,46 +119,29 @@ public class ColleaguesActivityFragment extends Fragment {
         currentFirebaseUser = FirebaseAuth.getInstance().getCurrentUser();
         FirebaseUser currentUser = currentFirebaseUser;
 
-        FirebaseFirestore db = FirebaseFirestore.getInstance();
-        if (usersRegistration != null) {
-            usersRegistration.remove();
-        }
-        usersRegistration = db.collection("users")
-                .addSnapshotListener((value, error) -> {
-                    if (value != null) {
-                        List<User> users = new ArrayList<>();
-                        usersByEmail.clear();
-                        for (DocumentSnapshot snapshot : value.getDocuments()) {
-                            try {
-                                User user = snapshot.toObject(User.class);
-                                if (user != null) {
-                                    user.computeTotalScore();
-                                    if (user.getEmail() != null) {
-                                        usersByEmail.put(user.getEmail(), user);
-                                    }
-                                    users.add(user);
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "Error getting user data", e);
-                            }
-                        }
-
-                        users.sort((u1, u2) -> Integer.compare(u2.getTotalScore(), u1.getTotalScore()));
-
-                        leaderboardUsers.clear();
-                        leaderboardUsers.addAll(users);
-                        updateColleagueMotivationalPrompt();
-
-                        for (int i = 0; i < Math.min(3, users.size()); i++) {
-                            setLeaderInfo(users.get(i), currentUser, leaderNames[i], leaderScores[i],
-                                    rootView.findViewById(imageViews[i]));
-                        }
+        if (topEntriesRegistration != null) {
+            topEntriesRegistration.remove();
+        }
+        topEntriesRegistration = leaderboardRepository.listenTopEntries(leaderNames.length, entries -> {
+            for (int i = 0; i < Math.min(leaderNames.length, entries.size()); i++) {
+                setLeaderInfo(entries.get(i), currentUser, leaderNames[i], leaderScores[i],
+                        rootView.findViewById(imageViews[i]));
+            }
+            // Scores of others moved, which may change the rank and the neighbours.
+            refreshLeaderboardStanding();
+        });
 
-                        updateCurrentUserScore(users, currentUser);
-                    } else {
-                        setCurrentUserScorePlaceholder();
-                    }
-                });
+        if (currentUserEntryRegistration != null) {
+            currentUserEntryRegistration.remove();
+            currentUserEntryRegistration = null;
+        }
+        String currentEmail = currentUser != null ? currentUser.getEmail() : null;
+        if (currentEmail != null) {
+            currentUserEntryRegistration = leaderboardRepository.listenEntry(currentEmail, entry -> {
+                currentUserEntry = entry;
+                refreshLeaderboardStanding();
+            });
+        }
 
         motivationalPromptCard = rootView.findViewById(R.id.motivationalPromptCard);
         motivationalPromptTextView = rootView.findViewById(R.id.motivationalPrompt);
@@ -176,104 +167,155 @@ public class ColleaguesActivityFragment extends Fragment {
             });
         }
 
-        if (enrollmentsRegistration != null) {
-            enrollmentsRegistration.remove();
-        }
-        enrollmentsRegistration = db.collection("COURSE_ENROLLMENTS")
-                .addSnapshotListener((value, error) -> {
-                    if (value == null) return;
-
-                    activityList.clear();
-
-                    for (DocumentSnapshot snapshot : value.getDocuments()) {
-                        String enrollmentUserId = snapshot.getString("userId");
-                        if (enrollmentUserId == null || (currentUser != null && Objects.equals(enrollmentUserId, currentUser.getEmail()))) {
-                            continue;
-                        }
-
-                        Object progressSummaryObj = snapshot.get("progressSummary");
-                        if (!(progressSummaryObj instanceof Map<?, ?> progressSummary)) {
-                            continue;
-                        }
-                        Object activitySnapshotsObj = progressSummary.get("activitySnapshots");
-                        if (!(activitySnapshotsObj instanceof List<?> snapshotsList)) {
-                            continue;
-                        }
+        colleagueActivityList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @RequiresApi(api = Build.VERSION_CODES.O)
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy <= 0) {
+                    return;
+                }
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null
+                        && layoutManager.findLastVisibleItemPosition() >= activityList.size() - LOAD_MORE_THRESHOLD) {
+                    loadOlderColleagueActivities();
+                }
+            }
+        });
 
-                        for (Object entry : snapshotsList) {
-                            if (!(entry instanceof Map<?, ?> snapshotMapRaw)) {
-                                continue;
-                            }
-                            Map<String, Object> snapshotMap = new HashMap<>();
-                            for (Map.Entry<?, ?> mapEntry : snapshotMapRaw.entrySet()) {
-                                snapshotMap.put(String.valueOf(mapEntry.getKey()), mapEntry.getValue());
-                            }
-                            EnrollmentActivityProgress activityProgress = EnrollmentActivityProgress.fromMap(snapshotMap);
-                            if (activityProgress.getTaskStats().isEmpty()) {
-                                continue;
-                            }
-
-                            User user = usersByEmail.get(enrollmentUserId);
-                            if (user == null || user.getAnonymousAvatar() == null) {
-                                Log.w(TAG, "Skipping activity without cached user: " + enrollmentUserId);
-                                continue;
-                            }
-
-                            String timestampIso = resolveActivityTimestamp(activityProgress);
-                            activityList.add(new ColleagueActivity(
-                                    user.getName(),
-                                    activityProgress.getActivityId(),
-                                    user.getAnonymousAvatar(),
-                                    timestampIso
-                            ));
+        courseAvailabilityRepository.fetchAvailableCourseIds(currentUser != null ? currentUser.getEmail() : null,
+                new UserCourseAvailabilityRepository.Callback<Set<String>>() {
+                    @RequiresApi(api = Build.VERSION_CODES.O)
+                    @Override
+                    public void onSuccess(@Nullable Set<String> courseIds) {
+                        if (activityAdapter != null && courseIds != null && !courseIds.isEmpty()) {
+                            startColleagueFeed(new ArrayList<>(courseIds));
                         }
                     }
-                    sortColleagueActivitiesByNewest();
-                    if (activityAdapter != null) {
-                        activityAdapter.notifyDataSetChanged();
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.w(TAG, "Failed to resolve the courses of the colleague feed", e);
                     }
                 });
 
         return rootView;
     }
 
-    private void updateCurrentUserScore(List<User> sortedUsers, FirebaseUser firebaseUser) {
-        if (currentUserScoreView == null) {
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void startColleagueFeed(List<String> courseIds) {
+        if (feedRegistration != null) {
+            feedRegistration.remove();
+        }
+        feedCourseIds = courseIds;
+        feedHeadLoaded = false;
+        feedRegistration = feedRepository.listenNewest(courseIds, FEED_PAGE_SIZE, page -> {
+            if (!feedHeadLoaded) {
+                feedHeadLoaded = true;
+                olderFeedCursor = page.getCursor();
+            }
+            addColleagueEvents(page.getEvents());
+        });
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void loadOlderColleagueActivities() {
+        if (loadingOlderFeed || olderFeedCursor == null || feedCourseIds == null) {
             return;
         }
+        loadingOlderFeed = true;
+        int generation = feedGeneration;
+        feedRepository.fetchOlder(feedCourseIds, olderFeedCursor, FEED_PAGE_SIZE).addOnCompleteListener(task -> {
+            if (generation != feedGeneration) {
+                return;
+            }
+            loadingOlderFeed = false;
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Failed to load older colleague activities", task.getException());
+                return;
+            }
+            ColleagueFeedRepository.Page page = task.getResult();
+            olderFeedCursor = page.getCursor();
+            addColleagueEvents(page.getEvents());
+        });
+    }
 
-        if (firebaseUser == null) {
-            setCurrentUserScorePlaceholder();
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void addColleagueEvents(List<ColleagueFeedRepository.Event> events) {
+        String viewerId = currentFirebaseUser != null ? currentFirebaseUser.getEmail() : null;
+        Set<String> unknownUsers = new HashSet<>();
+        for (ColleagueFeedRepository.Event event : events) {
+            if (event.getUserId().equals(viewerId)) {
+                continue;
+            }
+            feedEvents.put(event.getId(), event);
+            if (!usersByEmail.containsKey(event.getUserId())) {
+                unknownUsers.add(event.getUserId());
+            }
+        }
+        if (unknownUsers.isEmpty()) {
+            renderColleagueActivities();
             return;
         }
+        int generation = feedGeneration;
+        userRepository.fetchUsersByEmail(unknownUsers).addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                usersByEmail.putAll(task.getResult());
+            } else {
+                Log.w(TAG, "Failed to load colleagues", task.getException());
+            }
+            // Remember users that do not exist so that they are not looked up again.
+            for (String userId : unknownUsers) {
+                usersByEmail.putIfAbsent(userId, null);
+            }
+            if (generation == feedGeneration) {
+                renderColleagueActivities();
+            }
+        });
+    }
 
-        String email = firebaseUser.getEmail();
-        if (email == null) {
-            setCurrentUserScorePlaceholder();
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void renderColleagueActivities() {
+        if (activityAdapter == null) {
             return;
         }
+        List<ColleagueFeedRepository.Event> events = new ArrayList<>(feedEvents.values());
+        events.sort((first, second) -> Long.compare(second.getTimestamp(), first.getTimestamp()));
 
-        User currentUser = null;
-        int position = -1;
-        if (sortedUsers != null) {
-            for (int i = 0; i < sortedUsers.size(); i++) {
-                User candidate = sortedUsers.get(i);
-                if (candidate == null || candidate.getEmail() == null) {
-                    continue;
-                }
-                if (email.equalsIgnoreCase(candidate.getEmail())) {
-                    currentUser = candidate;
-                    position = i;
-                    break;
-                }
+        activityList.clear();
+        DateTimeFormatter timestampFormat = ISO_MILLIS.withZone(APP_ZONE);
+        for (ColleagueFeedRepository.Event event : events) {
+            User user = usersByEmail.get(event.getUserId());
+            if (user == null || user.getAnonymousAvatar() == null) {
+                continue;
             }
-        }
-        if (currentUser == null) {
+            activityList.add(new ColleagueActivity(
+                    user.getName(),
+                    event.getActivityId(),
+                    user.getAnonymousAvatar(),
+                    timestampFormat.format(Instant.ofEpochMilli(event.getTimestamp()))
+            ));
+        }
+        activityAdapter.notifyDataSetChanged();
+    }
+
+    private void refreshLeaderboardStanding() {
+        LeaderboardEntry entry = currentUserEntry;
+        if (entry == null) {
+            leaderboardStanding = null;
             setCurrentUserScorePlaceholder();
+            updateColleagueMotivationalPrompt();
             return;
         }
-
-        bindCurrentUserScoreCard(currentUser, position, sortedUsers != null ? sortedUsers.size() : 0);
+        leaderboardRepository.fetchStanding(entry)
+                .addOnSuccessListener(standing -> {
+                    if (entry != currentUserEntry || currentUserScoreView == null) {
+                        return;
+                    }
+                    leaderboardStanding = standing;
+                    bindCurrentUserScoreCard(standing);
+                    updateColleagueMotivationalPrompt();
+                })
+                .addOnFailureListener(e -> Log.w(TAG, "Failed to resolve the leaderboard standing", e));
     }
 
     private void setCurrentUserScorePlaceholder() {
@@ -291,19 +333,20 @@ public class ColleaguesActivityFragment extends Fragment {
         }
     }
 
-    private void bindCurrentUserScoreCard(User currentUser, int zeroBasedPosition, int totalPeers) {
+    private void bindCurrentUserScoreCard(LeaderboardRepository.Standing standing) {
         if (currentUserScoreView == null || currentUserRankView == null || currentUserInitialView == null) {
             return;
         }
 
+        LeaderboardEntry currentUser = standing.getEntry();
         currentUserScoreView.setText(
                 getString(R.string.colleagues_activity_current_user_score_value, currentUser.getTotalScore()));
 
-        if (totalPeers > 0 && zeroBasedPosition >= 0) {
+        if (standing.getTotalUsers() > 0 && standing.getRank() > 0) {
             currentUserRankView.setText(getString(
                     R.string.colleagues_activity_current_user_rank,
-                    zeroBasedPosition + 1,
-                    totalPeers));
+                    standing.getRank(),
+                    standing.getTotalUsers()));
         } else {
             currentUserRankView.setText(R.string.colleagues_activity_current_user_rank_placeholder);
         }
@@ -315,13 +358,13 @@ public class ColleaguesActivityFragment extends Fragment {
         }
     }
 
-    private String extractInitial(User user) {
+    private String extractInitial(LeaderboardEntry user) {
         if (user == null) {
             return getString(R.string.colleagues_activity_current_user_initial_placeholder);
         }
         String initial = firstCharacter(user.getName());
         if (initial == null) {
-            initial = firstCharacter(user.getEmail());
+            initial = firstCharacter(user.getUserId());
         }
         if (initial == null) {
             return getString(R.string.colleagues_activity_current_user_initial_placeholder);
@@ -358,19 +401,29 @@ public class ColleaguesActivityFragment extends Fragment {
 
     @Override
     public void onDestroyView() {
-        if (usersRegistration != null) {
-            usersRegistration.remove();
-            usersRegistration = null;
-        }
-        if (enrollmentsRegistration != null) {
-            enrollmentsRegistration.remove();
-            enrollmentsRegistration = null;
-        }
+        if (topEntriesRegistration != null) {
+            topEntriesRegistration.remove();
+            topEntriesRegistration = null;
+        }
+        if (currentUserEntryRegistration != null) {
+            currentUserEntryRegistration.remove();
+            currentUserEntryRegistration = null;
+        }
+        if (feedRegistration != null) {
+            feedRegistration.remove();
+            feedRegistration = null;
+        }
+        feedEvents.clear();
+        feedCourseIds = null;
+        olderFeedCursor = null;
+        loadingOlderFeed = false;
         usersByEmail.clear();
         motivationalPromptCard = null;
         motivationalPromptTextView = null;
         currentNudgePreferences = null;
-        leaderboardUsers.clear();
+        leaderboardStanding = null;
+        currentUserEntry = null;
+        feedGeneration++;
         motivationalPromptView = null;
         currentUserScoreCard = null;
         currentUserScoreView = null;
@@ -387,41 +440,21 @@ public class ColleaguesActivityFragment extends Fragment {
 
         MotivationalPrompts.PersonalizationData.Builder builder = MotivationalPrompts.PersonalizationData.builder();
 
-        if (currentFirebaseUser != null && !leaderboardUsers.isEmpty()) {
-            int peerCount = leaderboardUsers.size();
-            builder.setPeerCount(peerCount);
-
-            String email = currentFirebaseUser.getEmail();
-            int rank = -1;
-            Integer myScore = null;
-            for (int index = 0; index < leaderboardUsers.size(); index++) {
-                User candidate = leaderboardUsers.get(index);
-                if (candidate == null) {
-                    continue;
-                }
-                if (email != null && email.equalsIgnoreCase(candidate.getEmail())) {
-                    rank = index + 1;
-                    myScore = candidate.getTotalScore();
-                    break;
-                }
-            }
+        LeaderboardRepository.Standing standing = leaderboardStanding;
+        if (currentFirebaseUser != null && standing != null) {
+            builder.setPeerCount(standing.getTotalUsers());
 
-            if (rank > 0 && myScore != null) {
-                builder.setPeerRank(rank);
-                builder.setTotalPoints(myScore);
+            int myScore = standing.getEntry().getTotalScore();
+            builder.setPeerRank(standing.getRank());
+            builder.setTotalPoints(myScore);
 
-                if (rank > 1) {
-                    User ahead = leaderboardUsers.get(rank - 2);
-                    if (ahead != null) {
-                        builder.setPeerScoreDeltaAhead(ahead.getTotalScore() - myScore);
-                    }
-                }
-                if (rank < peerCount) {
-                    User behind = leaderboardUsers.get(rank);
-                    if (behind != null) {
-                        builder.setPeerScoreDeltaBehind(myScore - behind.getTotalScore());
-                    }
-                }
+            LeaderboardEntry ahead = standing.getAhead();
+            if (ahead != null) {
+                builder.setPeerScoreDeltaAhead(ahead.getTotalScore() - myScore);
+            }
+            LeaderboardEntry behind = standing.getBehind();
+            if (behind != null) {
+                builder.setPeerScoreDeltaBehind(myScore - behind.getTotalScore());
             }
         }
 
@@ -433,28 +466,14 @@ public class ColleaguesActivityFragment extends Fragment {
         motivationalPromptView.setText(prompt);
     }
 
-    private void sortColleagueActivitiesByNewest() {
-        if (activityList.isEmpty()) {
-            return;
-        }
-        activityList.sort((first, second) -> {
-            Instant firstInstant = parseIsoMillisTimestamp(first != null ? first.getTimestamp() : null);
-            Instant secondInstant = parseIsoMillisTimestamp(second != null ? second.getTimestamp() : null);
-            return secondInstant.compareTo(firstInstant);
-        });
-        if (activityList.size() > MAX_DISPLAYED_ACTIVITIES) {
-            activityList.subList(MAX_DISPLAYED_ACTIVITIES, activityList.size()).clear();
-        }
-    }
-
-    private void setLeaderInfo(User user, FirebaseUser currentUser,
+    private void setLeaderInfo(LeaderboardEntry user, FirebaseUser currentUser,
                                TextView nameView, TextView scoreView, ImageView imageView) {
         if (!isAdded() || getContext() == null || imageView == null || user.getAnonymousAvatar() == null) {
             return;
         }
 
         String displayName = user.getAnonymousAvatar().getName();
-        if (currentUser != null && Objects.equals(currentUser.getEmail(), user.getEmail())) {
+        if (currentUser != null && Objects.equals(currentUser.getEmail(), user.getUserId())) {
             displayName += " (You)";
         }
 
@@ -467,55 +486,4 @@ public class ColleaguesActivityFragment extends Fragment {
                 .error(R.drawable.avatar_andrei)
                 .into(imageView);
     }
-
-    // Safely compute an ISO timestamp for an activity.
-    @RequiresApi(api = Build.VERSION_CODES.O)
-    private String resolveActivityTimestamp(EnrollmentActivityProgress ua) {
-        Map<String, TaskStats> stats = ua.getTaskStats();
-        Instant latestInstant = null;
-        if (stats != null) {
-            for (TaskStats value : stats.values()) {
-                if (value == null) {
-                    continue;
-                }
-                String attempt = value.getAttemptDateTime();
-                if (attempt == null || attempt.isEmpty()) {
-                    continue;
-                }
-                Instant parsed = parseAttemptInstant(attempt);
-                if (parsed != null && (latestInstant == null || parsed.isAfter(latestInstant))) {
-                    latestInstant = parsed;
-                }
-            }
-        }
-
-        Instant effectiveInstant = latestInstant != null ? latestInstant : Instant.now();
-        return ISO_MILLIS.withZone(APP_ZONE).format(effectiveInstant);
-    }
-
-    private Instant parseIsoMillisTimestamp(String value) {
-        if (value == null || value.isEmpty()) {
-            return Instant.EPOCH;
-        }
-        try {
-            LocalDateTime localDateTime = LocalDateTime.parse(value, ISO_MILLIS);
-            return localDateTime.atZone(APP_ZONE).toInstant();
-        } catch (DateTimeParseException exception) {
-            Log.w(TAG, "Unable to parse colleague activity timestamp: " + value, exception);
-            return Instant.EPOCH;
-        }
-    }
-
-    private Instant parseAttemptInstant(String value) {
-        try {
-            TemporalAccessor accessor = FLEXIBLE_TIMESTAMP.parse(value);
-            if (accessor.isSupported(java.time.temporal.ChronoField.OFFSET_SECONDS)) {
-                return OffsetDateTime.from(accessor).toInstant();
-            }
-            return LocalDateTime.from(accessor).atZone(APP_ZONE).toInstant();
-        } catch (DateTimeParseException | IllegalArgumentException exception) {
-            Log.w(TAG, "Unable to parse activity attempt timestamp: " + value, exception);
-            return null;
-        }
-    }
 }
@@ -17,6 +17,7 @@ import android.text.TextUtils;
 import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.navigation.fragment.NavHostFragment;
@@ -32,9 +33,14 @@ import com.choicecrafter.students.models.NudgePreferences;
 import com.choicecrafter.students.models.badges.BadgeStatus;
 import com.choicecrafter.students.badges.BadgeUpdateManager;
 import com.choicecrafter.students.badges.ModuleCompletionAggregator;
+import com.choicecrafter.students.analytics.DailyScoreSeries;
+import com.choicecrafter.students.repositories.DailyScoreRepository;
+import com.choicecrafter.students.repositories.EnrollmentProgressSnapshots;
+import com.choicecrafter.students.repositories.SnapshotReducer;
 import com.choicecrafter.students.repositories.UserRepository;
 import com.choicecrafter.students.utils.MotivationalPromptType;
 import com.choicecrafter.students.utils.MotivationalPrompts;
+import com.choicecrafter.students.utils.TimestampParser;
 import com.github.mikephil.charting.animation.Easing;
 import com.github.mikephil.charting.charts.BarChart;
 import com.github.mikephil.charting.components.XAxis;
@@ -52,25 +58,25 @@ import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 
 
 @RequiresApi(api = Build.VERSION_CODES.O)
 public class StatisticsFragment extends Fragment {
 
     private static final ZoneId APP_ZONE = ZoneId.of("Europe/Bucharest");
-    private static final DateTimeFormatter ISO_MILLIS = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS");
+    private static final TimestampParser ACTIVITY_TIMESTAMP_PARSER = TimestampParser.forZone(APP_ZONE);
+    private static final int CHART_DAYS = 5;
+    private static final DateTimeFormatter CHART_LABEL_FORMAT = DateTimeFormatter.ofPattern("dd/MM", Locale.getDefault());
 
     private final UserRepository userRepository = new UserRepository();
     private final FirebaseFirestore db = FirebaseFirestore.getInstance();
@@ -78,7 +84,8 @@ public class StatisticsFragment extends Fragment {
     private BarChart timeSpentBarChart;
     private RecyclerView latestActivitiesRecyclerView;
     private PersonalActivityAdapter activityAdapter;
-    private ArrayList<PersonalActivity> activitiesList;
+    private List<PersonalActivity> activitiesList;
+    private SnapshotReducer<EnrollmentSummary, PersonalActivity> enrollmentReducer;
     private View rootView;
     private View motivationalPromptCard;
     private TextView motivationalPromptTextView;
@@ -145,10 +152,21 @@ public class StatisticsFragment extends Fragment {
         motivationalPromptView = rootView.findViewById(R.id.motivationalPrompt);
         updatePersonalMotivationPrompt();
 
-        // Sample data for activity cards
-        activitiesList = new ArrayList<>();
+        enrollmentReducer = new SnapshotReducer<>(this::summarizeEnrollment,
+                EnrollmentSummary::getActivities,
+                StatisticsFragment::compareNewestFirst);
+        enrollmentReducer.setDocumentListener((enrollmentId, previous, current) -> {
+            if (previous != null) {
+                moduleCompletionAggregator.unmerge(previous.getModules());
+            }
+            if (current != null) {
+                moduleCompletionAggregator.merge(current.getModules());
+            }
+        });
+        activitiesList = enrollmentReducer.getItems();
         activityAdapter = new PersonalActivityAdapter(activitiesList);
         latestActivitiesRecyclerView.setAdapter(activityAdapter);
+        enrollmentReducer.setListUpdateCallback(new AdapterListUpdateCallback(activityAdapter));
 
         FirebaseUser currentUser = FirebaseAuth.getInstance().getCurrentUser();
 
@@ -160,51 +178,9 @@ public class StatisticsFragment extends Fragment {
                     .whereEqualTo("userId", currentUser.getEmail())
                     .addSnapshotListener((value, error) -> {
                         Log.i("StatisticsFragment", "Received enrollment updates: " + value);
-                        if (value == null) {
+                        if (enrollmentReducer == null || !enrollmentReducer.apply(value)) {
                             return;
                         }
-                        moduleCompletionAggregator.reset();
-                        activitiesList.clear();
-                        for (DocumentSnapshot snapshot : value.getDocuments()) {
-                            Object progressSummaryObj = snapshot.get("progressSummary");
-                            if (!(progressSummaryObj instanceof Map<?, ?> progressSummary)) {
-                                continue;
-                            }
-                            moduleCompletionAggregator.collectFromProgressSummary(progressSummary);
-                            Object activitySnapshotsObj = progressSummary.get("activitySnapshots");
-                            if (!(activitySnapshotsObj instanceof List<?> snapshotsList)) {
-                                continue;
-                            }
-                            for (Object entry : snapshotsList) {
-                                if (!(entry instanceof Map<?, ?> snapshotMapRaw)) {
-                                    continue;
-                                }
-                                Map<String, Object> snapshotMap = new HashMap<>();
-                                for (Map.Entry<?, ?> mapEntry : snapshotMapRaw.entrySet()) {
-                                    snapshotMap.put(String.valueOf(mapEntry.getKey()), mapEntry.getValue());
-                                }
-                                EnrollmentActivityProgress activityProgress = EnrollmentActivityProgress.fromMap(snapshotMap);
-                                if (activityProgress.getTaskStats().isEmpty()) {
-                                    continue;
-                                }
-                                TaskStats firstAttempt = activityProgress.getTaskStats().values().stream()
-                                        .filter(taskStats -> taskStats != null && taskStats.getAttemptDateTime() != null)
-                                        .findFirst()
-                                        .orElse(null);
-                                if (firstAttempt == null) {
-                                    continue;
-                                }
-                                String timestampIso = toIsoMillis(firstAttempt.getAttemptDateTime(), APP_ZONE);
-                                activitiesList.add(new PersonalActivity(
-                                        "Completed " + activityProgress.getActivityId(),
-                                        timestampIso,
-                                        "Completed activity"));
-                            }
-                        }
-                        sortPersonalActivitiesByNewest();
-                        if (activityAdapter != null) {
-                            activityAdapter.notifyDataSetChanged();
-                        }
                         updatePersonalMotivationPrompt();
                         completedModulesCount = moduleCompletionAggregator.getCompletedModulesCount();
                         maybeEvaluateBadges();
@@ -238,6 +214,12 @@ public class StatisticsFragment extends Fragment {
             enrollmentRegistration.remove();
             enrollmentRegistration = null;
         }
+        if (enrollmentReducer != null) {
+            enrollmentReducer.setDocumentListener(null);
+            enrollmentReducer.setListUpdateCallback(null);
+            enrollmentReducer.clear();
+            enrollmentReducer = null;
+        }
         timeSpentBarChart = null;
         latestActivitiesRecyclerView = null;
         activityAdapter = null;
@@ -273,15 +255,42 @@ public class StatisticsFragment extends Fragment {
         }
     }
 
-    private void sortPersonalActivitiesByNewest() {
-        if (activitiesList == null || activitiesList.isEmpty()) {
-            return;
+    /**
+     * Maps an enrollment to the modules it completed and one card per activity with a
+     * recorded attempt.
+     */
+    private EnrollmentSummary summarizeEnrollment(DocumentSnapshot snapshot) {
+        ModuleCompletionAggregator modules = new ModuleCompletionAggregator();
+        Object progressSummaryObj = snapshot.get("progressSummary");
+        if (progressSummaryObj instanceof Map<?, ?> progressSummary) {
+            modules.collectFromProgressSummary(progressSummary);
         }
-        activitiesList.sort((first, second) -> {
-            Instant firstInstant = parseActivityInstant(first != null ? first.getActivityTime() : null);
-            Instant secondInstant = parseActivityInstant(second != null ? second.getActivityTime() : null);
-            return secondInstant.compareTo(firstInstant);
-        });
+        List<PersonalActivity> activities = new ArrayList<>();
+        for (Map<String, Object> snapshotMap : EnrollmentProgressSnapshots.read(snapshot)) {
+            EnrollmentActivityProgress activityProgress = EnrollmentActivityProgress.fromMap(snapshotMap);
+            if (activityProgress.getTaskStats().isEmpty()) {
+                continue;
+            }
+            TaskStats firstAttempt = activityProgress.getTaskStats().values().stream()
+                    .filter(taskStats -> taskStats != null && taskStats.getAttemptDateTime() != null)
+                    .findFirst()
+                    .orElse(null);
+            if (firstAttempt == null) {
+                continue;
+            }
+            String timestampIso = toIsoMillis(firstAttempt.getAttemptDateTime(), APP_ZONE);
+            activities.add(new PersonalActivity(
+                    "Completed " + activityProgress.getActivityId(),
+                    timestampIso,
+                    "Completed activity"));
+        }
+        return new EnrollmentSummary(modules, activities);
+    }
+
+    private static int compareNewestFirst(PersonalActivity first, PersonalActivity second) {
+        return Long.compare(
+                parseActivityEpochMillis(second != null ? second.getActivityTime() : null),
+                parseActivityEpochMillis(first != null ? first.getActivityTime() : null));
     }
 
     private void updateBadgeSummary(List<BadgeStatus> statuses) {
@@ -323,16 +332,19 @@ public class StatisticsFragment extends Fragment {
     }
 
     private Instant parseActivityInstant(String isoTimestamp) {
+        return Instant.ofEpochMilli(parseActivityEpochMillis(isoTimestamp));
+    }
+
+    private static long parseActivityEpochMillis(String isoTimestamp) {
         if (isoTimestamp == null || isoTimestamp.isEmpty()) {
-            return Instant.EPOCH;
+            return 0L;
         }
-        try {
-            LocalDateTime dateTime = LocalDateTime.parse(isoTimestamp, ISO_MILLIS);
-            return dateTime.atZone(APP_ZONE).toInstant();
-        } catch (DateTimeParseException exception) {
-            Log.w("StatisticsFragment", "Unable to parse personal activity timestamp: " + isoTimestamp, exception);
-            return Instant.EPOCH;
+        long epochMillis = ACTIVITY_TIMESTAMP_PARSER.parse(isoTimestamp);
+        if (epochMillis == TimestampParser.INVALID) {
+            Log.w("StatisticsFragment", "Unable to parse personal activity timestamp: " + isoTimestamp);
+            return 0L;
         }
+        return epochMillis;
     }
 
     private void updatePersonalMotivationPrompt() {
@@ -464,27 +476,21 @@ public class StatisticsFragment extends Fragment {
         if (scores == null) {
             scores = new HashMap<>();
         }
+        // Read the chart's days from the cached series once it is loaded; until then from
+        // the scores stored on the user.
+        DailyScoreSeries series = loggedInUser.getEmail() != null
+                ? DailyScoreRepository.getInstance().peek(loggedInUser.getEmail())
+                : null;
+        LocalDate firstDay = LocalDate.now(APP_ZONE).minusDays(CHART_DAYS - 1);
+        long[] seriesPoints = series != null ? series.copyPoints(firstDay.toEpochDay(), CHART_DAYS) : null;
 
         ArrayList<BarEntry> entries = new ArrayList<>();
         ArrayList<String> xAxisLabels = new ArrayList<>();
-        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM", java.util.Locale.getDefault());
-        long currentTime = System.currentTimeMillis();
-
-        for (int i = 4; i >= 0; i--) {
-            long dayTime = currentTime - (i * 24L * 60L * 60L * 1000L);
-            String dateLabel = sdf.format(new java.util.Date(dayTime));
-            xAxisLabels.add(dateLabel);
-
-            String key = new SimpleDateFormat("yyyy-MM-dd", java.util.Locale.getDefault())
-                    .format(new java.util.Date(dayTime));
-            long value = 0L;
-            if (scores.containsKey(key)) {
-                Object scoreValue = scores.get(key);
-                if (scoreValue instanceof Integer) value = ((Integer) scoreValue).longValue();
-                else if (scoreValue instanceof Long) value = (Long) scoreValue;
-                else if (scoreValue instanceof String) value = Long.parseLong((String) scoreValue);
-            }
-            entries.add(new BarEntry(4 - i, value));
+        for (int i = 0; i < CHART_DAYS; i++) {
+            LocalDate day = firstDay.plusDays(i);
+            xAxisLabels.add(CHART_LABEL_FORMAT.format(day));
+            long value = seriesPoints != null ? seriesPoints[i] : resolveDailyScore(scores.get(day.toString()));
+            entries.add(new BarEntry(i, value));
         }
 
         BarDataSet dataSet = new BarDataSet(entries, "");
@@ -582,4 +588,26 @@ public class StatisticsFragment extends Fragment {
             }
         });
     }
+
+    /**
+     * What one enrollment contributes to the screen, kept per enrollment so a changed
+     * enrollment only replaces its own modules and activity cards.
+     */
+    private static final class EnrollmentSummary {
+        private final ModuleCompletionAggregator modules;
+        private final List<PersonalActivity> activities;
+
+        EnrollmentSummary(ModuleCompletionAggregator modules, List<PersonalActivity> activities) {
+            this.modules = modules;
+            this.activities = activities;
+        }
+
+        ModuleCompletionAggregator getModules() {
+            return modules;
+        }
+
+        List<PersonalActivity> getActivities() {
+            return activities;
+        }
+    }
 }
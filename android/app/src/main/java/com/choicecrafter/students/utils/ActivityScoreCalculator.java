@@ -15,9 +15,10 @@ import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
 import com.choicecrafter.students.models.tasks.Task;
 import com.choicecrafter.students.models.tasks.TrueFalseTask;
 
-import static com.choicecrafter.students.utils.TaskStatsKeyUtils.findStatsForTask;
+import static com.choicecrafter.students.utils.TaskStatsKeyUtils.resolveStats;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -49,14 +50,89 @@ public final class ActivityScoreCalculator {
     public static String buildScoreSummary(@Nullable List<Task> tasks,
                                            @Nullable Map<String, TaskStats> taskStatsMap,
                                            @NonNull ScoreSummaryFormatter formatter) {
-        int totalXp = calculateTotalXp(tasks, taskStatsMap);
-        int earnedXp = calculateEarnedXp(tasks, taskStatsMap);
-        return formatter.format(earnedXp, earnedXp, totalXp);
+        ActivityScore score = score(tasks, taskStatsMap);
+        return formatter.format(score.getEarnedXp(), score.getEarnedXp(), score.getTotalXp());
+    }
+
+    /**
+     * Scores an activity in one pass: the stats of every task are resolved once, the ability
+     * estimate is computed once, and the totals are summed from the same per-task breakdown
+     * that {@link #buildTaskScoreBreakdown(List, Map)} returns. Callers that need more than
+     * one of the values should use this instead of the individual methods.
+     */
+    @NonNull
+    public static ActivityScore score(@Nullable List<Task> tasks,
+                                      @Nullable Map<String, TaskStats> taskStatsMap) {
+        return score(null, null, tasks, taskStatsMap);
+    }
+
+    /**
+     * Like {@link #score(List, Map)}, but starts the ability estimate from the user's last
+     * estimate for the activity, see {@link IrtSmartScoreAdjuster#estimateAbility(String, String, List, TaskStats[])}.
+     */
+    @NonNull
+    public static ActivityScore score(@Nullable String userId,
+                                      @Nullable String activityId,
+                                      @Nullable List<Task> tasks,
+                                      @Nullable Map<String, TaskStats> taskStatsMap) {
+        if (tasks == null || tasks.isEmpty()) {
+            return ActivityScore.EMPTY;
+        }
+
+        boolean hasStatsMap = taskStatsMap != null && !taskStatsMap.isEmpty();
+        TaskStats[] resolvedStats = resolveStats(tasks, taskStatsMap);
+        PackedTaskStats packedStats = PackedTaskStats.of(resolvedStats);
+        boolean irtScoringEnabled = BuildConfig.ENABLE_IRT_SCORING;
+        double abilityEstimate = irtScoringEnabled && hasStatsMap
+                ? IrtSmartScoreAdjuster.estimateAbility(userId, activityId, tasks, packedStats)
+                : 0.0;
+
+        List<TaskScoreBreakdown> breakdowns = new ArrayList<>(resolvedStats.length);
+        int earnedXpSum = 0;
+        int totalXpSum = 0;
+        for (int i = 0; i < resolvedStats.length; i++) {
+            Task task = tasks.get(i);
+            if (task == null) {
+                continue;
+            }
+
+            int taskXp = resolveTaskXp(task);
+            boolean attempted = packedStats.isPresent(i);
+            boolean rapidGuess = packedStats.isRapidGuess(i);
+            boolean countedTowardsScore = !rapidGuess;
+
+            double ratio = 0.0;
+            if (!attempted) {
+                countedTowardsScore = true;
+            } else if (!rapidGuess) {
+                // Rapid guesses are removed from both earned and available XP to avoid rewarding lucky clicks.
+                ratio = packedStats.getScoreRatio(i);
+                if (irtScoringEnabled && task instanceof MultipleChoiceQuestion) {
+                    ratio = IrtSmartScoreAdjuster.adjustScore((MultipleChoiceQuestion) task, packedStats, i,
+                            abilityEstimate);
+                }
+                ratio = applyEffortModifiers(ratio, packedStats.isHintsUsed(i), packedStats.getRetries(i));
+                ratio = Math.max(0.0, Math.min(1.0, ratio));
+            }
+
+            int totalXp = countedTowardsScore ? taskXp : 0;
+            int earnedXp = countedTowardsScore ? (int) Math.round(taskXp * ratio) : 0;
+            int lostXp = Math.max(0, totalXp - earnedXp);
+            LossReason lossReason = resolveLossReason(attempted, rapidGuess, lostXp, ratio);
+
+            breakdowns.add(new TaskScoreBreakdown(task, resolvedStats[i], totalXp, earnedXp, lostXp, lossReason, rapidGuess,
+                    countedTowardsScore ? ratio : 0.0));
+            earnedXpSum += earnedXp;
+            totalXpSum += totalXp;
+        }
+
+        return new ActivityScore(earnedXpSum, totalXpSum, abilityEstimate,
+                Collections.unmodifiableList(breakdowns));
     }
 
     public static int calculateEarnedXp(@Nullable List<Task> tasks,
                                         @Nullable Map<String, TaskStats> taskStatsMap) {
-        return computeScoreBreakdown(tasks, taskStatsMap).earnedXp;
+        return score(tasks, taskStatsMap).getEarnedXp();
     }
 
     public static int calculateTotalXp(@Nullable List<Task> tasks) {
@@ -78,7 +154,7 @@ public final class ActivityScoreCalculator {
             }
             return totalXp;
         }
-        return computeScoreBreakdown(tasks, taskStatsMap).totalXp;
+        return score(tasks, taskStatsMap).getTotalXp();
     }
 
     private static int resolveTaskXp(@NonNull Task task) {
@@ -109,117 +185,21 @@ public final class ActivityScoreCalculator {
         return DEFAULT_TASK_XP;
     }
 
-    @NonNull
-    private static ScoreBreakdown computeScoreBreakdown(@Nullable List<Task> tasks,
-                                                        @Nullable Map<String, TaskStats> taskStatsMap) {
-        ScoreBreakdown breakdown = new ScoreBreakdown();
-        if (tasks == null || tasks.isEmpty()) {
-            return breakdown;
-        }
-
-        if (taskStatsMap == null || taskStatsMap.isEmpty()) {
-            for (Task task : tasks) {
-                if (task == null) {
-                    continue;
-                }
-                breakdown.totalXp += resolveTaskXp(task);
-            }
-            return breakdown;
-        }
-
-        boolean irtScoringEnabled = BuildConfig.ENABLE_IRT_SCORING;
-        double abilityEstimate = irtScoringEnabled
-                ? IrtSmartScoreAdjuster.estimateAbility(tasks, taskStatsMap)
-                : 0.0;
-
-        for (Task task : tasks) {
-            if (task == null) {
-                continue;
-            }
-
-            TaskStats stats = findStatsForTask(taskStatsMap, task);
-            if (stats == null) {
-                breakdown.totalXp += resolveTaskXp(task);
-                continue;
-            }
-
-            if (RapidGuessingDetector.isRapidGuess(stats)) {
-                // Remove rapid guesses from both earned and available XP to avoid rewarding lucky clicks.
-                continue;
-            }
-
-            int taskXp = resolveTaskXp(task);
-            breakdown.totalXp += taskXp;
-
-            double ratio = Math.min(1.0, Math.max(0.0, stats.resolveScoreRatio()));
-            if (irtScoringEnabled && task instanceof MultipleChoiceQuestion) {
-                ratio = IrtSmartScoreAdjuster.adjustScore((MultipleChoiceQuestion) task, stats, abilityEstimate);
-            }
-            ratio = applyEffortModifiers(ratio, stats);
-
-            breakdown.earnedXp += (int) Math.round(taskXp * ratio);
-        }
-
-        return breakdown;
-    }
-
     /**
      * Builds a breakdown per task including the XP earned, XP available, and reason for any losses.
      */
     @NonNull
     public static List<TaskScoreBreakdown> buildTaskScoreBreakdown(@Nullable List<Task> tasks,
                                                                    @Nullable Map<String, TaskStats> taskStatsMap) {
-        List<TaskScoreBreakdown> breakdowns = new ArrayList<>();
-        if (tasks == null || tasks.isEmpty()) {
-            return breakdowns;
-        }
-
-        boolean irtScoringEnabled = BuildConfig.ENABLE_IRT_SCORING;
-        boolean hasStatsMap = taskStatsMap != null && !taskStatsMap.isEmpty();
-        double abilityEstimate = irtScoringEnabled && hasStatsMap
-                ? IrtSmartScoreAdjuster.estimateAbility(tasks, taskStatsMap)
-                : 0.0;
-
-        for (Task task : tasks) {
-            if (task == null) {
-                continue;
-            }
-
-            int taskXp = resolveTaskXp(task);
-            TaskStats stats = hasStatsMap ? findStatsForTask(taskStatsMap, task) : null;
-            boolean rapidGuess = RapidGuessingDetector.isRapidGuess(stats);
-            boolean countedTowardsScore = !rapidGuess;
-
-            double ratio = 0.0;
-            if (stats == null) {
-                countedTowardsScore = true;
-            } else if (!rapidGuess) {
-                ratio = Math.min(1.0, Math.max(0.0, stats.resolveScoreRatio()));
-                if (irtScoringEnabled && task instanceof MultipleChoiceQuestion) {
-                    ratio = IrtSmartScoreAdjuster.adjustScore((MultipleChoiceQuestion) task, stats, abilityEstimate);
-                }
-                ratio = applyEffortModifiers(ratio, stats);
-                ratio = Math.max(0.0, Math.min(1.0, ratio));
-            }
-
-            int totalXp = countedTowardsScore ? taskXp : 0;
-            int earnedXp = countedTowardsScore ? (int) Math.round(taskXp * ratio) : 0;
-            int lostXp = Math.max(0, totalXp - earnedXp);
-            LossReason lossReason = resolveLossReason(stats, rapidGuess, lostXp, ratio);
-
-            breakdowns.add(new TaskScoreBreakdown(task, stats, totalXp, earnedXp, lostXp, lossReason, rapidGuess,
-                    countedTowardsScore ? ratio : 0.0));
-        }
-
-        return breakdowns;
+        return new ArrayList<>(score(tasks, taskStatsMap).getTaskBreakdowns());
     }
 
     @NonNull
-    private static LossReason resolveLossReason(@Nullable TaskStats stats,
+    private static LossReason resolveLossReason(boolean attempted,
                                                 boolean rapidGuess,
                                                 int lostXp,
                                                 double ratio) {
-        if (stats == null) {
+        if (!attempted) {
             return LossReason.NOT_ATTEMPTED;
         }
         if (rapidGuess) {
@@ -237,18 +217,13 @@ public final class ActivityScoreCalculator {
         return LossReason.NONE;
     }
 
-    private static double applyEffortModifiers(double ratio, @Nullable TaskStats stats) {
-        if (stats == null) {
-            return ratio;
-        }
-
+    private static double applyEffortModifiers(double ratio, boolean hintsUsed, int retries) {
         double adjusted = ratio;
-        if (Boolean.TRUE.equals(stats.getHintsUsed())) {
+        if (hintsUsed) {
             adjusted *= 0.75;
         }
 
-        Integer retries = stats.getRetries();
-        if (retries != null && retries > 0) {
+        if (retries > 0) {
             double penalty = 0.15 * Math.min(retries, 4);
             adjusted *= Math.max(0.0, 1.0 - penalty);
         }
@@ -347,8 +322,50 @@ public final class ActivityScoreCalculator {
         }
     }
 
-    private static final class ScoreBreakdown {
-        private int earnedXp;
-        private int totalXp;
+    /**
+     * Immutable result of {@link #score(List, Map)}, safe to cache for as long as the tasks and
+     * their stats do not change.
+     */
+    public static final class ActivityScore {
+        static final ActivityScore EMPTY = new ActivityScore(0, 0, 0.0, Collections.emptyList());
+
+        private final int earnedXp;
+        private final int totalXp;
+        private final double abilityEstimate;
+        private final List<TaskScoreBreakdown> taskBreakdowns;
+
+        private ActivityScore(int earnedXp,
+                              int totalXp,
+                              double abilityEstimate,
+                              List<TaskScoreBreakdown> taskBreakdowns) {
+            this.earnedXp = earnedXp;
+            this.totalXp = totalXp;
+            this.abilityEstimate = abilityEstimate;
+            this.taskBreakdowns = taskBreakdowns;
+        }
+
+        public int getEarnedXp() {
+            return earnedXp;
+        }
+
+        public int getTotalXp() {
+            return totalXp;
+        }
+
+        /**
+         * The IRT ability estimate used for multiple choice items, or {@code 0} when IRT
+         * scoring is disabled or no task has stats.
+         */
+        public double getAbilityEstimate() {
+            return abilityEstimate;
+        }
+
+        /**
+         * One entry per non-null task, in task order. The list is unmodifiable.
+         */
+        @NonNull
+        public List<TaskScoreBreakdown> getTaskBreakdowns() {
+            return taskBreakdowns;
+        }
     }
 }
@@ -0,0 +1,476 @@
+package com.choicecrafter.students.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.models.EnrollmentActivityProgress;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.repositories.CourseDocumentParser;
+import com.choicecrafter.students.repositories.EnrollmentProgressSnapshots;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Offline calibration of the discrimination and difficulty of every task from the recorded
+ * results of all students, producing the {@link IrtItemParameters} table used by
+ * {@link IrtSmartScoreAdjuster}.
+ * <p>
+ * Responses are the score ratios of the task stats, treated as fractional successes of a
+ * logistic model with the guessing floor of the item held fixed (0 unless set with
+ * {@link #setGuessing}). Item parameters and student abilities are fitted by joint maximum
+ * likelihood: every round takes Fisher scoring steps for all items with the abilities
+ * fixed, then for all abilities with the items fixed, each phase split across a thread pool.
+ * Weak normal priors keep items that everybody answered right or wrong finite. Rapid
+ * guesses are left out, as they are when scoring.
+ * <p>
+ * The calibrator runs on the JVM against JSON exports of the {@code COURSE_ENROLLMENTS} and
+ * {@code COURSES} documents; the courses give every multiple choice question its guessing
+ * floor, as in {@link IrtSmartScoreAdjuster}. It reads both through the app's parsers, which
+ * refer to Firestore types, so it needs the classpath of the unit tests rather than a bare
+ * JVM:
+ * <pre>
+ * ./gradlew :app:calibrateIrtItems -PirtEnrollments=enrollments.json -PirtCourses=courses.json \
+ *     -PirtOutput=irt_item_parameters.json
+ * </pre>
+ * Instances are not thread-safe while responses are added.
+ */
+public final class IrtItemCalibrator {
+
+    private static final int MAX_ROUNDS = 50;
+    private static final int ITEM_STEPS_PER_ROUND = 2;
+    private static final double CONVERGENCE_TOLERANCE = 1e-4;
+    private static final int MIN_RESPONSES = 5;
+    private static final double MAX_STEP = 1.0;
+    private static final double MIN_THETA = -4.0;
+    private static final double MAX_THETA = 4.0;
+    private static final double MIN_DISCRIMINATION = 0.2;
+    private static final double MAX_DISCRIMINATION = 4.0;
+    private static final double MIN_DIFFICULTY = -4.0;
+    private static final double MAX_DIFFICULTY = 4.0;
+    /** Priors: a ~ N(1, 1), b ~ N(0, 2^2), theta ~ N(0, 1). */
+    private static final double DISCRIMINATION_PRIOR_VARIANCE = 1.0;
+    private static final double DIFFICULTY_PRIOR_VARIANCE = 4.0;
+    private static final double ABILITY_PRIOR_VARIANCE = 1.0;
+    private static final double VARIANCE_FLOOR = 1e-9;
+    private static final Type DOCUMENT_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
+    private final Map<String, Integer> userSlots = new HashMap<>();
+    private final Map<String, Integer> itemSlots = new HashMap<>();
+    private final List<String> itemKeys = new ArrayList<>();
+    private final Map<String, Double> guessing = new HashMap<>();
+    private int[] responseUsers = new int[1024];
+    private int[] responseItems = new int[1024];
+    private double[] responseObserved = new double[1024];
+    private int responseCount;
+
+    /**
+     * Fixes the guessing floor of an item, e.g. one over the number of options of a
+     * multiple choice question.
+     */
+    public void setGuessing(@NonNull String itemKey, double probability) {
+        guessing.put(itemKey, Math.max(0.0, Math.min(0.9, probability)));
+    }
+
+    /**
+     * The guessing floor the item is fitted with.
+     */
+    double getGuessing(@NonNull String itemKey) {
+        Double probability = guessing.get(itemKey);
+        return probability != null ? probability : 0.0;
+    }
+
+    public void addResponse(@NonNull String userId, @NonNull String itemKey, double observed) {
+        if (responseCount == responseUsers.length) {
+            int capacity = responseCount * 2;
+            responseUsers = Arrays.copyOf(responseUsers, capacity);
+            responseItems = Arrays.copyOf(responseItems, capacity);
+            responseObserved = Arrays.copyOf(responseObserved, capacity);
+        }
+        responseUsers[responseCount] = slot(userSlots, null, userId);
+        responseItems[responseCount] = slot(itemSlots, itemKeys, itemKey);
+        responseObserved[responseCount] = Math.max(0.0, Math.min(1.0, observed));
+        responseCount++;
+    }
+
+    /**
+     * Adds the results of one activity, keyed by the stats key of each task.
+     */
+    public void addTaskStats(@NonNull String userId, @Nullable Map<String, TaskStats> taskStats) {
+        if (taskStats == null) {
+            return;
+        }
+        for (Map.Entry<String, TaskStats> entry : taskStats.entrySet()) {
+            TaskStats stats = entry.getValue();
+            if (entry.getKey() == null || stats == null || RapidGuessingDetector.isRapidGuess(stats)) {
+                continue;
+            }
+            addResponse(userId, entry.getKey(), stats.resolveScoreRatio());
+        }
+    }
+
+    /**
+     * Streams a JSON array of enrollment documents and adds the results they hold, in both
+     * the keyed and the legacy progress layout. Returns the number of enrollments read.
+     */
+    public int readEnrollmentExport(@NonNull Reader source) throws IOException {
+        Gson gson = new Gson();
+        JsonReader reader = new JsonReader(source);
+        int enrollments = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, Object> enrollment = gson.fromJson(reader, DOCUMENT_TYPE);
+            enrollments++;
+            Object userId = enrollment != null ? enrollment.get("userId") : null;
+            if (userId == null) {
+                continue;
+            }
+            List<Map<String, Object>> snapshots = EnrollmentProgressSnapshots.read(
+                    enrollment.get(EnrollmentProgressSnapshots.PROGRESS_SUMMARY_FIELD),
+                    enrollment.get(EnrollmentProgressSnapshots.ACTIVITY_PROGRESS_FIELD));
+            for (Map<String, Object> snapshot : snapshots) {
+                addTaskStats(userId.toString(), EnrollmentActivityProgress.fromMap(snapshot).getTaskStats());
+            }
+        }
+        reader.endArray();
+        return enrollments;
+    }
+
+    /**
+     * Streams a JSON array of course documents, each with its document id in {@code id}, and
+     * fixes the guessing floor of every multiple choice question to one over its number of
+     * options. Returns the number of questions seen.
+     */
+    public int readCourseExport(@NonNull Reader source) throws IOException {
+        Gson gson = new Gson();
+        JsonReader reader = new JsonReader(source);
+        CourseDocumentParser parser = CourseDocumentParser.getInstance();
+        int questions = 0;
+        int courses = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Map<String, Object> course = gson.fromJson(reader, DOCUMENT_TYPE);
+            courses++;
+            if (course == null) {
+                continue;
+            }
+            Object id = course.get("id");
+            CourseDocumentParser.ParsedCourse parsed =
+                    parser.parseDocument(id != null ? id.toString() : "course-" + courses, course);
+            for (CourseDocumentParser.ParsedActivity activity : parsed.getAllActivities()) {
+                List<Task> tasks = activity.getActivity().getTasks();
+                if (tasks == null) {
+                    continue;
+                }
+                for (Task task : tasks) {
+                    if (task instanceof MultipleChoiceQuestion question) {
+                        setGuessing(TaskStatsKeyUtils.buildKey(question),
+                                IrtSmartScoreAdjuster.computeGuessProbability(question));
+                        questions++;
+                    }
+                }
+            }
+        }
+        reader.endArray();
+        parser.clear();
+        return questions;
+    }
+
+    public int getResponseCount() {
+        return responseCount;
+    }
+
+    /**
+     * Calibrates on a pool with one thread per processor.
+     */
+    @NonNull
+    public IrtItemParameters calibrate() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return calibrate(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Fits the items with at least {@value #MIN_RESPONSES} responses, running the item and
+     * ability phases of every round on {@code executor}.
+     */
+    @NonNull
+    public IrtItemParameters calibrate(@NonNull ExecutorService executor)
+            throws InterruptedException, ExecutionException {
+        Model model = new Model();
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            double change = runParallel(executor, model.items, model::fitItem);
+            runParallel(executor, model.users, model::fitAbility);
+            model.standardizeAbilities();
+            if (change < CONVERGENCE_TOLERANCE) {
+                break;
+            }
+        }
+
+        Map<String, IrtItemParameters.Item> table = new HashMap<>();
+        for (int item = 0; item < model.items; item++) {
+            int responses = model.itemStart[item + 1] - model.itemStart[item];
+            if (responses >= MIN_RESPONSES) {
+                table.put(itemKeys.get(item), new IrtItemParameters.Item(
+                        model.discrimination[item], model.difficulty[item], responses));
+            }
+        }
+        return new IrtItemParameters(table);
+    }
+
+    /**
+     * Applies {@code work} to {@code 0..count-1} in chunks on the executor and returns the
+     * largest value it produced.
+     */
+    private static double runParallel(ExecutorService executor, int count, IntToDoubleFunction work)
+            throws InterruptedException, ExecutionException {
+        int chunks = Math.max(1, Math.min(count, Runtime.getRuntime().availableProcessors() * 4));
+        List<Callable<Double>> tasks = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int from = (int) ((long) count * chunk / chunks);
+            int to = (int) ((long) count * (chunk + 1) / chunks);
+            tasks.add(() -> {
+                double max = 0.0;
+                for (int i = from; i < to; i++) {
+                    max = Math.max(max, work.applyAsDouble(i));
+                }
+                return max;
+            });
+        }
+        double max = 0.0;
+        for (Future<Double> future : executor.invokeAll(tasks)) {
+            max = Math.max(max, future.get());
+        }
+        return max;
+    }
+
+    private static int slot(Map<String, Integer> slots, @Nullable List<String> keys, String key) {
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(key, slot);
+            if (keys != null) {
+                keys.add(key);
+            }
+        }
+        return slot;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static double logit(double probability) {
+        double p = clamp(probability, 0.05, 0.95);
+        return Math.log(p / (1.0 - p));
+    }
+
+    /**
+     * Responses grouped by item and by user, and the parameters being fitted. During a phase
+     * every worker only writes the slots of its own items or users.
+     */
+    private final class Model {
+        final int users = userSlots.size();
+        final int items = itemKeys.size();
+        final int[] itemStart = new int[items + 1];
+        final int[] itemResponses = new int[responseCount];
+        final int[] userStart = new int[users + 1];
+        final int[] userResponses = new int[responseCount];
+        final double[] ability = new double[users];
+        final double[] discrimination = new double[items];
+        final double[] difficulty = new double[items];
+        final double[] guessingFloor = new double[items];
+
+        Model() {
+            group(responseItems, itemStart, itemResponses);
+            group(responseUsers, userStart, userResponses);
+            for (int item = 0; item < items; item++) {
+                Double floor = guessing.get(itemKeys.get(item));
+                guessingFloor[item] = floor != null ? floor : 0.0;
+                discrimination[item] = 1.0;
+                difficulty[item] = clamp(-logit(meanObserved(itemStart, itemResponses, item)),
+                        MIN_DIFFICULTY, MAX_DIFFICULTY);
+            }
+            for (int user = 0; user < users; user++) {
+                ability[user] = logit(meanObserved(userStart, userResponses, user));
+            }
+            standardizeAbilities();
+        }
+
+        private void group(int[] keys, int[] start, int[] grouped) {
+            for (int r = 0; r < responseCount; r++) {
+                start[keys[r] + 1]++;
+            }
+            for (int i = 1; i < start.length; i++) {
+                start[i] += start[i - 1];
+            }
+            int[] next = Arrays.copyOf(start, start.length - 1);
+            for (int r = 0; r < responseCount; r++) {
+                grouped[next[keys[r]]++] = r;
+            }
+        }
+
+        private double meanObserved(int[] start, int[] grouped, int slot) {
+            double sum = 0.0;
+            for (int k = start[slot]; k < start[slot + 1]; k++) {
+                sum += responseObserved[grouped[k]];
+            }
+            int count = start[slot + 1] - start[slot];
+            return count > 0 ? sum / count : 0.5;
+        }
+
+        /**
+         * Fisher scoring steps for the discrimination and difficulty of one item. Returns the
+         * largest parameter change.
+         */
+        double fitItem(int item) {
+            double a = discrimination[item];
+            double b = difficulty[item];
+            double c = guessingFloor[item];
+            double change = 0.0;
+            for (int step = 0; step < ITEM_STEPS_PER_ROUND; step++) {
+                double gradientA = -(a - 1.0) / DISCRIMINATION_PRIOR_VARIANCE;
+                double gradientB = -b / DIFFICULTY_PRIOR_VARIANCE;
+                double informationAA = 1.0 / DISCRIMINATION_PRIOR_VARIANCE;
+                double informationBB = 1.0 / DIFFICULTY_PRIOR_VARIANCE;
+                double informationAB = 0.0;
+                for (int k = itemStart[item]; k < itemStart[item + 1]; k++) {
+                    int r = itemResponses[k];
+                    double distance = ability[responseUsers[r]] - b;
+                    double logistic = 1.0 / (1.0 + Math.exp(-a * distance));
+                    double probability = c + (1.0 - c) * logistic;
+                    double slope = (1.0 - c) * logistic * (1.0 - logistic);
+                    double variance = Math.max(probability * (1.0 - probability), VARIANCE_FLOOR);
+                    double score = (responseObserved[r] - probability) * slope / variance;
+                    double weight = slope * slope / variance;
+                    gradientA += score * distance;
+                    gradientB -= score * a;
+                    informationAA += weight * distance * distance;
+                    informationBB += weight * a * a;
+                    informationAB -= weight * distance * a;
+                }
+                double determinant = informationAA * informationBB - informationAB * informationAB;
+                if (determinant <= VARIANCE_FLOOR) {
+                    break;
+                }
+                double stepA = clamp((informationBB * gradientA - informationAB * gradientB) / determinant,
+                        -MAX_STEP, MAX_STEP);
+                double stepB = clamp((informationAA * gradientB - informationAB * gradientA) / determinant,
+                        -MAX_STEP, MAX_STEP);
+                double nextA = clamp(a + stepA, MIN_DISCRIMINATION, MAX_DISCRIMINATION);
+                double nextB = clamp(b + stepB, MIN_DIFFICULTY, MAX_DIFFICULTY);
+                change = Math.max(change, Math.max(Math.abs(nextA - a), Math.abs(nextB - b)));
+                a = nextA;
+                b = nextB;
+            }
+            discrimination[item] = a;
+            difficulty[item] = b;
+            return change;
+        }
+
+        /**
+         * One Fisher scoring step for the ability of one user. Returns the change.
+         */
+        double fitAbility(int user) {
+            double theta = ability[user];
+            double gradient = -theta / ABILITY_PRIOR_VARIANCE;
+            double information = 1.0 / ABILITY_PRIOR_VARIANCE;
+            for (int k = userStart[user]; k < userStart[user + 1]; k++) {
+                int r = userResponses[k];
+                int item = responseItems[r];
+                double a = discrimination[item];
+                double c = guessingFloor[item];
+                double logistic = 1.0 / (1.0 + Math.exp(-a * (theta - difficulty[item])));
+                double probability = c + (1.0 - c) * logistic;
+                double slope = (1.0 - c) * logistic * (1.0 - logistic);
+                double variance = Math.max(probability * (1.0 - probability), VARIANCE_FLOOR);
+                gradient += (responseObserved[r] - probability) * slope / variance * a;
+                information += slope * slope / variance * a * a;
+            }
+            double next = clamp(theta + clamp(gradient / information, -MAX_STEP, MAX_STEP), MIN_THETA, MAX_THETA);
+            ability[user] = next;
+            return Math.abs(next - theta);
+        }
+
+        /**
+         * Centres the abilities and scales them to unit variance, which fixes the scale the
+         * item parameters are expressed on.
+         */
+        void standardizeAbilities() {
+            if (users < 2) {
+                return;
+            }
+            double mean = 0.0;
+            for (double theta : ability) {
+                mean += theta;
+            }
+            mean /= users;
+            double variance = 0.0;
+            for (double theta : ability) {
+                variance += (theta - mean) * (theta - mean);
+            }
+            double deviation = Math.sqrt(variance / users);
+            if (deviation < 1e-6) {
+                return;
+            }
+            for (int user = 0; user < users; user++) {
+                ability[user] = clamp((ability[user] - mean) / deviation, MIN_THETA, MAX_THETA);
+            }
+        }
+    }
+
+    /**
+     * Calibrates from an enrollment and a course export:
+     * {@code IrtItemCalibrator <enrollments.json> <courses.json> <table.json>}.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: IrtItemCalibrator <enrollments.json> <courses.json> <irt_item_parameters.json>");
+            System.exit(2);
+            return;
+        }
+        IrtItemCalibrator calibrator = new IrtItemCalibrator();
+        long started = System.nanoTime();
+        int questions;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+            questions = calibrator.readCourseExport(reader);
+        }
+        int enrollments;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            enrollments = calibrator.readEnrollmentExport(reader);
+        }
+        IrtItemParameters parameters = calibrator.calibrate();
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8))) {
+            parameters.write(writer);
+        }
+        System.out.printf("Calibrated %d items (%d multiple choice questions) from %d responses in %d enrollments in %d ms%n",
+                parameters.size(), questions, calibrator.getResponseCount(), enrollments,
+                (System.nanoTime() - started) / 1_000_000);
+    }
+}
@@ -0,0 +1,143 @@
+package com.choicecrafter.students.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calibrated IRT parameters of the tasks, keyed by their stats key
+ * ({@link TaskStatsKeyUtils#buildKey}).
+ * <p>
+ * The table is produced offline by {@link IrtItemCalibrator} and stored as JSON:
+ * <pre>
+ * {"version": 1, "items": {"&lt;stats key&gt;": {"a": 1.4, "b": -0.3, "n": 812}}}
+ * </pre>
+ * where {@code a} is the discrimination, {@code b} the difficulty and {@code n} the number
+ * of responses the item was calibrated from.
+ */
+public final class IrtItemParameters {
+
+    public static final IrtItemParameters EMPTY = new IrtItemParameters(Collections.emptyMap());
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, Item> items;
+
+    IrtItemParameters(@NonNull Map<String, Item> items) {
+        this.items = items;
+    }
+
+    @Nullable
+    public Item get(@Nullable String itemKey) {
+        return itemKey != null ? items.get(itemKey) : null;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @NonNull
+    public static IrtItemParameters read(@NonNull Reader source) throws IOException {
+        JsonReader reader = new JsonReader(source);
+        Map<String, Item> items = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("version".equals(name)) {
+                int version = reader.nextInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported IRT parameter table version " + version);
+                }
+            } else if ("items".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String itemKey = reader.nextName();
+                    items.put(itemKey, readItem(reader));
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new IrtItemParameters(items);
+    }
+
+    private static Item readItem(JsonReader reader) throws IOException {
+        double discrimination = Double.NaN;
+        double difficulty = Double.NaN;
+        int responses = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "a" -> discrimination = reader.nextDouble();
+                case "b" -> difficulty = reader.nextDouble();
+                case "n" -> responses = reader.nextInt();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (Double.isNaN(discrimination) || Double.isNaN(difficulty)) {
+            throw new IOException("IRT item without discrimination or difficulty");
+        }
+        return new Item(discrimination, difficulty, responses);
+    }
+
+    public void write(@NonNull Writer target) throws IOException {
+        JsonWriter writer = new JsonWriter(target);
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("version").value(FORMAT_VERSION);
+        writer.name("items").beginObject();
+        for (Map.Entry<String, Item> entry : items.entrySet()) {
+            Item item = entry.getValue();
+            writer.name(entry.getKey()).beginObject();
+            writer.name("a").value(item.discrimination);
+            writer.name("b").value(item.difficulty);
+            writer.name("n").value(item.responses);
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    public static final class Item {
+        private final double discrimination;
+        private final double difficulty;
+        private final int responses;
+
+        Item(double discrimination, double difficulty, int responses) {
+            this.discrimination = discrimination;
+            this.difficulty = difficulty;
+            this.responses = responses;
+        }
+
+        public double getDiscrimination() {
+            return discrimination;
+        }
+
+        public double getDifficulty() {
+            return difficulty;
+        }
+
+        public int getResponses() {
+            return responses;
+        }
+    }
+}
@@ -1,52 +1,181 @@
 package com.choicecrafter.students.utils;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.choicecrafter.students.models.TaskStats;
 import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
 import com.choicecrafter.students.models.tasks.Task;
 
-import static com.choicecrafter.students.utils.TaskStatsKeyUtils.findStatsForTask;
+import static com.choicecrafter.students.utils.TaskStatsKeyUtils.resolveStats;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Implements a lightweight 3-parameter logistic model so one-off guesses do not
  * artificially increase the measured ability of a learner.
+ * <p>
+ * The ability is the one whose expected scores are closest, in squared error, to the
+ * observed score ratios. It is found with safeguarded Newton-Raphson steps over item
+ * parameters held in primitive arrays, bounded to [{@value #MIN_THETA}, {@value #MAX_THETA}].
+ * The last estimate of every user and activity is kept as the starting point of the next
+ * one: after a new answer the previous ability is usually a step or two from the new one,
+ * and unchanged answers converge on the first step.
  */
 public final class IrtSmartScoreAdjuster {
 
-    private static final int MAX_ITERATIONS = 15;
-    private static final double LEARNING_RATE = 0.8;
+    private static final int MAX_ITERATIONS = 50;
+    private static final double CONVERGENCE_TOLERANCE = 1e-9;
+    private static final double MAX_STEP = 1.0;
+    private static final double LOCAL_STEP = 1e-4;
+    private static final double MIN_THETA = -4.0;
+    private static final double MAX_THETA = 4.0;
+    /** Spacing of the grid the last Newton step starts from, 2^-26. */
+    private static final double FINAL_GRID = 0x1p-26;
+    private static final int MAX_CACHED_ESTIMATES = 256;
+
+    private static volatile IrtItemParameters itemParameters = IrtItemParameters.EMPTY;
+
+    private static final Map<String, Double> ESTIMATES =
+            new LinkedHashMap<String, Double>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                    return size() > MAX_CACHED_ESTIMATES;
+                }
+            };
 
     private IrtSmartScoreAdjuster() {
         // Utility class
     }
 
+    /**
+     * Installs the parameters calibrated by {@link IrtItemCalibrator}. Items found in the
+     * table use its discrimination and difficulty instead of the heuristic estimate.
+     */
+    public static void setItemParameters(@NonNull IrtItemParameters parameters) {
+        itemParameters = parameters;
+    }
+
     public static double estimateAbility(@Nullable List<Task> tasks,
                                          @Nullable Map<String, TaskStats> statsMap) {
-        List<IrtItem> items = extractItems(tasks, statsMap);
-        if (items.isEmpty()) {
+        return estimateAbility(tasks, resolveStats(tasks, statsMap));
+    }
+
+    /**
+     * Estimates the ability from stats already resolved by
+     * {@link TaskStatsKeyUtils#resolveStats(List, Map)}, aligned with {@code tasks}.
+     */
+    public static double estimateAbility(@Nullable List<Task> tasks,
+                                         @NonNull TaskStats[] resolvedStats) {
+        return estimateAbility(null, null, tasks, PackedTaskStats.of(resolvedStats));
+    }
+
+    /**
+     * Like {@link #estimateAbility(List, TaskStats[])}, but starts from the last estimate of
+     * the user on the activity. Without a user or activity id the estimate starts from zero.
+     */
+    public static double estimateAbility(@Nullable String userId,
+                                         @Nullable String activityId,
+                                         @Nullable List<Task> tasks,
+                                         @NonNull TaskStats[] resolvedStats) {
+        return estimateAbility(userId, activityId, tasks, PackedTaskStats.of(resolvedStats));
+    }
+
+    static double estimateAbility(@Nullable String userId,
+                                  @Nullable String activityId,
+                                  @Nullable List<Task> tasks,
+                                  @NonNull PackedTaskStats stats) {
+        ItemBank bank = ItemBank.extract(tasks, stats);
+        if (bank.size == 0) {
             return 0.0;
         }
+        if (userId == null || activityId == null) {
+            return solve(bank, 0.0);
+        }
+        String key = userId + "|" + activityId;
+        Double previous;
+        synchronized (ESTIMATES) {
+            previous = ESTIMATES.get(key);
+        }
+        double theta = solve(bank, previous != null ? previous : 0.0);
+        synchronized (ESTIMATES) {
+            ESTIMATES.put(key, theta);
+        }
+        return theta;
+    }
 
-        double theta = 0.0;
+    /**
+     * Minimizes the squared error between observed and expected scores from {@code start}.
+     * Where the error is not convex, as in the flat tails far from the items, the step goes
+     * downhill by {@value #MAX_STEP} instead of to the Newton point. Steps are limited to
+     * {@value #MAX_STEP} and, unless they are Newton steps shorter than {@value #LOCAL_STEP},
+     * halved until they reduce the error.
+     */
+    private static double solve(ItemBank bank, double start) {
+        double theta = clampRange(start, MIN_THETA, MAX_THETA);
+        double[] fit = new double[3];
+        evaluate(bank, theta, fit);
         for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
-            double gradient = 0.0;
-            for (IrtItem item : items) {
-                double probability = item.probability(theta);
-                double slope = item.slope(theta);
-                gradient += (item.observed - probability) * slope;
+            double error = fit[0];
+            double gradient = fit[1];
+            double curvature = fit[2];
+            double step = curvature < 0.0
+                    ? clampRange(-gradient / curvature, -MAX_STEP, MAX_STEP)
+                    : Math.signum(gradient) * MAX_STEP;
+            double next = clampRange(theta + step, MIN_THETA, MAX_THETA);
+            evaluate(bank, next, fit);
+            // Close to the minimum the error is too flat to tell a Newton step from rounding.
+            if (curvature >= 0.0 || Math.abs(step) > LOCAL_STEP) {
+                while (fit[0] > error && Math.abs(next - theta) > CONVERGENCE_TOLERANCE) {
+                    next = (theta + next) / 2.0;
+                    evaluate(bank, next, fit);
+                }
+                if (fit[0] > error) {
+                    break;
+                }
             }
-            double step = LEARNING_RATE * gradient;
-            theta += step;
-            if (Math.abs(step) < 1e-5) {
+            double change = Math.abs(next - theta);
+            theta = next;
+            if (change <= CONVERGENCE_TOLERANCE) {
                 break;
             }
         }
-        return theta;
+        // Rounding makes the last digits depend on where the estimate started. The last step
+        // starts from the nearest grid point instead, so cold and warm starts that converged
+        // to the same minimum return the same value.
+        double snapped = Math.rint(theta / FINAL_GRID) * FINAL_GRID;
+        evaluate(bank, snapped, fit);
+        if (fit[2] >= 0.0) {
+            return snapped;
+        }
+        return clampRange(snapped - fit[1] / fit[2], MIN_THETA, MAX_THETA);
+    }
+
+    /**
+     * Stores the squared error at {@code theta} and its first and second derivative with
+     * the sign flipped, the direction that reduces the error, in {@code fit}.
+     */
+    private static void evaluate(ItemBank bank, double theta, double[] fit) {
+        double error = 0.0;
+        double gradient = 0.0;
+        double curvature = 0.0;
+        for (int i = 0; i < bank.size; i++) {
+            double a = bank.discrimination[i];
+            double c = bank.guessing[i];
+            double logistic = 1.0 / (1.0 + Math.exp(-a * (theta - bank.difficulty[i])));
+            double probability = c + (1.0 - c) * logistic;
+            double slope = (1.0 - c) * (a * logistic * (1.0 - logistic));
+            double bend = slope * a * (1.0 - 2.0 * logistic);
+            double residual = bank.observed[i] - probability;
+            error += residual * residual;
+            gradient += residual * slope;
+            curvature += residual * bend - slope * slope;
+        }
+        fit[0] = error;
+        fit[1] = gradient;
+        fit[2] = curvature;
     }
 
     public static double adjustScore(MultipleChoiceQuestion question,
@@ -55,16 +184,34 @@ public final class IrtSmartScoreAdjuster {
         if (question == null || stats == null) {
             return 0.0;
         }
-        double observed = clampProbability(stats.resolveScoreRatio());
-        if (observed <= 0.0) {
+        Integer retries = stats.getRetries();
+        return adjustScore(question, stats.resolveScoreRatio(), retries != null ? retries : 0,
+                Boolean.TRUE.equals(stats.getHintsUsed()), abilityEstimate);
+    }
+
+    static double adjustScore(@NonNull MultipleChoiceQuestion question,
+                              @NonNull PackedTaskStats stats,
+                              int index,
+                              double abilityEstimate) {
+        if (!stats.isPresent(index)) {
             return 0.0;
         }
+        return adjustScore(question, stats.getScoreRatio(index), stats.getRetries(index),
+                stats.isHintsUsed(index), abilityEstimate);
+    }
 
-        IrtItem item = buildItem(question, stats);
-        if (item == null) {
-            return observed;
+    private static double adjustScore(MultipleChoiceQuestion question,
+                                      double scoreRatio,
+                                      int retries,
+                                      boolean hintsUsed,
+                                      double abilityEstimate) {
+        double observed = clampProbability(scoreRatio);
+        if (observed <= 0.0) {
+            return 0.0;
         }
 
+        IrtItem item = buildItem(question, retries, hintsUsed);
+
         double probability = item.probability(abilityEstimate);
         double normalized = 0.0;
         if (probability > item.guessing) {
@@ -74,47 +221,22 @@ public final class IrtSmartScoreAdjuster {
         return observed * normalized;
     }
 
-    private static List<IrtItem> extractItems(@Nullable List<Task> tasks,
-                                              @Nullable Map<String, TaskStats> statsMap) {
-        List<IrtItem> items = new ArrayList<>();
-        if (tasks == null || tasks.isEmpty() || statsMap == null || statsMap.isEmpty()) {
-            return items;
-        }
-
-        for (Task task : tasks) {
-            if (!(task instanceof MultipleChoiceQuestion mcQuestion)) {
-                continue;
-            }
-
-            TaskStats stats = findStatsForTask(statsMap, task);
-            if (stats == null || RapidGuessingDetector.isRapidGuess(stats)) {
-                continue;
-            }
-
-            IrtItem item = buildItem(mcQuestion, stats);
-            if (item == null) {
-                continue;
-            }
-            item.observed = clampProbability(stats.resolveScoreRatio());
-            items.add(item);
-        }
-
-        return items;
-    }
-
-    private static IrtItem buildItem(MultipleChoiceQuestion question, @Nullable TaskStats stats) {
-        if (question == null) {
-            return null;
-        }
-
+    private static IrtItem buildItem(@NonNull MultipleChoiceQuestion question, int retries, boolean hintsUsed) {
         double guessing = computeGuessProbability(question);
-        double difficulty = estimateDifficulty(question, stats);
+        IrtItemParameters.Item calibrated = itemParameters.get(TaskStatsKeyUtils.buildKey(question));
+        if (calibrated != null) {
+            return new IrtItem(calibrated.getDiscrimination(), calibrated.getDifficulty(), guessing);
+        }
+        double difficulty = estimateDifficulty(question, retries, hintsUsed);
         double discrimination = 1.2;
 
         return new IrtItem(discrimination, difficulty, guessing);
     }
 
-    private static double computeGuessProbability(MultipleChoiceQuestion question) {
+    /**
+     * Guessing floor of a multiple choice question: one over its number of options.
+     */
+    static double computeGuessProbability(@NonNull MultipleChoiceQuestion question) {
         List<String> options = question.getOptions();
         int optionCount = options != null && !options.isEmpty() ? options.size() : 4;
         int effectiveOptions = Math.max(optionCount, 2);
@@ -122,21 +244,16 @@ public final class IrtSmartScoreAdjuster {
         return clampProbability(probability);
     }
 
-    private static double estimateDifficulty(MultipleChoiceQuestion question, @Nullable TaskStats stats) {
+    private static double estimateDifficulty(MultipleChoiceQuestion question, int retries, boolean hintsUsed) {
         double difficulty = 0.0;
         List<String> options = question.getOptions();
         if (options != null) {
             difficulty += 0.15 * Math.max(0, options.size() - 4);
         }
 
-        if (stats != null) {
-            Integer retries = stats.getRetries();
-            if (retries != null) {
-                difficulty += 0.1 * Math.min(retries, 5);
-            }
-            if (Boolean.TRUE.equals(stats.getHintsUsed())) {
-                difficulty += 0.2;
-            }
+        difficulty += 0.1 * Math.min(retries, 5);
+        if (hintsUsed) {
+            difficulty += 0.2;
         }
 
         return clampRange(difficulty, -2.0, 2.0);
@@ -160,7 +277,6 @@ public final class IrtSmartScoreAdjuster {
         private final double discrimination;
         private final double difficulty;
         private final double guessing;
-        private double observed;
 
         private IrtItem(double discrimination, double difficulty, double guessing) {
             this.discrimination = discrimination;
@@ -174,11 +290,46 @@ public final class IrtSmartScoreAdjuster {
             return guessing + (1.0 - guessing) * logistic;
         }
 
-        private double slope(double theta) {
-            double exponent = -discrimination * (theta - difficulty);
-            double logistic = 1.0 / (1.0 + Math.exp(exponent));
-            double derivativeLogistic = discrimination * logistic * (1.0 - logistic);
-            return (1.0 - guessing) * derivativeLogistic;
+    }
+
+    /**
+     * Parameters and observed score ratios of the multiple choice items a learner answered,
+     * one array slot per item.
+     */
+    private static final class ItemBank {
+        private final double[] discrimination;
+        private final double[] difficulty;
+        private final double[] guessing;
+        private final double[] observed;
+        private int size;
+
+        private ItemBank(int capacity) {
+            discrimination = new double[capacity];
+            difficulty = new double[capacity];
+            guessing = new double[capacity];
+            observed = new double[capacity];
+        }
+
+        static ItemBank extract(@Nullable List<Task> tasks, @NonNull PackedTaskStats stats) {
+            if (tasks == null || tasks.isEmpty()) {
+                return new ItemBank(0);
+            }
+            ItemBank bank = new ItemBank(stats.size());
+            for (int i = 0; i < stats.size(); i++) {
+                if (!(tasks.get(i) instanceof MultipleChoiceQuestion mcQuestion)) {
+                    continue;
+                }
+                if (!stats.isPresent(i) || stats.isRapidGuess(i)) {
+                    continue;
+                }
+                IrtItem item = buildItem(mcQuestion, stats.getRetries(i), stats.isHintsUsed(i));
+                bank.discrimination[bank.size] = item.discrimination;
+                bank.difficulty[bank.size] = item.difficulty;
+                bank.guessing[bank.size] = item.guessing;
+                bank.observed[bank.size] = clampProbability(stats.getScoreRatio(i));
+                bank.size++;
+            }
+            return bank;
         }
     }
 }
@@ -0,0 +1,115 @@
+package com.choicecrafter.students.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.choicecrafter.students.models.TaskStats;
+
+/**
+ * Primitive, column-wise copy of the stats of an activity's tasks, aligned with its task
+ * list.
+ * <p>
+ * {@link TaskStats} stays the Firestore model with boxed fields and the time spent as text;
+ * scoring converts the resolved stats once with {@link #of(TaskStats[])} and then reads
+ * unboxed values by task index. A missing stats entry is reported by {@link #isPresent(int)}
+ * and reads as zero everywhere else.
+ */
+public final class PackedTaskStats {
+
+    private static final int PRESENT = 1;
+    private static final int SUCCESS = 1 << 1;
+    private static final int HINTS_USED = 1 << 2;
+    private static final int RAPID_GUESS = 1 << 3;
+
+    private final int[] flags;
+    private final int[] retries;
+    private final int[] timeSpentSeconds;
+    private final double[] scoreRatio;
+    private final double[] completionRatio;
+
+    private PackedTaskStats(int size) {
+        flags = new int[size];
+        retries = new int[size];
+        timeSpentSeconds = new int[size];
+        scoreRatio = new double[size];
+        completionRatio = new double[size];
+    }
+
+    @NonNull
+    public static PackedTaskStats of(@NonNull TaskStats[] stats) {
+        PackedTaskStats packed = new PackedTaskStats(stats.length);
+        for (int i = 0; i < stats.length; i++) {
+            packed.set(i, stats[i]);
+        }
+        return packed;
+    }
+
+    private void set(int index, @Nullable TaskStats stats) {
+        if (stats == null) {
+            timeSpentSeconds[index] = -1;
+            return;
+        }
+        int seconds = stats.getTimeSpentSeconds();
+        int value = PRESENT;
+        if (Boolean.TRUE.equals(stats.getSuccess())) {
+            value |= SUCCESS;
+        }
+        if (Boolean.TRUE.equals(stats.getHintsUsed())) {
+            value |= HINTS_USED;
+        }
+        if (RapidGuessingDetector.isRapidGuess(seconds)) {
+            value |= RAPID_GUESS;
+        }
+        flags[index] = value;
+        Integer retryCount = stats.getRetries();
+        retries[index] = retryCount != null ? retryCount : 0;
+        timeSpentSeconds[index] = seconds;
+        scoreRatio[index] = stats.resolveScoreRatio();
+        completionRatio[index] = stats.resolveCompletionRatio();
+    }
+
+    public int size() {
+        return flags.length;
+    }
+
+    public boolean isPresent(int index) {
+        return (flags[index] & PRESENT) != 0;
+    }
+
+    public boolean isSuccess(int index) {
+        return (flags[index] & SUCCESS) != 0;
+    }
+
+    public boolean isHintsUsed(int index) {
+        return (flags[index] & HINTS_USED) != 0;
+    }
+
+    public boolean isRapidGuess(int index) {
+        return (flags[index] & RAPID_GUESS) != 0;
+    }
+
+    public int getRetries(int index) {
+        return retries[index];
+    }
+
+    /**
+     * The time on task in seconds, or {@code -1} when unknown.
+     */
+    public int getTimeSpentSeconds(int index) {
+        return timeSpentSeconds[index];
+    }
+
+    /**
+     * {@link TaskStats#resolveScoreRatio()} of the task.
+     */
+    public double getScoreRatio(int index) {
+        return scoreRatio[index];
+    }
+
+    /**
+     * {@link TaskStats#resolveCompletionRatio()} of the task.
+     */
+    public double getCompletionRatio(int index) {
+        return completionRatio[index];
+    }
+}
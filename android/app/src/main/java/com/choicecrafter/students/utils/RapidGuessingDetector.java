@@ -18,44 +18,17 @@ public final class RapidGuessingDetector {
     }
 
     public static boolean isRapidGuess(@Nullable TaskStats stats) {
-        if (stats == null) {
-            return false;
-        }
-        int seconds = resolveSeconds(stats.getTimeSpent());
-        return seconds >= 0 && seconds <= RAPID_THRESHOLD_SECONDS;
+        return stats != null && isRapidGuess(stats.getTimeSpentSeconds());
+    }
+
+    /**
+     * @param timeSpentSeconds the parsed time on task, or {@code -1} when unknown.
+     */
+    public static boolean isRapidGuess(int timeSpentSeconds) {
+        return timeSpentSeconds >= 0 && timeSpentSeconds <= RAPID_THRESHOLD_SECONDS;
     }
 
     public static int resolveSeconds(@Nullable String timeSpent) {
-        if (timeSpent == null) {
-            return -1;
-        }
-
-        String trimmed = timeSpent.trim();
-        if (trimmed.isEmpty()) {
-            return -1;
-        }
-
-        if (trimmed.contains(":")) {
-            String[] parts = trimmed.split(":");
-            if (parts.length == 2) {
-                try {
-                    int minutes = Integer.parseInt(parts[0]);
-                    int seconds = Integer.parseInt(parts[1]);
-                    return Math.max(0, minutes * 60 + seconds);
-                } catch (NumberFormatException ignored) {
-                    return -1;
-                }
-            }
-        }
-
-        String numeric = trimmed.replaceAll("[^0-9]", "");
-        if (numeric.isEmpty()) {
-            return -1;
-        }
-        try {
-            return Math.max(0, Integer.parseInt(numeric));
-        } catch (NumberFormatException ignored) {
-            return -1;
-        }
+        return TaskStats.parseTimeSpentSeconds(timeSpent);
     }
 }
@@ -0,0 +1,144 @@
+package com.choicecrafter.students.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Tracks a streak of consecutive active days as a few numbers: the first and the last day of
+ * the newest run of active days and of the run before it, as epoch days, and the longest run
+ * seen. The run before is kept because day keys bucketed in another zone can lie a day after
+ * today, and then start a run of their own.
+ * <p>
+ * {@link #recordActivity(long)} updates them in constant time for days that arrive in order,
+ * which is how activity is recorded. A day older than the current run cannot be placed
+ * without the history, so it is rejected and the owner rebuilds the tracker from its day
+ * keys with {@link #fromDayKeys(Iterable)}, which sorts the days once and replays them.
+ * <p>
+ * The tracker is not tied to a zone: callers pass day keys and today's date in the zone
+ * their days are bucketed in.
+ */
+public final class StreakTracker {
+
+    /**
+     * Value of {@link #getLastActiveEpochDay()} and {@link #getCurrentStreakStart()} before
+     * any activity was recorded.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private long currentStreakStart = NONE;
+    private long lastActiveEpochDay = NONE;
+    private long previousStreakStart = NONE;
+    private long previousStreakEnd = NONE;
+    private int longestStreak;
+
+    /**
+     * Builds a tracker from {@code yyyy-MM-dd} day keys; keys that are not dates are skipped.
+     */
+    @NonNull
+    public static StreakTracker fromDayKeys(@Nullable Iterable<String> dayKeys) {
+        StreakTracker tracker = new StreakTracker();
+        if (dayKeys == null) {
+            return tracker;
+        }
+        long[] days = new long[16];
+        int count = 0;
+        for (String dayKey : dayKeys) {
+            long epochDay = parseEpochDay(dayKey);
+            if (epochDay == NONE) {
+                continue;
+            }
+            if (count == days.length) {
+                days = Arrays.copyOf(days, count * 2);
+            }
+            days[count++] = epochDay;
+        }
+        Arrays.sort(days, 0, count);
+        for (int i = 0; i < count; i++) {
+            tracker.recordActivity(days[i]);
+        }
+        return tracker;
+    }
+
+    /**
+     * Returns the epoch day of a {@code yyyy-MM-dd} key, or {@link #NONE}.
+     */
+    public static long parseEpochDay(@Nullable String dayKey) {
+        if (dayKey == null) {
+            return NONE;
+        }
+        try {
+            return LocalDate.parse(dayKey).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Records activity on {@code epochDay}. Returns {@code false} when the day lies before the
+     * current run, in which case nothing changed and the tracker has to be rebuilt.
+     */
+    public boolean recordActivity(long epochDay) {
+        if (lastActiveEpochDay == NONE || epochDay > lastActiveEpochDay + 1) {
+            previousStreakStart = currentStreakStart;
+            previousStreakEnd = lastActiveEpochDay;
+            currentStreakStart = epochDay;
+        } else if (epochDay < currentStreakStart) {
+            return false;
+        } else if (epochDay <= lastActiveEpochDay) {
+            return true; // Already part of the current run.
+        }
+        lastActiveEpochDay = epochDay;
+        longestStreak = (int) Math.max(longestStreak, lastActiveEpochDay - currentStreakStart + 1);
+        return true;
+    }
+
+    /**
+     * Length of the streak as of {@code today}, counted the way the app always has: the run
+     * of active days ending today, or while today has no activity yet, the run ending
+     * yesterday plus one for today, which is still open. The streak only drops to {@code 0}
+     * once a whole day was missed. Days after {@code today} do not count; since only the two
+     * newest runs are kept, two runs that both lie entirely after {@code today} read as no
+     * streak.
+     */
+    public int getCurrentStreak(@NonNull LocalDate today) {
+        return getCurrentStreak(today.toEpochDay());
+    }
+
+    public int getCurrentStreak(long todayEpochDay) {
+        if (lastActiveEpochDay == NONE) {
+            return 0;
+        }
+        if (currentStreakStart <= todayEpochDay) {
+            return streakOfRun(currentStreakStart, lastActiveEpochDay, todayEpochDay);
+        }
+        if (previousStreakEnd != NONE) {
+            return streakOfRun(previousStreakStart, previousStreakEnd, todayEpochDay);
+        }
+        return 0;
+    }
+
+    private static int streakOfRun(long start, long last, long todayEpochDay) {
+        long end = Math.min(last, todayEpochDay);
+        if (end < todayEpochDay - 1) {
+            return 0;
+        }
+        int run = (int) (end - start + 1);
+        return end == todayEpochDay ? run : run + 1;
+    }
+
+    public long getCurrentStreakStart() {
+        return currentStreakStart;
+    }
+
+    public long getLastActiveEpochDay() {
+        return lastActiveEpochDay;
+    }
+
+    public int getLongestStreak() {
+        return longestStreak;
+    }
+}
@@ -1,7 +1,5 @@
 package com.choicecrafter.students.utils;
 
-import android.text.TextUtils;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -9,7 +7,6 @@ import com.choicecrafter.students.models.TaskStats;
 import com.choicecrafter.students.models.tasks.Task;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -28,14 +25,26 @@ public final class TaskStatsKeyUtils {
     /**
      * Builds a stable key for storing statistics about a task. If the task provides an explicit
      * identifier it will be used directly, otherwise the key falls back to a fingerprint derived
-     * from the task contents.
+     * from the task contents. The key is cached on the task, so the fingerprint is only hashed
+     * once per task.
      */
     @NonNull
     public static String buildKey(@Nullable Task task) {
         if (task == null) {
             return KEY_PREFIX;
         }
-        if (!TextUtils.isEmpty(task.getId())) {
+        String cached = task.getCachedStatsKey();
+        if (cached != null) {
+            return cached;
+        }
+        String key = computeKey(task);
+        task.setCachedStatsKey(key);
+        return key;
+    }
+
+    @NonNull
+    private static String computeKey(@NonNull Task task) {
+        if (!isEmpty(task.getId())) {
             return task.getId();
         }
         String fingerprintSource = safe(task.getTitle()) + "|" + safe(task.getDescription()) +
@@ -61,18 +70,33 @@ public final class TaskStatsKeyUtils {
         if (statsMap == null || statsMap.isEmpty()) {
             return null;
         }
-        String key = buildKey(task);
-        TaskStats stats = statsMap.get(key);
-        if (stats != null) {
-            return stats;
+        TaskStats stats = statsMap.get(buildKey(task));
+        if (stats == null && task != null && !isEmpty(task.getTitle())) {
+            // Legacy key: stats used to be stored under the task title.
+            stats = statsMap.get(task.getTitle());
         }
-        for (String legacyKey : legacyKeys(task)) {
-            stats = statsMap.get(legacyKey);
-            if (stats != null) {
-                return stats;
-            }
+        return stats;
+    }
+
+    /**
+     * Looks up the statistics of every task once. The result is aligned with {@code tasks}, so
+     * callers that visit the tasks more than once index the array instead of the map.
+     */
+    @NonNull
+    public static TaskStats[] resolveStats(@Nullable List<Task> tasks,
+                                           @Nullable Map<String, TaskStats> statsMap) {
+        if (tasks == null || tasks.isEmpty()) {
+            return new TaskStats[0];
+        }
+        TaskStats[] resolved = new TaskStats[tasks.size()];
+        if (statsMap == null || statsMap.isEmpty()) {
+            return resolved;
         }
-        return null;
+        for (int i = 0; i < resolved.length; i++) {
+            Task task = tasks.get(i);
+            resolved[i] = task != null ? findStatsForTask(statsMap, task) : null;
+        }
+        return resolved;
     }
 
     /**
@@ -92,12 +116,7 @@ public final class TaskStatsKeyUtils {
         return value != null ? value.trim() : "";
     }
 
-    @NonNull
-    private static List<String> legacyKeys(@Nullable Task task) {
-        List<String> keys = new ArrayList<>();
-        if (task != null && !TextUtils.isEmpty(task.getTitle())) {
-            keys.add(task.getTitle());
-        }
-        return keys;
+    private static boolean isEmpty(@Nullable String value) {
+        return value == null || value.isEmpty();
     }
 }
@@ -6,22 +6,12 @@ import androidx.annotation.RequiresApi;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.temporal.ChronoField;
-import java.time.temporal.TemporalAccessor;
+import java.time.format.DateTimeParseException;
 
 public class TimeAgoUtil {
 
-    private static final DateTimeFormatter FLEX_PARSER =
-            new DateTimeFormatterBuilder()
-                    .appendPattern("uuuu-MM-dd'T'HH:mm:ss")
-                    .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
-                    .optionalStart().appendOffsetId().optionalEnd()
-                    .toFormatter();
     private static final DateTimeFormatter ISO_MILLIS_FORMATTER =
             DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS");
 
@@ -39,18 +29,18 @@ public class TimeAgoUtil {
 
     public static String toIsoMillis(String dateTime, ZoneId zone) {
         Instant instant = parseInstant(dateTime, zone);
-        long epochMillis = instant.toEpochMilli();
         return ISO_MILLIS_FORMATTER
                 .withZone(zone)
-                .format(Instant.ofEpochMilli(epochMillis));
+                .format(instant);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
     private static Instant parseInstant(String timestamp, ZoneId zone) {
-        TemporalAccessor ta = FLEX_PARSER.parse(timestamp);
-        return ta.isSupported(ChronoField.OFFSET_SECONDS)
-                ? OffsetDateTime.from(ta).toInstant()
-                : LocalDateTime.from(ta).atZone(zone).toInstant();
+        long epochMillis = TimestampParser.parseEpochMillis(timestamp, zone);
+        if (epochMillis == TimestampParser.INVALID) {
+            throw new DateTimeParseException("Unsupported timestamp", String.valueOf(timestamp), 0);
+        }
+        return Instant.ofEpochMilli(epochMillis);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
@@ -0,0 +1,313 @@
+package com.choicecrafter.students.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses the ISO-8601 timestamps the app stores into epoch milliseconds.
+ * <p>
+ * Accepted are {@code yyyy-MM-dd'T'HH:mm}, optionally followed by {@code :ss} and a
+ * fraction of up to nine digits, and optionally by {@code Z} or an offset such as
+ * {@code +02:00}, {@code +0200} or {@code +02}. This covers {@link LocalDateTime#toString()}
+ * (attempt times, which drop the seconds when they are zero), the {@code .SSS} activity and
+ * colleague timestamps and {@link Instant#toString()}. Timestamps without an offset are
+ * read in the zone of the parser; in a daylight saving gap or overlap they resolve like
+ * {@link LocalDateTime#atZone(ZoneId)}.
+ * <p>
+ * Parsing does not allocate: the offset of local timestamps comes from the cached interval
+ * between the zone's transitions around the last timestamp, and only a new string costs one
+ * entry in a small direct-mapped cache of recently parsed values, from which repeated
+ * values are answered without parsing.
+ */
+public final class TimestampParser {
+
+    /**
+     * Returned for {@code null}, empty and malformed timestamps.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final int CACHE_SIZE = 256;
+    private static final int SECONDS_PER_DAY = 86_400;
+    private static final long DAYS_0000_TO_1970 = 719_528L;
+    private static final int MAX_OFFSET_SECONDS = 18 * 3600;
+    private static final int[] NANO_SCALE = {
+            0, 100_000_000, 10_000_000, 1_000_000, 100_000, 10_000, 1_000, 100, 10, 1
+    };
+    private static final Map<ZoneId, TimestampParser> PARSERS = new ConcurrentHashMap<>();
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final boolean fixedOffset;
+    private final int fixedOffsetSeconds;
+    private final Entry[] cache = new Entry[CACHE_SIZE];
+    private volatile OffsetWindow window;
+
+    private TimestampParser(@NonNull ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+        this.fixedOffset = rules.isFixedOffset();
+        this.fixedOffsetSeconds = fixedOffset ? rules.getOffset(Instant.EPOCH).getTotalSeconds() : 0;
+    }
+
+    /**
+     * Returns the shared parser that reads local timestamps in {@code zone}.
+     */
+    @NonNull
+    public static TimestampParser forZone(@NonNull ZoneId zone) {
+        return PARSERS.computeIfAbsent(zone, TimestampParser::new);
+    }
+
+    /**
+     * Parses {@code text} with the parser of {@code zone}; see {@link #parse(String)}.
+     */
+    public static long parseEpochMillis(@Nullable String text, @NonNull ZoneId zone) {
+        return forZone(zone).parse(text);
+    }
+
+    @NonNull
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * Returns the epoch milliseconds of {@code text}, or {@link #INVALID} when it is
+     * {@code null}, empty or not a supported timestamp.
+     */
+    public long parse(@Nullable String text) {
+        if (text == null || text.isEmpty()) {
+            return INVALID;
+        }
+        int hash = text.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        Entry entry = cache[slot];
+        if (entry != null && entry.text.equals(text)) {
+            return entry.epochMillis;
+        }
+        long epochMillis = parseUncached(text);
+        cache[slot] = new Entry(text, epochMillis);
+        return epochMillis;
+    }
+
+    private long parseUncached(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start < 16) {
+            return INVALID;
+        }
+
+        int i = start;
+        int year = digits(text, i, 4);
+        if (year < 0 || text.charAt(i + 4) != '-') {
+            return INVALID;
+        }
+        i += 5;
+        int month = digits(text, i, 2);
+        if (month < 1 || month > 12 || text.charAt(i + 2) != '-') {
+            return INVALID;
+        }
+        i += 3;
+        int day = digits(text, i, 2);
+        if (day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID;
+        }
+        i += 2;
+        char separator = text.charAt(i);
+        if (separator != 'T' && separator != 't' && separator != ' ') {
+            return INVALID;
+        }
+        i++;
+        int hour = digits(text, i, 2);
+        if (hour < 0 || hour > 23 || text.charAt(i + 2) != ':') {
+            return INVALID;
+        }
+        i += 3;
+        int minute = digits(text, i, 2);
+        if (minute < 0 || minute > 59) {
+            return INVALID;
+        }
+        i += 2;
+
+        int second = 0;
+        int nanos = 0;
+        if (i < end && text.charAt(i) == ':') {
+            if (end - i < 3) {
+                return INVALID;
+            }
+            second = digits(text, i + 1, 2);
+            if (second < 0 || second > 59) {
+                return INVALID;
+            }
+            i += 3;
+            if (i < end && (text.charAt(i) == '.' || text.charAt(i) == ',')) {
+                i++;
+                int fractionDigits = 0;
+                while (i < end && isDigit(text.charAt(i))) {
+                    if (++fractionDigits > 9) {
+                        return INVALID;
+                    }
+                    nanos = nanos * 10 + (text.charAt(i) - '0');
+                    i++;
+                }
+                if (fractionDigits == 0) {
+                    return INVALID;
+                }
+                nanos *= NANO_SCALE[fractionDigits];
+            }
+        }
+
+        long localSeconds = epochDay(year, month, day) * SECONDS_PER_DAY
+                + hour * 3600L + minute * 60L + second;
+        int offsetSeconds;
+        if (i == end) {
+            offsetSeconds = localOffsetSeconds(localSeconds);
+        } else {
+            offsetSeconds = parseOffsetSeconds(text, i, end);
+            if (offsetSeconds == Integer.MIN_VALUE) {
+                return INVALID;
+            }
+        }
+        return (localSeconds - offsetSeconds) * 1000L + nanos / 1_000_000;
+    }
+
+    /**
+     * Parses {@code Z}, {@code ±HH}, {@code ±HHMM} or {@code ±HH:MM} spanning the rest of
+     * the text, or returns {@link Integer#MIN_VALUE}.
+     */
+    private static int parseOffsetSeconds(String text, int i, int end) {
+        char sign = text.charAt(i);
+        if (sign == 'Z' || sign == 'z') {
+            return i + 1 == end ? 0 : Integer.MIN_VALUE;
+        }
+        if ((sign != '+' && sign != '-') || end - i < 3) {
+            return Integer.MIN_VALUE;
+        }
+        int hours = digits(text, i + 1, 2);
+        int minutes = 0;
+        int length = end - i;
+        if (length == 6 && text.charAt(i + 3) == ':') {
+            minutes = digits(text, i + 4, 2);
+        } else if (length == 5) {
+            minutes = digits(text, i + 3, 2);
+        } else if (length != 3) {
+            return Integer.MIN_VALUE;
+        }
+        if (hours < 0 || minutes < 0 || minutes > 59) {
+            return Integer.MIN_VALUE;
+        }
+        int seconds = hours * 3600 + minutes * 60;
+        if (seconds > MAX_OFFSET_SECONDS) {
+            return Integer.MIN_VALUE;
+        }
+        return sign == '-' ? -seconds : seconds;
+    }
+
+    private int localOffsetSeconds(long localSeconds) {
+        if (fixedOffset) {
+            return fixedOffsetSeconds;
+        }
+        OffsetWindow current = window;
+        if (current != null && localSeconds >= current.fromLocal && localSeconds < current.untilLocal) {
+            return current.offsetSeconds;
+        }
+        return resolveOffsetSeconds(localSeconds);
+    }
+
+    /**
+     * Resolves the offset through the zone rules and caches the local time interval between
+     * the surrounding transitions in which that offset is the only valid one.
+     */
+    private int resolveOffsetSeconds(long localSeconds) {
+        ZoneOffset offset = rules.getOffset(LocalDateTime.ofEpochSecond(localSeconds, 0, ZoneOffset.UTC));
+        int offsetSeconds = offset.getTotalSeconds();
+        Instant instant = Instant.ofEpochSecond(localSeconds - offsetSeconds);
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        long fromLocal = previous == null ? Long.MIN_VALUE
+                : previous.toEpochSecond() + Math.max(previous.getOffsetBefore().getTotalSeconds(),
+                previous.getOffsetAfter().getTotalSeconds());
+        long untilLocal = next == null ? Long.MAX_VALUE
+                : next.toEpochSecond() + Math.min(next.getOffsetBefore().getTotalSeconds(),
+                next.getOffsetAfter().getTotalSeconds());
+        if (localSeconds >= fromLocal && localSeconds < untilLocal) {
+            window = new OffsetWindow(fromLocal, untilLocal, offsetSeconds);
+        }
+        return offsetSeconds;
+    }
+
+    private static int digits(String text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> isLeapYear(year) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    /**
+     * Same as {@link java.time.LocalDate#toEpochDay()} for years 0 to 9999.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12 + day - 1;
+        if (month > 2) {
+            total -= isLeapYear(year) ? 1 : 2;
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+
+    private static final class Entry {
+        final String text;
+        final long epochMillis;
+
+        Entry(String text, long epochMillis) {
+            this.text = text;
+            this.epochMillis = epochMillis;
+        }
+    }
+
+    private static final class OffsetWindow {
+        final long fromLocal;
+        final long untilLocal;
+        final int offsetSeconds;
+
+        OffsetWindow(long fromLocal, long untilLocal, int offsetSeconds) {
+            this.fromLocal = fromLocal;
+            this.untilLocal = untilLocal;
+            this.offsetSeconds = offsetSeconds;
+        }
+    }
+}
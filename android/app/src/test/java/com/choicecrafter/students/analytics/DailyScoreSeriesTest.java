@@ -0,0 +1,59 @@
+package com.choicecrafter.students.analytics;
+
+import static com.choicecrafter.students.analytics.WeeklyUsageRollupTest.attempt;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class DailyScoreSeriesTest {
+
+    private static final long MONDAY = LocalDate.parse("2024-03-04").toEpochDay();
+
+    @Test
+    public void replacedResultsCountOnlyTheLatestResultOfATask() {
+        DailyScoreSeries series = new DailyScoreSeries("user");
+        Map<String, Object> first = attempt("2024-03-04T09:00:00", 0.25, 0, false, "00:30");
+        Map<String, Object> second = attempt("2024-03-05T09:00:00", 1.0, 0, false, "00:10");
+
+        series.addRollup(single(rollups -> WeeklyUsageRollup.addAttempt(rollups, "user", "c", "a", first)));
+        series.addRollup(single(rollups -> {
+            WeeklyUsageRollup.removeAttempt(rollups, "user", "c", "a", first);
+            WeeklyUsageRollup.addAttempt(rollups, "user", "c", "a", second);
+        }));
+
+        assertEquals(0, series.getAttempts(MONDAY));
+        assertEquals(0L, series.getPoints(MONDAY));
+        assertEquals(0, series.getSeconds(MONDAY));
+        assertEquals(1, series.getAttempts(MONDAY + 1));
+        assertEquals(40L, series.getPoints(MONDAY + 1));
+        assertEquals(Map.of("2024-03-05", 40L), series.toDayKeyedScores());
+    }
+
+    @Test
+    public void storedTotalsReplaceLocalCounts() {
+        DailyScoreSeries series = new DailyScoreSeries("user");
+        Map<String, Object> result = attempt("2024-03-04T09:00:00", 1.0, 0, false, "00:30");
+        WeeklyUsageRollup written = single(rollups -> WeeklyUsageRollup.addAttempt(rollups, "user", "c", "a", result));
+        // The write was added twice, e.g. once locally and once through a refresh.
+        series.addRollup(written);
+        series.addRollup(written);
+
+        series.mergeRollup(written);
+
+        assertEquals(1, series.getAttempts(MONDAY));
+        assertEquals(40L, series.getPoints(MONDAY));
+        assertEquals(30, series.getSeconds(MONDAY));
+    }
+
+    private static WeeklyUsageRollup single(Consumer<Map<String, WeeklyUsageRollup>> writes) {
+        Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+        writes.accept(rollups);
+        assertEquals(1, rollups.size());
+        return rollups.values().iterator().next();
+    }
+}
@@ -0,0 +1,63 @@
+package com.choicecrafter.students.analytics;
+
+import static com.choicecrafter.students.analytics.WeeklyUsageRollupTest.attempt;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class UsageRollupBackfillTest {
+
+    @Test
+    public void backfillMatchesTheSumOfLiveChanges() {
+        Random random = new Random(17);
+        DailyScoreSeries live = new DailyScoreSeries("user");
+        Map<String, Map<String, Object>> stored = new HashMap<>();
+        LocalDate firstDay = LocalDate.parse("2024-03-01");
+
+        for (int write = 0; write < 500; write++) {
+            String task = "task-" + random.nextInt(40);
+            Map<String, Object> next = attempt(
+                    firstDay.plusDays(write / 10).atTime(random.nextInt(24), random.nextInt(60)).toString(),
+                    random.nextInt(5) / 4.0, random.nextInt(3), random.nextBoolean(), "00:" + (10 + random.nextInt(40)));
+            // The write queue replaces the stored result and moves the rollups along with it.
+            Map<String, WeeklyUsageRollup> changes = new LinkedHashMap<>();
+            Map<String, Object> previous = stored.put(task, next);
+            if (previous != null) {
+                WeeklyUsageRollup.removeAttempt(changes, "user", "course", "activity", previous);
+            }
+            WeeklyUsageRollup.addAttempt(changes, "user", "course", "activity", next);
+            for (WeeklyUsageRollup change : changes.values()) {
+                live.addRollup(change);
+            }
+        }
+
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("activityId", "activity");
+        snapshot.put("taskStats", new HashMap<>(stored));
+        List<Map<String, Object>> snapshots = new ArrayList<>();
+        snapshots.add(snapshot);
+        Map<String, WeeklyUsageRollup> backfilled = new LinkedHashMap<>();
+        UsageRollupBackfill.addSnapshots(backfilled, "user", "course", snapshots);
+        DailyScoreSeries rebuilt = new DailyScoreSeries("user");
+        for (WeeklyUsageRollup rollup : backfilled.values()) {
+            rebuilt.mergeRollup(rollup);
+        }
+
+        long from = firstDay.toEpochDay() - 7;
+        long to = firstDay.toEpochDay() + 60;
+        for (long day = from; day < to; day++) {
+            assertEquals("attempts on " + LocalDate.ofEpochDay(day), rebuilt.getAttempts(day), live.getAttempts(day));
+            assertEquals("points on " + LocalDate.ofEpochDay(day), rebuilt.getPoints(day), live.getPoints(day));
+            assertEquals("seconds on " + LocalDate.ofEpochDay(day), rebuilt.getSeconds(day), live.getSeconds(day));
+        }
+        assertEquals(rebuilt.toDayKeyedScores(), live.toDayKeyedScores());
+    }
+}
@@ -0,0 +1,147 @@
+package com.choicecrafter.students.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.ActivityUsage;
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.UserWeeklyUsage;
+import com.choicecrafter.students.analytics.WeeklyUsageExportWorker.WeeklyUsageSummary;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class WeeklyUsageBinaryFormatTest {
+
+    private static final LocalDate WEEK_START = LocalDate.of(2024, 3, 4);
+    private static final Instant GENERATED_AT = Instant.parse("2024-03-25T02:00:00Z");
+    private static final Clock CLOCK = Clock.fixed(GENERATED_AT, ZoneOffset.UTC);
+
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readingWhatWasWrittenGivesTheSameJson() throws Exception {
+        WeeklyUsageSummary summary = WeeklyUsageExportWorker.buildSummary(WEEK_START, WEEK_START.plusDays(6),
+                users(2_000, new Random(7)), GENERATED_AT);
+
+        byte[] encoded = write(summary);
+        String json = gson.toJson(summary);
+
+        assertEquals(json, gson.toJson(WeeklyUsageBinaryFormat.read(new ByteArrayInputStream(encoded))));
+        int jsonSize = json.getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf("weekly usage, 2,000 users: %,d B binary, %,d B pretty-printed JSON (%.1f%%)%n",
+                encoded.length, jsonSize, 100.0 * encoded.length / jsonSize);
+        assertTrue(encoded.length * 10 < jsonSize);
+    }
+
+    @Test
+    public void readingTheUploadedCopyGivesTheUploadedJson() throws Exception {
+        List<byte[]> json = new ArrayList<>();
+        List<byte[]> binary = new ArrayList<>();
+        WeeklyUsageExportWorkerTest.PagedRollupSource source =
+                new WeeklyUsageExportWorkerTest.PagedRollupSource(new int[]{5_000, 0});
+        new WeeklyUsageExportWorker.Exporter(source, folder.newFolder(), (file, weekStart, weekEnd, userCount, extension) -> {
+            try {
+                (extension.endsWith(".json") ? json : binary).add(Files.readAllBytes(file.toPath()));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }, gson, ForkJoinPool.commonPool(), CLOCK).exportWeeks(WEEK_START, WEEK_START.plusWeeks(1), WEEK_START,
+                Collections.emptyMap(), week -> {
+                });
+
+        assertEquals(2, json.size());
+        assertEquals(2, binary.size());
+        for (int week = 0; week < json.size(); week++) {
+            JsonElement uploaded = JsonParser.parseString(new String(json.get(week), StandardCharsets.UTF_8));
+            WeeklyUsageSummary read = WeeklyUsageBinaryFormat.read(new ByteArrayInputStream(binary.get(week)));
+            assertEquals(uploaded, JsonParser.parseString(gson.toJson(read)));
+            System.out.printf("weekly usage export, week %d: %,d B binary, %,d B pretty-printed JSON%n",
+                    week, binary.get(week).length, json.get(week).length);
+        }
+    }
+
+    private static byte[] write(WeeklyUsageSummary summary) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WeeklyUsageBinaryFormat.Writer writer = new WeeklyUsageBinaryFormat.Writer(bytes, summary.getVersion(),
+                GENERATED_AT, WEEK_START, WEEK_START.plusDays(6))) {
+            for (UserWeeklyUsage user : summary.getUsers()) {
+                writer.write(user);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Users with random activity in the week, including missing phases and groups. Active
+     * days are listed in order, as the export produces them.
+     */
+    private static List<UserWeeklyUsage> users(int count, Random random) {
+        List<UserWeeklyUsage> users = new ArrayList<>(count);
+        for (int user = 0; user < count; user++) {
+            List<ActivityUsage> areas = new ArrayList<>();
+            int activities = 1 + random.nextInt(4);
+            int tasks = 0;
+            int successes = 0;
+            int hints = 0;
+            int newActivities = 0;
+            long seconds = 0;
+            long retries = 0;
+            for (int activity = 0; activity < activities; activity++) {
+                int attempted = 1 + random.nextInt(6);
+                int successful = random.nextInt(attempted + 1);
+                int activityHints = random.nextInt(3);
+                long activitySeconds = 30L * (1 + random.nextInt(40));
+                long activityRetries = random.nextInt(5);
+                boolean newContent = random.nextBoolean();
+                areas.add(new ActivityUsage("course-" + random.nextInt(5), "activity-" + activity, attempted,
+                        successful, (double) successful / attempted, (double) activityRetries / attempted,
+                        activitySeconds, activityHints, newContent, days(random)));
+                tasks += attempted;
+                successes += successful;
+                hints += activityHints;
+                seconds += activitySeconds;
+                retries += activityRetries;
+                newActivities += newContent ? 1 : 0;
+            }
+            boolean grouped = user % 5 != 0;
+            users.add(new UserWeeklyUsage(String.format("user-%06d", user), grouped ? "phase-" + user % 2 : null,
+                    grouped ? "group-" + user % 3 : null, user % 4 == 0, grouped ? null : Boolean.TRUE, days(random),
+                    1 + random.nextInt(3), areas, tasks, successes, (double) successes / tasks,
+                    (double) retries / tasks, seconds, hints, newActivities, retries, tasks));
+        }
+        return users;
+    }
+
+    private static List<String> days(Random random) {
+        List<String> days = new ArrayList<>();
+        for (int day = 0; day < 7; day++) {
+            if (random.nextInt(3) == 0 || (day == 6 && days.isEmpty())) {
+                days.add(WEEK_START.plusDays(day).toString());
+            }
+        }
+        return days;
+    }
+}
@@ -0,0 +1,273 @@
+package com.choicecrafter.students.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+public class WeeklyUsageExportWorkerTest {
+
+    private static final LocalDate FIRST_WEEK = LocalDate.of(2024, 3, 4);
+    private static final int PAGE_SIZE = 500;
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2024-03-25T02:00:00Z"), ZoneOffset.UTC);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamsOneHundredThousandEnrollmentsPageByPage() throws Exception {
+        // 100,000 users in the first week, none in the second and 1,000 in the third.
+        PagedRollupSource source = new PagedRollupSource(new int[]{100_000, 0, 1_000});
+        List<WeekUpload> uploads = new ArrayList<>();
+        List<LocalDate> exportedWeeks = new ArrayList<>();
+
+        exporter(source, (file, weekStart, weekEnd, userCount, extension) -> {
+            if (extension.endsWith(".json")) {
+                uploads.add(WeekUpload.read(file, weekStart, userCount, source.pagesRead));
+            }
+        }, ForkJoinPool.commonPool()).exportWeeks(FIRST_WEEK, FIRST_WEEK.plusWeeks(2), FIRST_WEEK,
+                Collections.emptyMap(), exportedWeeks::add);
+
+        assertEquals(List.of(FIRST_WEEK, FIRST_WEEK.plusWeeks(1), FIRST_WEEK.plusWeeks(2)), exportedWeeks);
+        assertEquals(3, uploads.size());
+        for (int week = 0; week < 3; week++) {
+            WeekUpload upload = uploads.get(week);
+            assertEquals(FIRST_WEEK.plusWeeks(week), upload.weekStart);
+            assertEquals(source.users[week], upload.userCount);
+            assertEquals(source.users[week], upload.users);
+            assertEquals(source.users[week], upload.activeUsers);
+            assertEquals(source.expectedTasks[week], upload.tasksAttempted);
+            assertEquals(source.expectedNewActivities[week], upload.newActivities);
+        }
+        // The first week went out as soon as the rollups moved on, not after the last page.
+        assertTrue(uploads.get(0).pagesRead < source.pagesRead);
+        assertEquals((100_000 + 1_000 + PAGE_SIZE - 1) / PAGE_SIZE + 1, source.pagesRead);
+    }
+
+    @Test
+    public void outputDoesNotDependOnTheNumberOfWorkers() throws Exception {
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool many = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<String> sequential = exportDigests(single, new int[]{20_000, 3_000});
+            List<String> parallel = exportDigests(many, new int[]{20_000, 3_000});
+
+            assertEquals(4, sequential.size());
+            assertEquals(sequential, parallel);
+        } finally {
+            single.shutdown();
+            many.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmarkExportOnOneAndAllCores() throws Exception {
+        MicroBenchmark.assumeEnabled();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism : new TreeSet<>(List.of(1, 2, cores))) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            MicroBenchmark.measure("export 100k users, " + parallelism + " workers", 1, 3, () -> {
+                try {
+                    return exportDigests(pool, new int[]{100_000});
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmarkExportOfOneHundredThousandUsers() throws Exception {
+        MicroBenchmark.assumeEnabled();
+        MicroBenchmark.measure("export 100k users, 1 week", 1, 3, () -> {
+            try {
+                exporter(new PagedRollupSource(new int[]{100_000}), (file, weekStart, weekEnd, userCount, extension) -> {
+                }, ForkJoinPool.commonPool()).exportWeeks(FIRST_WEEK, FIRST_WEEK, FIRST_WEEK,
+                        Collections.emptyMap(), week -> {
+                        });
+                return null;
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    /**
+     * Exports the given users per week and returns the SHA-256 of every uploaded file, in
+     * upload order.
+     */
+    private List<String> exportDigests(ForkJoinPool pool, int[] users) throws Exception {
+        List<String> digests = new ArrayList<>();
+        exporter(new PagedRollupSource(users), (file, weekStart, weekEnd, userCount, extension) -> {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()));
+                digests.add(extension + " " + new BigInteger(1, hash).toString(16));
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }, pool).exportWeeks(FIRST_WEEK, FIRST_WEEK.plusWeeks(users.length - 1), FIRST_WEEK,
+                Collections.emptyMap(), week -> {
+                });
+        return digests;
+    }
+
+    private WeeklyUsageExportWorker.Exporter exporter(WeeklyUsageExportWorker.RollupSource source,
+                                                      WeeklyUsageExportWorker.Uploader uploader,
+                                                      ForkJoinPool pool) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        return new WeeklyUsageExportWorker.Exporter(source, folder.newFolder(), uploader, gson, pool, CLOCK);
+    }
+
+    /**
+     * Hands out the rollups of {@code users[week]} users per week, ordered by week and user
+     * id, {@link #PAGE_SIZE} at a time. Rollups are generated when their page is read, so the
+     * source itself holds one page at most. Users with an even number have attempted their
+     * activities in an earlier week.
+     */
+    static final class PagedRollupSource implements WeeklyUsageExportWorker.RollupSource {
+        final int[] users;
+        final long[] expectedTasks;
+        final long[] expectedNewActivities;
+        int pagesRead;
+        private int week;
+        private int user;
+
+        PagedRollupSource(int[] users) {
+            this.users = users;
+            this.expectedTasks = new long[users.length];
+            this.expectedNewActivities = new long[users.length];
+        }
+
+        @Override
+        public WeeklyUsageExportWorker.RollupPage nextPage() {
+            if (week == users.length) {
+                return null;
+            }
+            pagesRead++;
+            List<WeeklyUsageRollup> rollups = new ArrayList<>(PAGE_SIZE);
+            Map<String, Map<?, ?>> activityWeeks = new HashMap<>();
+            while (rollups.size() < PAGE_SIZE && week < users.length) {
+                if (user == users[week]) {
+                    week++;
+                    user = 0;
+                    continue;
+                }
+                generate(week, user++, rollups, activityWeeks);
+            }
+            if (rollups.size() < PAGE_SIZE) {
+                week = users.length;
+            }
+            return new WeeklyUsageExportWorker.RollupPage(rollups, activityWeeks);
+        }
+
+        private void generate(int week, int user, List<WeeklyUsageRollup> rollups, Map<String, Map<?, ?>> activityWeeks) {
+            String userId = String.format("user-%06d", user);
+            LocalDate weekStart = FIRST_WEEK.plusWeeks(week);
+            Random random = new Random(31L * user + week);
+            Map<String, WeeklyUsageRollup> byId = new LinkedHashMap<>();
+            Map<String, Object> weeks = new HashMap<>();
+            int activities = 1 + random.nextInt(3);
+            for (int activity = 0; activity < activities; activity++) {
+                int attempts = 1 + random.nextInt(4);
+                for (int attempt = 0; attempt < attempts; attempt++) {
+                    WeeklyUsageRollup.addAttempt(byId, userId, "course-" + (user % 7), "activity-" + activity,
+                            WeeklyUsageRollupTest.attempt(weekStart.plusDays(random.nextInt(7)) + "T10:00:00",
+                                    random.nextInt(5) / 4.0, random.nextInt(3), random.nextBoolean(), "00:45"));
+                }
+                expectedTasks[week] += attempts;
+                weeks.put(WeeklyUsageRollup.activityKey("course-" + (user % 7), "activity-" + activity),
+                        Map.of(WeeklyUsageRollup.formatWeekStart(FIRST_WEEK.minusWeeks(1)), true));
+            }
+            if (user % 2 == 0) {
+                activityWeeks.put(userId, weeks);
+            } else {
+                expectedNewActivities[week] += activities;
+            }
+            rollups.addAll(byId.values());
+        }
+    }
+
+    /**
+     * What an uploaded JSON summary contains, read back token by token.
+     */
+    static final class WeekUpload {
+        LocalDate weekStart;
+        int userCount;
+        int pagesRead;
+        int activeUsers;
+        int users;
+        long tasksAttempted;
+        long newActivities;
+
+        static WeekUpload read(File file, LocalDate weekStart, int userCount, int pagesRead) {
+            WeekUpload upload = new WeekUpload();
+            upload.weekStart = weekStart;
+            upload.userCount = userCount;
+            upload.pagesRead = pagesRead;
+            try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("activeUsers")) {
+                        upload.activeUsers = reader.nextInt();
+                    } else if (name.equals("users")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            upload.users++;
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                String field = reader.nextName();
+                                if (field.equals("tasksAttempted")) {
+                                    upload.tasksAttempted += reader.nextLong();
+                                } else if (field.equals("newActivitiesExplored")) {
+                                    upload.newActivities += reader.nextLong();
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return upload;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.choicecrafter.students.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class WeeklyUsageRollupTest {
+
+    @Test
+    public void removingAResultUndoesAddingIt() {
+        Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+        Map<String, Object> result = attempt("2024-03-06T10:15:00", 0.75, 2, true, "01:30");
+
+        WeeklyUsageRollup.addAttempt(rollups, "user", "course", "activity", result);
+        WeeklyUsageRollup.removeAttempt(rollups, "user", "course", "activity", result);
+
+        assertEquals(1, rollups.size());
+        assertTrue(rollups.values().iterator().next().isEmpty());
+    }
+
+    @Test
+    public void replacingAResultMovesItsCounters() {
+        Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+        Map<String, Object> previous = attempt("2024-03-04T09:00:00", 0.25, 1, false, "00:40");
+        Map<String, Object> next = attempt("2024-03-06T09:00:00", 1.0, null, true, "00:20");
+
+        WeeklyUsageRollup.removeAttempt(rollups, "user", "course", "activity", previous);
+        WeeklyUsageRollup.addAttempt(rollups, "user", "course", "activity", next);
+
+        WeeklyUsageRollup rollup = rollups.values().iterator().next();
+        assertFalse(rollup.isEmpty());
+        // 2024-03-04 is a Monday.
+        assertEquals(-1, rollup.getDailyAttempts(0));
+        assertEquals(1, rollup.getDailyAttempts(2));
+        assertEquals(-40L, rollup.getDailySeconds(0));
+        assertEquals(20L, rollup.getDailySeconds(2));
+        WeeklyUsageRollup.ActivityRollup activity = rollup.getActivities().values().iterator().next();
+        assertEquals(0, activity.getAttempts());
+        assertEquals(1, activity.getSuccesses());
+        assertEquals(0.75, activity.getScoreSum(), 1e-9);
+        assertEquals(-1L, activity.getRetries());
+        assertEquals(-1, activity.getRetrySamples());
+        assertEquals(1, activity.getHintsUsed());
+        assertEquals(-20L, activity.getTimeSpentSeconds());
+    }
+
+    @Test
+    public void resultsWithoutAnAttemptTimeAreSkipped() {
+        Map<String, WeeklyUsageRollup> rollups = new LinkedHashMap<>();
+
+        WeeklyUsageRollup.addAttempt(rollups, "user", "course", "activity",
+                attempt(null, 1.0, 0, false, "00:10"));
+
+        assertTrue(rollups.isEmpty());
+    }
+
+    static Map<String, Object> attempt(String attemptDateTime,
+                                       double scoreRatio,
+                                       Integer retries,
+                                       boolean hintsUsed,
+                                       String timeSpent) {
+        Map<String, Object> attempt = new HashMap<>();
+        if (attemptDateTime != null) {
+            attempt.put("attemptDateTime", attemptDateTime);
+        }
+        attempt.put("scoreRatio", scoreRatio);
+        if (retries != null) {
+            attempt.put("retries", retries);
+        }
+        attempt.put("hintsUsed", hintsUsed);
+        attempt.put("timeSpent", timeSpent);
+        return attempt;
+    }
+}
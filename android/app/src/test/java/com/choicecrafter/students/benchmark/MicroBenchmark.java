@@ -0,0 +1,87 @@
+package com.choicecrafter.students.benchmark;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+/**
+ * Minimal timing harness for the JVM benchmarks under {@code src/test}. The app has no JMH
+ * set-up, so benchmarks are JUnit tests that warm a body up, time a fixed number of calls
+ * and print nanoseconds and, where the JVM reports it, allocated bytes per call.
+ * <p>
+ * Benchmarks are skipped unless the tests run with {@code -Pbenchmarks=true}.
+ */
+public final class MicroBenchmark {
+
+    private static volatile int sink;
+
+    private MicroBenchmark() {
+    }
+
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Pbenchmarks=true", Boolean.getBoolean("benchmarks"));
+    }
+
+    /**
+     * Runs {@code body} {@code warmup} times, then times {@code iterations} calls.
+     */
+    public static Result measure(String name, int warmup, int iterations, Supplier<?> body) {
+        for (int i = 0; i < warmup; i++) {
+            consume(body.get());
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            consume(body.get());
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        Result result = new Result(name, (double) elapsed / iterations,
+                allocatedBefore < 0 ? -1 : (double) allocated / iterations);
+        System.out.println(result);
+        return result;
+    }
+
+    private static void consume(Object value) {
+        sink += value == null ? 0 : System.identityHashCode(value);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean hotspot && hotspot.isThreadAllocatedMemorySupported()) {
+            return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+
+    public static final class Result {
+        private final String name;
+        private final double nanosPerOp;
+        private final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public double getNanosPerOp() {
+            return nanosPerOp;
+        }
+
+        /**
+         * Bytes allocated per call on the calling thread, or {@code -1} when unknown.
+         */
+        public double getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-40s %,14.0f ns/op %,14.0f B/op", name, nanosPerOp, bytesPerOp);
+        }
+    }
+}
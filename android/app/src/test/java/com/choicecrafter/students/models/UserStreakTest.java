@@ -0,0 +1,83 @@
+package com.choicecrafter.students.models;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+public class UserStreakTest {
+
+    private final TimeZone defaultZone = TimeZone.getDefault();
+
+    @After
+    public void restoreZone() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void countsDaysInTheDeviceZone() {
+        // Fourteen hours ahead of UTC and eleven behind: at most moments the two zones are on
+        // different dates.
+        ZoneId ahead = ZoneId.of("Pacific/Kiritimati");
+        ZoneId behind = ZoneId.of("Pacific/Pago_Pago");
+        LocalDate aheadToday = LocalDate.now(ahead);
+        LocalDate behindToday = LocalDate.now(behind);
+
+        TimeZone.setDefault(TimeZone.getTimeZone(ahead));
+        User user = user(aheadToday.minusDays(1), aheadToday);
+        assertEquals(2, user.computeStreak());
+
+        TimeZone.setDefault(TimeZone.getTimeZone(behind));
+        int expected = aheadToday.equals(behindToday) ? 2 : aheadToday.minusDays(1).equals(behindToday) ? 1 : 0;
+        assertEquals(expected, user.computeStreak());
+    }
+
+    @Test
+    public void reloadedScoresExtendTheStreak() {
+        LocalDate today = LocalDate.now();
+        User user = user(today.minusDays(4));
+        assertEquals(0, user.computeStreak());
+
+        Map<String, Long> scores = new HashMap<>(user.getScores());
+        scores.put(today.minusDays(1).toString(), 3L);
+        scores.put(today.minusDays(2).toString(), 3L);
+        user.setScores(scores);
+        assertEquals(3, user.computeStreak());
+
+        scores.put(today.minusDays(3).toString(), 3L);
+        scores.put(today.toString(), 3L);
+        user.setScores(scores);
+        assertEquals(5, user.computeStreak());
+        assertEquals(5, user.getLongestStreak());
+
+        scores.remove(today.minusDays(2).toString());
+        user.setScores(scores);
+        assertEquals(2, user.computeStreak());
+        assertEquals(2, user.getLongestStreak());
+    }
+
+    @Test
+    public void dailyScoresOutOfOrderRebuildTheStreak() {
+        LocalDate today = LocalDate.now();
+        User user = user(today);
+        user.updateDailyScore(today.minusDays(2).toString());
+        assertEquals(1, user.computeStreak());
+        user.updateDailyScore(today.minusDays(1).toString());
+        assertEquals(3, user.computeStreak());
+        assertEquals(3, user.getStreak());
+    }
+
+    private static User user(LocalDate... days) {
+        Map<String, Long> scores = new HashMap<>();
+        for (LocalDate day : days) {
+            scores.put(day.toString(), 1L);
+        }
+        return new User("name", "user@example.com", null, scores);
+    }
+}
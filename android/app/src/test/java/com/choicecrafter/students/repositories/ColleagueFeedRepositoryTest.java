@@ -0,0 +1,46 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ColleagueFeedRepositoryTest {
+
+    @Test
+    public void chunksCoursesByTheInFilterLimit() {
+        List<String> courses = new ArrayList<>();
+        for (int i = 0; i < 65; i++) {
+            courses.add("course-" + i);
+        }
+
+        List<List<String>> chunks = ColleagueFeedRepository.chunk(courses);
+
+        assertEquals(3, chunks.size());
+        assertEquals(ColleagueFeedRepository.MAX_COURSES, chunks.get(0).size());
+        assertEquals(ColleagueFeedRepository.MAX_COURSES, chunks.get(1).size());
+        assertEquals(List.of("course-60", "course-61", "course-62", "course-63", "course-64"), chunks.get(2));
+    }
+
+    @Test
+    public void mergesTheNewestItemsOfAllChunks() {
+        List<List<Long>> chunks = List.of(
+                List.of(90L, 50L, 10L),
+                List.of(80L, 70L, 60L),
+                List.of(95L));
+
+        int[] order = ColleagueFeedRepository.mergeNewest(chunks, Long::longValue, 4);
+
+        assertArrayEquals(new int[]{2, 0, 1, 1}, order);
+    }
+
+    @Test
+    public void keepsChunkOrderOnEqualTimestamps() {
+        List<List<Long>> chunks = List.of(List.of(5L, 5L), List.of(5L));
+
+        assertArrayEquals(new int[]{0, 0, 1}, ColleagueFeedRepository.mergeNewest(chunks, Long::longValue, 10));
+    }
+}
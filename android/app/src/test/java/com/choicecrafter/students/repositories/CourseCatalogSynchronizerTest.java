@@ -0,0 +1,228 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import androidx.annotation.NonNull;
+
+import com.choicecrafter.students.models.Course;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CourseCatalogSynchronizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeCourseDocumentSource source;
+    private CountingStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new FakeCourseDocumentSource();
+        store = new CountingStore();
+        store.attach(folder.newFolder("catalog"));
+        CourseDocumentParser.getInstance().clear();
+    }
+
+    @Test
+    public void coldStartRendersTheLastSynchronizedCatalogue() throws Exception {
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        new CourseCatalogSynchronizer(source, store, CourseDocumentParser.getInstance()).synchronize();
+
+        CourseDocumentParser.getInstance().clear();
+        List<Course> courses = new CourseCatalogSynchronizer(new FakeCourseDocumentSource(), store,
+                CourseDocumentParser.getInstance()).loadSnapshot();
+
+        assertEquals(List.of("Algebra", "Biology"), titles(courses));
+    }
+
+    @Test
+    public void updatesCoursesWhoseHashCodesCollide() throws Exception {
+        // "Aa" and "BB" have the same String hash code, and so do the two documents.
+        Map<String, Object> before = course("Aa");
+        Map<String, Object> after = course("BB");
+        assertEquals(before.hashCode(), after.hashCode());
+        assertNotEquals(CourseCatalogStore.digest(before), CourseCatalogStore.digest(after));
+
+        CourseCatalogSynchronizer synchronizer = synchronizer();
+        source.put("c1", before);
+        synchronizer.synchronize();
+        source.put("c1", after);
+
+        assertEquals(List.of("BB"), titles(synchronizer.synchronize()));
+        assertEquals(List.of("BB"), titles(synchronizer().loadSnapshot()));
+    }
+
+    @Test
+    public void decodesOnlyTheDocumentsThatChanged() throws Exception {
+        CourseCatalogSynchronizer synchronizer = synchronizer();
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        source.put("c3", course("Chemistry"));
+        List<Course> first = synchronizer.synchronize();
+
+        source.put("c2", course("Botany"));
+        List<Course> second = synchronizer.synchronize();
+
+        assertEquals(1, source.lastChanges.getDocuments().size());
+        assertEquals(List.of("Algebra", "Botany", "Chemistry"), titles(second));
+        assertSame(first.get(0), second.get(0));
+        assertNotSame(first.get(1), second.get(1));
+        assertSame(first.get(2), second.get(2));
+        assertEquals(2, store.saves);
+    }
+
+    @Test
+    public void reusesUnchangedCoursesOfAFullListing() throws Exception {
+        CourseCatalogSynchronizer synchronizer = synchronizer();
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        List<Course> first = synchronizer.synchronize();
+
+        // The same content in new map instances, as a reattached listener would list it.
+        source.relist();
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        List<Course> second = synchronizer.synchronize();
+
+        assertSame(first.get(0), second.get(0));
+        assertSame(first.get(1), second.get(1));
+        assertEquals(1, store.saves);
+    }
+
+    @Test
+    public void comparesTheFirstSyncWithTheStoredSnapshot() throws Exception {
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        synchronizer().synchronize();
+
+        FakeCourseDocumentSource restarted = new FakeCourseDocumentSource();
+        restarted.put("c1", course("Algebra"));
+        restarted.put("c2", course("Biology"));
+        new CourseCatalogSynchronizer(restarted, store, CourseDocumentParser.getInstance()).synchronize();
+
+        assertEquals(1, store.saves);
+    }
+
+    @Test
+    public void dropsRemovedDocuments() throws Exception {
+        CourseCatalogSynchronizer synchronizer = synchronizer();
+        source.put("c1", course("Algebra"));
+        source.put("c2", course("Biology"));
+        source.put("c3", course("Chemistry"));
+        synchronizer.synchronize();
+
+        source.remove("c2");
+        assertEquals(List.of("Algebra", "Chemistry"), titles(synchronizer.synchronize()));
+
+        source.relist();
+        source.put("c3", course("Chemistry"));
+        assertEquals(List.of("Chemistry"), titles(synchronizer.synchronize()));
+        assertEquals(List.of("Chemistry"), titles(synchronizer().loadSnapshot()));
+    }
+
+    @Test
+    public void invalidatedCoursesAreDecodedAgain() throws Exception {
+        CourseCatalogSynchronizer synchronizer = synchronizer();
+        source.put("c1", course("Algebra"));
+        List<Course> first = synchronizer.synchronize();
+
+        synchronizer.invalidate("c1");
+        List<Course> second = synchronizer.synchronize();
+
+        assertNotSame(first.get(0), second.get(0));
+        assertEquals(2, store.saves);
+    }
+
+    private CourseCatalogSynchronizer synchronizer() {
+        return new CourseCatalogSynchronizer(source, store, CourseDocumentParser.getInstance());
+    }
+
+    private static Map<String, Object> course(String title) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("title", title);
+        return data;
+    }
+
+    private static List<String> titles(List<Course> courses) {
+        List<String> titles = new ArrayList<>();
+        for (Course course : courses) {
+            titles.add(course.getTitle());
+        }
+        return titles;
+    }
+
+    private static final class CountingStore extends CourseCatalogStore {
+        int saves;
+
+        CountingStore() {
+            super(null);
+        }
+
+        @Override
+        public void save(@NonNull List<Entry> entries) {
+            saves++;
+            super.save(entries);
+        }
+    }
+
+    /**
+     * Collection held in memory that reports changes the way the Firestore listener does:
+     * a full listing first, then only what changed since the previous call.
+     */
+    private static final class FakeCourseDocumentSource implements CourseDocumentSource {
+        private final Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
+        private final Map<String, Map<String, Object>> changed = new LinkedHashMap<>();
+        private final List<String> removed = new ArrayList<>();
+        private boolean fullListing = true;
+        Changes lastChanges;
+
+        void put(String id, Map<String, Object> data) {
+            documents.put(id, data);
+            changed.put(id, data);
+            removed.remove(id);
+        }
+
+        void remove(String id) {
+            documents.remove(id);
+            changed.remove(id);
+            removed.add(id);
+        }
+
+        /** Starts over with an empty collection listed in full on the next fetch. */
+        void relist() {
+            documents.clear();
+            changed.clear();
+            removed.clear();
+            fullListing = true;
+        }
+
+        @NonNull
+        @Override
+        public Changes fetchChanges() {
+            Map<String, Map<String, Object>> reported = fullListing ? documents : changed;
+            List<RawCourseDocument> raw = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Object>> entry : reported.entrySet()) {
+                raw.add(new RawCourseDocument(entry.getKey(), entry.getValue()));
+            }
+            lastChanges = new Changes(fullListing, raw, fullListing ? List.of() : new ArrayList<>(removed));
+            fullListing = false;
+            changed.clear();
+            removed.clear();
+            return lastChanges;
+        }
+    }
+}
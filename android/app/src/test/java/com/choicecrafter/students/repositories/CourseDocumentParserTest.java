@@ -0,0 +1,76 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.choicecrafter.students.models.Activity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CourseDocumentParserTest {
+
+    private final CourseDocumentParser parser = CourseDocumentParser.getInstance();
+
+    @Test
+    public void showsNewCommentsAndReactionsWhileUpdatedAtIsUnchanged() {
+        String courseId = "parser-comments";
+        parser.evict(courseId);
+        CourseDocumentParser.ParsedCourse first = parser.parseDocument(courseId,
+                course(activity("a1", List.of(), 0L), activity("a2", List.of(), 0L)));
+
+        Map<String, Object> comment = new HashMap<>();
+        comment.put("userId", "ana@example.com");
+        comment.put("text", "Nice one");
+        comment.put("timestamp", "2024-05-01T10:00:00.000");
+        CourseDocumentParser.ParsedCourse second = parser.parseDocument(courseId,
+                course(activity("a1", List.of(comment), 3L), activity("a2", List.of(), 0L)));
+
+        Activity changed = second.getActivities().get(0).getActivity();
+        assertEquals(1, changed.getComments().size());
+        assertEquals("Nice one", changed.getComments().get(0).getText());
+        assertEquals(3L, changed.getReactionCount("likes"));
+        assertNotSame(first.getActivities().get(0), second.getActivities().get(0));
+        assertSame(first.getActivities().get(1), second.getActivities().get(1));
+    }
+
+    @Test
+    public void reusesEveryActivityOfAnUnchangedDocument() {
+        String courseId = "parser-unchanged";
+        parser.evict(courseId);
+        CourseDocumentParser.ParsedCourse first = parser.parseDocument(courseId,
+                course(activity("a1", List.of(), 1L), activity("a2", List.of(), 2L)));
+        CourseDocumentParser.ParsedCourse second = parser.parseDocument(courseId,
+                course(activity("a1", List.of(), 1L), activity("a2", List.of(), 2L)));
+
+        assertSame(first.getActivities().get(0), second.getActivities().get(0));
+        assertSame(first.getActivities().get(1), second.getActivities().get(1));
+    }
+
+    @SafeVarargs
+    private static Map<String, Object> course(Map<String, Object>... activities) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("title", "Course");
+        data.put("updatedAt", "2024-05-01T09:00:00.000");
+        data.put("activities", new ArrayList<>(List.of(activities)));
+        return data;
+    }
+
+    private static Map<String, Object> activity(String id, List<Map<String, Object>> comments, long likes) {
+        Map<String, Object> activity = new HashMap<>();
+        activity.put("id", id);
+        activity.put("title", "Activity " + id);
+        activity.put("status", "STARTED");
+        activity.put("comments", new ArrayList<>(comments));
+        Map<String, Object> reactions = new HashMap<>();
+        reactions.put("likes", likes);
+        activity.put("reactions", reactions);
+        activity.put("tasks", new ArrayList<>());
+        return activity;
+    }
+}
@@ -0,0 +1,487 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+import com.choicecrafter.students.models.Activity;
+import com.choicecrafter.students.models.Course;
+import com.choicecrafter.students.models.CourseProgress;
+import com.choicecrafter.students.models.Module;
+import com.choicecrafter.students.models.ModuleProgress;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.models.tasks.FillInTheBlank;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.OrderingTask;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.utils.ActivityScoreCalculator;
+import com.choicecrafter.students.utils.TaskStatsKeyUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+@RunWith(RobolectricTestRunner.class)
+public class CourseEnrollmentRepositoryTest {
+
+    private static final int MODULES = 50;
+    private static final int ACTIVITIES_PER_MODULE = 20;
+
+    @Test
+    public void matchesTheLookupMapBuildForAModuleCourse() {
+        Course course = syntheticCourse(MODULES, ACTIVITIES_PER_MODULE);
+        for (long seed = 1; seed <= 20; seed++) {
+            Map<String, Object> progressSummary = syntheticProgress(course, new Random(seed));
+            assertSameProgress(course, progressSummary);
+        }
+    }
+
+    @Test
+    public void matchesTheLookupMapBuildForTopLevelActivities() {
+        Course moduleCourse = syntheticCourse(1, 30);
+        Course course = new Course();
+        course.setId("flat");
+        course.setActivities(new ArrayList<>(moduleCourse.getModules().get(0).getActivities()));
+        for (long seed = 1; seed <= 5; seed++) {
+            assertSameProgress(course, syntheticProgress(course, new Random(seed)));
+        }
+    }
+
+    @Test
+    public void keepsStoredModuleProgressForUnknownModules() {
+        Course course = syntheticCourse(2, 2);
+        Map<String, Object> summary = new HashMap<>();
+        Map<String, Object> stored = new HashMap<>();
+        stored.put("module-0", Map.of("completedTasks", 9L, "totalTasks", 9L));
+        stored.put("retired-module", Map.of("completedTasks", 3L, "totalTasks", 4L));
+        summary.put("moduleProgress", stored);
+        summary.put("activitySnapshots", new ArrayList<>());
+
+        CourseProgress progress = build(course, summary);
+
+        assertEquals(0, progress.getModuleProgress().get("module-0").getCompletedTasks());
+        assertEquals(3, progress.getModuleProgress().get("retired-module").getCompletedTasks());
+        assertEquals(4, progress.getModuleProgress().get("retired-module").getTotalTasks());
+        assertSameProgress(course, summary);
+    }
+
+    @Test
+    public void benchmarkFiftyModulesOfTwentyActivities() {
+        MicroBenchmark.assumeEnabled();
+        Course course = syntheticCourse(MODULES, ACTIVITIES_PER_MODULE);
+        Map<String, Object> summary = syntheticProgress(course, new Random(7));
+        CourseProgressIndex index = CourseProgressIndex.build(course);
+        List<Map<String, Object>> snapshots = snapshotsOf(summary);
+        MicroBenchmark.measure("lookup maps per call", 50, 200,
+                () -> BaselineProgress.build(course, "user", summary));
+        MicroBenchmark.measure("cached index, single pass", 50, 200,
+                () -> CourseEnrollmentRepository.buildProgress(index, "user", snapshots, summary));
+    }
+
+    private static void assertSameProgress(Course course, Map<String, Object> progressSummary) {
+        CourseProgress expected = BaselineProgress.build(course, "user", progressSummary);
+        CourseProgress actual = build(course, progressSummary);
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    private static CourseProgress build(Course course, Map<String, Object> progressSummary) {
+        return CourseEnrollmentRepository.buildProgress(CourseProgressIndex.build(course), "user",
+                snapshotsOf(progressSummary), progressSummary);
+    }
+
+    private static List<Map<String, Object>> snapshotsOf(Map<String, Object> progressSummary) {
+        return EnrollmentProgressSnapshots.read(progressSummary, null);
+    }
+
+    private static String describe(CourseProgress progress) {
+        Map<String, String> modules = new TreeMap<>();
+        for (Map.Entry<String, ModuleProgress> entry : progress.getModuleProgress().entrySet()) {
+            modules.put(entry.getKey(), entry.getValue().getCompletedTasks() + "/" + entry.getValue().getTotalTasks());
+        }
+        return "activities=" + progress.getTotalActivities()
+                + " started=" + progress.getActivitiesStarted()
+                + " tasks=" + progress.getTotalTasks()
+                + " attempted=" + progress.getAttemptedTasks()
+                + " completed=" + progress.getCompletedTasks()
+                + " percent=" + progress.getCompletionPercentage()
+                + " xp=" + progress.getEarnedXp() + "/" + progress.getTotalXp()
+                + " snapshots=" + progress.getActivitySnapshots().size()
+                + " modules=" + modules;
+    }
+
+    static Course syntheticCourse(int moduleCount, int activitiesPerModule) {
+        Course course = new Course();
+        course.setId("course");
+        List<Module> modules = new ArrayList<>();
+        for (int m = 0; m < moduleCount; m++) {
+            List<Activity> activities = new ArrayList<>();
+            for (int a = 0; a < activitiesPerModule; a++) {
+                Activity activity = new Activity();
+                // Every third activity has no id and is only known by its title.
+                activity.setId(a % 3 == 0 ? null : "activity-" + m + "-" + a);
+                activity.setTitle("Activity " + m + "." + a);
+                activity.setTasks(syntheticTasks(m, a));
+                activities.add(activity);
+            }
+            // Modules without an id are keyed by their title.
+            modules.add(new Module(m % 5 == 4 ? null : "module-" + m, "Module " + m, "", activities, 0));
+        }
+        course.setModules(modules);
+        course.setActivities(new ArrayList<>());
+        return course;
+    }
+
+    private static List<Task> syntheticTasks(int module, int activity) {
+        List<Task> tasks = new ArrayList<>();
+        for (int t = 0; t < 5; t++) {
+            String prefix = module + "-" + activity + "-" + t;
+            Task task;
+            switch (t % 3) {
+                case 0 -> {
+                    MultipleChoiceQuestion question = new MultipleChoiceQuestion();
+                    question.setOptions(Arrays.asList("a", "b", "c", "d"));
+                    question.setCorrectAnswer(1);
+                    task = question;
+                    task.setType("MultipleChoice");
+                }
+                case 1 -> {
+                    FillInTheBlank blank = new FillInTheBlank();
+                    blank.setMissingSegments(Arrays.asList("x", "y"));
+                    task = blank;
+                    task.setType("FillInTheBlank");
+                }
+                default -> {
+                    OrderingTask ordering = new OrderingTask();
+                    ordering.setItems(Arrays.asList("1", "2", "3"));
+                    task = ordering;
+                    task.setType("Ordering");
+                }
+            }
+            task.setId(t == 4 ? null : "task-" + prefix);
+            task.setTitle("Task " + prefix);
+            task.setDescription("Description " + prefix);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * Progress for about half of the activities, addressed by id, title or a differently cased
+     * title, with stats stored under stable keys, ids, titles and lower-cased titles, plus
+     * snapshots of activities the course no longer has.
+     */
+    static Map<String, Object> syntheticProgress(Course course, Random random) {
+        List<Object> snapshots = new ArrayList<>();
+        List<Activity> activities = new ArrayList<>();
+        if (course.getActivities() != null) {
+            activities.addAll(course.getActivities());
+        }
+        if (course.getModules() != null) {
+            for (Module module : course.getModules()) {
+                activities.addAll(module.getActivities());
+            }
+        }
+        for (Activity activity : activities) {
+            if (random.nextInt(2) == 0) {
+                continue;
+            }
+            Map<String, Object> snapshot = new HashMap<>();
+            switch (random.nextInt(3)) {
+                case 0 -> snapshot.put("activityId", activity.getId() != null ? activity.getId() : activity.getTitle());
+                case 1 -> snapshot.put("activityTitle", activity.getTitle());
+                default -> snapshot.put("activityName", "  " + activity.getTitle().toLowerCase(Locale.ROOT) + " ");
+            }
+            Map<String, Object> taskStats = new HashMap<>();
+            for (Task task : activity.getTasks()) {
+                if (random.nextInt(4) == 0) {
+                    continue;
+                }
+                String key = switch (random.nextInt(4)) {
+                    case 0 -> TaskStatsKeyUtils.buildKey(task);
+                    case 1 -> task.getId() != null ? task.getId() : task.getTitle();
+                    case 2 -> task.getTitle();
+                    default -> task.getTitle().toLowerCase(Locale.ROOT);
+                };
+                taskStats.put(key, syntheticStats(random));
+            }
+            snapshot.put("taskStats", taskStats);
+            snapshots.add(snapshot);
+        }
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> orphan = new HashMap<>();
+            orphan.put("activityId", "removed-" + i);
+            orphan.put("taskStats", Map.of("gone", syntheticStats(random)));
+            snapshots.add(orphan);
+        }
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("activitySnapshots", snapshots);
+        return summary;
+    }
+
+    private static Map<String, Object> syntheticStats(Random random) {
+        Map<String, Object> stats = new HashMap<>();
+        boolean attempted = random.nextInt(5) != 0;
+        if (attempted) {
+            stats.put("attemptDateTime", "2024-03-0" + (1 + random.nextInt(9)) + "T10:15:30.000");
+            stats.put("timeSpent", "00:" + (10 + random.nextInt(50)));
+            stats.put("retries", (long) random.nextInt(3));
+            stats.put("hintsUsed", random.nextBoolean());
+        }
+        stats.put("success", attempted && random.nextBoolean());
+        stats.put("completionRatio", attempted ? random.nextInt(5) / 4.0 : 0.0);
+        stats.put("scoreRatio", random.nextInt(5) / 4.0);
+        return stats;
+    }
+
+    /**
+     * The progress build {@link CourseEnrollmentRepository} used before the course index:
+     * lookup maps are rebuilt from the course on every call, snapshot maps are copied and the
+     * stats map is padded with normalised and lower-cased keys.
+     */
+    private static final class BaselineProgress {
+
+        private static final String[] SNAPSHOT_KEYS = {"activityId", "activityTitle", "activityName"};
+
+        static CourseProgress build(Course course, String userId, Map<String, Object> progressSummary) {
+            int totalActivities = 0;
+            int totalTasks = 0;
+            Map<String, String> activityToModule = new HashMap<>();
+            Map<String, int[]> moduleAccumulators = new HashMap<>();
+            Map<String, ModuleProgress> legacyModuleProgress = new HashMap<>();
+            Map<String, Activity> activityLookup = new HashMap<>();
+            int totalEarnedXp = 0;
+            int totalAvailableXp = 0;
+
+            if (course.getActivities() != null && !course.getActivities().isEmpty()) {
+                totalActivities = course.getActivities().size();
+                for (Activity activity : course.getActivities()) {
+                    indexActivity(activity, null, activityToModule, activityLookup);
+                    totalTasks += activity.getTasks() != null ? activity.getTasks().size() : 0;
+                }
+            } else if (course.getModules() != null) {
+                List<Module> modules = course.getModules();
+                for (int moduleIndex = 0; moduleIndex < modules.size(); moduleIndex++) {
+                    Module module = modules.get(moduleIndex);
+                    String moduleKey = CourseProgressIndex.resolveModuleKey(module, moduleIndex);
+                    int[] accumulator = moduleAccumulators.computeIfAbsent(moduleKey, key -> new int[2]);
+                    totalActivities += module.getActivities().size();
+                    for (Activity activity : module.getActivities()) {
+                        indexActivity(activity, moduleKey, activityToModule, activityLookup);
+                        int taskCount = activity.getTasks() != null ? activity.getTasks().size() : 0;
+                        totalTasks += taskCount;
+                        accumulator[1] += taskCount;
+                    }
+                }
+            }
+
+            int activitiesStarted = 0;
+            int attemptedTasks = 0;
+            int completedTasks = 0;
+            List<Map<String, Object>> activitySnapshots = new ArrayList<>();
+            Object snapshotsObj = progressSummary.get("activitySnapshots");
+            if (snapshotsObj instanceof List<?> snapshotsList) {
+                for (Object entry : snapshotsList) {
+                    if (!(entry instanceof Map<?, ?> raw)) {
+                        continue;
+                    }
+                    Map<String, Object> snapshotMap = new HashMap<>();
+                    for (Map.Entry<?, ?> snapshotEntry : raw.entrySet()) {
+                        snapshotMap.put(String.valueOf(snapshotEntry.getKey()), snapshotEntry.getValue());
+                    }
+                    activitySnapshots.add(snapshotMap);
+                    String moduleKey = find(activityToModule, snapshotMap);
+                    int[] moduleAccumulator = moduleKey != null ? moduleAccumulators.get(moduleKey) : null;
+
+                    if (!(snapshotMap.get("taskStats") instanceof Map<?, ?> taskStatsMap)) {
+                        continue;
+                    }
+                    boolean hasAttempts = false;
+                    Map<String, TaskStats> rawStats = new HashMap<>();
+                    for (Map.Entry<?, ?> taskEntry : taskStatsMap.entrySet()) {
+                        TaskStats taskStats = toTaskStats((Map<?, ?>) taskEntry.getValue());
+                        String key = String.valueOf(taskEntry.getKey());
+                        rawStats.put(key, taskStats);
+                        String normalizedKey = key.trim();
+                        if (!normalizedKey.isEmpty()) {
+                            rawStats.putIfAbsent(normalizedKey, taskStats);
+                            rawStats.putIfAbsent(normalizedKey.toLowerCase(Locale.ROOT), taskStats);
+                        }
+                        boolean attempted = taskStats.resolveCompletionRatio() > 0.0
+                                || taskStats.getRetries() != null
+                                || taskStats.getTimeSpent() != null
+                                || taskStats.getAttemptDateTime() != null;
+                        if (attempted) {
+                            hasAttempts = true;
+                            attemptedTasks++;
+                        }
+                        if (taskStats.isCompleted()) {
+                            completedTasks++;
+                            if (moduleAccumulator != null) {
+                                moduleAccumulator[0]++;
+                            }
+                        }
+                    }
+                    if (hasAttempts) {
+                        activitiesStarted++;
+                    }
+                    Activity activity = find(activityLookup, snapshotMap);
+                    if (activity != null) {
+                        Map<String, TaskStats> stats = rawStats.isEmpty() ? rawStats : enrich(activity, rawStats);
+                        totalEarnedXp += ActivityScoreCalculator.calculateEarnedXp(activity.getTasks(), stats);
+                        totalAvailableXp += ActivityScoreCalculator.calculateTotalXp(activity.getTasks(), stats);
+                    }
+                }
+            }
+            if (progressSummary.get("moduleProgress") instanceof Map<?, ?> moduleMap) {
+                for (Map.Entry<?, ?> moduleEntry : moduleMap.entrySet()) {
+                    Map<?, ?> values = (Map<?, ?>) moduleEntry.getValue();
+                    legacyModuleProgress.put(String.valueOf(moduleEntry.getKey()), new ModuleProgress(
+                            ((Number) values.get("completedTasks")).intValue(),
+                            ((Number) values.get("totalTasks")).intValue()));
+                }
+            }
+
+            Map<String, ModuleProgress> moduleProgressMap = new HashMap<>();
+            for (Map.Entry<String, int[]> entry : moduleAccumulators.entrySet()) {
+                moduleProgressMap.put(entry.getKey(), new ModuleProgress(entry.getValue()[0], entry.getValue()[1]));
+            }
+            for (Map.Entry<String, ModuleProgress> entry : legacyModuleProgress.entrySet()) {
+                moduleProgressMap.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            double completionPercentage = totalTasks == 0 ? 0 : (completedTasks * 100.0) / totalTasks;
+            CourseProgress progress = new CourseProgress(totalActivities, activitiesStarted, totalTasks,
+                    attemptedTasks, completedTasks, completionPercentage);
+            progress.setActivitySnapshots(activitySnapshots);
+            progress.setModuleProgress(moduleProgressMap);
+            progress.setEarnedXp(totalEarnedXp);
+            progress.setTotalXp(totalAvailableXp);
+            return progress;
+        }
+
+        private static void indexActivity(Activity activity, String moduleKey,
+                                          Map<String, String> activityToModule,
+                                          Map<String, Activity> activityLookup) {
+            String activityId = activity.getId() != null ? activity.getId().trim() : "";
+            String title = activity.getTitle() != null ? activity.getTitle().trim() : "";
+            if (!activityId.isEmpty()) {
+                activityLookup.put(activityId, activity);
+                activityLookup.putIfAbsent(activityId.toLowerCase(Locale.ROOT), activity);
+            }
+            if (!title.isEmpty()) {
+                activityLookup.putIfAbsent(title, activity);
+                activityLookup.putIfAbsent(title.toLowerCase(Locale.ROOT), activity);
+            }
+            if (moduleKey == null) {
+                return;
+            }
+            if (!activityId.isEmpty()) {
+                activityToModule.put(activityId, moduleKey);
+                activityToModule.putIfAbsent(activityId.toLowerCase(Locale.ROOT), moduleKey);
+            }
+            if (!title.isEmpty()) {
+                activityToModule.putIfAbsent(title, moduleKey);
+                activityToModule.putIfAbsent(title.toLowerCase(Locale.ROOT), moduleKey);
+            }
+        }
+
+        private static <V> V find(Map<String, V> lookup, Map<String, Object> snapshot) {
+            if (lookup.isEmpty()) {
+                return null;
+            }
+            for (String key : SNAPSHOT_KEYS) {
+                Object value = snapshot.get(key);
+                String identifier = value != null ? value.toString().trim() : "";
+                if (identifier.isEmpty()) {
+                    continue;
+                }
+                V found = lookup.get(identifier);
+                if (found == null) {
+                    found = lookup.get(identifier.toLowerCase(Locale.ROOT));
+                }
+                if (found != null) {
+                    return found;
+                }
+            }
+            return null;
+        }
+
+        private static Map<String, TaskStats> enrich(Activity activity, Map<String, TaskStats> rawStats) {
+            Map<String, TaskStats> enriched = new HashMap<>(rawStats);
+            for (Task task : activity.getTasks()) {
+                String stableKey = TaskStatsKeyUtils.buildKey(task);
+                if (enriched.containsKey(stableKey)) {
+                    continue;
+                }
+                TaskStats stats = resolve(task, rawStats);
+                if (stats != null) {
+                    enriched.put(stableKey, stats);
+                }
+            }
+            return enriched;
+        }
+
+        private static TaskStats resolve(Task task, Map<String, TaskStats> rawStats) {
+            String id = task.getId() != null ? task.getId().trim() : "";
+            if (!id.isEmpty()) {
+                TaskStats stats = rawStats.get(id);
+                if (stats == null) {
+                    stats = rawStats.get(id.toLowerCase(Locale.ROOT));
+                }
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            String title = task.getTitle() != null ? task.getTitle().trim() : "";
+            if (!title.isEmpty()) {
+                TaskStats stats = rawStats.get(title);
+                if (stats == null) {
+                    stats = rawStats.get(title.toLowerCase(Locale.ROOT));
+                }
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            for (Map.Entry<String, TaskStats> entry : rawStats.entrySet()) {
+                String key = entry.getKey().trim();
+                if (!key.isEmpty() && !title.isEmpty() && key.equalsIgnoreCase(title)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        private static TaskStats toTaskStats(Map<?, ?> map) {
+            TaskStats stats = new TaskStats();
+            if (map.get("attemptDateTime") != null) {
+                stats.setAttemptDateTime(String.valueOf(map.get("attemptDateTime")));
+            }
+            if (map.get("timeSpent") != null) {
+                stats.setTimeSpent(String.valueOf(map.get("timeSpent")));
+            }
+            if (map.get("retries") instanceof Number number) {
+                stats.setRetries(number.intValue());
+            }
+            if (map.get("success") instanceof Boolean success) {
+                stats.setSuccess(success);
+            }
+            if (map.get("hintsUsed") instanceof Boolean hintsUsed) {
+                stats.setHintsUsed(hintsUsed);
+            }
+            if (map.get("completionRatio") instanceof Number number) {
+                stats.setCompletionRatio(number.doubleValue());
+            }
+            if (map.get("scoreRatio") instanceof Number number) {
+                stats.setScoreRatio(number.doubleValue());
+            }
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EnrollmentProgressMigrationTest {
+
+    @Test
+    public void movesLegacySnapshotsIntoTheKeyedLayout() {
+        Map<String, Object> summary = summary(
+                snapshot("a1", "t1", stats("2024-03-01T10:00:00", 1.0)),
+                snapshot("a2", "t1", stats("2024-03-02T10:00:00", 0.5)));
+
+        EnrollmentProgressMigration.Plan plan = EnrollmentProgressMigration.plan(summary, null);
+
+        assertNotNull(plan);
+        assertEquals(List.of("a1", "a2"), new ArrayList<>(plan.getMigrated().keySet()));
+        assertEquals(1.0, scoreOf(plan.getMigrated().get("a1"), "t1"), 0.0);
+        assertEquals(0.5, scoreOf(plan.getMigrated().get("a2"), "t1"), 0.0);
+        assertEquals(0, plan.getUnmigrated().size());
+    }
+
+    @Test
+    public void mergesWithResultsAlreadyInTheKeyedLayout() {
+        Map<String, Object> summary = summary(snapshot("a1",
+                "t1", stats("2024-03-01T10:00:00", 0.25),
+                "t2", stats("2024-03-05T10:00:00", 1.0)));
+        Map<String, Object> keyed = new HashMap<>();
+        keyed.put("a1", snapshot(null,
+                "t1", stats("2024-03-04T10:00:00", 0.75),
+                "t3", stats("2024-03-04T11:00:00", 0.5)));
+        keyed.put("only-keyed", snapshot(null, "t1", stats("2024-03-04T10:00:00", 1.0)));
+
+        EnrollmentProgressMigration.Plan plan = EnrollmentProgressMigration.plan(summary, keyed);
+
+        assertNotNull(plan);
+        // Activities only in the keyed layout are already migrated and are not rewritten.
+        assertEquals(List.of("a1"), new ArrayList<>(plan.getMigrated().keySet()));
+        Map<String, Object> a1 = plan.getMigrated().get("a1");
+        assertEquals(0.75, scoreOf(a1, "t1"), 0.0);
+        assertEquals(1.0, scoreOf(a1, "t2"), 0.0);
+        assertEquals(0.5, scoreOf(a1, "t3"), 0.0);
+    }
+
+    @Test
+    public void keepsSnapshotsWithoutAnActivityIdInTheList() {
+        Map<String, Object> anonymous = snapshot(null, "t1", stats("2024-03-01T10:00:00", 1.0));
+        Map<String, Object> summary = summary(anonymous, snapshot("a1", "t1", stats("2024-03-02T10:00:00", 0.5)));
+
+        EnrollmentProgressMigration.Plan plan = EnrollmentProgressMigration.plan(summary, null);
+
+        assertNotNull(plan);
+        assertEquals(List.of("a1"), new ArrayList<>(plan.getMigrated().keySet()));
+        assertEquals(1, plan.getUnmigrated().size());
+        assertEquals(1.0, scoreOf(plan.getUnmigrated().get(0), "t1"), 0.0);
+    }
+
+    @Test
+    public void migratingTwiceIsANoOp() {
+        Map<String, Object> anonymous = snapshot(null, "t1", stats("2024-03-01T10:00:00", 1.0));
+        Map<String, Object> summary = summary(anonymous, snapshot("a1", "t1", stats("2024-03-02T10:00:00", 0.5)));
+        EnrollmentProgressMigration.Plan plan = EnrollmentProgressMigration.plan(summary, null);
+        assertNotNull(plan);
+
+        // The document as the migration leaves it.
+        Map<String, Object> migratedSummary = new HashMap<>();
+        migratedSummary.put(EnrollmentProgressSnapshots.LEGACY_SNAPSHOTS_FIELD, plan.getUnmigrated());
+        Map<String, Object> keyed = new HashMap<>(plan.getMigrated());
+
+        assertNull(EnrollmentProgressMigration.plan(migratedSummary, keyed));
+        assertNull(EnrollmentProgressMigration.plan(null, keyed));
+        assertEquals(EnrollmentProgressSnapshots.read(summary, null).size(),
+                EnrollmentProgressSnapshots.read(migratedSummary, keyed).size());
+    }
+
+    @SafeVarargs
+    private static Map<String, Object> summary(Map<String, Object>... snapshots) {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put(EnrollmentProgressSnapshots.LEGACY_SNAPSHOTS_FIELD, List.of(snapshots));
+        return summary;
+    }
+
+    private static Map<String, Object> snapshot(String activityId, Object... taskStats) {
+        Map<String, Object> snapshot = new HashMap<>();
+        if (activityId != null) {
+            snapshot.put("activityId", activityId);
+        }
+        Map<String, Object> stats = new HashMap<>();
+        for (int i = 0; i < taskStats.length; i += 2) {
+            stats.put((String) taskStats[i], taskStats[i + 1]);
+        }
+        snapshot.put("taskStats", stats);
+        return snapshot;
+    }
+
+    private static Map<String, Object> stats(String attemptDateTime, double scoreRatio) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("attemptDateTime", attemptDateTime);
+        stats.put("scoreRatio", scoreRatio);
+        return stats;
+    }
+
+    private static double scoreOf(Map<String, Object> snapshot, String task) {
+        Map<?, ?> taskStats = (Map<?, ?>) snapshot.get("taskStats");
+        return ((Number) ((Map<?, ?>) taskStats.get(task)).get("scoreRatio")).doubleValue();
+    }
+}
@@ -0,0 +1,106 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EnrollmentProgressSnapshotsTest {
+
+    @Test
+    public void keepsTheLaterResultOfEachTaskFromEitherLayout() {
+        Map<String, Object> legacy = snapshot("activity",
+                "older-in-legacy", stats("2024-03-01T10:00:00", 0.25),
+                "newer-in-legacy", stats("2024-03-05T10:00:00", 1.0),
+                "only-legacy", stats("2024-03-02T10:00:00", 0.5));
+        Map<String, Object> keyed = snapshot(null,
+                "older-in-legacy", stats("2024-03-04T10:00:00", 0.75),
+                "newer-in-legacy", stats("2024-03-03T10:00:00", 0.0),
+                "only-keyed", stats(null, 0.5));
+
+        List<Map<String, Object>> read = EnrollmentProgressSnapshots.read(
+                summary(legacy), Map.of("activity", keyed));
+
+        assertEquals(1, read.size());
+        Map<?, ?> taskStats = (Map<?, ?>) read.get(0).get("taskStats");
+        assertEquals(0.75, scoreOf(taskStats, "older-in-legacy"), 0.0);
+        assertEquals(1.0, scoreOf(taskStats, "newer-in-legacy"), 0.0);
+        assertEquals(0.5, scoreOf(taskStats, "only-legacy"), 0.0);
+        assertEquals(0.5, scoreOf(taskStats, "only-keyed"), 0.0);
+        assertEquals("activity", read.get(0).get("activityId"));
+    }
+
+    @Test
+    public void keyedResultWinsWhenAttemptTimesCannotBeCompared() {
+        Map<String, Object> legacy = snapshot("activity", "task", stats("2024-03-05T10:00:00", 1.0));
+        Map<String, Object> keyed = snapshot(null, "task", stats(null, 0.25));
+
+        Map<?, ?> taskStats = (Map<?, ?>) EnrollmentProgressSnapshots.read(
+                summary(legacy), Map.of("activity", keyed)).get(0).get("taskStats");
+
+        assertEquals(0.25, scoreOf(taskStats, "task"), 0.0);
+    }
+
+    @Test
+    public void keepsTheHigherHighestScore() {
+        Map<String, Object> legacy = snapshot("activity");
+        legacy.put("highestScore", 80L);
+        Map<String, Object> keyed = snapshot(null);
+        keyed.put("highestScore", 60L);
+
+        assertEquals(80L, EnrollmentProgressSnapshots.read(summary(legacy), Map.of("activity", keyed))
+                .get(0).get("highestScore"));
+
+        legacy.put("highestScore", 40L);
+        assertEquals(60L, EnrollmentProgressSnapshots.read(summary(legacy), Map.of("activity", keyed))
+                .get(0).get("highestScore"));
+    }
+
+    @Test
+    public void keepsLegacySnapshotsWithoutAnActivityId() {
+        Map<String, Object> anonymous = snapshot(null, "task", stats("2024-03-01T10:00:00", 1.0));
+        Map<String, Object> keyed = snapshot(null, "task", stats("2024-03-02T10:00:00", 0.5));
+
+        List<Map<String, Object>> read = EnrollmentProgressSnapshots.read(
+                summary(anonymous), Map.of("activity", keyed));
+
+        assertEquals(2, read.size());
+        assertEquals(null, read.get(0).get("activityId"));
+        assertEquals("activity", read.get(1).get("activityId"));
+    }
+
+    private static Map<String, Object> summary(Map<String, Object> snapshot) {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put(EnrollmentProgressSnapshots.LEGACY_SNAPSHOTS_FIELD, List.of(snapshot));
+        return summary;
+    }
+
+    private static Map<String, Object> snapshot(String activityId, Object... taskStats) {
+        Map<String, Object> snapshot = new HashMap<>();
+        if (activityId != null) {
+            snapshot.put("activityId", activityId);
+        }
+        Map<String, Object> stats = new HashMap<>();
+        for (int i = 0; i < taskStats.length; i += 2) {
+            stats.put((String) taskStats[i], taskStats[i + 1]);
+        }
+        snapshot.put("taskStats", stats);
+        return snapshot;
+    }
+
+    private static Map<String, Object> stats(String attemptDateTime, double scoreRatio) {
+        Map<String, Object> stats = new HashMap<>();
+        if (attemptDateTime != null) {
+            stats.put("attemptDateTime", attemptDateTime);
+        }
+        stats.put("scoreRatio", scoreRatio);
+        return stats;
+    }
+
+    private static double scoreOf(Map<?, ?> taskStats, String task) {
+        return ((Number) ((Map<?, ?>) taskStats.get(task)).get("scoreRatio")).doubleValue();
+    }
+}
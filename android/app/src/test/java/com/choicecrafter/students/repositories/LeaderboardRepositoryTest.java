@@ -0,0 +1,54 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LeaderboardRepositoryTest {
+
+    @Test
+    public void prefixSumsCountTheUsersInHigherBuckets() {
+        Random random = new Random(17);
+        Map<Integer, Long> tree = new HashMap<>();
+        Map<Integer, Long> scores = new HashMap<>();
+        for (int round = 0; round < 5000; round++) {
+            int user = random.nextInt(300);
+            long score = random.nextInt(LeaderboardRepository.BUCKET_WIDTH * LeaderboardRepository.BUCKET_COUNT + 500);
+            Long previous = scores.put(user, score);
+            LeaderboardRepository.rankTreeDeltas(previous, score)
+                    .forEach((node, delta) -> tree.merge(node, delta, Long::sum));
+        }
+
+        for (int trial = 0; trial < 500; trial++) {
+            int bucket = random.nextInt(LeaderboardRepository.BUCKET_COUNT);
+            long expected = scores.values().stream()
+                    .filter(score -> LeaderboardRepository.bucketOf(score) > bucket)
+                    .count();
+            long prefix = 0;
+            for (int node = LeaderboardRepository.position(bucket) - 1; node > 0; node -= node & -node) {
+                prefix += tree.getOrDefault(node, 0L);
+            }
+            assertEquals(expected, prefix);
+        }
+    }
+
+    @Test
+    public void neverWritesTheRootOrUnchangedNodes() {
+        Map<Integer, Long> added = LeaderboardRepository.rankTreeDeltas(null, 0);
+        assertTrue(added.isEmpty());
+
+        Map<Integer, Long> moved = LeaderboardRepository.rankTreeDeltas(
+                (long) LeaderboardRepository.BUCKET_WIDTH * 10, LeaderboardRepository.BUCKET_WIDTH * 11);
+        assertFalse(moved.containsKey(LeaderboardRepository.BUCKET_COUNT));
+        assertFalse(moved.containsValue(0L));
+        assertTrue(moved.size() < 2 * Integer.numberOfTrailingZeros(LeaderboardRepository.BUCKET_COUNT));
+
+        assertTrue(LeaderboardRepository.rankTreeDeltas(5L, 6).isEmpty());
+    }
+}
@@ -0,0 +1,280 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class SnapshotReducerTest {
+
+    private SnapshotReducer<List<Item>, Item> reducer;
+    private RecordingCallback callback;
+    private List<String> documentEvents;
+
+    @Before
+    public void setUp() {
+        // Documents are mapped by the test, so the mapper is never called.
+        reducer = new SnapshotReducer<>(document -> null, value -> value,
+                Comparator.comparingInt((Item item) -> item.score));
+        callback = new RecordingCallback();
+        documentEvents = new ArrayList<>();
+        reducer.setListUpdateCallback(callback);
+        reducer.setDocumentListener((documentId, previous, current) ->
+                documentEvents.add(documentId + " " + previous + " -> " + current));
+    }
+
+    @Test
+    public void initialLoadIsReportedAsOneRange() {
+        assertTrue(reducer.applyValues(changes("a", items(30), "b", items(10), "c", items(20, 40))));
+
+        assertEquals(List.of("inserted 0 4"), callback.events);
+        assertEquals(List.of(10, 20, 30, 40), scores());
+        assertEquals(List.of("a null -> [30]", "b null -> [10]", "c null -> [20, 40]"), documentEvents);
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void addedDocumentsAreInsertedInOrder() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("d", items(25), "e", items(5))));
+
+        assertEquals(List.of("inserted 2 1", "inserted 0 1"), callback.events);
+        assertEquals(List.of(5, 10, 20, 25, 30), scores());
+        assertEquals(List.of("d null -> [25]", "e null -> [5]"), documentEvents);
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void modifiedDocumentThatKeepsItsPlaceIsChanged() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("b", items(15))));
+
+        assertEquals(List.of("changed 0 1"), callback.events);
+        assertEquals(List.of(15, 20, 30), scores());
+        assertEquals(List.of("b [10] -> [15]"), documentEvents);
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void modifiedDocumentThatChangesPlaceIsMovedAndChanged() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("b", items(35))));
+
+        assertEquals(List.of("moved 0 2", "changed 2 1"), callback.events);
+        assertEquals(List.of(20, 30, 35), scores());
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void modifiedDocumentWithMoreOrFewerItemsInsertsOrRemovesTheRest() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("a", items(30, 5, 50))));
+        assertEquals(List.of("inserted 0 1", "inserted 4 1"), callback.events);
+        assertEquals(List.of(5, 10, 20, 30, 50), scores());
+        callback.assertMirrors(reducer.getItems());
+
+        callback.events.clear();
+        assertTrue(reducer.applyValues(changes("a", items(30))));
+        assertEquals(List.of("removed 0 1", "removed 3 1"), callback.events);
+        assertEquals(List.of(10, 20, 30), scores());
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void removedDocumentsAreRemoved() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("c", null, "b", null)));
+
+        assertEquals(List.of("removed 1 1", "removed 0 1"), callback.events);
+        assertEquals(List.of(30), scores());
+        assertEquals(List.of("c [20] -> null", "b [10] -> null"), documentEvents);
+        assertEquals(List.of("a"), new ArrayList<>(reducer.getValues().keySet()));
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void reAddingAKnownDocumentReplacesItsValue() {
+        load();
+
+        // The same content in a new instance, as a listener attached after a one-time read
+        // of the same query reports it.
+        assertTrue(reducer.applyValues(changes("a", items(30))));
+
+        assertEquals(List.of(), callback.events);
+        assertEquals(List.of(10, 20, 30), scores());
+        assertEquals(List.of("a [30] -> [30]"), documentEvents);
+        assertEquals(3, reducer.getValues().size());
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void equalItemsAreTrackedByIdentity() {
+        load();
+
+        assertTrue(reducer.applyValues(changes("d", items(20))));
+        Item second = reducer.getItems().get(2);
+        assertTrue(reducer.applyValues(changes("c", null)));
+
+        assertEquals(List.of(10, 20, 30), scores());
+        assertSame(second, reducer.getItems().get(1));
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    @Test
+    public void changesThatDoNotTouchAnyValueReportNothing() {
+        load();
+
+        assertFalse(reducer.applyValues(changes()));
+        assertFalse(reducer.applyValues(changes("unknown", null)));
+        assertFalse(reducer.apply(null));
+
+        assertEquals(List.of(), callback.events);
+        assertEquals(List.of(), documentEvents);
+    }
+
+    @Test
+    public void emptiedListReportsTheNextLoadAsOneRange() {
+        load();
+        reducer.clear();
+        assertEquals(List.of("removed 0 3"), callback.events);
+        assertEquals(List.of("a [30] -> null", "b [10] -> null", "c [20] -> null"), sorted(documentEvents));
+
+        callback.events.clear();
+        assertTrue(reducer.applyValues(changes("a", items(30), "b", items(10))));
+
+        assertEquals(List.of("inserted 0 2"), callback.events);
+        callback.assertMirrors(reducer.getItems());
+    }
+
+    /**
+     * Loads documents a, b and c with scores 30, 10 and 20 and forgets the events.
+     */
+    private void load() {
+        reducer.applyValues(changes("a", items(30), "b", items(10), "c", items(20)));
+        callback.assertMirrors(reducer.getItems());
+        callback.events.clear();
+        documentEvents.clear();
+    }
+
+    private List<Integer> scores() {
+        List<Integer> scores = new ArrayList<>();
+        for (Item item : reducer.getItems()) {
+            scores.add(item.score);
+        }
+        return scores;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, List<Item>> changes(Object... idsAndValues) {
+        Map<String, List<Item>> changes = new LinkedHashMap<>();
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            changes.put((String) idsAndValues[i], (List<Item>) idsAndValues[i + 1]);
+        }
+        return changes;
+    }
+
+    private static List<Item> items(int... scores) {
+        List<Item> items = new ArrayList<>();
+        for (int score : scores) {
+            items.add(new Item(score));
+        }
+        return items;
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> sorted = new ArrayList<>(values);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    private static final class Item {
+        final int score;
+
+        Item(int score) {
+            this.score = score;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Item && ((Item) other).score == score;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(score);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(score);
+        }
+    }
+
+    /**
+     * Records the list updates and replays them on a mirror of the list, as an adapter would.
+     */
+    private static final class RecordingCallback implements ListUpdateCallback {
+        final List<String> events = new ArrayList<>();
+        private final List<Object> mirror = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            events.add("inserted " + position + " " + count);
+            mirror.addAll(position, Arrays.asList(new Object[count]));
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            events.add("removed " + position + " " + count);
+            mirror.subList(position, position + count).clear();
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            events.add("moved " + fromPosition + " " + toPosition);
+            mirror.add(toPosition, mirror.remove(fromPosition));
+        }
+
+        @Override
+        public void onChanged(int position, int count, @Nullable Object payload) {
+            events.add("changed " + position + " " + count);
+            for (int i = position; i < position + count; i++) {
+                mirror.set(i, null);
+            }
+        }
+
+        /**
+         * Checks that the updates so far turn the list last checked into {@code items}:
+         * rows that were inserted or changed are rebound from the list, the others must
+         * still show an equal item.
+         */
+        void assertMirrors(List<?> items) {
+            assertEquals(items.size(), mirror.size());
+            for (int i = 0; i < items.size(); i++) {
+                if (mirror.get(i) != null) {
+                    assertEquals("row " + i, items.get(i), mirror.get(i));
+                }
+                mirror.set(i, items.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+import com.choicecrafter.students.models.tasks.CodingChallengeTask;
+import com.choicecrafter.students.models.tasks.FillInTheBlank;
+import com.choicecrafter.students.models.tasks.InfoCardTask;
+import com.choicecrafter.students.models.tasks.MatchingPairTask;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.OrderingTask;
+import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
+import com.choicecrafter.students.models.tasks.SupportingContent;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.models.tasks.TrueFalseTask;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TaskMapDecoderTest {
+
+    private static final Gson GSON = new Gson();
+
+    @Test
+    public void decodesEveryTaskTypeLikeTheJsonRoundTrip() {
+        for (Map<String, Object> taskMap : sampleTasks()) {
+            assertSameAsLegacy(taskMap);
+        }
+    }
+
+    @Test
+    public void coercesScalarsLikeGson() {
+        Map<String, Object> multipleChoice = multipleChoice("mc-coerce");
+        multipleChoice.put("correctAnswer", "2");
+        multipleChoice.put("options", Arrays.asList("a", 7L, true));
+        multipleChoice.put("title", 12L);
+        assertSameAsLegacy(multipleChoice);
+
+        Map<String, Object> trueFalse = trueFalse("tf-coerce");
+        trueFalse.put("correctAnswer", "true");
+        assertSameAsLegacy(trueFalse);
+
+        Map<String, Object> ordering = ordering("order-coerce");
+        ordering.put("correctOrder", Arrays.asList("2", 0L, 1L));
+        assertSameAsLegacy(ordering);
+    }
+
+    @Test
+    public void appliesSupportingContentFallbacks() {
+        Map<String, Object> textOnly = multipleChoice("mc-text");
+        textOnly.put("supportingText", "  Read this first  ");
+        assertSameAsLegacy(textOnly);
+
+        Map<String, Object> legacyImageKey = fillInTheBlank("fib-image");
+        legacyImageKey.put("supportingImage", "https://example.com/a.png");
+        legacyImageKey.put("supportingText", "   ");
+        assertSameAsLegacy(legacyImageKey);
+
+        Map<String, Object> nested = multipleChoice("mc-nested");
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("text", "Nested");
+        content.put("imageUrl", "https://example.com/b.png");
+        nested.put("supportingContent", content);
+        nested.put("supportingText", "ignored");
+        assertSameAsLegacy(nested);
+
+        Map<String, Object> nonPrimitive = multipleChoice("mc-list-text");
+        nonPrimitive.put("supportingText", List.of("not", "text"));
+        assertSameAsLegacy(nonPrimitive);
+    }
+
+    @Test
+    public void readsCodingChallengeAlternateKeys() {
+        Map<String, Object> challenge = codingChallenge("code-alt");
+        challenge.put("starterTemplates", challenge.remove("starterCode"));
+        challenge.put("solutions", challenge.remove("solutionCode"));
+        assertSameAsLegacy(challenge);
+        assertNotNull(((CodingChallengeTask) TaskMapDecoder.decode(challenge)).getStarterCodeByLanguage());
+    }
+
+    @Test
+    public void rejectsEntriesLikeTheJsonRoundTrip() {
+        Map<String, Object> missingType = multipleChoice("no-type");
+        missingType.remove("type");
+        assertNull(TaskMapDecoder.decode(missingType));
+        assertNull(LegacyTaskParser.parse(missingType));
+
+        Map<String, Object> unknownType = multipleChoice("unknown");
+        unknownType.put("type", "Essay");
+        assertSameAsLegacy(unknownType);
+
+        Map<String, Object> badShape = multipleChoice("bad-options");
+        badShape.put("options", "a, b, c");
+        assertNull(TaskMapDecoder.decode(badShape));
+        assertSameAsLegacy(badShape);
+
+        Map<String, Object> badNumber = ordering("bad-order");
+        badNumber.put("correctOrder", Arrays.asList("first", 1L));
+        assertSameAsLegacy(badNumber);
+
+        assertNull(TaskMapDecoder.decode(null));
+    }
+
+    @Test
+    public void benchmarkCourseWithHundredsOfTasks() {
+        MicroBenchmark.assumeEnabled();
+        List<Map<String, Object>> course = new ArrayList<>();
+        for (int copy = 0; copy < 50; copy++) {
+            course.addAll(sampleTasks());
+        }
+        MicroBenchmark.Result legacy = MicroBenchmark.measure("json round trip (" + course.size() + " tasks)",
+                200, 500, () -> decodeAll(course, true));
+        MicroBenchmark.Result direct = MicroBenchmark.measure("TaskMapDecoder (" + course.size() + " tasks)",
+                200, 500, () -> decodeAll(course, false));
+        System.out.printf("speed-up %.1fx, allocation %.1fx less%n",
+                legacy.getNanosPerOp() / direct.getNanosPerOp(),
+                legacy.getBytesPerOp() / direct.getBytesPerOp());
+    }
+
+    private static List<Task> decodeAll(List<Map<String, Object>> course, boolean legacy) {
+        List<Task> tasks = new ArrayList<>(course.size());
+        for (Map<String, Object> taskMap : course) {
+            tasks.add(legacy ? LegacyTaskParser.parse(taskMap) : TaskMapDecoder.decode(taskMap));
+        }
+        return tasks;
+    }
+
+    private static void assertSameAsLegacy(Map<String, Object> taskMap) {
+        Task expected = LegacyTaskParser.parse(taskMap);
+        Task actual = TaskMapDecoder.decode(taskMap);
+        assertEquals("task " + taskMap.get("id"), describe(expected), describe(actual));
+    }
+
+    private static String describe(Task task) {
+        if (task == null) {
+            return "null";
+        }
+        JsonObject tree = GSON.toJsonTree(task).getAsJsonObject();
+        if (task instanceof CodingChallengeTask challenge) {
+            // Gson stored the language keys verbatim and the setters lower-case them; both are
+            // read through the getters, which normalise them the same way.
+            tree.add("starterCode", GSON.toJsonTree(new TreeMap<>(challenge.getStarterCodeByLanguage())));
+            tree.add("solutionCode", GSON.toJsonTree(new TreeMap<>(challenge.getSolutionCodeByLanguage())));
+        }
+        return task.getClass().getSimpleName() + tree;
+    }
+
+    private static List<Map<String, Object>> sampleTasks() {
+        List<Map<String, Object>> tasks = new ArrayList<>();
+        tasks.add(multipleChoice("mc"));
+        tasks.add(fillInTheBlank("fib"));
+        tasks.add(matchingPair("match"));
+        tasks.add(ordering("order"));
+        tasks.add(infoCard("info"));
+        tasks.add(codingChallenge("code"));
+        tasks.add(trueFalse("tf"));
+        tasks.add(spotError("spot"));
+        return tasks;
+    }
+
+    private static Map<String, Object> base(String id, String type) {
+        // Firestore hands numbers out as Long and Double, and keeps insertion order.
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("type", type);
+        map.put("title", "Title " + id);
+        map.put("description", "Description of " + id);
+        map.put("status", "NOT_STARTED");
+        map.put("explanation", "Because " + id);
+        return map;
+    }
+
+    private static Map<String, Object> multipleChoice(String id) {
+        Map<String, Object> map = base(id, "MultipleChoice");
+        map.put("question", "Which one?");
+        map.put("options", Arrays.asList("one", "two", "three", "four"));
+        map.put("correctAnswer", 2L);
+        return map;
+    }
+
+    private static Map<String, Object> fillInTheBlank(String id) {
+        Map<String, Object> map = base(id, "FillInTheBlank");
+        map.put("text", "The ___ jumps over the ___.");
+        map.put("missingSegments", Arrays.asList("fox", "dog"));
+        map.put("segmentPositions", Arrays.asList(4L, 24L));
+        map.put("supportingImageUrl", "https://example.com/fox.png");
+        return map;
+    }
+
+    private static Map<String, Object> matchingPair(String id) {
+        Map<String, Object> map = base(id, "MatchingPair");
+        map.put("leftItems", Arrays.asList("HTTP", "DNS"));
+        map.put("rightItems", Arrays.asList("Names", "Pages"));
+        Map<String, Object> matches = new LinkedHashMap<>();
+        matches.put("HTTP", "Pages");
+        matches.put("DNS", "Names");
+        map.put("correctMatches", matches);
+        return map;
+    }
+
+    private static Map<String, Object> ordering(String id) {
+        Map<String, Object> map = base(id, "Ordering");
+        map.put("items", Arrays.asList("compile", "link", "run"));
+        map.put("correctOrder", Arrays.asList(0L, 1L, 2L));
+        return map;
+    }
+
+    private static Map<String, Object> infoCard(String id) {
+        Map<String, Object> map = base(id, "InfoCard");
+        map.put("contentType", "video");
+        map.put("contentText", "Watch this");
+        map.put("mediaUrl", "https://example.com/v.mp4");
+        map.put("interactiveUrl", null);
+        map.put("actionText", "Continue");
+        return map;
+    }
+
+    private static Map<String, Object> codingChallenge(String id) {
+        Map<String, Object> map = base(id, "CodingChallenge");
+        map.put("problemDescription", "Sum two numbers");
+        map.put("expectedOutput", "Their sum");
+        map.put("solutionInput", "1 2");
+        map.put("defaultLanguage", "java");
+        Map<String, Object> example = new LinkedHashMap<>();
+        example.put("input", "1 2");
+        example.put("output", 3L);
+        example.put("explanation", "1 + 2");
+        map.put("examples", Arrays.asList(example, null));
+        Map<String, Object> starter = new LinkedHashMap<>();
+        starter.put("Java", "class Main {}");
+        starter.put("python", "def main(): pass");
+        map.put("starterCode", starter);
+        Map<String, Object> solution = new LinkedHashMap<>();
+        solution.put("java", "class Main { int sum(int a, int b) { return a + b; } }");
+        map.put("solutionCode", solution);
+        return map;
+    }
+
+    private static Map<String, Object> trueFalse(String id) {
+        Map<String, Object> map = base(id, "TrueFalse");
+        map.put("statement", "Java is compiled to bytecode.");
+        map.put("correctAnswer", Boolean.TRUE);
+        return map;
+    }
+
+    private static Map<String, Object> spotError(String id) {
+        Map<String, Object> map = base(id, "SpotError");
+        map.put("prompt", "Find the bug");
+        map.put("codeSnippet", "int x = \"1\";");
+        map.put("options", Arrays.asList("type", "syntax"));
+        map.put("correctAnswer", 0L);
+        return map;
+    }
+
+    /**
+     * The parser {@link CourseRepository} used before the direct decoder: serialise the map to
+     * JSON, parse it again and let Gson populate the task class.
+     */
+    private static final class LegacyTaskParser {
+
+        static Task parse(Map<String, Object> taskMap) {
+            JsonObject taskJson = JsonParser.parseString(GSON.toJson(taskMap)).getAsJsonObject();
+            if (!taskJson.has("type") || taskJson.get("type").isJsonNull()) {
+                return null;
+            }
+            String type = taskJson.get("type").getAsString().trim();
+            if (type.isEmpty()) {
+                return null;
+            }
+            try {
+                Task parsedTask = switch (type) {
+                    case "MultipleChoice" -> GSON.fromJson(taskJson, MultipleChoiceQuestion.class);
+                    case "FillInTheBlank" -> GSON.fromJson(taskJson, FillInTheBlank.class);
+                    case "MatchingPair" -> GSON.fromJson(taskJson, MatchingPairTask.class);
+                    case "Ordering" -> GSON.fromJson(taskJson, OrderingTask.class);
+                    case "InfoCard" -> GSON.fromJson(taskJson, InfoCardTask.class);
+                    case "CodingChallenge" -> GSON.fromJson(taskJson, CodingChallengeTask.class);
+                    case "TrueFalse" -> GSON.fromJson(taskJson, TrueFalseTask.class);
+                    case "SpotError" -> GSON.fromJson(taskJson, SpotTheErrorTask.class);
+                    default -> null;
+                };
+                if (parsedTask != null) {
+                    applySupportingContent(taskJson, parsedTask);
+                }
+                return parsedTask;
+            } catch (RuntimeException ex) {
+                return null;
+            }
+        }
+
+        private static void applySupportingContent(JsonObject taskJson, Task parsedTask) {
+            if (!(parsedTask instanceof MultipleChoiceQuestion || parsedTask instanceof FillInTheBlank)) {
+                return;
+            }
+            SupportingContent supportingContent = null;
+            if (taskJson.has("supportingContent") && taskJson.get("supportingContent").isJsonObject()) {
+                supportingContent = GSON.fromJson(taskJson.getAsJsonObject("supportingContent"), SupportingContent.class);
+            } else {
+                String supportingText = normalize(getAsString(taskJson, "supportingText"));
+                String supportingImageUrl = normalize(getAsString(taskJson, "supportingImageUrl"));
+                if (supportingImageUrl == null) {
+                    supportingImageUrl = normalize(getAsString(taskJson, "supportingImage"));
+                }
+                if (supportingText != null || supportingImageUrl != null) {
+                    supportingContent = new SupportingContent(supportingText, supportingImageUrl);
+                }
+            }
+            if (parsedTask instanceof MultipleChoiceQuestion multipleChoiceQuestion && supportingContent != null) {
+                multipleChoiceQuestion.setSupportingContent(supportingContent);
+            } else if (parsedTask instanceof FillInTheBlank fillInTheBlank && supportingContent != null) {
+                fillInTheBlank.setSupportingContent(supportingContent);
+            }
+        }
+
+        private static String getAsString(JsonObject jsonObject, String memberName) {
+            if (!jsonObject.has(memberName) || jsonObject.get(memberName).isJsonNull()) {
+                return null;
+            }
+            try {
+                return jsonObject.get(memberName).getAsString();
+            } catch (ClassCastException | IllegalStateException ex) {
+                return null;
+            }
+        }
+
+        private static String normalize(String value) {
+            if (value == null) {
+                return null;
+            }
+            String trimmed = value.trim();
+            return trimmed.isEmpty() ? null : trimmed;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.choicecrafter.students.repositories;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+
+import com.choicecrafter.students.models.TaskStats;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TaskStatsWriteQueueTest {
+
+    private static final String USER = "u1";
+    private static final String COURSE = "c1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ScheduledExecutorService> schedulers = new ArrayList<>();
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("files");
+    }
+
+    @After
+    public void tearDown() {
+        for (ScheduledExecutorService scheduler : schedulers) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void onlyALaterAttemptSupersedesTheStoredResult() {
+        Map<String, Object> stored = result("2024-03-06T10:00:00");
+
+        assertTrue(TaskStatsWriteQueue.supersedes(result("2024-03-06T10:00:01"), stored));
+        assertFalse(TaskStatsWriteQueue.supersedes(result("2024-03-06T10:00:00"), stored));
+        assertFalse(TaskStatsWriteQueue.supersedes(result("2024-03-05T23:59:59"), stored));
+    }
+
+    @Test
+    public void replayingAWrittenResultIsANoOp() {
+        Map<String, Object> written = result("2024-03-06T10:00:00");
+
+        assertFalse(TaskStatsWriteQueue.supersedes(written, new HashMap<>(written)));
+    }
+
+    @Test
+    public void resultsWithoutComparableAttemptTimesAreWritten() {
+        assertTrue(TaskStatsWriteQueue.supersedes(result("2024-03-06T10:00:00"), null));
+        assertTrue(TaskStatsWriteQueue.supersedes(result("2024-03-06T10:00:00"), "not a map"));
+        assertTrue(TaskStatsWriteQueue.supersedes(result(null), result("2024-03-06T10:00:00")));
+        assertTrue(TaskStatsWriteQueue.supersedes(result("2024-03-06T10:00:00"), result(null)));
+    }
+
+    @Test
+    public void coalescesTheResultsOfAnEnrollmentIntoOneBatch() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:01:00", 1.0));
+        queue.enqueue(USER, COURSE, "a1", "t2", stats("2024-03-06T10:02:00", 0.25));
+        queue.enqueue(USER, COURSE, "a2", "t1", stats("2024-03-06T10:03:00", 0.75));
+        queue.enqueue(USER, "c2", "a3", "t1", stats("2024-03-06T10:04:00", 1.0));
+
+        assertEquals(4, queue.getMetrics().getQueueDepth());
+        assertEquals(2, queue.getMetrics().getPendingEnrollments());
+        assertEquals(1, queue.getMetrics().getCoalescedUpdates());
+
+        queue.flush();
+        Map<String, TaskStatsWriteQueue.Batch> batches = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            TaskStatsWriteQueue.Batch batch = writer.next().batch;
+            batches.put(batch.getEnrollmentId(), batch);
+        }
+        writer.assertIdle();
+
+        TaskStatsWriteQueue.Batch batch = batches.get(USER + "_" + COURSE);
+        assertEquals(List.of("a1", "a2"), new ArrayList<>(batch.getActivities().keySet()));
+        Map<String, TaskStats> a1 = batch.getActivities().get("a1").getTaskStats();
+        assertEquals(1.0, a1.get("t1").getScoreRatio(), 0.0);
+        assertEquals(0.25, a1.get("t2").getScoreRatio(), 0.0);
+        assertEquals(1, batches.get(USER + "_c2").taskCount());
+        assertEquals(0, queue.getMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void queuesResultsBehindTheBatchInFlight() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.flush();
+        Call first = writer.next();
+
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:01:00", 1.0));
+        queue.enqueue(USER, COURSE, "a1", "t2", stats("2024-03-06T10:02:00", 0.25));
+        queue.flush();
+        writer.assertIdle();
+
+        // The batch in flight is a snapshot and does not see the newer results.
+        Map<String, TaskStats> sending = first.batch.getActivities().get("a1").getTaskStats();
+        assertEquals(1, sending.size());
+        assertEquals(0.5, sending.get("t1").getScoreRatio(), 0.0);
+        assertEquals(1.0, queue.pendingTaskStats(USER, COURSE, "a1").get("t1").getScoreRatio(), 0.0);
+
+        first.listener.onCommitted(committed("a1", null, false));
+        Map<String, TaskStats> next = writer.next().batch.getActivities().get("a1").getTaskStats();
+        assertEquals(1.0, next.get("t1").getScoreRatio(), 0.0);
+        assertEquals(0.25, next.get("t2").getScoreRatio(), 0.0);
+    }
+
+    @Test
+    public void batchesCannotBeChanged() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.flush();
+        TaskStatsWriteQueue.Batch batch = writer.next().batch;
+
+        try {
+            batch.getActivities().remove("a1");
+            fail("The activities of a batch were changed");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            batch.getActivities().get("a1").getTaskStats().clear();
+            fail("The results of a batch were changed");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failedBatchIsRetriedWithoutReplacingNewerResults() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.enqueue(USER, COURSE, "a1", "t2", stats("2024-03-06T10:00:30", 0.5));
+        queue.flush();
+        Call first = writer.next();
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:01:00", 1.0));
+
+        first.listener.onFailed(new IOException("offline"));
+        assertEquals(1, queue.getMetrics().getFailedFlushCount());
+        queue.flush();
+
+        Map<String, TaskStats> retried = writer.next().batch.getActivities().get("a1").getTaskStats();
+        assertEquals(1.0, retried.get("t1").getScoreRatio(), 0.0);
+        assertEquals(0.5, retried.get("t2").getScoreRatio(), 0.0);
+    }
+
+    @Test
+    public void replaysTheJournalAfterTheProcessDied() throws Exception {
+        TaskStatsWriteQueue before = queue(new RecordingWriter(), Runnable::run);
+        before.attach(directory);
+        before.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        before.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:01:00", 1.0));
+        before.enqueue(USER, COURSE, "a1", "t2", stats("2024-03-06T10:02:00", 0.25));
+        before.enqueueHighestScore(USER, COURSE, "a1", 80, null);
+        before.enqueueHighestScore(USER, COURSE, "a1", 60, null);
+        // The process dies in the middle of a line.
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "task_stats_journal.log"), true)) {
+            out.write("{\"userId\":\"u1\",\"cour".getBytes(StandardCharsets.UTF_8));
+        }
+
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue after = queue(writer, Runnable::run);
+        after.attach(directory);
+
+        TaskStatsWriteQueue.BatchedActivity replayed = writer.next().batch.getActivities().get("a1");
+        assertEquals(2, replayed.getTaskStats().size());
+        assertEquals(1.0, replayed.getTaskStats().get("t1").getScoreRatio(), 0.0);
+        assertEquals(0.25, replayed.getTaskStats().get("t2").getScoreRatio(), 0.0);
+        assertEquals(Integer.valueOf(80), replayed.getHighestScore());
+    }
+
+    @Test
+    public void replayKeepsResultsQueuedSinceTheStart() throws Exception {
+        TaskStatsWriteQueue before = queue(new RecordingWriter(), Runnable::run);
+        before.attach(directory);
+        before.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        before.enqueue(USER, COURSE, "a1", "t2", stats("2024-03-06T10:00:30", 0.5));
+
+        ManualExecutor journalExecutor = new ManualExecutor();
+        TaskStatsWriteQueue after = queue(new RecordingWriter(), journalExecutor);
+        after.attach(directory);
+        after.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:01:00", 1.0));
+        journalExecutor.runAll();
+
+        Map<String, TaskStats> pending = after.pendingTaskStats(USER, COURSE, "a1");
+        assertEquals(1.0, pending.get("t1").getScoreRatio(), 0.0);
+        assertEquals(0.5, pending.get("t2").getScoreRatio(), 0.0);
+    }
+
+    @Test
+    public void journalIsWrittenInTheBackground() throws Exception {
+        ManualExecutor journalExecutor = new ManualExecutor();
+        TaskStatsWriteQueue queue = queue(new RecordingWriter(), journalExecutor);
+        queue.attach(directory);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+
+        File journal = new File(directory, "task_stats_journal.log");
+        assertFalse(journal.exists());
+        journalExecutor.runAll();
+        assertTrue(journal.isFile());
+    }
+
+    @Test
+    public void committedResultsLeaveTheJournal() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.attach(directory);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.flush();
+        writer.next().listener.onCommitted(committed("a1", null, false));
+
+        assertFalse(new File(directory, "task_stats_journal.log").exists());
+        assertEquals(1, queue.getMetrics().getFlushCount());
+        TaskStatsWriteQueue restarted = queue(new RecordingWriter(), Runnable::run);
+        restarted.attach(directory);
+        assertTrue(restarted.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+    }
+
+    @Test
+    public void discardDropsQueuedResults() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.attach(directory);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.enqueue(USER, COURSE, "a2", "t1", stats("2024-03-06T10:00:30", 0.5));
+        AtomicInteger resets = new AtomicInteger();
+
+        queue.discard(USER, COURSE, "a1", resets::incrementAndGet);
+
+        assertEquals(1, resets.get());
+        assertTrue(queue.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+        assertEquals(1, queue.getMetrics().getQueueDepth());
+        TaskStatsWriteQueue restarted = queue(new RecordingWriter(), Runnable::run);
+        restarted.attach(directory);
+        assertTrue(restarted.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+        assertEquals(1, restarted.pendingTaskStats(USER, COURSE, "a2").size());
+
+        queue.flush();
+        assertEquals(List.of("a2"), new ArrayList<>(writer.next().batch.getActivities().keySet()));
+    }
+
+    @Test
+    public void discardWaitsForTheBatchInFlight() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.flush();
+        Call call = writer.next();
+        AtomicInteger resets = new AtomicInteger();
+
+        queue.discard(USER, COURSE, "a1", resets::incrementAndGet);
+
+        // The reset runs only after the batch committed, so it clears what the batch wrote.
+        assertEquals(0, resets.get());
+        assertNotNull(call.batch.getActivities().get("a1"));
+        assertTrue(queue.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+        call.listener.onCommitted(committed("a1", null, false));
+        assertEquals(1, resets.get());
+    }
+
+    @Test
+    public void failedBatchDoesNotBringDiscardedResultsBack() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.attach(directory);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.enqueue(USER, COURSE, "a2", "t1", stats("2024-03-06T10:00:30", 0.5));
+        queue.flush();
+        Call call = writer.next();
+        AtomicInteger resets = new AtomicInteger();
+        queue.discard(USER, COURSE, "a1", resets::incrementAndGet);
+
+        call.listener.onFailed(new IOException("offline"));
+
+        assertEquals(1, resets.get());
+        assertTrue(queue.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+        TaskStatsWriteQueue restarted = queue(new RecordingWriter(), Runnable::run);
+        restarted.attach(directory);
+        assertTrue(restarted.pendingTaskStats(USER, COURSE, "a1").isEmpty());
+        queue.flush();
+        assertEquals(List.of("a2"), new ArrayList<>(writer.next().batch.getActivities().keySet()));
+    }
+
+    @Test
+    public void reportsTheHighestScoreOnceTheWriteCommitted() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        RecordingScoreCallback best = new RecordingScoreCallback();
+        RecordingScoreCallback worse = new RecordingScoreCallback();
+        queue.enqueueHighestScore(USER, COURSE, "a1", 80, best);
+        queue.enqueueHighestScore(USER, COURSE, "a1", 60, worse);
+        Call call = writer.next();
+        assertEquals(Integer.valueOf(80), call.batch.getActivities().get("a1").getHighestScore());
+        assertEquals(0, best.calls);
+
+        call.listener.onCommitted(committed("a1", 80, true));
+
+        assertEquals(List.of(true, 80), best.result());
+        assertEquals(List.of(false, 80), worse.result());
+    }
+
+    @Test
+    public void reportsAHigherStoredScoreAfterARetry() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        RecordingScoreCallback callback = new RecordingScoreCallback();
+        queue.enqueueHighestScore(USER, COURSE, "a1", 80, callback);
+
+        writer.next().listener.onFailed(new IOException("offline"));
+        assertEquals(0, callback.calls);
+        queue.flush();
+        writer.next().listener.onCommitted(committed("a1", 95, false));
+
+        assertEquals(List.of(false, 95), callback.result());
+    }
+
+    @Test
+    public void failsTheHighestScoreWhenTheWriteIsGivenUp() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        RecordingScoreCallback callback = new RecordingScoreCallback();
+        queue.enqueueHighestScore(USER, COURSE, "a1", 80, callback);
+
+        writer.next().listener.onFailed(new FirebaseFirestoreException("gone",
+                FirebaseFirestoreException.Code.NOT_FOUND));
+
+        assertEquals(1, callback.calls);
+        assertTrue(callback.error instanceof FirebaseFirestoreException);
+        assertEquals(1, queue.getMetrics().getDroppedFlushCount());
+    }
+
+    @Test
+    public void failsTheHighestScoreOfADiscardedActivity() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        TaskStatsWriteQueue queue = queue(writer, Runnable::run);
+        queue.enqueue(USER, COURSE, "a1", "t1", stats("2024-03-06T10:00:00", 0.5));
+        queue.flush();
+        Call call = writer.next();
+        RecordingScoreCallback callback = new RecordingScoreCallback();
+        queue.enqueueHighestScore(USER, COURSE, "a1", 80, callback);
+
+        queue.discard(USER, COURSE, "a1", () -> { });
+
+        assertEquals(1, callback.calls);
+        assertTrue(callback.error instanceof CancellationException);
+        call.listener.onCommitted(committed("a1", null, false));
+        writer.assertIdle();
+    }
+
+    private TaskStatsWriteQueue queue(TaskStatsWriteQueue.BatchWriter writer, Executor journalExecutor) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        schedulers.add(scheduler);
+        return new TaskStatsWriteQueue(scheduler, journalExecutor, writer);
+    }
+
+    private static TaskStats stats(String attemptDateTime, double scoreRatio) {
+        TaskStats stats = new TaskStats();
+        stats.setAttemptDateTime(attemptDateTime);
+        stats.setScoreRatio(scoreRatio);
+        return stats;
+    }
+
+    private static Map<String, Object> result(String attemptDateTime) {
+        Map<String, Object> result = new HashMap<>();
+        if (attemptDateTime != null) {
+            result.put("attemptDateTime", attemptDateTime);
+        }
+        result.put("scoreRatio", 1.0);
+        return result;
+    }
+
+    private static TaskStatsWriteQueue.WriteResult committed(String activityId, Integer storedScore, boolean beaten) {
+        Map<String, Integer> highestScores = new HashMap<>();
+        if (storedScore != null) {
+            highestScores.put(activityId, storedScore);
+        }
+        return new TaskStatsWriteQueue.WriteResult(List.of(), List.of(), Map.of(), highestScores,
+                beaten ? Set.of(activityId) : Set.of());
+    }
+
+    private static final class RecordingScoreCallback implements ActivityRepository.HighScoreCallback {
+        int calls;
+        boolean updated;
+        int highestScore;
+        Exception error;
+
+        @Override
+        public void onResult(boolean updated, int highestScore) {
+            calls++;
+            this.updated = updated;
+            this.highestScore = highestScore;
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            calls++;
+            error = e;
+        }
+
+        List<Object> result() {
+            assertEquals(1, calls);
+            assertNull(error);
+            return List.of(updated, highestScore);
+        }
+    }
+
+    private static final class Call {
+        final TaskStatsWriteQueue.Batch batch;
+        final TaskStatsWriteQueue.WriteListener listener;
+
+        Call(TaskStatsWriteQueue.Batch batch, TaskStatsWriteQueue.WriteListener listener) {
+            this.batch = batch;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Hands the batches to the test, which decides when and how their writes finish.
+     */
+    private static final class RecordingWriter implements TaskStatsWriteQueue.BatchWriter {
+        private final BlockingQueue<Call> calls = new LinkedBlockingQueue<>();
+
+        @Override
+        public void write(@NonNull TaskStatsWriteQueue.Batch batch,
+                          @NonNull TaskStatsWriteQueue.WriteListener listener) {
+            calls.add(new Call(batch, listener));
+        }
+
+        Call next() throws InterruptedException {
+            Call call = calls.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No batch was written", call);
+            return call;
+        }
+
+        void assertIdle() throws InterruptedException {
+            assertNull("Unexpected batch", calls.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static final class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+}
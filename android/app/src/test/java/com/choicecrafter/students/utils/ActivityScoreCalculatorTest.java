@@ -0,0 +1,363 @@
+package com.choicecrafter.students.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.choicecrafter.students.BuildConfig;
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.models.tasks.CodingChallengeTask;
+import com.choicecrafter.students.models.tasks.FillInTheBlank;
+import com.choicecrafter.students.models.tasks.InfoCardTask;
+import com.choicecrafter.students.models.tasks.MatchingPairTask;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.OrderingTask;
+import com.choicecrafter.students.models.tasks.SpotTheErrorTask;
+import com.choicecrafter.students.models.tasks.Task;
+import com.choicecrafter.students.models.tasks.TrueFalseTask;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class ActivityScoreCalculatorTest {
+
+    @Test
+    public void fusedScoreMatchesTheSeparatePasses() {
+        Random random = new Random(17);
+        for (int round = 0; round < 2000; round++) {
+            List<Task> tasks = syntheticTasks(random, "round-" + round);
+            Map<String, TaskStats> stats = random.nextInt(10) == 0
+                    ? Collections.emptyMap()
+                    : syntheticStats(tasks, random);
+
+            ActivityScoreCalculator.ActivityScore score = ActivityScoreCalculator.score(tasks, stats);
+            assertMatchesBaseline(tasks, stats, score);
+            assertMatchesBaseline(tasks, stats, ActivityScoreCalculator.score("user", "round", tasks, stats));
+            assertEquals(BaselineScorer.calculateTotalXp(tasks, stats),
+                    ActivityScoreCalculator.calculateTotalXp(tasks, stats));
+            assertEquals(BaselineScorer.calculateEarnedXp(tasks, stats),
+                    ActivityScoreCalculator.calculateEarnedXp(tasks, stats));
+        }
+    }
+
+    @Test
+    public void emptyActivitiesScoreNothing() {
+        ActivityScoreCalculator.ActivityScore score = ActivityScoreCalculator.score(null, null);
+        assertEquals(0, score.getEarnedXp());
+        assertEquals(0, score.getTotalXp());
+        assertEquals(0, score.getTaskBreakdowns().size());
+        assertEquals(0, ActivityScoreCalculator.calculateTotalXp(Collections.emptyList()));
+    }
+
+    @Test
+    public void benchmarkStatisticsCardScoring() {
+        MicroBenchmark.assumeEnabled();
+        Random random = new Random(29);
+        List<Task> tasks = syntheticTasks(random, "bench");
+        Map<String, TaskStats> stats = syntheticStats(tasks, random);
+        // The statistics card used to ask for the total, the earned XP and the breakdown
+        // separately, and the first two each ran the scoring pass again.
+        MicroBenchmark.measure("separate passes", 2000, 20000, () ->
+                BaselineScorer.calculateTotalXp(tasks, stats)
+                        + BaselineScorer.calculateEarnedXp(tasks, stats)
+                        + BaselineScorer.buildTaskScoreBreakdown(tasks, stats).size());
+        MicroBenchmark.measure("fused score", 2000, 20000,
+                () -> ActivityScoreCalculator.score(tasks, stats));
+        MicroBenchmark.measure("fused score, cached ability", 2000, 20000,
+                () -> ActivityScoreCalculator.score("user", "bench", tasks, stats));
+    }
+
+    private static void assertMatchesBaseline(List<Task> tasks,
+                                              Map<String, TaskStats> stats,
+                                              ActivityScoreCalculator.ActivityScore score) {
+        assertEquals(BaselineScorer.calculateEarnedXp(tasks, stats), score.getEarnedXp());
+        assertEquals(BaselineScorer.calculateTotalXp(tasks, stats), score.getTotalXp());
+
+        List<BaselineScorer.Breakdown> expected = BaselineScorer.buildTaskScoreBreakdown(tasks, stats);
+        List<ActivityScoreCalculator.TaskScoreBreakdown> actual = score.getTaskBreakdowns();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            BaselineScorer.Breakdown want = expected.get(i);
+            ActivityScoreCalculator.TaskScoreBreakdown got = actual.get(i);
+            assertEquals(want.totalXp, got.getTotalXp());
+            assertEquals(want.earnedXp, got.getEarnedXp());
+            assertEquals(want.lostXp, got.getLostXp());
+            assertEquals(want.lossReason, got.getLossReason());
+            assertEquals(want.rapidGuess, got.isRapidGuess());
+            assertEquals(want.scoreRatio, got.getScoreRatio(), 0.0);
+        }
+    }
+
+    private static List<Task> syntheticTasks(Random random, String prefix) {
+        List<Task> tasks = new ArrayList<>();
+        int count = 4 + random.nextInt(16);
+        for (int i = 0; i < count; i++) {
+            Task task;
+            switch (random.nextInt(10)) {
+                case 0:
+                    tasks.add(null);
+                    continue;
+                case 1:
+                    task = new FillInTheBlank();
+                    break;
+                case 2:
+                    task = new TrueFalseTask();
+                    break;
+                case 3:
+                    task = new MatchingPairTask();
+                    break;
+                case 4:
+                    task = new OrderingTask();
+                    break;
+                case 5:
+                    task = new SpotTheErrorTask();
+                    break;
+                case 6:
+                    task = new CodingChallengeTask();
+                    break;
+                case 7:
+                    task = new InfoCardTask();
+                    break;
+                default:
+                    MultipleChoiceQuestion question = new MultipleChoiceQuestion();
+                    List<String> options = new ArrayList<>();
+                    int optionCount = 2 + random.nextInt(6);
+                    for (int o = 0; o < optionCount; o++) {
+                        options.add("option " + o);
+                    }
+                    question.setOptions(options);
+                    task = question;
+                    break;
+            }
+            task.setType(task.getClass().getSimpleName());
+            task.setId(prefix + "-task-" + i);
+            task.setTitle("Task " + i);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private static Map<String, TaskStats> syntheticStats(List<Task> tasks, Random random) {
+        Map<String, TaskStats> stats = new HashMap<>();
+        for (Task task : tasks) {
+            if (task == null || random.nextInt(5) == 0) {
+                continue;
+            }
+            TaskStats taskStats = new TaskStats();
+            // A few answers are fast enough to count as rapid guesses.
+            taskStats.setTimeSpent("00:" + String.format("%02d", 1 + random.nextInt(40)));
+            if (random.nextInt(4) != 0) {
+                taskStats.setRetries(random.nextInt(7));
+            }
+            if (random.nextInt(4) != 0) {
+                taskStats.setHintsUsed(random.nextBoolean());
+            }
+            taskStats.setScoreRatio(random.nextInt(5) / 4.0);
+            stats.put(TaskStatsKeyUtils.buildKey(task), taskStats);
+        }
+        return stats;
+    }
+
+    /**
+     * The calculator before scoring was fused: the earned and total XP came from one pass and
+     * the per-task breakdown from another, each resolving stats and estimating the ability.
+     */
+    private static final class BaselineScorer {
+
+        static final class Breakdown {
+            final int totalXp;
+            final int earnedXp;
+            final int lostXp;
+            final ActivityScoreCalculator.LossReason lossReason;
+            final boolean rapidGuess;
+            final double scoreRatio;
+
+            Breakdown(int totalXp, int earnedXp, int lostXp, ActivityScoreCalculator.LossReason lossReason,
+                      boolean rapidGuess, double scoreRatio) {
+                this.totalXp = totalXp;
+                this.earnedXp = earnedXp;
+                this.lostXp = lostXp;
+                this.lossReason = lossReason;
+                this.rapidGuess = rapidGuess;
+                this.scoreRatio = scoreRatio;
+            }
+        }
+
+        static int calculateEarnedXp(List<Task> tasks, Map<String, TaskStats> statsMap) {
+            return computeScoreBreakdown(tasks, statsMap)[0];
+        }
+
+        static int calculateTotalXp(List<Task> tasks, Map<String, TaskStats> statsMap) {
+            if (tasks == null || tasks.isEmpty()) {
+                return 0;
+            }
+            if (statsMap == null || statsMap.isEmpty()) {
+                int totalXp = 0;
+                for (Task task : tasks) {
+                    if (task != null) {
+                        totalXp += resolveTaskXp(task);
+                    }
+                }
+                return totalXp;
+            }
+            return computeScoreBreakdown(tasks, statsMap)[1];
+        }
+
+        /** Earned and total XP, in that order. */
+        private static int[] computeScoreBreakdown(List<Task> tasks, Map<String, TaskStats> statsMap) {
+            int[] breakdown = new int[2];
+            if (tasks == null || tasks.isEmpty()) {
+                return breakdown;
+            }
+            if (statsMap == null || statsMap.isEmpty()) {
+                for (Task task : tasks) {
+                    if (task != null) {
+                        breakdown[1] += resolveTaskXp(task);
+                    }
+                }
+                return breakdown;
+            }
+
+            TaskStats[] resolvedStats = TaskStatsKeyUtils.resolveStats(tasks, statsMap);
+            boolean irtScoringEnabled = BuildConfig.ENABLE_IRT_SCORING;
+            double abilityEstimate = irtScoringEnabled
+                    ? IrtSmartScoreAdjuster.estimateAbility(tasks, resolvedStats)
+                    : 0.0;
+            for (int i = 0; i < resolvedStats.length; i++) {
+                Task task = tasks.get(i);
+                if (task == null) {
+                    continue;
+                }
+                TaskStats stats = resolvedStats[i];
+                if (stats == null) {
+                    breakdown[1] += resolveTaskXp(task);
+                    continue;
+                }
+                if (RapidGuessingDetector.isRapidGuess(stats)) {
+                    continue;
+                }
+                int taskXp = resolveTaskXp(task);
+                breakdown[1] += taskXp;
+                double ratio = Math.min(1.0, Math.max(0.0, stats.resolveScoreRatio()));
+                if (irtScoringEnabled && task instanceof MultipleChoiceQuestion) {
+                    ratio = IrtSmartScoreAdjuster.adjustScore((MultipleChoiceQuestion) task, stats, abilityEstimate);
+                }
+                ratio = applyEffortModifiers(ratio, stats);
+                breakdown[0] += (int) Math.round(taskXp * ratio);
+            }
+            return breakdown;
+        }
+
+        static List<Breakdown> buildTaskScoreBreakdown(List<Task> tasks, Map<String, TaskStats> statsMap) {
+            List<Breakdown> breakdowns = new ArrayList<>();
+            if (tasks == null || tasks.isEmpty()) {
+                return breakdowns;
+            }
+
+            boolean irtScoringEnabled = BuildConfig.ENABLE_IRT_SCORING;
+            boolean hasStatsMap = statsMap != null && !statsMap.isEmpty();
+            TaskStats[] resolvedStats = TaskStatsKeyUtils.resolveStats(tasks, statsMap);
+            double abilityEstimate = irtScoringEnabled && hasStatsMap
+                    ? IrtSmartScoreAdjuster.estimateAbility(tasks, resolvedStats)
+                    : 0.0;
+            for (int i = 0; i < resolvedStats.length; i++) {
+                Task task = tasks.get(i);
+                if (task == null) {
+                    continue;
+                }
+                int taskXp = resolveTaskXp(task);
+                TaskStats stats = resolvedStats[i];
+                boolean rapidGuess = RapidGuessingDetector.isRapidGuess(stats);
+                boolean countedTowardsScore = !rapidGuess;
+
+                double ratio = 0.0;
+                if (stats == null) {
+                    countedTowardsScore = true;
+                } else if (!rapidGuess) {
+                    ratio = Math.min(1.0, Math.max(0.0, stats.resolveScoreRatio()));
+                    if (irtScoringEnabled && task instanceof MultipleChoiceQuestion) {
+                        ratio = IrtSmartScoreAdjuster.adjustScore((MultipleChoiceQuestion) task, stats,
+                                abilityEstimate);
+                    }
+                    ratio = applyEffortModifiers(ratio, stats);
+                    ratio = Math.max(0.0, Math.min(1.0, ratio));
+                }
+
+                int totalXp = countedTowardsScore ? taskXp : 0;
+                int earnedXp = countedTowardsScore ? (int) Math.round(taskXp * ratio) : 0;
+                int lostXp = Math.max(0, totalXp - earnedXp);
+                breakdowns.add(new Breakdown(totalXp, earnedXp, lostXp,
+                        resolveLossReason(stats, rapidGuess, lostXp, ratio), rapidGuess,
+                        countedTowardsScore ? ratio : 0.0));
+            }
+            return breakdowns;
+        }
+
+        private static int resolveTaskXp(Task task) {
+            if (task instanceof MultipleChoiceQuestion) {
+                return 20;
+            }
+            if (task instanceof TrueFalseTask) {
+                return 10;
+            }
+            if (task instanceof FillInTheBlank) {
+                return 15;
+            }
+            if (task instanceof MatchingPairTask || task instanceof OrderingTask) {
+                return 25;
+            }
+            if (task instanceof SpotTheErrorTask) {
+                return 30;
+            }
+            if (task instanceof CodingChallengeTask) {
+                return 40;
+            }
+            if (task instanceof InfoCardTask) {
+                return 5;
+            }
+            return 10;
+        }
+
+        private static ActivityScoreCalculator.LossReason resolveLossReason(TaskStats stats,
+                                                                            boolean rapidGuess,
+                                                                            int lostXp,
+                                                                            double ratio) {
+            if (stats == null) {
+                return ActivityScoreCalculator.LossReason.NOT_ATTEMPTED;
+            }
+            if (rapidGuess) {
+                return ActivityScoreCalculator.LossReason.RAPID_GUESS;
+            }
+            if (lostXp <= 0) {
+                return ActivityScoreCalculator.LossReason.NONE;
+            }
+            if (ratio <= 0.0) {
+                return ActivityScoreCalculator.LossReason.INCORRECT;
+            }
+            if (ratio < 1.0) {
+                return ActivityScoreCalculator.LossReason.PARTIALLY_CORRECT;
+            }
+            return ActivityScoreCalculator.LossReason.NONE;
+        }
+
+        private static double applyEffortModifiers(double ratio, TaskStats stats) {
+            double adjusted = ratio;
+            if (Boolean.TRUE.equals(stats.getHintsUsed())) {
+                adjusted *= 0.75;
+            }
+            Integer retries = stats.getRetries();
+            if (retries != null && retries > 0) {
+                adjusted *= Math.max(0.0, 1.0 - 0.15 * Math.min(retries, 4));
+            }
+            return Math.max(0.0, Math.min(1.0, adjusted));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.choicecrafter.students.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Random;
+
+public class IrtItemCalibratorTest {
+
+    @Test
+    public void seedsGuessingFloorsFromTheOptionsOfEveryQuestion() throws Exception {
+        String courses = "[{"
+                + "\"id\": \"course\","
+                + "\"activities\": [{\"id\": \"top\", \"tasks\": ["
+                + "  {\"id\": \"three\", \"type\": \"MultipleChoice\", \"options\": [\"a\", \"b\", \"c\"]},"
+                + "  {\"id\": \"blank\", \"type\": \"FillInTheBlank\"}"
+                + "]}],"
+                + "\"modules\": [{\"id\": \"module\", \"activities\": [{\"id\": \"nested\", \"status\": \"HIDDEN\", \"tasks\": ["
+                + "  {\"id\": \"five\", \"type\": \"MultipleChoice\", \"options\": [\"a\", \"b\", \"c\", \"d\", \"e\"]},"
+                + "  {\"id\": \"none\", \"type\": \"MultipleChoice\"}"
+                + "]}]}]"
+                + "}]";
+        IrtItemCalibrator calibrator = new IrtItemCalibrator();
+
+        assertEquals(3, calibrator.readCourseExport(new StringReader(courses)));
+
+        assertEquals(1.0 / 3, calibrator.getGuessing("three"), 0.0);
+        assertEquals(1.0 / 5, calibrator.getGuessing("five"), 0.0);
+        // Without options the adjuster assumes four.
+        assertEquals(1.0 / 4, calibrator.getGuessing("none"), 0.0);
+        assertEquals(0.0, calibrator.getGuessing("blank"), 0.0);
+    }
+
+    @Test
+    public void recoversTheParametersOfSimulatedTwoParameterResponses() throws Exception {
+        Random random = new Random(42);
+        int items = 30;
+        double[] discrimination = new double[items];
+        double[] difficulty = new double[items];
+        for (int item = 0; item < items; item++) {
+            discrimination[item] = 0.6 + 1.4 * random.nextDouble();
+            difficulty[item] = -1.5 + 3.0 * random.nextDouble();
+        }
+        IrtItemCalibrator calibrator = new IrtItemCalibrator();
+        simulate(calibrator, random, discrimination, difficulty, 3_000, items);
+
+        IrtItemParameters parameters = calibrator.calibrate();
+
+        assertEquals(items, parameters.size());
+        double discriminationError = 0.0;
+        double difficultyError = 0.0;
+        for (int item = 0; item < items; item++) {
+            IrtItemParameters.Item fitted = parameters.get("item-" + item);
+            assertNotNull(fitted);
+            // Joint maximum likelihood overestimates discriminations a little with 30 items
+            // per student, so they get a wider margin than the difficulties.
+            assertEquals("discrimination of item " + item, discrimination[item], fitted.getDiscrimination(), 0.4);
+            assertEquals("difficulty of item " + item, difficulty[item], fitted.getDifficulty(), 0.2);
+            discriminationError += Math.abs(fitted.getDiscrimination() - discrimination[item]) / items;
+            difficultyError += Math.abs(fitted.getDifficulty() - difficulty[item]) / items;
+        }
+        assertTrue("mean discrimination error " + discriminationError, discriminationError < 0.15);
+        assertTrue("mean difficulty error " + difficultyError, difficultyError < 0.1);
+    }
+
+    @Test
+    public void benchmarkCalibrateTwoThousandItems() {
+        MicroBenchmark.assumeEnabled();
+        Random random = new Random(7);
+        int items = 2_000;
+        double[] discrimination = new double[items];
+        double[] difficulty = new double[items];
+        for (int item = 0; item < items; item++) {
+            discrimination[item] = 0.5 + 1.5 * random.nextDouble();
+            difficulty[item] = random.nextGaussian();
+        }
+        // 10,000 students answering 30 items each.
+        IrtItemCalibrator calibrator = new IrtItemCalibrator();
+        simulate(calibrator, random, discrimination, difficulty, 10_000, 30);
+        MicroBenchmark.measure("calibrate 2,000 items, 300,000 responses", 1, 3, () -> {
+            try {
+                return calibrator.calibrate();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    /**
+     * Adds right or wrong answers of {@code users} students with standard normal abilities
+     * to {@code perUser} items each, drawn without repetition, as a two-parameter logistic
+     * model with the given items predicts them.
+     */
+    private static void simulate(IrtItemCalibrator calibrator, Random random, double[] discrimination,
+                                 double[] difficulty, int users, int perUser) {
+        int items = discrimination.length;
+        int[] order = new int[items];
+        for (int item = 0; item < items; item++) {
+            order[item] = item;
+        }
+        for (int user = 0; user < users; user++) {
+            double theta = random.nextGaussian();
+            for (int answered = 0; answered < perUser; answered++) {
+                int swap = answered + random.nextInt(items - answered);
+                int item = order[swap];
+                order[swap] = order[answered];
+                order[answered] = item;
+                double probability = 1.0 / (1.0 + Math.exp(-discrimination[item] * (theta - difficulty[item])));
+                calibrator.addResponse("user-" + user, "item-" + item, random.nextDouble() < probability ? 1.0 : 0.0);
+            }
+        }
+    }
+}
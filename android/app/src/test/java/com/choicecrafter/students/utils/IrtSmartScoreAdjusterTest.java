@@ -0,0 +1,243 @@
+package com.choicecrafter.students.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+import com.choicecrafter.students.models.TaskStats;
+import com.choicecrafter.students.models.tasks.FillInTheBlank;
+import com.choicecrafter.students.models.tasks.MultipleChoiceQuestion;
+import com.choicecrafter.students.models.tasks.Task;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class IrtSmartScoreAdjusterTest {
+
+    private static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void agreesWithTheGradientEstimatorRunToConvergence() {
+        Random random = new Random(11);
+        for (int round = 0; round < 2000; round++) {
+            List<Task> tasks = syntheticTasks(random, "round-" + round);
+            Map<String, TaskStats> stats = syntheticStats(tasks, random);
+            double expected = BaselineEstimator.estimateAbility(tasks, stats, Integer.MAX_VALUE);
+            assertEquals(expected, IrtSmartScoreAdjuster.estimateAbility(tasks, stats), TOLERANCE);
+            assertEquals(expected, IrtSmartScoreAdjuster.estimateAbility("user", "activity", tasks,
+                    TaskStatsKeyUtils.resolveStats(tasks, stats)), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void fitsTheScoresAtLeastAsWellAsFifteenGradientSteps() {
+        Random random = new Random(13);
+        for (int round = 0; round < 2000; round++) {
+            List<Task> tasks = syntheticTasks(random, "fit-" + round);
+            Map<String, TaskStats> stats = syntheticStats(tasks, random);
+            double truncated = BaselineEstimator.estimateAbility(tasks, stats, 15);
+            double estimate = IrtSmartScoreAdjuster.estimateAbility(tasks, stats);
+            assertTrue(BaselineEstimator.squaredError(tasks, stats, estimate)
+                    <= BaselineEstimator.squaredError(tasks, stats, truncated) + 1e-12);
+        }
+    }
+
+    @Test
+    public void warmStartsFollowChangedObservations() {
+        Random random = new Random(5);
+        List<Task> tasks = syntheticTasks(random, "cached");
+        for (int round = 0; round < 200; round++) {
+            // Same user and activity every round, so each estimate starts from the previous one.
+            Map<String, TaskStats> stats = syntheticStats(tasks, random);
+            TaskStats[] resolved = TaskStatsKeyUtils.resolveStats(tasks, stats);
+            double expected = BaselineEstimator.estimateAbility(tasks, stats, Integer.MAX_VALUE);
+            assertEquals(expected, IrtSmartScoreAdjuster.estimateAbility("user", "cached", tasks, resolved), TOLERANCE);
+            assertEquals(expected, IrtSmartScoreAdjuster.estimateAbility("user", "cached", tasks, resolved), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void cachedAndUncachedScoresAgree() {
+        Random random = new Random(23);
+        List<Task> tasks = syntheticTasks(random, "score");
+        for (int round = 0; round < 200; round++) {
+            Map<String, TaskStats> stats = syntheticStats(tasks, random);
+            ActivityScoreCalculator.ActivityScore uncached = ActivityScoreCalculator.score(tasks, stats);
+            ActivityScoreCalculator.ActivityScore cached = ActivityScoreCalculator.score("user", "score", tasks, stats);
+            assertEquals(uncached.getAbilityEstimate(), cached.getAbilityEstimate(), TOLERANCE);
+            assertEquals(uncached.getEarnedXp(), cached.getEarnedXp());
+            assertEquals(uncached.getTotalXp(), cached.getTotalXp());
+        }
+    }
+
+    @Test
+    public void benchmarkEstimate() {
+        MicroBenchmark.assumeEnabled();
+        Random random = new Random(3);
+        List<Task> tasks = syntheticTasks(random, "bench");
+        Map<String, TaskStats> stats = syntheticStats(tasks, random);
+        TaskStats[] resolved = TaskStatsKeyUtils.resolveStats(tasks, stats);
+        MicroBenchmark.measure("fifteen gradient steps, item list", 2000, 20000,
+                () -> BaselineEstimator.estimateAbility(tasks, stats, 15));
+        MicroBenchmark.measure("newton, cold start", 2000, 20000,
+                () -> IrtSmartScoreAdjuster.estimateAbility(tasks, resolved));
+        MicroBenchmark.measure("newton, warm start", 2000, 20000,
+                () -> IrtSmartScoreAdjuster.estimateAbility("user", "bench", tasks, resolved));
+    }
+
+    @Test
+    public void benchmarkEstimateOnALargeItemBank() {
+        MicroBenchmark.assumeEnabled();
+        Random random = new Random(17);
+        List<Task> tasks = new ArrayList<>();
+        while (tasks.size() < 5000) {
+            tasks.addAll(syntheticTasks(random, "large-" + tasks.size()));
+        }
+        // Learners answering one more task of the bank between two estimates.
+        TaskStats[][] answers = new TaskStats[64][];
+        Map<String, TaskStats> stats = syntheticStats(tasks, random);
+        for (int i = 0; i < answers.length; i++) {
+            Task task = tasks.get(random.nextInt(tasks.size()));
+            TaskStats answer = new TaskStats();
+            answer.setTimeSpent("00:30");
+            answer.setRetries(random.nextInt(3));
+            answer.setScoreRatio(random.nextInt(5) / 4.0);
+            stats.put(TaskStatsKeyUtils.buildKey(task), answer);
+            answers[i] = TaskStatsKeyUtils.resolveStats(tasks, stats);
+        }
+        Map<String, TaskStats> last = stats;
+        int[] next = new int[1];
+        MicroBenchmark.measure("5,000 items, fifteen gradient steps", 20, 200,
+                () -> BaselineEstimator.estimateAbility(tasks, last, 15));
+        MicroBenchmark.measure("5,000 items, newton, cold start", 20, 200,
+                () -> IrtSmartScoreAdjuster.estimateAbility(tasks, answers[next[0]++ % answers.length]));
+        MicroBenchmark.measure("5,000 items, newton, warm start after one answer", 20, 200,
+                () -> IrtSmartScoreAdjuster.estimateAbility("user", "large", tasks,
+                        answers[next[0]++ % answers.length]));
+    }
+
+    private static List<Task> syntheticTasks(Random random, String prefix) {
+        List<Task> tasks = new ArrayList<>();
+        int count = 4 + random.nextInt(16);
+        for (int i = 0; i < count; i++) {
+            Task task;
+            if (random.nextInt(4) == 0) {
+                task = new FillInTheBlank();
+                task.setType("FillInTheBlank");
+            } else {
+                MultipleChoiceQuestion question = new MultipleChoiceQuestion();
+                List<String> options = new ArrayList<>();
+                int optionCount = 2 + random.nextInt(6);
+                for (int o = 0; o < optionCount; o++) {
+                    options.add("option " + o);
+                }
+                question.setOptions(options);
+                task = question;
+                task.setType("MultipleChoice");
+            }
+            task.setId(prefix + "-task-" + i);
+            task.setTitle("Task " + i);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private static Map<String, TaskStats> syntheticStats(List<Task> tasks, Random random) {
+        Map<String, TaskStats> stats = new HashMap<>();
+        for (Task task : tasks) {
+            if (random.nextInt(5) == 0) {
+                continue;
+            }
+            TaskStats taskStats = new TaskStats();
+            // A few answers are fast enough to count as rapid guesses.
+            taskStats.setTimeSpent("00:" + String.format("%02d", 1 + random.nextInt(40)));
+            taskStats.setRetries(random.nextInt(7));
+            taskStats.setHintsUsed(random.nextBoolean());
+            taskStats.setScoreRatio(random.nextInt(5) / 4.0);
+            stats.put(TaskStatsKeyUtils.buildKey(task), taskStats);
+        }
+        return stats;
+    }
+
+    /**
+     * The estimator the adjuster shipped with: gradient steps from zero over a list of item
+     * objects, fifteen of them at most. Given more steps it converges to the same ability as
+     * the adjuster, within the same bounds.
+     */
+    private static final class BaselineEstimator {
+
+        static double estimateAbility(List<Task> tasks, Map<String, TaskStats> statsMap, int maxIterations) {
+            List<double[]> items = items(tasks, statsMap);
+            if (items.isEmpty()) {
+                return 0.0;
+            }
+            double theta = 0.0;
+            for (int iteration = 0; iteration < maxIterations; iteration++) {
+                double gradient = 0.0;
+                for (double[] item : items) {
+                    double logistic = 1.0 / (1.0 + Math.exp(-item[0] * (theta - item[1])));
+                    double probability = item[2] + (1.0 - item[2]) * logistic;
+                    double slope = (1.0 - item[2]) * (item[0] * logistic * (1.0 - logistic));
+                    gradient += (item[3] - probability) * slope;
+                }
+                double step = 0.8 * gradient;
+                theta += step;
+                if (maxIterations != Integer.MAX_VALUE && Math.abs(step) < 1e-5) {
+                    break;
+                }
+                if (theta < -4.0 || theta > 4.0) {
+                    return Math.max(-4.0, Math.min(4.0, theta));
+                }
+                if (Math.abs(step) < 1e-12) {
+                    break;
+                }
+            }
+            return theta;
+        }
+
+        static double squaredError(List<Task> tasks, Map<String, TaskStats> statsMap, double theta) {
+            double error = 0.0;
+            for (double[] item : items(tasks, statsMap)) {
+                double logistic = 1.0 / (1.0 + Math.exp(-item[0] * (theta - item[1])));
+                double probability = item[2] + (1.0 - item[2]) * logistic;
+                error += (item[3] - probability) * (item[3] - probability);
+            }
+            return error;
+        }
+
+        private static List<double[]> items(List<Task> tasks, Map<String, TaskStats> statsMap) {
+            List<double[]> items = new ArrayList<>();
+            for (Task task : tasks) {
+                if (!(task instanceof MultipleChoiceQuestion question)) {
+                    continue;
+                }
+                TaskStats stats = TaskStatsKeyUtils.findStatsForTask(statsMap, task);
+                if (stats == null || RapidGuessingDetector.isRapidGuess(stats)) {
+                    continue;
+                }
+                int optionCount = question.getOptions() != null && !question.getOptions().isEmpty()
+                        ? question.getOptions().size() : 4;
+                double guessing = 1.0 / Math.max(optionCount, 2);
+                double difficulty = 0.15 * Math.max(0, question.getOptions().size() - 4);
+                if (stats.getRetries() != null) {
+                    difficulty += 0.1 * Math.min(stats.getRetries(), 5);
+                }
+                if (Boolean.TRUE.equals(stats.getHintsUsed())) {
+                    difficulty += 0.2;
+                }
+                difficulty = Math.max(-2.0, Math.min(2.0, difficulty));
+                double observed = Math.max(0.0, Math.min(1.0, stats.resolveScoreRatio()));
+                items.add(new double[]{1.2, difficulty, guessing, observed});
+            }
+            return items;
+        }
+    }
+}
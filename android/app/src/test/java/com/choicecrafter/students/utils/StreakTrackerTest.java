@@ -0,0 +1,120 @@
+package com.choicecrafter.students.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class StreakTrackerTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2024, 3, 31);
+
+    @Test
+    public void countsTheRunEndingToday() {
+        assertEquals(3, streak(TODAY.minusDays(2), TODAY.minusDays(1), TODAY));
+    }
+
+    @Test
+    public void keepsARunEndingYesterdayOpenForToday() {
+        assertEquals(3, streak(TODAY.minusDays(2), TODAY.minusDays(1)));
+        assertEquals(2, streak(TODAY.minusDays(1)));
+    }
+
+    @Test
+    public void dropsTheStreakOnceAWholeDayWasMissed() {
+        assertEquals(0, streak(TODAY.minusDays(3), TODAY.minusDays(2)));
+        assertEquals(1, streak(TODAY.minusDays(3), TODAY));
+    }
+
+    @Test
+    public void ignoresDaysAfterToday() {
+        assertEquals(1, streak(TODAY, TODAY.plusDays(1), TODAY.plusDays(2)));
+        assertEquals(0, streak(TODAY.plusDays(1)));
+        assertEquals(3, streak(TODAY.minusDays(2), TODAY.minusDays(1), TODAY.plusDays(1)));
+    }
+
+    @Test
+    public void runsCrossMonthAndYearBoundaries() {
+        LocalDate newYear = LocalDate.of(2025, 1, 1);
+        StreakTracker tracker = StreakTracker.fromDayKeys(List.of("2024-12-30", "2024-12-31", "2025-01-01"));
+        assertEquals(3, tracker.getCurrentStreak(newYear));
+
+        LocalDate leapDay = LocalDate.of(2024, 2, 29);
+        tracker = StreakTracker.fromDayKeys(List.of("2024-02-28", "2024-02-29", "2024-03-01"));
+        assertEquals(3, tracker.getCurrentStreak(leapDay.plusDays(1)));
+        assertEquals(3, tracker.getLongestStreak());
+    }
+
+    @Test
+    public void rejectsDaysBeforeTheCurrentRun() {
+        StreakTracker tracker = StreakTracker.fromDayKeys(List.of("2024-03-10", "2024-03-11"));
+        assertFalse(tracker.recordActivity(LocalDate.of(2024, 3, 5).toEpochDay()));
+        assertTrue(tracker.recordActivity(LocalDate.of(2024, 3, 11).toEpochDay()));
+        assertTrue(tracker.recordActivity(LocalDate.of(2024, 3, 12).toEpochDay()));
+        assertEquals(3, tracker.getLongestStreak());
+    }
+
+    @Test
+    public void skipsKeysThatAreNotDays() {
+        assertEquals(1, StreakTracker.fromDayKeys(List.of("course-1", TODAY.toString(), "")).getCurrentStreak(TODAY));
+    }
+
+    @Test
+    public void matchesTheBaselineScan() {
+        Random random = new Random(9);
+        for (int round = 0; round < 2000; round++) {
+            List<String> keys = new ArrayList<>();
+            for (int day = -12; day <= 2; day++) {
+                if (random.nextInt(3) > 0) {
+                    keys.add(TODAY.plusDays(day).toString());
+                }
+            }
+            assertEquals(keys.toString(), baselineStreak(keys, TODAY),
+                    StreakTracker.fromDayKeys(keys).getCurrentStreak(TODAY));
+        }
+    }
+
+    private static int streak(LocalDate... days) {
+        List<String> keys = new ArrayList<>();
+        for (LocalDate day : days) {
+            keys.add(day.toString());
+        }
+        int streak = StreakTracker.fromDayKeys(keys).getCurrentStreak(TODAY);
+        assertEquals(baselineStreak(keys, TODAY), streak);
+        return streak;
+    }
+
+    /**
+     * The scan {@code User.computeStreak} shipped with, on day keys instead of parsed dates.
+     */
+    private static int baselineStreak(List<String> keys, LocalDate today) {
+        TreeSet<String> sortedDays = new TreeSet<>(keys);
+        int streak;
+        if (sortedDays.contains(today.toString())) {
+            streak = 1;
+        } else if (sortedDays.contains(today.minusDays(1).toString())) {
+            streak = 1;
+        } else {
+            return 0;
+        }
+        LocalDate previousDate = today;
+        for (String day : sortedDays.descendingSet()) {
+            LocalDate currentDate = LocalDate.parse(day);
+            long diff = previousDate.toEpochDay() - currentDate.toEpochDay();
+            if (diff == 1) {
+                streak++;
+                previousDate = currentDate;
+            } else if (diff > 1) {
+                break;
+            }
+        }
+        return streak;
+    }
+}
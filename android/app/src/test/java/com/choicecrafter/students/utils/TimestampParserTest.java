@@ -0,0 +1,157 @@
+package com.choicecrafter.students.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.choicecrafter.students.benchmark.MicroBenchmark;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class TimestampParserTest {
+
+    private static final ZoneId BUCHAREST = ZoneId.of("Europe/Bucharest");
+    private static final List<ZoneId> ZONES = List.of(
+            BUCHAREST,
+            ZoneId.of("America/New_York"),
+            // Half an hour of daylight saving time.
+            ZoneId.of("Australia/Lord_Howe"),
+            ZoneId.of("Pacific/Kiritimati"),
+            ZoneOffset.UTC);
+
+    /** The formatter the weekly rollup parsed attempt times with before the shared parser. */
+    private static final DateTimeFormatter ATTEMPT_TIMESTAMP_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("uuuu-MM-dd'T'HH:mm:ss")
+            .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true)
+            .optionalStart().appendOffsetId().optionalEnd()
+            .toFormatter(Locale.US);
+
+    @Test
+    public void movesTimesInASpringForwardGapPastTheGap() {
+        // Bucharest skips from 03:00 to 04:00 on 31 March 2024.
+        assertEquals(OffsetDateTime.parse("2024-03-31T04:30+03:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-03-31T03:30", BUCHAREST));
+        assertEquals(OffsetDateTime.parse("2024-03-31T02:59:59+02:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-03-31T02:59:59", BUCHAREST));
+        assertEquals(OffsetDateTime.parse("2024-03-31T04:00+03:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-03-31T04:00", BUCHAREST));
+    }
+
+    @Test
+    public void readsTimesInAFallBackOverlapWithTheEarlierOffset() {
+        // Bucharest repeats 03:00 to 04:00 on 27 October 2024.
+        assertEquals(OffsetDateTime.parse("2024-10-27T03:30+03:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-10-27T03:30", BUCHAREST));
+        assertEquals(OffsetDateTime.parse("2024-10-27T03:59:59.999+03:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-10-27T03:59:59.999", BUCHAREST));
+        assertEquals(OffsetDateTime.parse("2024-10-27T04:00+02:00").toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis("2024-10-27T04:00", BUCHAREST));
+    }
+
+    @Test
+    public void matchesAtZoneMinuteByMinuteAcrossTransitions() {
+        for (ZoneId zone : ZONES) {
+            for (String day : List.of("2024-03-31", "2024-03-10", "2024-04-07", "2024-10-06",
+                    "2024-10-27", "2024-11-03")) {
+                LocalDateTime start = LocalDateTime.parse(day + "T00:00");
+                // Forwards and then backwards, so the cached offset interval is left on both sides.
+                for (int minute = 0; minute < 24 * 60; minute++) {
+                    assertLocalMatches(zone, start.plusMinutes(minute).toString());
+                }
+                for (int minute = 24 * 60 - 1; minute >= 0; minute--) {
+                    assertLocalMatches(zone, start.plusMinutes(minute).plusSeconds(7).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesJavaTimeOnRandomTimestamps() {
+        Random random = new Random(41);
+        String[] offsets = {"Z", "+02:00", "-05:00", "+0530", "+14", "-0930"};
+        for (int round = 0; round < 200_000; round++) {
+            ZoneId zone = ZONES.get(random.nextInt(ZONES.size()));
+            LocalDateTime local = LocalDateTime.of(1971 + random.nextInt(66), 1 + random.nextInt(12),
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60),
+                    random.nextInt(60), random.nextInt(1_000_000_000));
+            String text = switch (random.nextInt(4)) {
+                case 0 -> local.withSecond(0).withNano(0).toString();
+                case 1 -> local.withNano(local.getNano() / 1_000_000 * 1_000_000).toString();
+                case 2 -> local.toString();
+                default -> local.withNano(0).toString() + offsets[random.nextInt(offsets.length)];
+            };
+            assertEquals(text, expectedMillis(text, zone), TimestampParser.parseEpochMillis(text, zone));
+        }
+    }
+
+    @Test
+    public void readsInstantStrings() {
+        String text = "2024-05-01T08:15:30.123456Z";
+        assertEquals(Instant.parse(text).toEpochMilli(),
+                TimestampParser.parseEpochMillis(text, BUCHAREST));
+    }
+
+    @Test
+    public void rejectsMalformedTimestamps() {
+        for (String text : new String[]{null, "", "   ", "2024-02-30T10:00", "2023-02-29T10:00",
+                "2024-13-01T10:00", "2024-01-01T24:00", "2024-01-01T10:60", "2024-01-01T10:00:5",
+                "2024-01-01T10:00:00.", "2024-01-01T10:00:00.1234567890", "2024-01-01T10:00+19:00",
+                "2024-01-01T10:00+02:0", "2024-01-01T10:00Zulu", "2024-01-01X10:00", "yesterday"}) {
+            assertEquals(String.valueOf(text), TimestampParser.INVALID,
+                    TimestampParser.parseEpochMillis(text, BUCHAREST));
+        }
+    }
+
+    @Test
+    public void benchmarkParsing() {
+        MicroBenchmark.assumeEnabled();
+        Random random = new Random(7);
+        // More distinct values than the parser caches, like a week of attempt times.
+        String[] timestamps = new String[4096];
+        LocalDateTime start = LocalDateTime.of(2024, 3, 25, 0, 0);
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = start.plusSeconds(random.nextInt(7 * 86_400))
+                    .plusNanos((1 + random.nextInt(999)) * 1_000_000L).toString();
+        }
+        TimestampParser parser = TimestampParser.forZone(BUCHAREST);
+        int[] next = new int[1];
+        MicroBenchmark.measure("DateTimeFormatter", 20_000, 200_000, () -> {
+            String text = timestamps[next[0]++ & (timestamps.length - 1)];
+            TemporalAccessor parsed = ATTEMPT_TIMESTAMP_FORMATTER.parse(text);
+            return parsed.isSupported(ChronoField.OFFSET_SECONDS)
+                    ? OffsetDateTime.from(parsed).toInstant().toEpochMilli()
+                    : LocalDateTime.from(parsed).atZone(BUCHAREST).toInstant().toEpochMilli();
+        });
+        MicroBenchmark.measure("TimestampParser, distinct values", 20_000, 200_000,
+                () -> parser.parse(timestamps[next[0]++ & (timestamps.length - 1)]));
+        MicroBenchmark.measure("TimestampParser, repeated values", 20_000, 200_000,
+                () -> parser.parse(timestamps[next[0]++ & 63]));
+    }
+
+    private static void assertLocalMatches(ZoneId zone, String text) {
+        assertEquals(zone + " " + text,
+                LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli(),
+                TimestampParser.parseEpochMillis(text, zone));
+    }
+
+    private static long expectedMillis(String text, ZoneId zone) {
+        int offsetStart = Math.max(text.indexOf('Z'), Math.max(text.lastIndexOf('+'), text.lastIndexOf('-')));
+        if (offsetStart > 10) {
+            return LocalDateTime.parse(text.substring(0, offsetStart))
+                    .atOffset(ZoneOffset.of(text.substring(offsetStart)))
+                    .toInstant().toEpochMilli();
+        }
+        return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+    }
+}
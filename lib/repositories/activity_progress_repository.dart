@@ -3,6 +3,8 @@ import 'package:flutter/foundation.dart';
 
 import '../models/enrollment_activity_progress.dart';
 import '../models/task_stats.dart';
+import 'enrollment_progress_snapshots.dart';
+import 'weekly_usage_rollup.dart';
 
 class ActivityProgressRepository {
   ActivityProgressRepository({FirebaseFirestore? firestore})
@@ -10,6 +12,11 @@ class ActivityProgressRepository {
 
   static const String _enrollmentsCollection = 'COURSE_ENROLLMENTS';
 
+  /// Feed of the activities users worked on, read by the colleagues screen
+  /// on Android; events have the id and fields `ColleagueFeedRepository`
+  /// gives them there.
+  static const String _colleagueFeedCollection = 'COLLEAGUE_FEED';
+
   final FirebaseFirestore _firestore;
 
   String _buildEnrollmentId(String userId, String courseId) {
@@ -43,16 +50,11 @@ class ActivityProgressRepository {
       return null;
     }
 
-    final progressSummary = _progressSummaryFromDoc(documentSnapshot);
-    debugPrint(
-      '[ActivityProgressRepository] startActivity progressSummary keys=${progressSummary.keys}',
-    );
-    final activitySnapshots = _activitySnapshotsFromSummary(progressSummary);
-    debugPrint(
-      '[ActivityProgressRepository] startActivity activitySnapshots=${activitySnapshots.length}',
-    );
-    final snapshot = _getOrCreateActivitySnapshot(
-      activitySnapshots,
+    final stored =
+        EnrollmentProgressSnapshots.find(documentSnapshot.data(), activityKey);
+    final snapshot = <String, dynamic>{...?stored};
+    _ensureSnapshotIdentifiers(
+      snapshot,
       userId,
       courseId,
       activityKey,
@@ -62,11 +64,13 @@ class ActivityProgressRepository {
       '[ActivityProgressRepository] startActivity snapshot taskStats=${(snapshot['taskStats'] as Map?)?.length ?? 0}',
     );
 
-    await documentReference.set(
-      _buildProgressUpdate(progressSummary),
-      SetOptions(merge: true),
-    );
-    debugPrint('[ActivityProgressRepository] startActivity saved.');
+    if (!_hasKeyedEntry(documentSnapshot.data(), activityKey)) {
+      await documentReference.update(<Object, Object?>{
+        ..._identifierUpdates(userId, courseId, activityKey, activityIndex),
+        _activityField(activityKey, const ['taskStats']): <String, dynamic>{},
+      });
+      debugPrint('[ActivityProgressRepository] startActivity saved.');
+    }
 
     return EnrollmentActivityProgress.fromMap(snapshot);
   }
@@ -110,42 +114,62 @@ class ActivityProgressRepository {
         return;
       }
 
-      final progressSummary = _progressSummaryFromDoc(documentSnapshot);
-      debugPrint(
-        '[ActivityProgressRepository] addTaskStats progressSummary keys=${progressSummary.keys}',
-      );
-      final activitySnapshots = _activitySnapshotsFromSummary(progressSummary);
-      debugPrint(
-        '[ActivityProgressRepository] addTaskStats activitySnapshots=${activitySnapshots.length}',
-      );
-      final snapshot = _getOrCreateActivitySnapshot(
-        activitySnapshots,
-        userId,
-        courseId,
-        activityKey,
-        activityIndex,
-      );
-      debugPrint(
-        '[ActivityProgressRepository] addTaskStats snapshot taskStats=${(snapshot['taskStats'] as Map?)?.length ?? 0}',
-      );
-
-      final taskStatsMap = _ensureTaskStatsMap(snapshot);
-      debugPrint(
-        '[ActivityProgressRepository] addTaskStats taskStatsMap before=${taskStatsMap.length}',
-      );
       debugPrint(
         '[ActivityProgressRepository] addTaskStats taskStats details attemptDateTime=${taskStats.attemptDateTime} timeSpent=${taskStats.timeSpent} retries=${taskStats.retries} success=${taskStats.success} hintsUsed=${taskStats.hintsUsed} completionRatio=${taskStats.completionRatio} scoreRatio=${taskStats.scoreRatio}',
       );
-      taskStatsMap[taskKey] = taskStats.toMap();
-      snapshot['taskStats'] = taskStatsMap;
-      debugPrint(
-        '[ActivityProgressRepository] addTaskStats taskStatsMap after=${taskStatsMap.length}',
+      final next = taskStats.toMap();
+      final stored = EnrollmentProgressSnapshots.find(
+        documentSnapshot.data(),
+        activityKey,
       );
+      final storedStats = stored?['taskStats'];
+      final previous = storedStats is Map ? storedStats[taskKey] : null;
+      // The rollups count the stored result of every task, so the replaced
+      // result moves out of its week and the new one into its own.
+      final rollups = <String, WeeklyUsageRollup>{};
+      if (previous is Map) {
+        WeeklyUsageRollup.removeAttempt(
+            rollups, userId, courseId, activityKey, previous);
+      }
+      WeeklyUsageRollup.addAttempt(
+          rollups, userId, courseId, activityKey, next);
+      final changed =
+          rollups.values.where((rollup) => !rollup.isEmpty).toList();
 
+      transaction.update(documentReference, <Object, Object?>{
+        ..._identifierUpdates(userId, courseId, activityKey, activityIndex),
+        _activityField(activityKey, ['taskStats', taskKey]): next,
+      });
+      for (final rollup in changed) {
+        transaction.set(
+          _firestore
+              .collection(WeeklyUsageRollup.collection)
+              .doc(rollup.documentId),
+          rollup.toIncrementData(),
+          SetOptions(merge: true),
+        );
+      }
+      if (changed.isNotEmpty) {
+        transaction.set(
+          _firestore.collection(WeeklyUsageRollup.indexCollection).doc(userId),
+          WeeklyUsageRollup.indexData(userId, changed),
+          SetOptions(merge: true),
+        );
+      }
+      final attemptTime =
+          taskStats.attemptDateTimeParsed() ?? DateTime.now();
+      final timestamp = attemptTime.millisecondsSinceEpoch;
       transaction.set(
-        documentReference,
-        _buildProgressUpdate(progressSummary),
-        SetOptions(merge: true),
+        _firestore
+            .collection(_colleagueFeedCollection)
+            .doc('${userId}_${courseId}_${activityKey}_$timestamp'),
+        <String, dynamic>{
+          'userId': userId,
+          'courseId': courseId,
+          'activityId': activityKey,
+          'timestamp': timestamp,
+          'taskCount': 1,
+        },
       );
       debugPrint(
         '[ActivityProgressRepository] addTaskStats transaction write queued.',
@@ -174,110 +198,69 @@ class ActivityProgressRepository {
     final documentReference = _firestore
         .collection(_enrollmentsCollection)
         .doc(_buildEnrollmentId(userId, courseId));
-    final documentSnapshot = await documentReference.get();
-    if (!documentSnapshot.exists) {
-      debugPrint(
-        '[ActivityProgressRepository] updateHighestScoreIfGreater aborted: enrollment doc not found.',
-      );
-      return;
-    }
+    await _firestore.runTransaction((transaction) async {
+      final documentSnapshot = await transaction.get(documentReference);
+      if (!documentSnapshot.exists) {
+        debugPrint(
+          '[ActivityProgressRepository] updateHighestScoreIfGreater aborted: enrollment doc not found.',
+        );
+        return;
+      }
 
-    final progressSummary = _progressSummaryFromDoc(documentSnapshot);
-    debugPrint(
-      '[ActivityProgressRepository] updateHighestScoreIfGreater progressSummary keys=${progressSummary.keys}',
-    );
-    final activitySnapshots = _activitySnapshotsFromSummary(progressSummary);
-    debugPrint(
-      '[ActivityProgressRepository] updateHighestScoreIfGreater activitySnapshots=${activitySnapshots.length}',
-    );
-    final snapshot = _getOrCreateActivitySnapshot(
-      activitySnapshots,
-      userId,
-      courseId,
-      activityKey,
-      activityIndex,
-    );
-    final highestScore = snapshot['highestScore'];
-    final currentScore =
-        highestScore is num ? highestScore.toInt() : null;
-    debugPrint(
-      '[ActivityProgressRepository] updateHighestScoreIfGreater currentScore=$currentScore',
-    );
-    if (currentScore == null || score > currentScore) {
-      snapshot['highestScore'] = score;
-      debugPrint(
-        '[ActivityProgressRepository] updateHighestScoreIfGreater updating highestScore to $score',
+      final snapshot = EnrollmentProgressSnapshots.find(
+        documentSnapshot.data(),
+        activityKey,
       );
-      await documentReference.set(
-        _buildProgressUpdate(progressSummary),
-        SetOptions(merge: true),
+      final highestScore = snapshot?['highestScore'];
+      final currentScore = highestScore is num ? highestScore.toInt() : null;
+      debugPrint(
+        '[ActivityProgressRepository] updateHighestScoreIfGreater currentScore=$currentScore',
       );
+      if (currentScore != null && score <= currentScore) {
+        return;
+      }
       debugPrint(
-        '[ActivityProgressRepository] updateHighestScoreIfGreater saved.',
+        '[ActivityProgressRepository] updateHighestScoreIfGreater updating highestScore to $score',
       );
-    }
+      transaction.update(documentReference, <Object, Object?>{
+        ..._identifierUpdates(userId, courseId, activityKey, activityIndex),
+        _activityField(activityKey, const ['highestScore']): score,
+      });
+    });
   }
 
-  Map<String, dynamic> _progressSummaryFromDoc(
-    DocumentSnapshot<Map<String, dynamic>> documentSnapshot,
-  ) {
-    final summary = documentSnapshot.data()?['progressSummary'];
-    if (summary is Map) {
-      return Map<String, dynamic>.from(summary);
-    }
-    return <String, dynamic>{};
+  bool _hasKeyedEntry(Map<String, dynamic>? data, String activityKey) {
+    final keyed = data?[EnrollmentProgressSnapshots.activityProgressField];
+    return keyed is Map && keyed[activityKey] is Map;
   }
 
-  List<Map<String, dynamic>> _activitySnapshotsFromSummary(
-    Map<String, dynamic> progressSummary,
-  ) {
-    final snapshots = progressSummary['activitySnapshots'];
-    if (snapshots is List) {
-      final converted = <Map<String, dynamic>>[];
-      for (final item in snapshots) {
-        if (item is Map) {
-          converted.add(Map<String, dynamic>.from(item));
-        }
-      }
-      progressSummary['activitySnapshots'] = converted;
-      return converted;
-    }
-    final converted = <Map<String, dynamic>>[];
-    progressSummary['activitySnapshots'] = converted;
-    return converted;
+  /// Path of a value inside the activity's entry of the keyed layout. The
+  /// ids are separate segments, so dots in them are not read as separators.
+  FieldPath _activityField(String activityKey, List<String> path) {
+    return FieldPath([
+      EnrollmentProgressSnapshots.activityProgressField,
+      activityKey,
+      ...path,
+    ]);
   }
 
-  Map<String, dynamic> _getOrCreateActivitySnapshot(
-    List<Map<String, dynamic>> activitySnapshots,
+  /// Field path updates of the activity's identifiers. Every write goes
+  /// through field paths of the activity's keyed entry, so it touches
+  /// neither other activities nor the legacy `progressSummary` list, and
+  /// fails when the enrollment document does not exist.
+  Map<Object, Object?> _identifierUpdates(
     String userId,
     String courseId,
     String activityKey,
     int? activityIndex,
   ) {
-    for (final snapshot in activitySnapshots) {
-      final snapshotId = snapshot['activityId'];
-      if (snapshotId != null && snapshotId.toString() == activityKey) {
-        _ensureSnapshotIdentifiers(
-          snapshot,
-          userId,
-          courseId,
-          activityKey,
-          activityIndex,
-        );
-        return snapshot;
-      }
-    }
-    final snapshot = <String, dynamic>{
-      'activityId': activityKey,
-      'courseId': courseId,
-      'userId': userId,
-      'taskStats': <String, dynamic>{},
+    return <Object, Object?>{
+      _activityField(activityKey, const ['activityId']): activityKey,
+      _activityField(activityKey, const ['courseId']): courseId,
+      _activityField(activityKey, const ['userId']): userId,
+      if (activityIndex != null)
+        _activityField(activityKey, const ['activityIndex']): activityIndex,
     };
-    if (activityIndex != null) {
-      snapshot['activityIndex'] = activityIndex;
-    }
-    activitySnapshots.add(snapshot);
-    return snapshot;
   }
 
   void _ensureSnapshotIdentifiers(
@@ -296,20 +279,6 @@ class ActivityProgressRepository {
     snapshot['taskStats'] = _normalizeTaskStats(snapshot['taskStats']);
   }
 
-  Map<String, dynamic> _ensureTaskStatsMap(
-    Map<String, dynamic> snapshot,
-  ) {
-    final normalized = _normalizeTaskStats(snapshot['taskStats']);
-    snapshot['taskStats'] = normalized;
-    return normalized;
-  }
-
-  Map<String, dynamic> _buildProgressUpdate(
-    Map<String, dynamic> progressSummary,
-  ) {
-    return {'progressSummary': progressSummary};
-  }
-
   String _resolveTaskKey(String taskId, int? taskIndex) {
     if (taskId.isNotEmpty) {
       return taskId;
@@ -0,0 +1,151 @@
+/// Reads the per-activity progress stored on a `COURSE_ENROLLMENTS` document.
+///
+/// Both clients store progress in the `activityProgress` map, keyed by
+/// activity id, while older documents keep it in the
+/// `progressSummary.activitySnapshots` list. Both layouts are read and merged
+/// here, the same way `EnrollmentProgressSnapshots` does on Android, so every
+/// reader sees one snapshot per activity in the list shape.
+class EnrollmentProgressSnapshots {
+  EnrollmentProgressSnapshots._();
+
+  static const String activityProgressField = 'activityProgress';
+  static const String progressSummaryField = 'progressSummary';
+  static const String legacySnapshotsField = 'activitySnapshots';
+
+  /// Returns every activity snapshot of the enrollment document, legacy
+  /// entries first in their stored order followed by activities that only
+  /// exist in the keyed layout. Snapshots without a course id get the one of
+  /// the enrollment.
+  static List<Map<String, dynamic>> read(Map<String, dynamic>? data) {
+    if (data == null) {
+      return <Map<String, dynamic>>[];
+    }
+    final result = <Map<String, dynamic>>[];
+    final byActivity = <String, Map<String, dynamic>>{};
+
+    for (final legacy in readLegacy(data[progressSummaryField])) {
+      final activityId = legacy['activityId']?.toString();
+      if (activityId == null) {
+        result.add(legacy);
+      } else {
+        final existing = byActivity[activityId];
+        byActivity[activityId] =
+            existing == null ? legacy : _overlay(existing, legacy);
+      }
+    }
+
+    final keyed = data[activityProgressField];
+    if (keyed is Map) {
+      for (final entry in keyed.entries) {
+        final value = entry.value;
+        if (value is! Map) {
+          continue;
+        }
+        final activityId = entry.key.toString();
+        final snapshot = Map<String, dynamic>.from(value);
+        snapshot.putIfAbsent('activityId', () => activityId);
+        final existing = byActivity[activityId];
+        byActivity[activityId] =
+            existing == null ? snapshot : _overlay(existing, snapshot);
+      }
+    }
+
+    result.addAll(byActivity.values);
+    final courseId = data['courseId'] as String?;
+    if (courseId != null && courseId.isNotEmpty) {
+      for (final snapshot in result) {
+        if ((snapshot['courseId'] as String?)?.isEmpty ?? true) {
+          snapshot['courseId'] = courseId;
+        }
+      }
+    }
+    return result;
+  }
+
+  /// Returns the merged snapshot of one activity, or `null` when the
+  /// enrollment has no progress for it.
+  static Map<String, dynamic>? find(
+    Map<String, dynamic>? data,
+    String activityId,
+  ) {
+    for (final snapshot in read(data)) {
+      if (snapshot['activityId']?.toString() == activityId) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+
+  /// Returns copies of the snapshots stored in the legacy list.
+  static List<Map<String, dynamic>> readLegacy(Object? progressSummary) {
+    final result = <Map<String, dynamic>>[];
+    if (progressSummary is! Map) {
+      return result;
+    }
+    final snapshots = progressSummary[legacySnapshotsField];
+    if (snapshots is! List) {
+      return result;
+    }
+    for (final item in snapshots) {
+      if (item is Map) {
+        result.add(Map<String, dynamic>.from(item));
+      }
+    }
+    return result;
+  }
+
+  /// Lays `newer` over `older`. Task stats are merged per task, keeping the
+  /// result with the later attempt so that neither layout hides a newer
+  /// result written to the other one, and the higher highest score wins.
+  static Map<String, dynamic> _overlay(
+    Map<String, dynamic> older,
+    Map<String, dynamic> newer,
+  ) {
+    final merged = <String, dynamic>{...older, ...newer};
+
+    final taskStats = <String, dynamic>{};
+    final olderStats = older['taskStats'];
+    if (olderStats is Map) {
+      taskStats.addAll(Map<String, dynamic>.from(olderStats));
+    }
+    final newerStats = newer['taskStats'];
+    if (newerStats is Map) {
+      for (final entry in newerStats.entries) {
+        final key = entry.key.toString();
+        if (!_isOlder(entry.value, taskStats[key])) {
+          taskStats[key] = entry.value;
+        }
+      }
+    }
+    merged['taskStats'] = taskStats;
+
+    final olderScore = older['highestScore'];
+    final newerScore = newer['highestScore'];
+    if (olderScore is num &&
+        (newerScore is! num || olderScore.toInt() > newerScore.toInt())) {
+      merged['highestScore'] = olderScore;
+    }
+    return merged;
+  }
+
+  /// Whether `candidate` was attempted strictly before `current`. Results
+  /// without a readable attempt time are never considered older.
+  static bool _isOlder(Object? candidate, Object? current) {
+    final candidateTime = _attemptTime(candidate);
+    final currentTime = _attemptTime(current);
+    return candidateTime != null &&
+        currentTime != null &&
+        candidateTime.isBefore(currentTime);
+  }
+
+  static DateTime? _attemptTime(Object? stats) {
+    if (stats is! Map) {
+      return null;
+    }
+    final attempt = stats['attemptDateTime'];
+    if (attempt == null) {
+      return null;
+    }
+    return DateTime.tryParse(attempt.toString());
+  }
+}
@@ -0,0 +1,104 @@
+import 'package:cloud_firestore/cloud_firestore.dart';
+
+/// Keeps the leaderboard index up to date when Flutter writes a user's
+/// `totalScore`.
+///
+/// The index is the one `LeaderboardRepository` maintains on Android: one
+/// entry per user in `LEADERBOARD`, keyed by email, and a Fenwick tree over
+/// buckets of [bucketWidth] points in `LEADERBOARD_RANK_TREE`, ordered from
+/// the highest bucket down and without its root node. Both clients must
+/// bucket scores and number the nodes the same way, so the constants and
+/// [rankTreeDeltas] mirror the Android ones.
+class LeaderboardRepository {
+  LeaderboardRepository({FirebaseFirestore? firestore})
+      : _firestore = firestore ?? FirebaseFirestore.instance;
+
+  static const String entriesCollection = 'LEADERBOARD';
+  static const String rankTreeCollection = 'LEADERBOARD_RANK_TREE';
+  static const int bucketWidth = 25;
+  static const int bucketCount = 4096;
+
+  final FirebaseFirestore _firestore;
+
+  /// Writes the entry of the user stored at [userDoc] with [totalScore] and
+  /// moves them to their new bucket of the rank tree. Resolves to whether
+  /// anything changed.
+  Future<bool> updateEntry(
+    DocumentReference<Map<String, dynamic>> userDoc,
+    int totalScore,
+  ) {
+    return _firestore.runTransaction<bool>((transaction) async {
+      final user = await transaction.get(userDoc);
+      final userData = user.data();
+      final userId = (userData?['email'] as String?)?.trim() ?? '';
+      if (userId.isEmpty) {
+        return false;
+      }
+      final entryRef = _firestore.collection(entriesCollection).doc(userId);
+      final entry = await transaction.get(entryRef);
+      final entryData = entry.data();
+      final previousScore = (entryData?['totalScore'] as num?)?.toInt();
+      final name = userData?['name'] as String?;
+      final avatar = userData?['anonymousAvatar'];
+      final avatarData = avatar is Map
+          ? <String, dynamic>{
+              'name': avatar['name'],
+              'imageUrl': avatar['imageUrl'],
+            }
+          : null;
+      final storedAvatar = entryData?['anonymousAvatar'];
+      if (previousScore == totalScore &&
+          entryData?['name'] == name &&
+          (storedAvatar is Map ? storedAvatar['name'] : null) ==
+              avatarData?['name'] &&
+          (storedAvatar is Map ? storedAvatar['imageUrl'] : null) ==
+              avatarData?['imageUrl']) {
+        return false;
+      }
+
+      transaction.set(entryRef, <String, dynamic>{
+        'userId': userId,
+        'name': name,
+        if (avatarData != null) 'anonymousAvatar': avatarData,
+        'totalScore': totalScore,
+      });
+      rankTreeDeltas(previousScore, totalScore).forEach((node, delta) {
+        transaction.set(
+          _firestore.collection(rankTreeCollection).doc('node_$node'),
+          <String, dynamic>{'count': FieldValue.increment(delta)},
+          SetOptions(merge: true),
+        );
+      });
+      return true;
+    });
+  }
+
+  /// Changes of the stored rank tree nodes, keyed by node, when a user moves
+  /// from [previousScore], or `null` for a new user, to [score]. Unchanged
+  /// nodes and the root are left out.
+  static Map<int, int> rankTreeDeltas(int? previousScore, int score) {
+    final deltas = <int, int>{};
+    if (previousScore != null) {
+      _addPathDeltas(deltas, _position(_bucketOf(previousScore)), -1);
+    }
+    _addPathDeltas(deltas, _position(_bucketOf(score)), 1);
+    deltas.removeWhere((_, delta) => delta == 0);
+    return deltas;
+  }
+
+  static int _bucketOf(int score) {
+    if (score <= 0) {
+      return 0;
+    }
+    final bucket = score ~/ bucketWidth;
+    return bucket < bucketCount - 1 ? bucket : bucketCount - 1;
+  }
+
+  static int _position(int bucket) => bucketCount - bucket;
+
+  static void _addPathDeltas(Map<int, int> deltas, int position, int delta) {
+    for (var node = position; node < bucketCount; node += node & -node) {
+      deltas.update(node, (value) => value + delta, ifAbsent: () => delta);
+    }
+  }
+}
@@ -3,6 +3,7 @@ import 'dart:async';
 import 'package:cloud_firestore/cloud_firestore.dart';
 
 import '../models/enrollment_activity_progress.dart';
+import 'enrollment_progress_snapshots.dart';
 
 class PersonalStatisticsRepository {
   PersonalStatisticsRepository({FirebaseFirestore? firestore})
@@ -96,25 +97,7 @@ class PersonalStatisticsRepository {
     final activitySnapshots = <EnrollmentActivityProgress>[];
     for (final snapshot in snapshots) {
       for (final doc in snapshot.docs) {
-        final data = doc.data();
-        final progressSummary =
-            (data['progressSummary'] as Map?)?.cast<String, dynamic>() ??
-                <String, dynamic>{};
-        final rawSnapshots = progressSummary['activitySnapshots'];
-        if (rawSnapshots is! List) {
-          continue;
-        }
-        for (final entry in rawSnapshots) {
-          if (entry is! Map) {
-            continue;
-          }
-          final entryMap = Map<String, dynamic>.from(entry);
-          if ((entryMap['courseId'] as String?)?.isEmpty ?? true) {
-            final courseId = data['courseId'] as String?;
-            if (courseId != null && courseId.isNotEmpty) {
-              entryMap['courseId'] = courseId;
-            }
-          }
+        for (final entryMap in EnrollmentProgressSnapshots.read(doc.data())) {
           activitySnapshots.add(EnrollmentActivityProgress.fromMap(entryMap));
         }
       }
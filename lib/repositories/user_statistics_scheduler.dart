@@ -4,13 +4,18 @@ import 'dart:developer' as developer;
 import 'package:cloud_firestore/cloud_firestore.dart';
 
 import '../models/enrollment_activity_progress.dart';
+import 'enrollment_progress_snapshots.dart';
+import 'leaderboard_repository.dart';
 
 class UserStatisticsScheduler {
   UserStatisticsScheduler({
     FirebaseFirestore? firestore,
     Duration interval = const Duration(seconds: 3),
+    LeaderboardRepository? leaderboardRepository,
   })  : _firestore = firestore ?? FirebaseFirestore.instance,
-        _interval = interval;
+        _interval = interval,
+        _leaderboardRepository = leaderboardRepository ??
+            LeaderboardRepository(firestore: firestore);
 
   static const String _usersCollection = 'users';
   static const String _enrollmentsCollection = 'COURSE_ENROLLMENTS';
@@ -18,6 +23,11 @@ class UserStatisticsScheduler {
 
   final FirebaseFirestore _firestore;
   final Duration _interval;
+  final LeaderboardRepository _leaderboardRepository;
+
+  /// Total score last indexed on the leaderboard per user document path, so
+  /// users whose score did not change are not read again every run.
+  final Map<String, int> _indexedTotals = <String, int>{};
   Timer? _timer;
   bool _isRunning = false;
 
@@ -67,25 +77,7 @@ class UserStatisticsScheduler {
         if (userId.isEmpty) {
           continue;
         }
-        final progressSummary = data['progressSummary'];
-        if (progressSummary is! Map) {
-          continue;
-        }
-        final rawSnapshots = progressSummary['activitySnapshots'];
-        if (rawSnapshots is! List) {
-          continue;
-        }
-        for (final entry in rawSnapshots) {
-          if (entry is! Map) {
-            continue;
-          }
-          final entryMap = Map<String, dynamic>.from(entry);
-          if ((entryMap['courseId'] as String?)?.isEmpty ?? true) {
-            final courseId = data['courseId'] as String?;
-            if (courseId != null && courseId.isNotEmpty) {
-              entryMap['courseId'] = courseId;
-            }
-          }
+        for (final entryMap in EnrollmentProgressSnapshots.read(data)) {
           final snapshotData = EnrollmentActivityProgress.fromMap(entryMap);
           if (snapshotData.courseId.isEmpty) {
             continue;
@@ -107,6 +99,7 @@ class UserStatisticsScheduler {
 
     WriteBatch batch = _firestore.batch();
     var operationCount = 0;
+    final changedTotals = <DocumentReference<Map<String, dynamic>>, int>{};
     for (final entry in userStats.entries) {
       final userId = entry.key;
       final aggregation = entry.value;
@@ -123,6 +116,9 @@ class UserStatisticsScheduler {
         },
         SetOptions(merge: true),
       );
+      if (_indexedTotals[docRef.path] != aggregation.totalScore) {
+        changedTotals[docRef] = aggregation.totalScore;
+      }
       operationCount += 1;
       if (operationCount >= 450) {
         await batch.commit();
@@ -133,6 +129,20 @@ class UserStatisticsScheduler {
     if (operationCount > 0) {
       await batch.commit();
     }
+
+    for (final entry in changedTotals.entries) {
+      try {
+        await _leaderboardRepository.updateEntry(entry.key, entry.value);
+        _indexedTotals[entry.key.path] = entry.value;
+      } catch (error, stackTrace) {
+        developer.log(
+          'Leaderboard update failed for ${entry.key.path}: $error',
+          name: 'userStatsScheduler',
+          error: error,
+          stackTrace: stackTrace,
+        );
+      }
+    }
   }
 
   Future<DocumentReference<Map<String, dynamic>>?> _resolveUserDoc(
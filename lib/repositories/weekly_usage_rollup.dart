@@ -0,0 +1,368 @@
+import 'package:cloud_firestore/cloud_firestore.dart';
+
+/// Changes to the usage of one user in one ISO week, counted per day and per
+/// (course, activity), the same way `WeeklyUsageRollup` counts them on
+/// Android.
+///
+/// Rollups are stored in [collection] under `<userId>_<weekStart>`. The
+/// weekly export and the daily scores on Android only read rollups, so every
+/// write of a task result has to move the rollups from the replaced result to
+/// the new one in the same transaction. [addAttempt] and [removeAttempt]
+/// collect those changes; [toIncrementData] and [indexData] turn them into
+/// the merge writes Android makes.
+class WeeklyUsageRollup {
+  WeeklyUsageRollup._(this.userId, this.weekStart);
+
+  static const String collection = 'USAGE_ROLLUPS';
+  static const String indexCollection = 'USAGE_ROLLUP_INDEX';
+
+  static const int _daysPerWeek = 7;
+
+  /// Points awarded for a perfect attempt, as in the Android daily scores.
+  static const int _pointsPerTask = 40;
+
+  static final RegExp _timestampPattern = RegExp(
+    r'^(\d{4})-(\d{2})-(\d{2})T(\d{2}):(\d{2})(?::(\d{2})(?:\.(\d{1,9}))?)?'
+    r'(Z|[+-]\d{2}(?::?\d{2})?)?$',
+  );
+
+  final String userId;
+
+  /// Monday of the week, at midnight UTC.
+  final DateTime weekStart;
+
+  final List<int> _dailyAttempts = List<int>.filled(_daysPerWeek, 0);
+  final List<int> _dailyPoints = List<int>.filled(_daysPerWeek, 0);
+  final List<int> _dailySeconds = List<int>.filled(_daysPerWeek, 0);
+  final Map<String, _ActivityRollup> _activities = <String, _ActivityRollup>{};
+
+  String get documentId => '${userId}_${formatWeekStart(weekStart)}';
+
+  /// Adds one stored task result to the rollup of its week in [rollupsById],
+  /// creating the rollup when needed. Results without a readable
+  /// `attemptDateTime` are skipped.
+  static void addAttempt(
+    Map<String, WeeklyUsageRollup> rollupsById,
+    String userId,
+    String? courseId,
+    String? activityId,
+    Map<dynamic, dynamic> attempt,
+  ) {
+    _addAttempt(rollupsById, userId, courseId, activityId, attempt, 1);
+  }
+
+  /// Subtracts a stored task result that is being replaced, the reverse of
+  /// [addAttempt].
+  static void removeAttempt(
+    Map<String, WeeklyUsageRollup> rollupsById,
+    String userId,
+    String? courseId,
+    String? activityId,
+    Map<dynamic, dynamic> attempt,
+  ) {
+    _addAttempt(rollupsById, userId, courseId, activityId, attempt, -1);
+  }
+
+  static void _addAttempt(
+    Map<String, WeeklyUsageRollup> rollupsById,
+    String userId,
+    String? courseId,
+    String? activityId,
+    Map<dynamic, dynamic> attempt,
+    int sign,
+  ) {
+    final day = attemptDay(attempt['attemptDateTime']?.toString());
+    if (day == null) {
+      return;
+    }
+    final weekStart =
+        day.subtract(Duration(days: day.weekday - DateTime.monday));
+    final rollup = rollupsById.putIfAbsent(
+      '${userId}_${formatWeekStart(weekStart)}',
+      () => WeeklyUsageRollup._(userId, weekStart),
+    );
+    final seconds = parseTimeSpentSeconds(attempt['timeSpent']?.toString());
+    rollup._record(
+      courseId,
+      activityId,
+      day.difference(weekStart).inDays,
+      _resolveScoreRatio(attempt),
+      _asInteger(attempt['retries']),
+      _asBoolean(attempt['hintsUsed']) == true,
+      seconds < 0 ? 0 : seconds,
+      sign,
+    );
+  }
+
+  void _record(
+    String? courseId,
+    String? activityId,
+    int dayIndex,
+    double scoreRatio,
+    int? retries,
+    bool hintsUsed,
+    int seconds,
+    int sign,
+  ) {
+    _dailyAttempts[dayIndex] += sign;
+    _dailyPoints[dayIndex] += sign * (scoreRatio * _pointsPerTask).round();
+    _dailySeconds[dayIndex] += sign * seconds;
+
+    final activity = _activities.putIfAbsent(
+      activityKey(courseId, activityId),
+      () => _ActivityRollup(courseId, activityId),
+    );
+    activity.dailyAttempts[dayIndex] += sign;
+    activity.attempts += sign;
+    activity.scoreSum += sign * scoreRatio;
+    if (scoreRatio >= 0.999) {
+      activity.successes += sign;
+    }
+    if (retries != null) {
+      activity.retries += sign * retries;
+      activity.retrySamples += sign;
+    }
+    if (hintsUsed) {
+      activity.hintsUsed += sign;
+    }
+    activity.timeSpentSeconds += sign * seconds;
+  }
+
+  /// Whether every counter is zero, e.g. after a result was replaced by an
+  /// identical one.
+  bool get isEmpty {
+    for (var dayIndex = 0; dayIndex < _daysPerWeek; dayIndex += 1) {
+      if (_dailyAttempts[dayIndex] != 0 ||
+          _dailyPoints[dayIndex] != 0 ||
+          _dailySeconds[dayIndex] != 0) {
+        return false;
+      }
+    }
+    return _activities.values.every((activity) => activity.isEmpty);
+  }
+
+  /// Document data that adds this rollup to the stored one when written with
+  /// `SetOptions(merge: true)`.
+  Map<String, dynamic> toIncrementData() {
+    return <String, dynamic>{
+      'userId': userId,
+      'weekStart': formatWeekStart(weekStart),
+      'dailyAttempts': _incrementDays(_dailyAttempts),
+      'dailyPoints': _incrementDays(_dailyPoints),
+      'dailySeconds': _incrementDays(_dailySeconds),
+      'activities': <String, dynamic>{
+        for (final entry in _activities.entries)
+          entry.key: entry.value.toIncrementData(),
+      },
+    };
+  }
+
+  /// Index data recording the weeks in which the activities of [rollups]
+  /// were attempted, to be written with `SetOptions(merge: true)`.
+  static Map<String, dynamic> indexData(
+    String userId,
+    Iterable<WeeklyUsageRollup> rollups,
+  ) {
+    final activityWeeks = <String, Map<String, dynamic>>{};
+    for (final rollup in rollups) {
+      for (final key in rollup._activities.keys) {
+        activityWeeks.putIfAbsent(key, () => <String, dynamic>{})[
+            formatWeekStart(rollup.weekStart)] = true;
+      }
+    }
+    return <String, dynamic>{
+      'userId': userId,
+      'activityWeeks': activityWeeks,
+    };
+  }
+
+  static String activityKey(String? courseId, String? activityId) {
+    return '${courseId ?? ''}|${activityId ?? ''}';
+  }
+
+  static String formatWeekStart(DateTime weekStart) {
+    final month = weekStart.month.toString().padLeft(2, '0');
+    final day = weekStart.day.toString().padLeft(2, '0');
+    return '${weekStart.year.toString().padLeft(4, '0')}-$month-$day';
+  }
+
+  /// The day of an attempt in Bucharest time, at midnight UTC, or `null` when
+  /// the timestamp cannot be read. Timestamps without an offset are local
+  /// Bucharest times, as on Android.
+  static DateTime? attemptDay(String? attemptDateTime) {
+    final text = attemptDateTime?.trim();
+    if (text == null || text.isEmpty) {
+      return null;
+    }
+    final match = _timestampPattern.firstMatch(text);
+    if (match == null) {
+      return null;
+    }
+    final year = int.parse(match.group(1)!);
+    final month = int.parse(match.group(2)!);
+    final day = int.parse(match.group(3)!);
+    final hour = int.parse(match.group(4)!);
+    final minute = int.parse(match.group(5)!);
+    final second = int.parse(match.group(6) ?? '0');
+    final date = DateTime.utc(year, month, day);
+    if (date.year != year ||
+        date.month != month ||
+        date.day != day ||
+        hour > 23 ||
+        minute > 59 ||
+        second > 59) {
+      return null;
+    }
+    final offset = match.group(8);
+    if (offset == null) {
+      return date;
+    }
+    final instant = DateTime.tryParse(text);
+    if (instant == null) {
+      return null;
+    }
+    final local = instant.toUtc().add(_bucharestOffset(instant.toUtc()));
+    return DateTime.utc(local.year, local.month, local.day);
+  }
+
+  /// UTC offset of Europe/Bucharest at [instant]: EET, and EEST from 01:00
+  /// UTC on the last Sunday of March to 01:00 UTC on the last Sunday of
+  /// October.
+  static Duration _bucharestOffset(DateTime instant) {
+    final summerStart = _lastSundayOneAmUtc(instant.year, DateTime.march);
+    final summerEnd = _lastSundayOneAmUtc(instant.year, DateTime.october);
+    final summer =
+        !instant.isBefore(summerStart) && instant.isBefore(summerEnd);
+    return Duration(hours: summer ? 3 : 2);
+  }
+
+  static DateTime _lastSundayOneAmUtc(int year, int month) {
+    final lastDay = DateTime.utc(year, month + 1, 0, 1);
+    return lastDay.subtract(Duration(days: lastDay.weekday % 7));
+  }
+
+  /// Seconds of a `timeSpent` value such as `"1:05"`, `"0:01:05"` or
+  /// `"65s"`; `-1` when it has none. Mirrors `TaskStats.parseTimeSpentSeconds`
+  /// on Android.
+  static int parseTimeSpentSeconds(String? timeSpent) {
+    final trimmed = timeSpent?.trim();
+    if (trimmed == null || trimmed.isEmpty) {
+      return -1;
+    }
+    if (trimmed.contains(':')) {
+      final parts = trimmed.split(':');
+      // Like Java's String.split, which drops trailing empty parts.
+      while (parts.isNotEmpty && parts.last.isEmpty) {
+        parts.removeLast();
+      }
+      if (parts.length == 2 || parts.length == 3) {
+        var total = 0;
+        for (final part in parts) {
+          final value = int.tryParse(part.trim());
+          if (value == null) {
+            return -1;
+          }
+          total = total * 60 + value;
+        }
+        return total < 0 ? 0 : total;
+      }
+    }
+    var seconds = 0;
+    var hasDigits = false;
+    for (final unit in trimmed.codeUnits) {
+      if (unit >= 0x30 && unit <= 0x39) {
+        if (seconds > (0x7fffffff - 9) ~/ 10) {
+          return -1;
+        }
+        seconds = seconds * 10 + (unit - 0x30);
+        hasDigits = true;
+      }
+    }
+    return hasDigits ? seconds : -1;
+  }
+
+  static double _resolveScoreRatio(Map<dynamic, dynamic> attempt) {
+    final score = attempt['scoreRatio'];
+    double? ratio;
+    if (score is num) {
+      ratio = score.toDouble();
+    } else if (score is String) {
+      ratio = double.tryParse(score);
+    }
+    ratio ??= _asBoolean(attempt['success']) == true ? 1.0 : 0.0;
+    return ratio.clamp(0.0, 1.0).toDouble();
+  }
+
+  static bool? _asBoolean(Object? value) {
+    if (value is bool) {
+      return value;
+    }
+    if (value is String) {
+      return value.toLowerCase() == 'true';
+    }
+    if (value is num) {
+      return value.toInt() != 0;
+    }
+    return null;
+  }
+
+  static int? _asInteger(Object? value) {
+    if (value is num) {
+      return value.toInt();
+    }
+    if (value is String) {
+      return int.tryParse(value);
+    }
+    return null;
+  }
+
+  static Map<String, dynamic> _incrementDays(List<int> days) {
+    return <String, dynamic>{
+      for (var dayIndex = 0; dayIndex < _daysPerWeek; dayIndex += 1)
+        if (days[dayIndex] != 0)
+          dayIndex.toString(): FieldValue.increment(days[dayIndex]),
+    };
+  }
+}
+
+/// Counters of one (course, activity) pair in the week.
+class _ActivityRollup {
+  _ActivityRollup(this.courseId, this.activityId);
+
+  final String? courseId;
+  final String? activityId;
+  final List<int> dailyAttempts =
+      List<int>.filled(WeeklyUsageRollup._daysPerWeek, 0);
+  int attempts = 0;
+  int successes = 0;
+  double scoreSum = 0.0;
+  int retries = 0;
+  int retrySamples = 0;
+  int hintsUsed = 0;
+  int timeSpentSeconds = 0;
+
+  bool get isEmpty =>
+      dailyAttempts.every((count) => count == 0) &&
+      attempts == 0 &&
+      successes == 0 &&
+      scoreSum == 0.0 &&
+      retries == 0 &&
+      retrySamples == 0 &&
+      hintsUsed == 0 &&
+      timeSpentSeconds == 0;
+
+  Map<String, dynamic> toIncrementData() {
+    return <String, dynamic>{
+      'courseId': courseId,
+      'activityId': activityId,
+      'dailyAttempts': WeeklyUsageRollup._incrementDays(dailyAttempts),
+      'attempts': FieldValue.increment(attempts),
+      'successes': FieldValue.increment(successes),
+      'scoreSum': FieldValue.increment(scoreSum),
+      'retries': FieldValue.increment(retries),
+      'retrySamples': FieldValue.increment(retrySamples),
+      'hintsUsed': FieldValue.increment(hintsUsed),
+      'timeSpentSeconds': FieldValue.increment(timeSpentSeconds),
+    };
+  }
+}
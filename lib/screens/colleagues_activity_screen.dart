@@ -6,6 +6,7 @@ import 'package:flutter/material.dart';
 import '../models/activity.dart';
 import '../models/course.dart';
 import '../repositories/course_repository.dart';
+import '../repositories/enrollment_progress_snapshots.dart';
 
 class ColleaguesActivityScreen extends StatefulWidget {
   const ColleaguesActivityScreen({
@@ -290,20 +291,7 @@ class _ColleaguesActivityScreenState extends State<ColleaguesActivityScreen> {
         continue;
       }
 
-      final progressSummary = data['progressSummary'];
-      if (progressSummary is! Map) {
-        continue;
-      }
-      final snapshots = progressSummary['activitySnapshots'];
-      if (snapshots is! List) {
-        continue;
-      }
-
-      for (final entry in snapshots) {
-        if (entry is! Map) {
-          continue;
-        }
-        final snapshotMap = Map<String, dynamic>.from(entry as Map);
+      for (final snapshotMap in EnrollmentProgressSnapshots.read(data)) {
         final taskStats = snapshotMap['taskStats'];
         if (taskStats is! Map || taskStats.isEmpty) {
           continue;